@@ -0,0 +1,114 @@
+package bsh;
+
+/**
+ * <p>Title: FastExpression</p>
+ * <p>Description: A one line BeanShell expression, such as <code>2*2</code> or <code>a &gt; threshold &amp;&amp; b != null</code>,
+ * parsed once and evaluated without the setup of {@link Interpreter#eval(String)}. Only expressions which cannot
+ * assign variables, call methods or declare anything qualify: their evaluation reads the namespace and nothing else,
+ * so it needs neither the interpreter's output streams nor any cleanup.</p>
+ * <p>{@link #isCandidate(String, int)} is a cheap check of the source text which rules out most statements before
+ * parsing, and {@link #of(ParsedScript)} returns null for any parsed source which is not such an expression, in which
+ * case the parsed source is evaluated as usual.</p>
+ * <p>An expression holds no evaluation state, so one instance can be evaluated by several threads, provided each thread
+ * uses its own interpreter.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>bsh.FastExpression</code></p>
+ */
+public final class FastExpression {
+	/** The parsed expression, a single top level node */
+	private final ParsedScript script;
+
+	/**
+	 * Creates a new FastExpression
+	 * @param script The parsed expression
+	 */
+	private FastExpression( ParsedScript script ) {
+		this.script = script;
+	}
+
+	/**
+	 * Indicates if a source may be a fast expression, without parsing it
+	 * @param source The source
+	 * @param maxLength The longest source accepted
+	 * @return false if the source is too long, or holds braces or more than a trailing semicolon
+	 */
+	public static boolean isCandidate( String source, int maxLength ) {
+		int length = source.length();
+		if ( length == 0 || length > maxLength )
+			return false;
+		int end = length;
+		while ( end > 0 && Character.isWhitespace( source.charAt( end - 1 ) ) )
+			end--;
+		if ( end > 0 && source.charAt( end - 1 ) == ';' )
+			end--;
+		if ( end == 0 )
+			return false;
+		for ( int i = 0; i < end; i++ ) {
+			char c = source.charAt( i );
+			if ( c == ';' || c == '{' || c == '}' )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the expression of a parsed source, which must not have been optimized yet
+	 * @param script The parsed source
+	 * @return the expression, or null if the source is not a fast expression
+	 */
+	public static FastExpression of( ParsedScript script ) {
+		SimpleNode[] nodes = script.getNodes();
+		if ( nodes.length != 1 || !isExpression( nodes[0] ) || !isReadOnly( nodes[0] ) )
+			return null;
+		return new FastExpression( script );
+	}
+
+	/**
+	 * Returns the parsed expression
+	 * @return the parsed expression
+	 */
+	public ParsedScript getScript() {
+		return script;
+	}
+
+	/**
+	 * Evaluates the expression
+	 * @param interpreter The interpreter supplying the class manager, bound to the namespace
+	 * @param nameSpace The namespace to evaluate in
+	 * @return the value of the expression
+	 * @throws EvalError thrown if the expression fails
+	 */
+	public Object eval( Interpreter interpreter, NameSpace nameSpace ) throws EvalError {
+		return script.eval( interpreter, nameSpace );
+	}
+
+	// Internals only below this point
+
+	private static boolean isExpression( SimpleNode node ) {
+		return node instanceof BSHPrimaryExpression || node instanceof BSHBinaryExpression
+			|| node instanceof BSHUnaryExpression || node instanceof BSHTernaryExpression
+			|| node instanceof BSHCastExpression;
+	}
+
+	/**
+	 * Indicates if a node evaluates without assigning, calling or declaring anything
+	 * @param node The node
+	 * @return true if the node and its children only read values
+	 */
+	private static boolean isReadOnly( SimpleNode node ) {
+		// method calls and allocations take arguments, anonymous classes and closures have blocks
+		if ( node instanceof BSHAssignment || node instanceof BSHArguments || node instanceof BSHBlock )
+			return false;
+		if ( node instanceof BSHUnaryExpression ) {
+			int kind = ((BSHUnaryExpression)node).kind;
+			if ( kind == ParserConstants.INCR || kind == ParserConstants.DECR )
+				return false;
+		}
+		for ( int i = 0; i < node.jjtGetNumChildren(); i++ ) {
+			if ( !isReadOnly( node.getChild( i ) ) )
+				return false;
+		}
+		return true;
+	}
+}
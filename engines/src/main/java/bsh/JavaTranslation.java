@@ -0,0 +1,1175 @@
+package bsh;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>Title: JavaTranslation</p>
+ * <p>Description: The Java source equivalent of a {@link ParsedScript} written in the typed, Java compatible subset of
+ * BeanShell, which compiles to a {@link TranslatedScript} running the script without the interpreter.
+ * Lives in the <code>bsh</code> package because the node classes are package private.</p>
+ * <p>The subset is made of declarations of primitive and <code>String</code> variables, assignments to them,
+ * <code>if</code>, <code>while</code>, <code>do</code> and <code>for</code> statements, blocks, <code>return</code>,
+ * <code>break</code> and <code>continue</code>, and expressions over literals, those variables, and public static
+ * fields and methods of <code>java.*</code> classes. Every expression must have a primitive or <code>String</code>
+ * type. Variables the script reads without declaring are read from the namespace once, before the script runs, and the
+ * translation is only valid for the types they had when it was made, which {@link #run(TranslatedScript, NameSpace)}
+ * checks on every execution. Scripted methods, commands, untyped variables, objects and anything else dynamic are
+ * outside of the subset, so {@link #translate(ParsedScript, NameSpace, String)} returns null for scripts using them.</p>
+ * <p>Variables declared at the top level of the script are written back to the namespace as typed variables, the same
+ * as when the script is interpreted.</p>
+ * <p>A script whose every <code>return</code> has the same primitive type compiles to a {@link TranslatedScript.Typed}
+ * which also returns its value unboxed, through {@link #runLong(TranslatedScript.Typed, Object[], NameSpace)} and its siblings.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>bsh.JavaTranslation</code></p>
+ */
+public class JavaTranslation implements ParserConstants {
+	/** Returned by {@link #run(TranslatedScript, NameSpace)} when the variables the script reads have other types than when it was translated */
+	public static final Object INAPPLICABLE = new Object();
+
+	/** The name of the generated class */
+	private final String className;
+	/** The generated Java source */
+	private final String source;
+	/** The source description used in error messages */
+	private final String sourceFileInfo;
+	/** The names of the variables read from the namespace */
+	private final String[] inputNames;
+	/** The classes of the values of the variables read from the namespace */
+	private final Class<?>[] inputClasses;
+	/** The names of the variables declared at the top level */
+	private final String[] outputNames;
+	/** The types of the variables declared at the top level */
+	private final Class<?>[] outputTypes;
+	/** The modifiers of the variables declared at the top level */
+	private final Modifiers[] outputModifiers;
+	/** The primitive type of the value of the script, or null if the script returns objects */
+	private final Class<?> resultType;
+
+	/**
+	 * Creates a new JavaTranslation
+	 * @param className The name of the generated class
+	 * @param source The generated Java source
+	 * @param sourceFileInfo The source description used in error messages
+	 * @param inputs The variables read from the namespace
+	 * @param outputs The variables declared at the top level
+	 * @param resultType The primitive type of the value of the script, or null if the script returns objects
+	 */
+	private JavaTranslation( String className, String source, String sourceFileInfo, Map<String, Class<?>> inputs, Map<String, Local> outputs, Class<?> resultType ) {
+		this.className = className;
+		this.source = source;
+		this.sourceFileInfo = sourceFileInfo;
+		this.resultType = resultType;
+		inputNames = inputs.keySet().toArray( new String[inputs.size()] );
+		inputClasses = new Class<?>[inputNames.length];
+		for ( int i = 0; i < inputNames.length; i++ ) {
+			Class<?> type = inputs.get( inputNames[i] );
+			inputClasses[i] = type.isPrimitive() ? Primitive.boxType( type ) : type;
+		}
+		outputNames = outputs.keySet().toArray( new String[outputs.size()] );
+		outputTypes = new Class<?>[outputNames.length];
+		outputModifiers = new Modifiers[outputNames.length];
+		for ( int i = 0; i < outputNames.length; i++ ) {
+			outputTypes[i] = outputs.get( outputNames[i] ).type;
+			outputModifiers[i] = outputs.get( outputNames[i] ).modifiers;
+		}
+	}
+
+	/**
+	 * Translates a script to Java source
+	 * @param script The script
+	 * @param nameSpace The namespace the script is about to run in, which supplies the types of the variables the
+	 * script reads without declaring and resolves class names
+	 * @param className The name of the class to generate, in the default package
+	 * @return the translation, or null if the script is not in the translatable subset
+	 */
+	public static JavaTranslation translate( ParsedScript script, NameSpace nameSpace, String className ) {
+		Translator translator = new Translator( nameSpace );
+		try {
+			String source = translator.translate( script.getNodes(), className );
+			return new JavaTranslation( className, source, script.getSourceFileInfo(), translator.inputs, translator.topLevel, translator.primitiveResult() );
+		} catch ( Unsupported e ) {
+			return null;
+		}
+	}
+
+	/**
+	 * Runs the compiled translation against a namespace
+	 * @param compiled An instance of the class compiled from {@link #getSource()}
+	 * @param nameSpace The namespace to run in
+	 * @return the value of the script, or {@link #INAPPLICABLE} if the variables the script reads do not have the
+	 * types the translation was made for, in which case the script has not been run
+	 * @throws EvalError thrown if the script fails
+	 */
+	public Object run( TranslatedScript compiled, NameSpace nameSpace ) throws EvalError {
+		Object[] in = read( nameSpace );
+		if ( in == null )
+			return INAPPLICABLE;
+		Object[] out = outputs();
+		Object result;
+		try {
+			result = compiled.execute( in, out );
+		} catch ( Throwable t ) {
+			throw failed( nameSpace, out, t );
+		}
+		declared( nameSpace, out );
+		return result;
+	}
+
+	/**
+	 * Reads the values of the variables the script reads from a namespace
+	 * @param nameSpace The namespace the script is about to run in
+	 * @return the values to pass to the primitive entry points, or null if they do not have the types the translation was made for
+	 */
+	public Object[] read( NameSpace nameSpace ) {
+		Object[] in = new Object[inputNames.length];
+		try {
+			for ( int i = 0; i < in.length; i++ ) {
+				Object value = Primitive.unwrap( nameSpace.getVariable( inputNames[i] ) );
+				if ( value == null || value.getClass() != inputClasses[i] )
+					return null;
+				in[i] = value;
+			}
+		} catch ( UtilEvalError e ) {
+			return null;
+		}
+		return in;
+	}
+
+	/**
+	 * Runs the compiled translation of a script with a numeric value, returning the value as a long
+	 * @param compiled An instance of the class compiled from {@link #getSource()}
+	 * @param in The values returned by {@link #read(NameSpace)}
+	 * @param nameSpace The namespace to run in
+	 * @return the value of the script, converted as by a Java cast
+	 * @throws EvalError thrown if the script fails
+	 */
+	public long runLong( TranslatedScript.Typed compiled, Object[] in, NameSpace nameSpace ) throws EvalError {
+		Object[] out = outputs();
+		long result;
+		try {
+			result = compiled.executeLong( in, out );
+		} catch ( Throwable t ) {
+			throw failed( nameSpace, out, t );
+		}
+		declared( nameSpace, out );
+		return result;
+	}
+
+	/**
+	 * Runs the compiled translation of a script with a numeric value, returning the value as a double
+	 * @param compiled An instance of the class compiled from {@link #getSource()}
+	 * @param in The values returned by {@link #read(NameSpace)}
+	 * @param nameSpace The namespace to run in
+	 * @return the value of the script, converted as by a Java cast
+	 * @throws EvalError thrown if the script fails
+	 */
+	public double runDouble( TranslatedScript.Typed compiled, Object[] in, NameSpace nameSpace ) throws EvalError {
+		Object[] out = outputs();
+		double result;
+		try {
+			result = compiled.executeDouble( in, out );
+		} catch ( Throwable t ) {
+			throw failed( nameSpace, out, t );
+		}
+		declared( nameSpace, out );
+		return result;
+	}
+
+	/**
+	 * Runs the compiled translation of a script with a boolean value
+	 * @param compiled An instance of the class compiled from {@link #getSource()}
+	 * @param in The values returned by {@link #read(NameSpace)}
+	 * @param nameSpace The namespace to run in
+	 * @return the value of the script
+	 * @throws EvalError thrown if the script fails
+	 */
+	public boolean runBoolean( TranslatedScript.Typed compiled, Object[] in, NameSpace nameSpace ) throws EvalError {
+		Object[] out = outputs();
+		boolean result;
+		try {
+			result = compiled.executeBoolean( in, out );
+		} catch ( Throwable t ) {
+			throw failed( nameSpace, out, t );
+		}
+		declared( nameSpace, out );
+		return result;
+	}
+
+	/**
+	 * Returns the name of the generated class
+	 * @return the class name
+	 */
+	public String getClassName() {
+		return className;
+	}
+
+	/**
+	 * Returns the generated Java source
+	 * @return the Java source
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * Returns the names of the variables the script reads from the namespace
+	 * @return the input variable names
+	 */
+	public String[] getInputNames() {
+		return inputNames.clone();
+	}
+
+	/**
+	 * Returns the names of the variables the script declares at its top level
+	 * @return the output variable names
+	 */
+	public String[] getOutputNames() {
+		return outputNames.clone();
+	}
+
+	/**
+	 * Returns the primitive type of the value of the script, which the compiled translation returns unboxed
+	 * @return the primitive type, or null if the script can return an object or <code>null</code>
+	 */
+	public Class<?> getResultType() {
+		return resultType;
+	}
+
+	// Internals only below this point
+
+	private Object[] outputs() {
+		Object[] out = new Object[outputNames.length];
+		for ( int i = 0; i < out.length; i++ )
+			out[i] = TranslatedScript.UNDECLARED;
+		return out;
+	}
+
+	/**
+	 * Declares the variables the script reached before failing and wraps the failure
+	 * @param nameSpace The namespace the script ran in
+	 * @param out The declared values
+	 * @param t The failure
+	 * @return the error to throw
+	 */
+	private TargetError failed( NameSpace nameSpace, Object[] out, Throwable t ) {
+		try {
+			declare( nameSpace, out );
+		} catch ( UtilEvalError e ) {
+			// the script failure is reported
+		}
+		return new TargetError( "Sourced file: " + sourceFileInfo + " : " + t, t, null, null, true );
+	}
+
+	private void declared( NameSpace nameSpace, Object[] out ) throws EvalError {
+		try {
+			declare( nameSpace, out );
+		} catch ( UtilEvalError e ) {
+			throw e.toEvalError( "Sourced file: " + sourceFileInfo, null, null );
+		}
+	}
+
+	private void declare( NameSpace nameSpace, Object[] out ) throws UtilEvalError {
+		for ( int i = 0; i < out.length; i++ ) {
+			if ( out[i] != TranslatedScript.UNDECLARED )
+				nameSpace.setTypedVariable( outputNames[i], outputTypes[i], Primitive.wrap( out[i], outputTypes[i] ), outputModifiers[i] );
+		}
+	}
+
+	/**
+	 * <p>Title: Unsupported</p>
+	 * <p>Description: Thrown when a script uses a construct outside of the translatable subset</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.JavaTranslation.Unsupported</code></p>
+	 */
+	private static final class Unsupported extends Exception {
+		private static final long serialVersionUID = -6208735377135610417L;
+
+		/**
+		 * Thrown often while scripts are tried, and never reported, so it carries no stack trace
+		 * {@inheritDoc}
+		 * @see java.lang.Throwable#fillInStackTrace()
+		 */
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	/**
+	 * <p>Title: Local</p>
+	 * <p>Description: A variable declared by the script</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.JavaTranslation.Local</code></p>
+	 */
+	private static final class Local {
+		/** The variable type */
+		final Class<?> type;
+		/** The declared modifiers, or null */
+		final Modifiers modifiers;
+
+		Local( Class<?> type, Modifiers modifiers ) {
+			this.type = type;
+			this.modifiers = modifiers;
+		}
+
+		boolean isFinal() {
+			return modifiers != null && modifiers.hasModifier( "final" );
+		}
+	}
+
+	/**
+	 * <p>Title: Expr</p>
+	 * <p>Description: A translated expression and its static type</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.JavaTranslation.Expr</code></p>
+	 */
+	private static final class Expr {
+		/** The Java source of the expression */
+		final String code;
+		/** The type of the expression */
+		final Class<?> type;
+		/** True if the expression reads a variable from the namespace, which may hold a wrapper object */
+		final boolean input;
+
+		Expr( String code, Class<?> type ) {
+			this( code, type, false );
+		}
+
+		Expr( String code, Class<?> type, boolean input ) {
+			this.code = code;
+			this.type = type;
+			this.input = input;
+		}
+	}
+
+	/**
+	 * <p>Title: Translator</p>
+	 * <p>Description: Walks the nodes of a script, writing the Java source of the statements and collecting the
+	 * variables the script reads and declares</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.JavaTranslation.Translator</code></p>
+	 */
+	private static final class Translator {
+		/** The namespace resolving undeclared names */
+		final NameSpace nameSpace;
+		/** The generated statements */
+		final StringBuilder body = new StringBuilder();
+		/** The variables read from the namespace and their types */
+		final Map<String, Class<?>> inputs = new LinkedHashMap<String, Class<?>>();
+		/** The variables declared at the top level, which are hoisted to the start of the generated method */
+		final Map<String, Local> topLevel = new LinkedHashMap<String, Local>();
+		/** The names declared below the top level */
+		final Set<String> nested = new HashSet<String>();
+		/** The declared variables in scope, innermost scope first */
+		final LinkedList<Map<String, Local>> scopes = new LinkedList<Map<String, Local>>();
+		/** The current indentation */
+		int indent = 3;
+		/** The number of enclosing loops */
+		int loops = 0;
+		/** The offsets in the body of the casts boxing returned values */
+		final List<Integer> boxings = new ArrayList<Integer>();
+		/** The type of the returned values, while they all have the same */
+		Class<?> resultType = null;
+		/** True once a returned value is an object, or has another type than the others */
+		boolean objectResult = false;
+
+		Translator( NameSpace nameSpace ) {
+			this.nameSpace = nameSpace;
+			scopes.add( topLevel );
+		}
+
+		String translate( SimpleNode[] nodes, String className ) throws Unsupported {
+			boolean returned = false;
+			for ( int i = 0; i < nodes.length; i++ ) {
+				SimpleNode node = nodes[i];
+				if ( i == nodes.length - 1 && isExpression( node ) ) {
+					// the value of the last statement is the value of the script
+					returnValue( expression( node ) );
+					returned = true;
+				} else {
+					if ( i == nodes.length - 1 && (node instanceof BSHIfStatement || node instanceof BSHBlock) )
+						// the value of the script is the value of the last statement run in the branch
+						throw new Unsupported();
+					statement( node );
+					returned = node instanceof BSHReturnStatement;
+				}
+			}
+			if ( !returned )
+				returnNull();
+
+			Class<?> result = primitiveResult();
+			StringBuilder source = new StringBuilder();
+			source.append( "public final class " ).append( className ).append( " implements bsh.TranslatedScript" )
+				.append( result == null ? "" : ".Typed" ).append( " {\n" );
+			if ( result == null ) {
+				source.append( "\tpublic Object execute( Object[] in, Object[] out ) throws Throwable {\n" );
+			} else {
+				// the body returns the unboxed value, and execute boxes it
+				for ( int i = boxings.size() - 1; i >= 0; i-- )
+					body.delete( boxings.get( i ), boxings.get( i ) + "(Object)".length() );
+				source.append( "\tpublic Object execute( Object[] in, Object[] out ) throws Throwable {\n" );
+				source.append( "\t\treturn (Object)result( in, out );\n\t}\n" );
+				typedEntryPoint( source, "long", result );
+				typedEntryPoint( source, "double", result );
+				typedEntryPoint( source, "boolean", result );
+				source.append( "\tprivate " ).append( typeName( result ) ).append( " result( Object[] in, Object[] out ) throws Throwable {\n" );
+			}
+			int index = 0;
+			for ( Map.Entry<String, Class<?>> input : inputs.entrySet() ) {
+				Class<?> type = input.getValue();
+				source.append( "\t\tfinal " ).append( typeName( type ) ).append( " v_" ).append( input.getKey() ).append( " = " );
+				if ( type.isPrimitive() )
+					source.append( "((" ).append( Primitive.boxType( type ).getSimpleName() ).append( ")in[" ).append( index++ )
+						.append( "])." ).append( type.getName() ).append( "Value();\n" );
+				else
+					source.append( "(String)in[" ).append( index++ ).append( "];\n" );
+			}
+			if ( topLevel.isEmpty() ) {
+				source.append( "\t\t{\n" ).append( body ).append( "\t\t}\n" );
+			} else {
+				for ( Map.Entry<String, Local> local : topLevel.entrySet() ) {
+					Class<?> type = local.getValue().type;
+					source.append( "\t\t" ).append( typeName( type ) ).append( " v_" ).append( local.getKey() )
+						.append( " = " ).append( defaultValue( type ) ).append( ";\n" );
+					source.append( "\t\tboolean d_" ).append( local.getKey() ).append( " = false;\n" );
+				}
+				source.append( "\t\ttry {\n" ).append( body ).append( "\t\t} finally {\n" );
+				index = 0;
+				for ( String name : topLevel.keySet() )
+					source.append( "\t\t\tif ( d_" ).append( name ).append( " ) out[" ).append( index++ )
+						.append( "] = v_" ).append( name ).append( ";\n" );
+				source.append( "\t\t}\n" );
+			}
+			source.append( "\t}\n}\n" );
+			return source.toString();
+		}
+
+		/**
+		 * Returns the primitive type every path of the script returns
+		 * @return the primitive type or null if the script can return an object or <code>null</code>
+		 */
+		Class<?> primitiveResult() {
+			return objectResult || resultType == null || !resultType.isPrimitive() || resultType == Void.TYPE ? null : resultType;
+		}
+
+		void returnValue( Expr value ) {
+			String returned = "(Object)" + value.code + ";";
+			line( "return " + returned );
+			boxings.add( body.length() - returned.length() - 1 );
+			if ( resultType == null )
+				resultType = value.type;
+			else if ( resultType != value.type )
+				objectResult = true;
+		}
+
+		void returnNull() {
+			line( "return null;" );
+			objectResult = true;
+		}
+
+		static void typedEntryPoint( StringBuilder source, String type, Class<?> result ) {
+			source.append( "\tpublic " ).append( type ).append( " execute" ).append( Character.toUpperCase( type.charAt( 0 ) ) )
+				.append( type.substring( 1 ) ).append( "( Object[] in, Object[] out ) throws Throwable {\n\t\t" );
+			if ( (result == Boolean.TYPE) == "boolean".equals( type ) )
+				source.append( "return (" ).append( type ).append( ")result( in, out );\n" );
+			else
+				source.append( "throw new ClassCastException( \"" ).append( result.getName() ).append( " script value\" );\n" );
+			source.append( "\t}\n" );
+		}
+
+		// ==== statements
+
+		void statement( SimpleNode node ) throws Unsupported {
+			if ( node instanceof BSHTypedVariableDeclaration ) {
+				declaration( (BSHTypedVariableDeclaration)node );
+			} else if ( node instanceof BSHIfStatement ) {
+				line( "if ( " + condition( child( node, 0 ) ) + " ) {" );
+				body( child( node, 1 ) );
+				if ( node.jjtGetNumChildren() > 2 ) {
+					line( "} else {" );
+					body( child( node, 2 ) );
+				}
+				line( "}" );
+			} else if ( node instanceof BSHWhileStatement ) {
+				loops++;
+				if ( ((BSHWhileStatement)node).isDoStatement ) {
+					line( "do {" );
+					body( child( node, 0 ) );
+					line( "} while ( " + condition( child( node, 1 ) ) + " );" );
+				} else {
+					line( "while ( " + condition( child( node, 0 ) ) + " ) {" );
+					if ( node.jjtGetNumChildren() > 1 )
+						body( child( node, 1 ) );
+					line( "}" );
+				}
+				loops--;
+			} else if ( node instanceof BSHForStatement ) {
+				forStatement( (BSHForStatement)node );
+			} else if ( node instanceof BSHBlock ) {
+				if ( ((BSHBlock)node).isSynchronized )
+					throw new Unsupported();
+				line( "{" );
+				block( node );
+				line( "}" );
+			} else if ( node instanceof BSHReturnStatement ) {
+				int kind = ((BSHReturnStatement)node).kind;
+				if ( kind == RETURN ) {
+					if ( node.jjtGetNumChildren() == 0 )
+						returnNull();
+					else
+						returnValue( expression( child( node, 0 ) ) );
+				} else if ( (kind == BREAK || kind == CONTINUE) && loops > 0 && node.jjtGetNumChildren() == 0 ) {
+					line( kind == BREAK ? "break;" : "continue;" );
+				} else {
+					throw new Unsupported();
+				}
+			} else if ( isStatementExpression( node ) ) {
+				line( statementExpression( node ) + ";" );
+			} else {
+				throw new Unsupported();
+			}
+		}
+
+		void declaration( BSHTypedVariableDeclaration node ) throws Unsupported {
+			Class<?> type = type( child( node, 0 ) );
+			boolean top = scopes.size() == 1;
+			Local local = new Local( type, node.modifiers );
+			StringBuilder declaration = new StringBuilder();
+			for ( int i = 1; i < node.jjtGetNumChildren(); i++ ) {
+				BSHVariableDeclarator declarator = (BSHVariableDeclarator)node.jjtGetChild( i );
+				String name = declarator.name;
+				String value = declarator.jjtGetNumChildren() == 0
+					? defaultValue( type ) : assignable( expression( child( declarator, 0 ) ), type );
+				if ( inputs.containsKey( name ) )
+					throw new Unsupported();
+				if ( top ) {
+					Local existing = topLevel.get( name );
+					if ( nested.contains( name ) || (existing != null && (existing.type != type || existing.isFinal())) )
+						throw new Unsupported();
+					topLevel.put( name, local );
+					line( "v_" + name + " = " + value + ";" );
+					line( "d_" + name + " = true;" );
+				} else {
+					if ( lookup( name ) != null || topLevel.containsKey( name ) )
+						throw new Unsupported();
+					nested.add( name );
+					scopes.getFirst().put( name, local );
+					if ( declaration.length() > 0 )
+						declaration.append( ", " );
+					declaration.append( "v_" ).append( name ).append( " = " ).append( value );
+				}
+			}
+			if ( declaration.length() > 0 )
+				line( (local.isFinal() ? "final " : "") + typeName( type ) + " " + declaration + ";" );
+		}
+
+		void forStatement( BSHForStatement node ) throws Unsupported {
+			int index = 0;
+			SimpleNode init = node.hasForInit ? child( node, index++ ) : null;
+			SimpleNode condition = node.hasExpression ? child( node, index++ ) : null;
+			SimpleNode update = node.hasForUpdate ? child( node, index++ ) : null;
+			SimpleNode statement = index < node.jjtGetNumChildren() ? child( node, index ) : null;
+			scopes.addFirst( new LinkedHashMap<String, Local>() );
+			line( "{" );
+			indent++;
+			if ( init instanceof BSHTypedVariableDeclaration ) {
+				declaration( (BSHTypedVariableDeclaration)init );
+			} else if ( init != null ) {
+				line( statementExpressions( init ) + ";" );
+			}
+			loops++;
+			line( "for ( ; " + (condition == null ? "" : condition( condition )) + " ; "
+				+ (update == null ? "" : statementExpressions( update )) + " ) {" );
+			if ( statement != null )
+				body( statement );
+			line( "}" );
+			loops--;
+			indent--;
+			line( "}" );
+			scopes.removeFirst();
+		}
+
+		/**
+		 * Writes the body of a compound statement, which runs in a scope of its own
+		 * @param node The body
+		 */
+		void body( SimpleNode node ) throws Unsupported {
+			if ( node instanceof BSHBlock ) {
+				if ( ((BSHBlock)node).isSynchronized )
+					throw new Unsupported();
+				block( node );
+			} else if ( node instanceof BSHTypedVariableDeclaration ) {
+				// declares in the enclosing namespace
+				throw new Unsupported();
+			} else {
+				indent++;
+				statement( node );
+				indent--;
+			}
+		}
+
+		void block( SimpleNode node ) throws Unsupported {
+			scopes.addFirst( new LinkedHashMap<String, Local>() );
+			indent++;
+			for ( int i = 0; i < node.jjtGetNumChildren(); i++ )
+				statement( child( node, i ) );
+			indent--;
+			scopes.removeFirst();
+		}
+
+		String statementExpressions( SimpleNode list ) throws Unsupported {
+			StringBuilder code = new StringBuilder();
+			for ( int i = 0; i < list.jjtGetNumChildren(); i++ ) {
+				SimpleNode node = child( list, i );
+				if ( !isStatementExpression( node ) )
+					throw new Unsupported();
+				if ( i > 0 ) code.append( ", " );
+				code.append( statementExpression( node ) );
+			}
+			return code.toString();
+		}
+
+		boolean isStatementExpression( SimpleNode node ) {
+			return node instanceof BSHAssignment
+				|| (node instanceof BSHUnaryExpression && isIncrement( ((BSHUnaryExpression)node).kind ))
+				|| (node instanceof BSHPrimaryExpression && node.jjtGetNumChildren() == 1 && child( node, 0 ) instanceof BSHMethodInvocation);
+		}
+
+		String statementExpression( SimpleNode node ) throws Unsupported {
+			if ( node instanceof BSHPrimaryExpression )
+				return invocation( (BSHMethodInvocation)child( node, 0 ), true ).code;
+			String code = expression( node ).code;
+			// the outer parentheses make an expression, not a statement
+			return code.substring( 1, code.length() - 1 );
+		}
+
+		// ==== expressions
+
+		boolean isExpression( SimpleNode node ) {
+			return node instanceof BSHPrimaryExpression || node instanceof BSHAssignment || node instanceof BSHBinaryExpression
+				|| node instanceof BSHUnaryExpression || node instanceof BSHTernaryExpression || node instanceof BSHCastExpression;
+		}
+
+		String condition( SimpleNode node ) throws Unsupported {
+			Expr condition = expression( node );
+			if ( condition.type != Boolean.TYPE )
+				throw new Unsupported();
+			return condition.code;
+		}
+
+		/**
+		 * Translates an expression, which is always parenthesized
+		 * @param node The expression node
+		 * @return the translated expression
+		 */
+		Expr expression( SimpleNode node ) throws Unsupported {
+			if ( node instanceof BSHPrimaryExpression ) {
+				if ( node.jjtGetNumChildren() != 1 )
+					throw new Unsupported();
+				SimpleNode prefix = child( node, 0 );
+				if ( prefix instanceof BSHMethodInvocation )
+					return invocation( (BSHMethodInvocation)prefix, false );
+				return expression( prefix );
+			} else if ( node instanceof BSHLiteral ) {
+				return literal( ((BSHLiteral)node).value );
+			} else if ( node instanceof BSHAmbiguousName ) {
+				return name( ((BSHAmbiguousName)node).text );
+			} else if ( node instanceof BSHAssignment ) {
+				return assignment( (BSHAssignment)node );
+			} else if ( node instanceof BSHBinaryExpression ) {
+				return binary( ((BSHBinaryExpression)node).kind, expression( child( node, 0 ) ), child( node, 1 ) );
+			} else if ( node instanceof BSHUnaryExpression ) {
+				return unary( (BSHUnaryExpression)node );
+			} else if ( node instanceof BSHTernaryExpression ) {
+				String condition = condition( child( node, 0 ) );
+				Expr a = expression( child( node, 1 ) ), b = expression( child( node, 2 ) );
+				// BeanShell does not convert the branches to a common type
+				if ( a.type != b.type )
+					throw new Unsupported();
+				return new Expr( "(" + condition + " ? " + a.code + " : " + b.code + ")", a.type );
+			} else if ( node instanceof BSHCastExpression ) {
+				Class<?> type = type( child( node, 0 ) );
+				Expr value = expression( child( node, 1 ) );
+				if ( type.isPrimitive() != value.type.isPrimitive() || (type == Boolean.TYPE) != (value.type == Boolean.TYPE) )
+					throw new Unsupported();
+				return new Expr( "((" + typeName( type ) + ")" + value.code + ")", type );
+			}
+			throw new Unsupported();
+		}
+
+		Expr assignment( BSHAssignment node ) throws Unsupported {
+			String name = assignableName( child( node, 0 ) );
+			Local local = lookup( name );
+			Expr value = expression( child( node, 1 ) );
+			String code;
+			if ( node.operator == ASSIGN ) {
+				code = assignable( value, local.type );
+			} else {
+				// written out in full, so that a lossy conversion fails to compile as it fails in BeanShell
+				code = assignable( binary( binaryOperator( node.operator ), new Expr( "v_" + name, local.type ), value ), local.type );
+			}
+			return new Expr( "(v_" + name + " = " + code + ")", local.type );
+		}
+
+		Expr binary( int kind, Expr a, SimpleNode right ) throws Unsupported {
+			if ( kind == INSTANCEOF )
+				throw new Unsupported();
+			return binary( kind, a, expression( right ) );
+		}
+
+		Expr binary( int kind, Expr a, Expr b ) throws Unsupported {
+			Class<?> type;
+			String operator;
+			switch ( kind ) {
+				case PLUS:
+					if ( a.type == String.class || b.type == String.class ) {
+						type = String.class;
+						break;
+					}
+					// fall through
+				case MINUS: case STAR: case SLASH: case MOD:
+					type = promote( numeric( a ), numeric( b ) );
+					break;
+				case LT: case LTX: case GT: case GTX: case LE: case LEX: case GE: case GEX:
+					numeric( a );
+					numeric( b );
+					type = Boolean.TYPE;
+					break;
+				case EQ: case NE:
+					if ( !(isNumeric( a.type ) && isNumeric( b.type )) && a.type != b.type )
+						throw new Unsupported();
+					// BeanShell compares two wrapper objects by reference
+					if ( a.input && b.input && a.type.isPrimitive() )
+						throw new Unsupported();
+					type = Boolean.TYPE;
+					break;
+				case BOOL_AND: case BOOL_ANDX: case BOOL_OR: case BOOL_ORX:
+					if ( a.type != Boolean.TYPE || b.type != Boolean.TYPE )
+						throw new Unsupported();
+					type = Boolean.TYPE;
+					break;
+				case BIT_AND: case BIT_ANDX: case BIT_OR: case BIT_ORX: case XOR:
+					if ( a.type == Boolean.TYPE && b.type == Boolean.TYPE )
+						type = Boolean.TYPE;
+					else
+						type = promote( integral( a ), integral( b ) );
+					break;
+				case LSHIFT: case LSHIFTX: case RSIGNEDSHIFT: case RSIGNEDSHIFTX: case RUNSIGNEDSHIFT: case RUNSIGNEDSHIFTX:
+					// BeanShell promotes the operands together, so a long distance would widen the result
+					if ( promote( integral( b ) ) != Integer.TYPE )
+						throw new Unsupported();
+					type = promote( integral( a ) );
+					break;
+				default:
+					throw new Unsupported();
+			}
+			operator = operator( kind );
+			return new Expr( "(" + a.code + " " + operator + " " + b.code + ")", type );
+		}
+
+		Expr unary( BSHUnaryExpression node ) throws Unsupported {
+			int kind = node.kind;
+			if ( isIncrement( kind ) ) {
+				String name = assignableName( child( node, 0 ) );
+				Local local = lookup( name );
+				if ( !isNumeric( local.type ) )
+					throw new Unsupported();
+				String operator = kind == INCR ? "++" : "--";
+				return new Expr( node.postfix ? "(v_" + name + operator + ")" : "(" + operator + "v_" + name + ")", local.type );
+			}
+			Expr value = expression( child( node, 0 ) );
+			switch ( kind ) {
+				case PLUS:
+					return new Expr( "(+" + value.code + ")", promote( numeric( value ) ) );
+				case MINUS:
+					return new Expr( "(-" + value.code + ")", promote( numeric( value ) ) );
+				case TILDE:
+					return new Expr( "(~" + value.code + ")", promote( integral( value ) ) );
+				case BANG:
+					if ( value.type != Boolean.TYPE )
+						throw new Unsupported();
+					return new Expr( "(!" + value.code + ")", Boolean.TYPE );
+				default:
+					throw new Unsupported();
+			}
+		}
+
+		Expr invocation( BSHMethodInvocation node, boolean statement ) throws Unsupported {
+			String text = ((BSHAmbiguousName)child( node, 0 )).text;
+			int dot = text.lastIndexOf( '.' );
+			if ( dot < 0 )
+				// a scripted method or command
+				throw new Unsupported();
+			Class<?> clazz = staticClass( text.substring( 0, dot ) );
+			String name = text.substring( dot + 1 );
+			SimpleNode argsNode = child( node, 1 );
+			Expr[] args = new Expr[argsNode.jjtGetNumChildren()];
+			StringBuilder code = new StringBuilder( clazz.getCanonicalName() ).append( '.' ).append( name ).append( '(' );
+			for ( int i = 0; i < args.length; i++ ) {
+				args[i] = expression( child( argsNode, i ) );
+				code.append( i == 0 ? " " : ", " ).append( args[i].code );
+			}
+			code.append( args.length == 0 ? ")" : " )" );
+			// the most specific method applicable without boxing, as javac picks it
+			List<Method> applicable = new ArrayList<Method>();
+			for ( Method method : clazz.getMethods() ) {
+				if ( method.getName().equals( name ) && Modifier.isStatic( method.getModifiers() )
+					&& Modifier.isPublic( method.getDeclaringClass().getModifiers() )
+					&& isApplicable( method.getParameterTypes(), args ) )
+					applicable.add( method );
+			}
+			Method chosen = null;
+			for ( Method candidate : applicable ) {
+				boolean mostSpecific = true;
+				for ( Method other : applicable )
+					if ( other != candidate && !isMoreSpecific( candidate.getParameterTypes(), other.getParameterTypes() ) )
+						mostSpecific = false;
+				if ( mostSpecific ) {
+					chosen = candidate;
+					break;
+				}
+			}
+			if ( chosen == null )
+				throw new Unsupported();
+			Class<?> type = chosen.getReturnType();
+			if ( !(isSupported( type ) || (statement && type == Void.TYPE)) )
+				throw new Unsupported();
+			return new Expr( code.toString(), type );
+		}
+
+		Expr name( String text ) throws Unsupported {
+			int dot = text.lastIndexOf( '.' );
+			if ( dot >= 0 ) {
+				Class<?> clazz = staticClass( text.substring( 0, dot ) );
+				try {
+					Field field = clazz.getField( text.substring( dot + 1 ) );
+					if ( !Modifier.isStatic( field.getModifiers() ) || !isSupported( field.getType() ) )
+						throw new Unsupported();
+					return new Expr( clazz.getCanonicalName() + "." + field.getName(), field.getType() );
+				} catch ( NoSuchFieldException e ) {
+					throw new Unsupported();
+				}
+			}
+			Local local = lookup( text );
+			if ( local != null )
+				return new Expr( "v_" + text, local.type );
+			Class<?> type = inputs.get( text );
+			if ( type == null ) {
+				type = inputType( text );
+				inputs.put( text, type );
+			}
+			return new Expr( "v_" + text, type, true );
+		}
+
+		Expr literal( Object value ) throws Unsupported {
+			if ( value instanceof String )
+				return new Expr( quote( (String)value ), String.class );
+			if ( !(value instanceof Primitive) || value == Primitive.NULL || value == Primitive.VOID )
+				throw new Unsupported();
+			Class<?> type = ((Primitive)value).getType();
+			Object v = ((Primitive)value).getValue();
+			String code;
+			if ( type == Integer.TYPE ) {
+				code = v.toString();
+			} else if ( type == Long.TYPE ) {
+				code = v + "L";
+			} else if ( type == Double.TYPE ) {
+				if ( ((Double)v).isNaN() || ((Double)v).isInfinite() ) throw new Unsupported();
+				code = v + "D";
+			} else if ( type == Float.TYPE ) {
+				if ( ((Float)v).isNaN() || ((Float)v).isInfinite() ) throw new Unsupported();
+				code = v + "F";
+			} else if ( type == Boolean.TYPE ) {
+				code = v.toString();
+			} else if ( type == Character.TYPE ) {
+				code = "(char)" + (int)((Character)v).charValue();
+			} else {
+				throw new Unsupported();
+			}
+			return new Expr( "(" + code + ")", type );
+		}
+
+		// ==== names and types
+
+		Local lookup( String name ) {
+			for ( Map<String, Local> scope : scopes ) {
+				Local local = scope.get( name );
+				if ( local != null )
+					return local;
+			}
+			return null;
+		}
+
+		/**
+		 * Returns the name of a declared, non final variable assigned by an expression
+		 * @param node The target of the assignment
+		 * @return the variable name
+		 */
+		String assignableName( SimpleNode node ) throws Unsupported {
+			if ( !(node instanceof BSHPrimaryExpression) || node.jjtGetNumChildren() != 1 || !(child( node, 0 ) instanceof BSHAmbiguousName) )
+				throw new Unsupported();
+			String name = ((BSHAmbiguousName)child( node, 0 )).text;
+			Local local = lookup( name );
+			// assigning an undeclared variable creates an untyped variable
+			if ( local == null || local.isFinal() )
+				throw new Unsupported();
+			return name;
+		}
+
+		/**
+		 * Returns the type of a variable read from the namespace
+		 * @param name The variable name
+		 * @return the primitive type or String
+		 */
+		Class<?> inputType( String name ) throws Unsupported {
+			if ( nested.contains( name ) || topLevel.containsKey( name ) )
+				throw new Unsupported();
+			Object value;
+			try {
+				value = nameSpace.getVariable( name );
+			} catch ( UtilEvalError e ) {
+				throw new Unsupported();
+			}
+			if ( value instanceof Primitive && value != Primitive.NULL && value != Primitive.VOID )
+				return ((Primitive)value).getType();
+			if ( value instanceof String )
+				return String.class;
+			// values put in the bindings arrive as wrappers, which BeanShell unboxes in operations,
+			// except that a unary operation on a Byte or Short keeps the wrapper type
+			if ( value instanceof Integer || value instanceof Long || value instanceof Double || value instanceof Float
+				|| value instanceof Boolean || value instanceof Character )
+				return Primitive.unboxType( value.getClass() );
+			throw new Unsupported();
+		}
+
+		/**
+		 * Resolves the class of a static field or method
+		 * @param name The class name
+		 * @return the class
+		 */
+		Class<?> staticClass( String name ) throws Unsupported {
+			int dot = name.indexOf( '.' );
+			String first = dot < 0 ? name : name.substring( 0, dot );
+			Class<?> clazz;
+			try {
+				// BeanShell resolves variables before classes
+				if ( lookup( first ) != null || inputs.containsKey( first ) || nameSpace.getVariable( first ) != Primitive.VOID )
+					throw new Unsupported();
+				clazz = nameSpace.getClass( name );
+			} catch ( UtilEvalError e ) {
+				throw new Unsupported();
+			}
+			// java.* classes are visible from any class loader
+			if ( clazz == null || !Modifier.isPublic( clazz.getModifiers() ) || !clazz.getName().startsWith( "java." )
+				|| clazz.getCanonicalName() == null )
+				throw new Unsupported();
+			return clazz;
+		}
+
+		Class<?> type( SimpleNode node ) throws Unsupported {
+			BSHType typeNode = (BSHType)node;
+			if ( typeNode.getArrayDims() != 0 || typeNode.jjtGetNumChildren() != 1 )
+				throw new Unsupported();
+			SimpleNode base = child( typeNode, 0 );
+			if ( base instanceof BSHPrimitiveType )
+				return ((BSHPrimitiveType)base).getType();
+			if ( base instanceof BSHAmbiguousName ) {
+				String name = ((BSHAmbiguousName)base).text;
+				try {
+					if ( (name.equals( "String" ) || name.equals( "java.lang.String" )) && nameSpace.getClass( name ) == String.class )
+						return String.class;
+				} catch ( UtilEvalError e ) {
+					// unsupported
+				}
+			}
+			throw new Unsupported();
+		}
+
+		// ==== output
+
+		void line( String code ) {
+			for ( int i = 0; i < indent; i++ )
+				body.append( '\t' );
+			body.append( code ).append( '\n' );
+		}
+
+		static SimpleNode child( SimpleNode node, int index ) {
+			SimpleNode child = (SimpleNode)node.jjtGetChild( index );
+			// call sites of the optimizer translate as the names they stand in for
+			return child instanceof ScriptOptimizer.StaticSite ? ((ScriptOptimizer.StaticSite)child).original : child;
+		}
+	}
+
+	// ==== type rules
+
+	private static boolean isSupported( Class<?> type ) {
+		return type == String.class || (type.isPrimitive() && type != Void.TYPE);
+	}
+
+	private static boolean isNumeric( Class<?> type ) {
+		return type.isPrimitive() && type != Boolean.TYPE && type != Void.TYPE;
+	}
+
+	private static Class<?> numeric( Expr expr ) throws Unsupported {
+		if ( !isNumeric( expr.type ) )
+			throw new Unsupported();
+		return expr.type;
+	}
+
+	private static Class<?> integral( Expr expr ) throws Unsupported {
+		Class<?> type = numeric( expr );
+		if ( type == Double.TYPE || type == Float.TYPE )
+			throw new Unsupported();
+		return type;
+	}
+
+	private static Class<?> promote( Class<?> type ) {
+		return type == Byte.TYPE || type == Short.TYPE || type == Character.TYPE ? Integer.TYPE : type;
+	}
+
+	private static Class<?> promote( Class<?> a, Class<?> b ) {
+		if ( a == Double.TYPE || b == Double.TYPE ) return Double.TYPE;
+		if ( a == Float.TYPE || b == Float.TYPE ) return Float.TYPE;
+		if ( a == Long.TYPE || b == Long.TYPE ) return Long.TYPE;
+		return Integer.TYPE;
+	}
+
+	/** The widening primitive conversions, each type followed by the types it widens to */
+	private static final Class<?>[][] WIDENING = {
+		{ Byte.TYPE, Short.TYPE, Integer.TYPE, Long.TYPE, Float.TYPE, Double.TYPE },
+		{ Short.TYPE, Integer.TYPE, Long.TYPE, Float.TYPE, Double.TYPE },
+		{ Character.TYPE, Integer.TYPE, Long.TYPE, Float.TYPE, Double.TYPE },
+		{ Integer.TYPE, Long.TYPE, Float.TYPE, Double.TYPE },
+		{ Long.TYPE, Float.TYPE, Double.TYPE },
+		{ Float.TYPE, Double.TYPE },
+	};
+
+	private static boolean widens( Class<?> from, Class<?> to ) {
+		if ( from == to )
+			return true;
+		for ( Class<?>[] row : WIDENING ) {
+			if ( row[0] != from ) continue;
+			for ( int i = 1; i < row.length; i++ )
+				if ( row[i] == to ) return true;
+		}
+		return false;
+	}
+
+	private static boolean converts( Class<?> from, Class<?> to ) {
+		if ( from.isPrimitive() || to.isPrimitive() )
+			return widens( from, to );
+		return to.isAssignableFrom( from );
+	}
+
+	private static boolean isApplicable( Class<?>[] params, Expr[] args ) {
+		if ( params.length != args.length )
+			return false;
+		for ( int i = 0; i < params.length; i++ )
+			if ( !converts( args[i].type, params[i] ) ) return false;
+		return true;
+	}
+
+	private static boolean isMoreSpecific( Class<?>[] a, Class<?>[] b ) {
+		for ( int i = 0; i < a.length; i++ )
+			if ( !converts( a[i], b[i] ) ) return false;
+		return true;
+	}
+
+	/**
+	 * Returns the Java source of an expression assigned to a variable, which must convert without loss as in BeanShell
+	 * @param value The expression
+	 * @param type The variable type
+	 * @return the expression source
+	 */
+	private static String assignable( Expr value, Class<?> type ) throws Unsupported {
+		if ( !converts( value.type, type ) )
+			throw new Unsupported();
+		return value.code;
+	}
+
+	private static boolean isIncrement( int kind ) {
+		return kind == INCR || kind == DECR;
+	}
+
+	private static int binaryOperator( int assignment ) throws Unsupported {
+		switch ( assignment ) {
+			case PLUSASSIGN: return PLUS;
+			case MINUSASSIGN: return MINUS;
+			case STARASSIGN: return STAR;
+			case SLASHASSIGN: return SLASH;
+			case MODASSIGN: return MOD;
+			case ANDASSIGN: case ANDASSIGNX: return BIT_AND;
+			case ORASSIGN: case ORASSIGNX: return BIT_OR;
+			case XORASSIGN: return XOR;
+			case LSHIFTASSIGN: case LSHIFTASSIGNX: return LSHIFT;
+			case RSIGNEDSHIFTASSIGN: case RSIGNEDSHIFTASSIGNX: return RSIGNEDSHIFT;
+			case RUNSIGNEDSHIFTASSIGN: case RUNSIGNEDSHIFTASSIGNX: return RUNSIGNEDSHIFT;
+			default: throw new Unsupported();
+		}
+	}
+
+	private static String operator( int kind ) throws Unsupported {
+		switch ( kind ) {
+			case PLUS: return "+";
+			case MINUS: return "-";
+			case STAR: return "*";
+			case SLASH: return "/";
+			case MOD: return "%";
+			case LT: case LTX: return "<";
+			case GT: case GTX: return ">";
+			case LE: case LEX: return "<=";
+			case GE: case GEX: return ">=";
+			case EQ: return "==";
+			case NE: return "!=";
+			case BOOL_AND: case BOOL_ANDX: return "&&";
+			case BOOL_OR: case BOOL_ORX: return "||";
+			case BIT_AND: case BIT_ANDX: return "&";
+			case BIT_OR: case BIT_ORX: return "|";
+			case XOR: return "^";
+			case LSHIFT: case LSHIFTX: return "<<";
+			case RSIGNEDSHIFT: case RSIGNEDSHIFTX: return ">>";
+			case RUNSIGNEDSHIFT: case RUNSIGNEDSHIFTX: return ">>>";
+			default: throw new Unsupported();
+		}
+	}
+
+	private static String typeName( Class<?> type ) {
+		return type == String.class ? "String" : type.getName();
+	}
+
+	private static String defaultValue( Class<?> type ) {
+		if ( type == Boolean.TYPE ) return "false";
+		if ( type == String.class ) return "null";
+		return "(" + type.getName() + ")0";
+	}
+
+	private static String quote( String value ) {
+		StringBuilder quoted = new StringBuilder( "\"" );
+		for ( int i = 0; i < value.length(); i++ ) {
+			char c = value.charAt( i );
+			if ( c == '"' || c == '\\' )
+				quoted.append( '\\' ).append( c );
+			else if ( c < 0x20 )
+				quoted.append( String.format( "\\%03o", (int)c ) );
+			else if ( c >= 0x7f )
+				quoted.append( String.format( "\\u%04x", (int)c ) );
+			else
+				quoted.append( c );
+		}
+		return quoted.append( '"' ).toString();
+	}
+}
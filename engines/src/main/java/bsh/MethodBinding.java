@@ -0,0 +1,28 @@
+package bsh;
+
+/**
+ * <p>Title: MethodBinding</p>
+ * <p>Description: Rebinds scripted methods to another namespace. A scripted method runs in a child of its
+ * declaring namespace, so a method shared between namespaces has to be rebound to resolve its global variables and
+ * calls against the namespace it is invoked from. Lives in the <code>bsh</code> package because the method constructor
+ * and body are package private.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>bsh.MethodBinding</code></p>
+ */
+public class MethodBinding {
+
+	private MethodBinding() {
+	}
+
+	/**
+	 * Creates a copy of a scripted method bound to another namespace. The copy shares the method body.
+	 * @param method The method to rebind
+	 * @param nameSpace The namespace to bind the copy to
+	 * @return the rebound copy
+	 */
+	public static BshMethod rebind( BshMethod method, NameSpace nameSpace ) {
+		return new BshMethod( method.getName(), method.getReturnType(), method.getParameterNames(),
+			method.getParameterTypes(), method.methodBody, nameSpace, method.getModifiers() );
+	}
+}
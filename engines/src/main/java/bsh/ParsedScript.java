@@ -0,0 +1,285 @@
+package bsh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>Title: ParsedScript</p>
+ * <p>Description: A BeanShell script parsed once into its top level statement nodes, which can then be evaluated
+ * any number of times against any namespace without parsing the source again.
+ * The evaluation loop is the same as {@link Interpreter#eval(Reader, NameSpace, String)}, minus the parser.
+ * Lives in the <code>bsh</code> package because the node classes are package private.</p>
+ * <p>A parsed script holds no evaluation state, so one instance can be evaluated by several threads,
+ * provided each thread uses its own interpreter.</p>
+ * <p>A script which has not been evaluated can be written to a stream with {@link #write(OutputStream)} and read back
+ * with {@link #read(InputStream)}, which restores the node tree without parsing. The stream is only readable by the
+ * BeanShell version which wrote it.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>bsh.ParsedScript</code></p>
+ */
+public class ParsedScript {
+	/** The top level statement nodes */
+	private final SimpleNode[] nodes;
+	/** The source description used in error messages */
+	private final String sourceFileInfo;
+
+	/**
+	 * Creates a new ParsedScript
+	 * @param nodes The top level statement nodes
+	 * @param sourceFileInfo The source description used in error messages
+	 */
+	private ParsedScript( SimpleNode[] nodes, String sourceFileInfo ) {
+		this.nodes = nodes;
+		this.sourceFileInfo = sourceFileInfo;
+	}
+
+	/**
+	 * Parses a script
+	 * @param in The script source
+	 * @param sourceFileInfo The source description used in error messages
+	 * @return the parsed script
+	 * @throws ParseException thrown if the source cannot be parsed
+	 */
+	public static ParsedScript parse( Reader in, String sourceFileInfo ) throws ParseException {
+		Parser parser = new Parser( in );
+		List<SimpleNode> nodes = new ArrayList<SimpleNode>();
+		try {
+			boolean eof = false;
+			while ( !eof ) {
+				eof = parser.Line();
+				SimpleNode node = parser.popNode();
+				if ( node != null ) {
+					// nodes remember from where they were sourced
+					node.setSourceFile( sourceFileInfo );
+					nodes.add( node );
+				}
+				parser.jjtree.reset();
+			}
+		} catch ( ParseException e ) {
+			e.setErrorSourceFile( sourceFileInfo );
+			throw e;
+		} catch ( TokenMgrError e ) {
+			ParseException pe = new ParseException(
+				"Sourced file: "+sourceFileInfo+" Token Parsing Error: "+e.getMessage() );
+			pe.setErrorSourceFile( sourceFileInfo );
+			throw pe;
+		}
+		return new ParsedScript( nodes.toArray( new SimpleNode[nodes.size()] ), sourceFileInfo );
+	}
+
+	/**
+	 * Writes the node tree of a script which has not been evaluated or optimized
+	 * @param out The stream to write to, which is not closed
+	 * @throws IOException thrown if the stream cannot be written
+	 */
+	public void write( OutputStream out ) throws IOException {
+		ObjectOutputStream objects = new NodeOutputStream( out );
+		objects.writeUTF( sourceFileInfo );
+		objects.writeObject( nodes );
+		objects.flush();
+	}
+
+	/**
+	 * Reads a script written by {@link #write(OutputStream)}
+	 * @param in The stream to read from, which is not closed
+	 * @return the parsed script
+	 * @throws IOException thrown if the stream cannot be read or does not hold a script
+	 */
+	public static ParsedScript read( InputStream in ) throws IOException {
+		ObjectInputStream objects = new NodeInputStream( in );
+		String sourceFileInfo = objects.readUTF();
+		try {
+			return new ParsedScript( (SimpleNode[])objects.readObject(), sourceFileInfo );
+		} catch ( ClassNotFoundException e ) {
+			throw new IOException( "Not a parsed script: " + e.getMessage() );
+		} catch ( ClassCastException e ) {
+			throw new IOException( "Not a parsed script: " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Evaluates the script
+	 * @param interpreter The interpreter supplying the output streams and class manager
+	 * @param nameSpace The namespace to evaluate in
+	 * @return the value of the last statement, or of the first top level <code>return</code>
+	 * @throws EvalError thrown if the script fails
+	 */
+	public Object eval( Interpreter interpreter, NameSpace nameSpace ) throws EvalError {
+		Object retVal = null;
+		CallStack callstack = new CallStack( nameSpace );
+		for ( SimpleNode node : nodes ) {
+			retVal = evalNode( node, callstack, interpreter, nameSpace, sourceFileInfo );
+			if ( retVal instanceof ReturnControl ) {
+				retVal = ((ReturnControl)retVal).value;
+				break;
+			}
+		}
+		return Primitive.unwrap( retVal );
+	}
+
+	/**
+	 * Evaluates one top level statement, reporting errors as {@link Interpreter#eval(Reader, NameSpace, String)} does
+	 * @param node The statement node
+	 * @param callstack The call stack, reset to the namespace after the statement
+	 * @param interpreter The interpreter supplying the output streams and class manager
+	 * @param nameSpace The namespace to evaluate in
+	 * @param sourceFileInfo The source description used in error messages
+	 * @return the value of the statement, a {@link ReturnControl} for a <code>return</code>
+	 * @throws EvalError thrown if the statement fails
+	 */
+	static Object evalNode( SimpleNode node, CallStack callstack, Interpreter interpreter, NameSpace nameSpace, String sourceFileInfo ) throws EvalError {
+		try {
+			return node.eval( callstack, interpreter );
+		} catch ( InterpreterError e ) {
+			throw new EvalError(
+				"Sourced file: "+sourceFileInfo+" internal Error: "+e.getMessage(), node, callstack );
+		} catch ( TargetError e ) {
+			if ( e.getNode() == null )
+				e.setNode( node );
+			e.reThrow( "Sourced file: "+sourceFileInfo );
+		} catch ( EvalError e ) {
+			if ( e.getNode() == null )
+				e.setNode( node );
+			e.reThrow( "Sourced file: "+sourceFileInfo );
+		} catch ( RuntimeException e ) {
+			throw new EvalError(
+				"Sourced file: "+sourceFileInfo+" unknown error: "+e.getMessage(), node, callstack );
+		} finally {
+			if ( callstack.depth() > 1 ) {
+				callstack.clear();
+				callstack.push( nameSpace );
+			}
+		}
+		// reThrow always throws
+		return null;
+	}
+
+	/**
+	 * Returns the top level statement nodes
+	 * @return the statement nodes, which must not be modified
+	 */
+	SimpleNode[] getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Returns the number of top level statements
+	 * @return the number of top level statements
+	 */
+	public int getStatementCount() {
+		return nodes.length;
+	}
+
+	/**
+	 * Returns the source description used in error messages
+	 * @return the source description
+	 */
+	public String getSourceFileInfo() {
+		return sourceFileInfo;
+	}
+
+	// Internals only below this point
+
+	/**
+	 * <p>Title: Constant</p>
+	 * <p>Description: Stands for the primitives compared by identity in a written node tree</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.ParsedScript.Constant</code></p>
+	 */
+	private static enum Constant {
+		NULL( Primitive.NULL ),
+		VOID( Primitive.VOID );
+
+		/** The primitive */
+		final Primitive primitive;
+
+		private Constant( Primitive primitive ) {
+			this.primitive = primitive;
+		}
+	}
+
+	/**
+	 * <p>Title: NodeOutputStream</p>
+	 * <p>Description: Writes a node tree, replacing {@link Primitive#NULL} and {@link Primitive#VOID}, which would
+	 * otherwise be read back as copies</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.ParsedScript.NodeOutputStream</code></p>
+	 */
+	private static final class NodeOutputStream extends ObjectOutputStream {
+		NodeOutputStream( OutputStream out ) throws IOException {
+			super( out );
+			enableReplaceObject( true );
+		}
+
+		@Override
+		protected Object replaceObject( Object obj ) throws IOException {
+			if ( obj == Primitive.NULL )
+				return Constant.NULL;
+			if ( obj == Primitive.VOID )
+				return Constant.VOID;
+			return obj;
+		}
+	}
+
+	/**
+	 * <p>Title: NodeInputStream</p>
+	 * <p>Description: Reads a node tree, restoring the primitives replaced by {@link NodeOutputStream} and refusing
+	 * the classes which cannot appear in one, dynamic proxies included. The checksum of a cached script only detects
+	 * corruption, so the classes read are limited to the parser's nodes and the values they hold.</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.ParsedScript.NodeInputStream</code></p>
+	 */
+	private static final class NodeInputStream extends ObjectInputStream {
+		/** The classes of the bsh package which a node tree holds besides the nodes */
+		private static final Set<String> NODE_VALUES = new HashSet<String>( Arrays.asList(
+			Node.class.getName(), SimpleNode.class.getName(), Token.class.getName(), Modifiers.class.getName(),
+			Primitive.class.getName(), Constant.class.getName() ) );
+
+		NodeInputStream( InputStream in ) throws IOException {
+			super( in );
+			enableResolveObject( true );
+		}
+
+		@Override
+		protected Class<?> resolveClass( ObjectStreamClass desc ) throws IOException, ClassNotFoundException {
+			// resolved without being initialized
+			Class<?> c = super.resolveClass( desc );
+			Class<?> element = c;
+			while ( element.isArray() )
+				element = element.getComponentType();
+			String name = element.getName();
+			// the modifiers of a declaration are kept in a table of strings
+			if ( !element.isPrimitive() && !(name.startsWith( "bsh.BSH" ) && name.indexOf( '$' ) < 0) && !NODE_VALUES.contains( name )
+				&& element != String.class && element != Enum.class && element != Boolean.class && element != Character.class
+				&& element != Hashtable.class && !(Number.class.isAssignableFrom( element ) && name.startsWith( "java.lang." )) )
+				throw new ClassNotFoundException( "Unexpected class in a parsed script: " + desc.getName() );
+			return c;
+		}
+
+		@Override
+		protected Class<?> resolveProxyClass( String[] interfaces ) throws IOException, ClassNotFoundException {
+			throw new ClassNotFoundException( "Unexpected proxy in a parsed script: " + Arrays.toString( interfaces ) );
+		}
+
+		@Override
+		protected Object resolveObject( Object obj ) throws IOException {
+			return obj instanceof Constant ? ((Constant)obj).primitive : obj;
+		}
+	}
+}
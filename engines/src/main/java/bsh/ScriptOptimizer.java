@@ -0,0 +1,506 @@
+package bsh;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Title: ScriptOptimizer</p>
+ * <p>Description: Rewrites the node trees of a {@link ParsedScript} so that repeated executions skip work whose result
+ * cannot change between them:<ul>
+ * 	<li>Unary, binary, cast and conditional expressions over primitive literals are folded into literals.
+ * 	Expressions which fail, such as a division by zero, are left to fail when they run.</li>
+ * 	<li>References to static fields and calls to static methods through a class name, such as <code>Integer.MAX_VALUE</code>
+ * 	or <code>Math.max(a, b)</code>, become call sites which remember the class, field or method they resolved to.
+ * 	Every execution checks that the name still denotes the same class in the namespace it runs in, and a call site
+ * 	also checks that the argument types are those the method was resolved for, otherwise BeanShell resolves the name as before.</li>
+ * 	<li>Calls to the Java methods of objects held in variables, such as <code>list.add(x)</code>, go through the same
+ * 	call sites, which remember the method resolved for the receiver's class and the argument types.</li>
+ * </ul>
+ * String results are not folded, since BeanShell creates a new string on each evaluation.
+ * Scripted class declarations are left untouched.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>bsh.ScriptOptimizer</code></p>
+ */
+public final class ScriptOptimizer implements ParserConstants {
+	/** The interpreter folding the constant expressions */
+	private final Interpreter interpreter;
+	/** The call stack folding the constant expressions, over an empty namespace */
+	private final CallStack callstack = new CallStack( new NameSpace( (BshClassManager)null, "constant folding" ) );
+	/** The number of rewrites */
+	private int rewrites = 0;
+
+	private ScriptOptimizer( Interpreter interpreter ) {
+		this.interpreter = interpreter;
+	}
+
+	/**
+	 * Optimizes a parsed script in place. Must be called before the script is shared with other threads.
+	 * @param script The parsed script
+	 * @param interpreter An interpreter used to fold constant expressions
+	 * @return the number of nodes rewritten
+	 */
+	public static int optimize( ParsedScript script, Interpreter interpreter ) {
+		ScriptOptimizer optimizer = new ScriptOptimizer( interpreter );
+		SimpleNode[] nodes = script.getNodes();
+		for ( int i = 0; i < nodes.length; i++ ) {
+			SimpleNode node = optimizer.optimize( nodes[i] );
+			if ( node != nodes[i] ) {
+				node.setSourceFile( nodes[i].sourceFile );
+				nodes[i] = node;
+			}
+		}
+		return optimizer.rewrites;
+	}
+
+	// Internals only below this point
+
+	/**
+	 * Optimizes a node and its children
+	 * @param node The node
+	 * @return the node, or the node replacing it
+	 */
+	private SimpleNode optimize( SimpleNode node ) {
+		if ( node instanceof BSHClassDeclaration )
+			return node;
+		for ( int i = 0; i < node.jjtGetNumChildren(); i++ ) {
+			SimpleNode child = child( node, i );
+			SimpleNode optimized = optimize( child );
+			if ( optimized != child )
+				replace( node, i, optimized );
+		}
+		if ( node instanceof BSHBinaryExpression ) {
+			if ( isConstant( child( node, 0 ) ) && isConstant( child( node, 1 ) ) )
+				return fold( node );
+		} else if ( node instanceof BSHUnaryExpression ) {
+			int kind = ((BSHUnaryExpression)node).kind;
+			if ( kind != INCR && kind != DECR && isConstant( child( node, 0 ) ) )
+				return fold( node );
+		} else if ( node instanceof BSHCastExpression ) {
+			SimpleNode type = child( node, 0 );
+			// other types are resolved by the namespace the script runs in
+			if ( type.jjtGetNumChildren() == 1 && child( type, 0 ) instanceof BSHPrimitiveType && isConstant( child( node, 1 ) ) )
+				return fold( node );
+		} else if ( node instanceof BSHTernaryExpression ) {
+			SimpleNode condition = child( node, 0 );
+			if ( isConstant( condition ) ) {
+				Primitive value = (Primitive)constantValue( condition );
+				if ( value.getType() == Boolean.TYPE ) {
+					rewrites++;
+					return child( node, ((Boolean)value.getValue()).booleanValue() ? 1 : 2 );
+				}
+			}
+		} else if ( node instanceof BSHPrimaryExpression && node.jjtGetNumChildren() == 1 && !isAssigned( node ) ) {
+			SimpleNode prefix = child( node, 0 );
+			if ( prefix instanceof BSHAmbiguousName && isStaticName( ((BSHAmbiguousName)prefix).text ) ) {
+				replace( node, 0, new FieldSite( (BSHAmbiguousName)prefix ) );
+				rewrites++;
+			} else if ( prefix instanceof BSHMethodInvocation && isStaticName( ((BSHMethodInvocation)prefix).getNameNode().text ) ) {
+				replace( node, 0, new CallSite( (BSHMethodInvocation)prefix ) );
+				rewrites++;
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Evaluates a constant expression into a literal
+	 * @param node The expression
+	 * @return the literal, or the expression if it cannot be folded
+	 */
+	private SimpleNode fold( SimpleNode node ) {
+		Object value;
+		try {
+			value = node.eval( callstack, interpreter );
+		} catch ( EvalError e ) {
+			return node;
+		} catch ( RuntimeException e ) {
+			return node;
+		}
+		if ( !(value instanceof Primitive) || value == Primitive.NULL || value == Primitive.VOID )
+			return node;
+		// shaped as the parser shapes literals
+		BSHLiteral literal = new BSHLiteral( ParserTreeConstants.JJTLITERAL );
+		literal.value = value;
+		BSHPrimaryExpression expression = new BSHPrimaryExpression( ParserTreeConstants.JJTPRIMARYEXPRESSION );
+		expression.firstToken = literal.firstToken = node.firstToken;
+		expression.lastToken = literal.lastToken = node.lastToken;
+		expression.jjtAddChild( literal, 0 );
+		literal.jjtSetParent( expression );
+		rewrites++;
+		return expression;
+	}
+
+	private static Object constantValue( SimpleNode node ) {
+		while ( node instanceof BSHPrimaryExpression )
+			node = child( node, 0 );
+		return ((BSHLiteral)node).value;
+	}
+
+	private static boolean isConstant( SimpleNode node ) {
+		if ( node instanceof BSHLiteral ) {
+			Object value = ((BSHLiteral)node).value;
+			return value instanceof Primitive && value != Primitive.NULL && value != Primitive.VOID;
+		}
+		return node instanceof BSHPrimaryExpression && node.jjtGetNumChildren() == 1 && isConstant( child( node, 0 ) );
+	}
+
+	/**
+	 * Indicates if a primary expression is assigned, or incremented or decremented
+	 * @param node The primary expression
+	 * @return true if the expression must resolve to an assignable reference
+	 */
+	private static boolean isAssigned( SimpleNode node ) {
+		Node parent = node.jjtGetParent();
+		if ( parent instanceof BSHAssignment )
+			return parent.jjtGetChild( 0 ) == node;
+		if ( parent instanceof BSHUnaryExpression ) {
+			int kind = ((BSHUnaryExpression)parent).kind;
+			return kind == INCR || kind == DECR;
+		}
+		return false;
+	}
+
+	/**
+	 * Indicates if a name may denote a static member of a class, which holds unless the name is simple or starts
+	 * with one of the names BeanShell resolves to its own objects
+	 * @param name The name
+	 * @return true if the name is compound and may start with a class name
+	 */
+	private static boolean isStaticName( String name ) {
+		if ( !Name.isCompound( name ) )
+			return false;
+		String first = name.substring( 0, name.indexOf( '.' ) );
+		return !first.equals( "this" ) && !first.equals( "super" ) && !first.equals( "global" );
+	}
+
+	private static void replace( SimpleNode parent, int index, SimpleNode node ) {
+		parent.children[index] = node;
+		node.jjtSetParent( parent );
+	}
+
+	private static SimpleNode child( SimpleNode node, int index ) {
+		return (SimpleNode)node.jjtGetChild( index );
+	}
+
+	/**
+	 * <p>Title: StaticSite</p>
+	 * <p>Description: A reference to a static member through a class name, which stands in for the node it replaced
+	 * while the name resolves to a class</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.ScriptOptimizer.StaticSite</code></p>
+	 */
+	@SuppressWarnings("serial")
+	abstract static class StaticSite extends SimpleNode {
+		/** The replaced node, which evaluates the reference when the name does not resolve to a class */
+		final SimpleNode original;
+		/** The full name */
+		final String name;
+		/** The name of the class */
+		final String className;
+		/** The first part of the class name, which BeanShell resolves as a variable first */
+		final String first;
+		/** The member name */
+		final String member;
+
+		StaticSite( SimpleNode original, String name ) {
+			super( original.id );
+			this.original = original;
+			this.name = name;
+			className = Name.prefix( name );
+			int dot = className.indexOf( '.' );
+			first = dot < 0 ? className : className.substring( 0, dot );
+			member = Name.suffix( name, 1 );
+			firstToken = original.firstToken;
+			lastToken = original.lastToken;
+		}
+
+		/**
+		 * Returns the class the name refers to in a namespace, as BeanShell resolves it
+		 * @param nameSpace The namespace
+		 * @return the class, or null if the name refers to something else
+		 */
+		Class<?> target( NameSpace nameSpace ) {
+			return target( nameSpace, variable( nameSpace ) );
+		}
+
+		/**
+		 * Returns the class the name refers to in a namespace, as BeanShell resolves it
+		 * @param nameSpace The namespace
+		 * @param variable The value of the variable named as the first part of the class name
+		 * @return the class, or null if the name refers to something else
+		 */
+		Class<?> target( NameSpace nameSpace, Object variable ) {
+			if ( variable != Primitive.VOID )
+				return null;
+			try {
+				return nameSpace.getClass( className );
+			} catch ( UtilEvalError e ) {
+				return null;
+			}
+		}
+
+		/**
+		 * Returns the value of the variable named as the first part of the class name
+		 * @param nameSpace The namespace
+		 * @return the value, {@link Primitive#VOID} if there is no such variable, or null if it cannot be read
+		 */
+		Object variable( NameSpace nameSpace ) {
+			try {
+				return nameSpace.getVariable( first );
+			} catch ( UtilEvalError e ) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * <p>Title: FieldSite</p>
+	 * <p>Description: A read of a public static field, whose value is held if the field is a final primitive or string</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.ScriptOptimizer.FieldSite</code></p>
+	 */
+	@SuppressWarnings("serial")
+	static final class FieldSite extends StaticSite {
+		/** The last resolution */
+		private volatile Resolution resolution = null;
+
+		FieldSite( BSHAmbiguousName original ) {
+			super( original, original.text );
+		}
+
+		@Override
+		public Object eval( CallStack callstack, Interpreter interpreter ) throws EvalError {
+			Class<?> clazz = target( callstack.top() );
+			if ( clazz != null ) {
+				Resolution r = resolution;
+				if ( r == null || r.clazz != clazz )
+					resolution = r = resolve( clazz );
+				try {
+					if ( r.constant != null )
+						return r.constant;
+					if ( r.field != null )
+						return Primitive.wrap( r.field.get( null ), r.field.getType() );
+				} catch ( IllegalAccessException e ) {
+					// left to BeanShell
+				}
+			}
+			return ((BSHAmbiguousName)original).toObject( callstack, interpreter );
+		}
+
+		private Resolution resolve( Class<?> clazz ) {
+			try {
+				Field field = clazz.getField( member );
+				int modifiers = field.getModifiers();
+				if ( !Modifier.isStatic( modifiers ) || !Modifier.isPublic( field.getDeclaringClass().getModifiers() ) )
+					return new Resolution( clazz, null, null );
+				Object constant = null;
+				if ( Modifier.isFinal( modifiers ) && (field.getType().isPrimitive() || field.getType() == String.class) )
+					constant = Primitive.wrap( field.get( null ), field.getType() );
+				return new Resolution( clazz, field, constant );
+			} catch ( Exception e ) {
+				return new Resolution( clazz, null, null );
+			} catch ( LinkageError e ) {
+				return new Resolution( clazz, null, null );
+			}
+		}
+
+		/**
+		 * <p>Title: Resolution</p>
+		 * <p>Description: The field a name resolved to in a class</p>
+		 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+		 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+		 * <p><code>bsh.ScriptOptimizer.FieldSite.Resolution</code></p>
+		 */
+		private static final class Resolution {
+			/** The class */
+			final Class<?> clazz;
+			/** The field, or null if BeanShell resolves the name */
+			final Field field;
+			/** The value of a constant field, or null */
+			final Object constant;
+
+			Resolution( Class<?> clazz, Field field, Object constant ) {
+				this.clazz = clazz;
+				this.field = field;
+				this.constant = constant;
+			}
+		}
+	}
+
+	/**
+	 * <p>Title: CallSite</p>
+	 * <p>Description: A call to a static method through a class name, or to a Java method of the object held by a variable,
+	 * which remembers the method resolved for the last class and argument types. A call whose class and argument types are
+	 * those of the last call, as at a monomorphic call site, skips BeanShell's method resolution, and when the argument
+	 * types are exactly the parameter types it also skips the conversion of the arguments.</p>
+	 * <p>Calls on scripted objects, on primitives and null, and through a compound receiver such as <code>a.b.m()</code>
+	 * are left to BeanShell.</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.ScriptOptimizer.CallSite</code></p>
+	 */
+	@SuppressWarnings("serial")
+	static final class CallSite extends StaticSite {
+		/** The last resolution of a static call */
+		private volatile Resolution resolution = null;
+		/** The last resolution of an instance call, keyed by the receiver's class */
+		private volatile Resolution instanceResolution = null;
+
+		CallSite( BSHMethodInvocation original ) {
+			super( original, original.getNameNode().text );
+		}
+
+		@Override
+		public Object eval( CallStack callstack, Interpreter interpreter ) throws EvalError {
+			NameSpace nameSpace = callstack.top();
+			Object variable = variable( nameSpace );
+			Class<?> clazz = target( nameSpace, variable );
+			Object receiver = clazz == null ? receiver( variable ) : null;
+			if ( clazz == null && receiver == null )
+				return original.eval( callstack, interpreter );
+			Object[] args = ((BSHMethodInvocation)original).getArgsNode().getArguments( callstack, interpreter );
+			// error handling as in BSHMethodInvocation
+			try {
+				Resolution r;
+				if ( receiver == null ) {
+					r = resolution;
+					if ( r == null || r.clazz != clazz || !r.matches( args ) ) {
+						BshClassManager bcm = interpreter.getClassManager();
+						Class<?>[] types = Types.getTypes( args );
+						Method method = Reflect.resolveJavaMethod( bcm, clazz, member, types, true );
+						if ( method == null )
+							return Reflect.invokeStaticMethod( bcm, clazz, member, args );
+						resolution = r = new Resolution( clazz, types, method );
+					}
+				} else {
+					Class<?> receiverClass = receiver.getClass();
+					r = instanceResolution;
+					if ( r == null || r.clazz != receiverClass || !r.matches( args ) ) {
+						Class<?>[] types = Types.getTypes( args );
+						Method method = resolvePublic( receiverClass, types );
+						if ( method == null )
+							// reports the missing method
+							return Reflect.invokeObjectMethod( receiver, member, args, interpreter, callstack, this );
+						instanceResolution = r = new Resolution( receiverClass, types, method );
+					}
+				}
+				return r.invoke( receiver, args );
+			} catch ( ReflectError e ) {
+				throw new EvalError(
+					"Error in method invocation: " + e.getMessage(), this, callstack );
+			} catch ( InvocationTargetException e ) {
+				Throwable te = e.getTargetException();
+				boolean isNative = true;
+				if ( te instanceof EvalError )
+					isNative = te instanceof TargetError && ((TargetError)te).inNativeCode();
+				throw new TargetError( "Method Invocation " + name, te, this, callstack, isNative );
+			} catch ( UtilEvalError e ) {
+				throw e.toEvalError( this, callstack );
+			}
+		}
+
+		/**
+		 * Resolves an instance method among the public methods of the public classes and interfaces of a receiver's class,
+		 * whether or not BeanShell has been made to reach non-public members, so the method can be invoked on any runtime
+		 * @param receiverClass The class of the receiver
+		 * @param types The argument types
+		 * @return the most specific method, or null if the call is left to BeanShell
+		 */
+		private Method resolvePublic( Class<?> receiverClass, Class<?>[] types ) {
+			Method[] candidates = Reflect.getCandidateMethods( receiverClass, member, types.length, true );
+			List<Method> accessible = new ArrayList<Method>( candidates.length );
+			// a public class inherits the public methods of a non-public superclass
+			for ( Method m : candidates ) {
+				if ( Modifier.isPublic( m.getDeclaringClass().getModifiers() ) )
+					accessible.add( m );
+			}
+			return Reflect.findMostSpecificMethod( types, accessible.toArray( new Method[accessible.size()] ) );
+		}
+
+		/**
+		 * Returns the receiver of an instance call
+		 * @param variable The value of the variable named by the receiver
+		 * @return the receiver, or null if the call is left to BeanShell
+		 */
+		private Object receiver( Object variable ) {
+			// a compound receiver may be a field or a package qualified class
+			if ( !first.equals( className ) || variable == null || variable instanceof Primitive
+				|| variable instanceof This || variable instanceof ClassIdentifier )
+				return null;
+			return variable;
+		}
+
+		/**
+		 * <p>Title: Resolution</p>
+		 * <p>Description: The method resolved in a class for some argument types</p>
+		 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+		 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+		 * <p><code>bsh.ScriptOptimizer.CallSite.Resolution</code></p>
+		 */
+		private static final class Resolution {
+			/** The class, of the receiver for an instance call */
+			final Class<?> clazz;
+			/** The argument types, null for a null argument */
+			final Class<?>[] types;
+			/** The method */
+			final Method method;
+			/** True if the argument types are the parameter types, or assignable to them, so the arguments are passed as they are */
+			final boolean direct;
+
+			Resolution( Class<?> clazz, Class<?>[] types, Method method ) {
+				this.clazz = clazz;
+				this.types = types;
+				this.method = method;
+				Class<?>[] parameters = method.getParameterTypes();
+				boolean exact = parameters.length == types.length;
+				for ( int i = 0; exact && i < types.length; i++ )
+					exact = types[i] != null
+						&& (parameters[i] == types[i] || (!parameters[i].isPrimitive() && parameters[i].isAssignableFrom( types[i] )));
+				direct = exact;
+			}
+
+			/**
+			 * Indicates if arguments have the types the method was resolved for
+			 * @param args The arguments
+			 * @return true if the method applies
+			 */
+			boolean matches( Object[] args ) {
+				if ( args.length != types.length )
+					return false;
+				for ( int i = 0; i < args.length; i++ ) {
+					Object arg = args[i];
+					Class<?> type = arg == null ? null : arg instanceof Primitive ? ((Primitive)arg).getType() : arg.getClass();
+					if ( type != types[i] )
+						return false;
+				}
+				return true;
+			}
+
+			/**
+			 * Invokes the method as {@link Reflect#invokeMethod(Method, Object, Object[])} does
+			 * @param receiver The receiver, null for a static method
+			 * @param args The arguments
+			 * @return the value returned, wrapped as BeanShell does
+			 * @throws ReflectError thrown if the method is not accessible
+			 * @throws InvocationTargetException thrown if the method throws
+			 */
+			Object invoke( Object receiver, Object[] args ) throws ReflectError, InvocationTargetException {
+				if ( !direct )
+					return Reflect.invokeMethod( method, receiver, args );
+				try {
+					Object value = method.invoke( receiver, Primitive.unwrap( args ) );
+					return Primitive.wrap( value == null ? Primitive.NULL : value, method.getReturnType() );
+				} catch ( IllegalAccessException e ) {
+					throw new ReflectError( "Cannot access method " + method + ": " + e );
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,454 @@
+package bsh;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Title: ScriptProfiler</p>
+ * <p>Description: Attributes the wall time, executions and allocations of a {@link ParsedScript} to its source lines.
+ * {@link #instrument(ParsedScript, boolean)} wraps each statement of the script's top level and of its blocks, including
+ * the bodies of the methods the script declares, in a node which measures the statement and records it against its line
+ * and enclosing method, using the line numbers the parser gave the statement's tokens.</p>
+ * <p>Each line records its total time, which includes the statements nested in it and the methods it calls, and its self
+ * time, which does not. The statements are also recorded as a call tree, whose self times are written by
+ * {@link #collapsedStacks()} in the collapsed stack format read by flame graph tools.</p>
+ * <p>Allocations are the bytes allocated by the evaluating thread as reported by the HotSpot thread MX bean, and are
+ * not recorded on runtimes without it. Scripted class declarations are not instrumented.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>bsh.ScriptProfiler</code></p>
+ */
+public final class ScriptProfiler {
+	/** The method name of the statements outside of any method */
+	public static final String TOP_LEVEL = "<script>";
+
+	/** The source description of the profiled script */
+	private final String sourceFileInfo;
+	/** True if allocations are recorded */
+	private final boolean allocations;
+	/** The profiled lines keyed by method and line number, in source order */
+	private final Map<String, Line> lines = new LinkedHashMap<String, Line>();
+	/** The root of the call tree */
+	private final Frame root = new Frame( null );
+	/** The position of each thread in the call tree */
+	private final ThreadLocal<Cursor> cursors = new ThreadLocal<Cursor>() {
+		@Override
+		protected Cursor initialValue() {
+			return new Cursor( root );
+		}
+	};
+
+	private ScriptProfiler( String sourceFileInfo, boolean allocations ) {
+		this.sourceFileInfo = sourceFileInfo;
+		this.allocations = allocations && Allocations.BEAN != null;
+	}
+
+	/**
+	 * Instruments a parsed script in place. Must be called before the script is shared with other threads.
+	 * @param script The parsed script
+	 * @param allocations True to record allocations, which costs two calls to the thread MX bean per statement
+	 * @return the profiler recording the script's executions
+	 */
+	public static ScriptProfiler instrument( ParsedScript script, boolean allocations ) {
+		ScriptProfiler profiler = new ScriptProfiler( script.getSourceFileInfo(), allocations );
+		SimpleNode[] nodes = script.getNodes();
+		for ( int i = 0; i < nodes.length; i++ ) {
+			profiler.instrument( nodes[i], TOP_LEVEL );
+			SimpleNode node = profiler.wrap( nodes[i], TOP_LEVEL );
+			if ( node != nodes[i] ) {
+				node.setSourceFile( nodes[i].sourceFile );
+				nodes[i] = node;
+			}
+		}
+		return profiler;
+	}
+
+	/**
+	 * Returns the source description of the profiled script
+	 * @return the source description
+	 */
+	public String getSourceFileInfo() {
+		return sourceFileInfo;
+	}
+
+	/**
+	 * Indicates if allocations are recorded
+	 * @return true if allocations are recorded
+	 */
+	public boolean isRecordingAllocations() {
+		return allocations;
+	}
+
+	/**
+	 * Returns the profiled lines
+	 * @return the lines, in source order
+	 */
+	public List<Line> getLines() {
+		return new ArrayList<Line>( lines.values() );
+	}
+
+	/**
+	 * Discards the recorded executions
+	 */
+	public void reset() {
+		for ( Line line : lines.values() )
+			line.reset();
+		root.children.clear();
+	}
+
+	/**
+	 * Returns a report of the executed lines, the most expensive first
+	 * @return the report
+	 */
+	public String report() {
+		List<Line> executed = new ArrayList<Line>();
+		for ( Line line : lines.values() )
+			if ( line.getCount() > 0 ) executed.add( line );
+		Collections.sort( executed, new Comparator<Line>() {
+			@Override
+			public int compare( Line a, Line b ) {
+				long x = a.getSelfNanos(), y = b.getSelfNanos();
+				return x > y ? -1 : x < y ? 1 : a.getLine() - b.getLine();
+			}
+		} );
+		StringBuilder report = new StringBuilder( "Profile of " ).append( sourceFileInfo ).append( '\n' );
+		report.append( String.format( "%6s  %-20s %10s %12s %12s %12s  %s%n", "line", "method", "count", "total ms", "self ms",
+			allocations ? "self KB" : "", "source" ) );
+		for ( Line line : executed ) {
+			report.append( String.format( "%6d  %-20s %10d %12.3f %12.3f %12s  %s%n", line.getLine(), line.getMethod(), line.getCount(),
+				line.getTotalNanos() / 1000000D, line.getSelfNanos() / 1000000D,
+				allocations ? String.format( "%.1f", line.getAllocatedBytes() / 1024D ) : "", line.getSource() ) );
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Returns the call tree of the executed statements in the collapsed stack format of flame graph tools:
+	 * one line per call path, made of the <code>method:line</code> frames from the outermost statement in,
+	 * separated by semicolons, followed by the self time of the innermost statement in nanoseconds
+	 * @return the collapsed stacks
+	 */
+	public String collapsedStacks() {
+		StringBuilder stacks = new StringBuilder();
+		for ( Frame frame : root.children.values() )
+			collapse( frame, new StringBuilder(), stacks );
+		return stacks.toString();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ScriptProfiler [script=" + sourceFileInfo + ", lines=" + lines.size() + ", allocations=" + allocations + "]";
+	}
+
+	// Internals only below this point
+
+	/**
+	 * Wraps the statements of the blocks below a node
+	 * @param node The node
+	 * @param method The name of the method enclosing the node
+	 */
+	private void instrument( SimpleNode node, String method ) {
+		if ( node instanceof BSHClassDeclaration )
+			return;
+		if ( node instanceof BSHMethodDeclaration )
+			method = ((BSHMethodDeclaration)node).name;
+		// the lock expression of a synchronized block is not a statement
+		int first = node instanceof BSHBlock && ((BSHBlock)node).isSynchronized ? 1 : 0;
+		for ( int i = 0; i < node.jjtGetNumChildren(); i++ ) {
+			SimpleNode child = (SimpleNode)node.jjtGetChild( i );
+			instrument( child, method );
+			if ( node instanceof BSHBlock && i >= first ) {
+				SimpleNode wrapped = wrap( child, method );
+				if ( wrapped != child ) {
+					node.children[i] = wrapped;
+					wrapped.jjtSetParent( node );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wraps a statement in a {@link ProfiledNode}
+	 * @param statement The statement
+	 * @param method The name of the enclosing method
+	 * @return the profiled node, or the statement if it is a declaration or has no position
+	 */
+	private SimpleNode wrap( SimpleNode statement, String method ) {
+		if ( statement instanceof BSHClassDeclaration || statement instanceof BSHMethodDeclaration || statement.firstToken == null )
+			return statement;
+		int lineNumber = statement.getLineNumber();
+		String key = method + ":" + lineNumber;
+		Line line = lines.get( key );
+		if ( line == null ) {
+			String source = statement.getText().trim();
+			line = new Line( method, lineNumber, source.length() > 60 ? source.substring( 0, 57 ) + "..." : source );
+			lines.put( key, line );
+		}
+		return new ProfiledNode( statement, line, this );
+	}
+
+	private long allocatedBytes() {
+		return allocations ? Allocations.BEAN.getThreadAllocatedBytes( Thread.currentThread().getId() ) : 0;
+	}
+
+	private static void collapse( Frame frame, StringBuilder path, StringBuilder stacks ) {
+		int length = path.length();
+		if ( length > 0 )
+			path.append( ';' );
+		path.append( frame.line.getMethod() ).append( ':' ).append( frame.line.getLine() );
+		long self = frame.selfNanos.get();
+		if ( self > 0 )
+			stacks.append( path ).append( ' ' ).append( self ).append( '\n' );
+		for ( Frame child : frame.children.values() )
+			collapse( child, path, stacks );
+		path.setLength( length );
+	}
+
+	/**
+	 * <p>Title: Line</p>
+	 * <p>Description: The recorded executions of the statements on a source line of a method</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.ScriptProfiler.Line</code></p>
+	 */
+	public static final class Line {
+		/** The enclosing method name, or {@link ScriptProfiler#TOP_LEVEL} */
+		private final String method;
+		/** The line number */
+		private final int line;
+		/** The source of the first statement on the line */
+		private final String source;
+		/** The number of statement executions */
+		private final AtomicLong count = new AtomicLong();
+		/** The total time in nanoseconds */
+		private final AtomicLong totalNanos = new AtomicLong();
+		/** The self time in nanoseconds */
+		private final AtomicLong selfNanos = new AtomicLong();
+		/** The bytes allocated outside of nested statements */
+		private final AtomicLong allocatedBytes = new AtomicLong();
+
+		Line( String method, int line, String source ) {
+			this.method = method;
+			this.line = line;
+			this.source = source;
+		}
+
+		/**
+		 * Returns the name of the method the line belongs to
+		 * @return the method name, or {@link ScriptProfiler#TOP_LEVEL} for the statements outside of any method
+		 */
+		public String getMethod() {
+			return method;
+		}
+
+		/**
+		 * Returns the line number
+		 * @return the line number
+		 */
+		public int getLine() {
+			return line;
+		}
+
+		/**
+		 * Returns the source of the first statement on the line
+		 * @return the source, as rebuilt from its tokens
+		 */
+		public String getSource() {
+			return source;
+		}
+
+		/**
+		 * Returns the number of times statements on the line were executed
+		 * @return the execution count
+		 */
+		public long getCount() {
+			return count.get();
+		}
+
+		/**
+		 * Returns the time spent in the statements of the line, including nested statements and called methods,
+		 * which is counted once for every level of a recursion
+		 * @return the total time in nanoseconds
+		 */
+		public long getTotalNanos() {
+			return totalNanos.get();
+		}
+
+		/**
+		 * Returns the time spent in the statements of the line, less the time of the statements nested in them
+		 * @return the self time in nanoseconds
+		 */
+		public long getSelfNanos() {
+			return selfNanos.get();
+		}
+
+		/**
+		 * Returns the bytes allocated by the statements of the line, less those of the statements nested in them
+		 * @return the allocated bytes, zero if allocations are not recorded
+		 */
+		public long getAllocatedBytes() {
+			return allocatedBytes.get();
+		}
+
+		void reset() {
+			count.set( 0 );
+			totalNanos.set( 0 );
+			selfNanos.set( 0 );
+			allocatedBytes.set( 0 );
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "Line [method=" + method + ", line=" + line + ", count=" + count + ", totalNanos=" + totalNanos
+				+ ", selfNanos=" + selfNanos + ", allocatedBytes=" + allocatedBytes + "]";
+		}
+	}
+
+	/**
+	 * <p>Title: ProfiledNode</p>
+	 * <p>Description: Evaluates a statement and records the execution against its line and call path</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.ScriptProfiler.ProfiledNode</code></p>
+	 */
+	@SuppressWarnings("serial")
+	static final class ProfiledNode extends SimpleNode {
+		/** The profiled statement */
+		final SimpleNode statement;
+		/** The line of the statement */
+		private final Line line;
+		/** The profiler */
+		private final ScriptProfiler profiler;
+
+		ProfiledNode( SimpleNode statement, Line line, ScriptProfiler profiler ) {
+			super( statement.id );
+			this.statement = statement;
+			this.line = line;
+			this.profiler = profiler;
+			firstToken = statement.firstToken;
+			lastToken = statement.lastToken;
+		}
+
+		@Override
+		public Object eval( CallStack callstack, Interpreter interpreter ) throws EvalError {
+			Cursor cursor = profiler.cursors.get();
+			Frame caller = cursor.frame;
+			long callerChildNanos = cursor.childNanos;
+			long callerChildBytes = cursor.childBytes;
+			cursor.frame = caller.child( line );
+			cursor.childNanos = 0;
+			cursor.childBytes = 0;
+			long bytes = profiler.allocatedBytes();
+			long start = System.nanoTime();
+			try {
+				return statement.eval( callstack, interpreter );
+			} finally {
+				long elapsed = System.nanoTime() - start;
+				long allocated = profiler.allocatedBytes() - bytes;
+				long self = elapsed - cursor.childNanos;
+				line.count.incrementAndGet();
+				line.totalNanos.addAndGet( elapsed );
+				line.selfNanos.addAndGet( self );
+				if ( allocated != 0 )
+					line.allocatedBytes.addAndGet( allocated - cursor.childBytes );
+				cursor.frame.selfNanos.addAndGet( self );
+				cursor.frame = caller;
+				cursor.childNanos = callerChildNanos + elapsed;
+				cursor.childBytes = callerChildBytes + allocated;
+			}
+		}
+	}
+
+	/**
+	 * <p>Title: Frame</p>
+	 * <p>Description: A node of the call tree, a line reached through the path of its ancestors</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.ScriptProfiler.Frame</code></p>
+	 */
+	private static final class Frame {
+		/** The line, null for the root */
+		final Line line;
+		/** The lines reached from this one */
+		final ConcurrentHashMap<Line, Frame> children = new ConcurrentHashMap<Line, Frame>();
+		/** The self time in nanoseconds */
+		final AtomicLong selfNanos = new AtomicLong();
+
+		Frame( Line line ) {
+			this.line = line;
+		}
+
+		Frame child( Line childLine ) {
+			Frame child = children.get( childLine );
+			if ( child == null ) {
+				child = new Frame( childLine );
+				Frame existing = children.putIfAbsent( childLine, child );
+				if ( existing != null )
+					child = existing;
+			}
+			return child;
+		}
+	}
+
+	/**
+	 * <p>Title: Cursor</p>
+	 * <p>Description: The position of a thread in the call tree, and the time and allocations of the statements
+	 * nested in the statement it is executing</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.ScriptProfiler.Cursor</code></p>
+	 */
+	private static final class Cursor {
+		Frame frame;
+		long childNanos;
+		long childBytes;
+
+		Cursor( Frame frame ) {
+			this.frame = frame;
+		}
+	}
+
+	/**
+	 * <p>Title: Allocations</p>
+	 * <p>Description: Holds the HotSpot thread MX bean, or null if the runtime does not measure thread allocations</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.ScriptProfiler.Allocations</code></p>
+	 */
+	private static final class Allocations {
+		static final com.sun.management.ThreadMXBean BEAN = bean();
+
+		private static com.sun.management.ThreadMXBean bean() {
+			try {
+				ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+				if ( bean instanceof com.sun.management.ThreadMXBean ) {
+					com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean)bean;
+					if ( hotspot.isThreadAllocatedMemorySupported() ) {
+						if ( !hotspot.isThreadAllocatedMemoryEnabled() )
+							hotspot.setThreadAllocatedMemoryEnabled( true );
+						return hotspot;
+					}
+				}
+			} catch ( Throwable t ) {
+				// not a HotSpot runtime
+			}
+			return null;
+		}
+	}
+}
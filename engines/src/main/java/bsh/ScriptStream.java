@@ -0,0 +1,80 @@
+package bsh;
+
+import java.io.BufferedReader;
+import java.io.Reader;
+
+/**
+ * <p>Title: ScriptStream</p>
+ * <p>Description: Evaluates a BeanShell script one top level statement at a time as it is parsed from a reader, so that
+ * only the statement being evaluated is held in memory, however large the script. Unlike a {@link ParsedScript} the
+ * statements are discarded once evaluated, and a {@link Listener} is told of each one.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>bsh.ScriptStream</code></p>
+ */
+public class ScriptStream {
+	/**
+	 * <p>Title: Listener</p>
+	 * <p>Description: Told of each statement evaluated from a stream</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.ScriptStream.Listener</code></p>
+	 */
+	public interface Listener {
+		/**
+		 * Called after each top level statement is evaluated
+		 * @param statements The number of statements evaluated so far
+		 */
+		public void evaluated( long statements );
+	}
+
+	private ScriptStream() {}
+
+	/**
+	 * Parses and evaluates a script statement by statement
+	 * @param in The script source, buffered if it is not a {@link BufferedReader}
+	 * @param sourceFileInfo The source description used in error messages
+	 * @param interpreter The interpreter supplying the output streams and class manager
+	 * @param nameSpace The namespace to evaluate in
+	 * @param listener The listener told of each statement, or null
+	 * @return the value of the last statement, or of the first top level <code>return</code>
+	 * @throws EvalError thrown if a statement cannot be parsed or fails
+	 */
+	public static Object eval( Reader in, String sourceFileInfo, Interpreter interpreter, NameSpace nameSpace, Listener listener ) throws EvalError {
+		Parser parser = new Parser( in instanceof BufferedReader ? in : new BufferedReader( in ) );
+		CallStack callstack = new CallStack( nameSpace );
+		Object retVal = null;
+		long statements = 0;
+		boolean eof = false;
+		while ( !eof ) {
+			SimpleNode node;
+			try {
+				eof = parser.Line();
+				node = parser.popNode();
+			} catch ( ParseException e ) {
+				e.setErrorSourceFile( sourceFileInfo );
+				throw e;
+			} catch ( TokenMgrError e ) {
+				ParseException pe = new ParseException(
+					"Sourced file: "+sourceFileInfo+" Token Parsing Error: "+e.getMessage() );
+				pe.setErrorSourceFile( sourceFileInfo );
+				throw pe;
+			} finally {
+				// drops the parsed nodes, the evaluated statement is the only one still referenced
+				parser.jjtree.reset();
+			}
+			if ( node == null )
+				continue;
+			node.setSourceFile( sourceFileInfo );
+			retVal = ParsedScript.evalNode( node, callstack, interpreter, nameSpace, sourceFileInfo );
+			statements++;
+			if ( listener != null )
+				listener.evaluated( statements );
+			if ( retVal instanceof ReturnControl ) {
+				retVal = ((ReturnControl)retVal).value;
+				break;
+			}
+		}
+		return Primitive.unwrap( retVal );
+	}
+}
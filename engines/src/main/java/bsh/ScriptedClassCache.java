@@ -0,0 +1,219 @@
+package bsh;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Title: ScriptedClassCache</p>
+ * <p>Description: The classes generated for the class declarations of scripts, shared by every interpreter whose class
+ * manager implements {@link Sharing}. BeanShell generates the bytecode of a scripted class and defines it in a new class
+ * loader each time a declaration is evaluated. Once {@link #install(int)}ed, a declaration whose source, name,
+ * superclass and interfaces match a cached class reuses it instead: the declaration still evaluates the class body
+ * into the declaring context, as BeanShell does, but no bytecode is generated or defined.</p>
+ * <p>Declarations are keyed by the SHA-1 hash of their source. The cache holds the most recently declared classes up to
+ * its size, and an evicted class is unloaded with its class loader once no context or instance refers to it.</p>
+ * <p>A shared class has one static state, like any Java class: its static members, and the global variables its
+ * methods see, are those of the context which declared it last.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>bsh.ScriptedClassCache</code></p>
+ */
+public final class ScriptedClassCache {
+	/** The cached classes keyed by a digest of their declaration, least recently declared first */
+	@SuppressWarnings("serial")
+	private static final Map<String, CachedClass> classes = new LinkedHashMap<String, CachedClass>( 16, 0.75f, true ) {
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<String, CachedClass> eldest ) {
+			return size() > maxSize;
+		}
+	};
+	/** The maximum number of cached classes, zero until installed */
+	private static volatile int maxSize = 0;
+
+	/**
+	 * <p>Title: Sharing</p>
+	 * <p>Description: Marks the class managers whose interpreters share scripted classes</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.ScriptedClassCache.Sharing</code></p>
+	 */
+	public interface Sharing {}
+
+	private ScriptedClassCache() {}
+
+	/**
+	 * Installs the caching class generator, the first time this is called with a positive size
+	 * @param size The maximum number of cached classes, zero to leave BeanShell's class generator in place
+	 * @return true if the cache is installed
+	 */
+	public static synchronized boolean install( int size ) {
+		if ( maxSize > 0 )
+			return true;
+		if ( size <= 0 )
+			return false;
+		try {
+			// BeanShell offers no other way of replacing its class generator
+			Field cg = ClassGenerator.class.getDeclaredField( "cg" );
+			cg.setAccessible( true );
+			cg.set( null, new Generator() );
+			maxSize = size;
+			return true;
+		} catch ( Exception e ) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the number of cached classes
+	 * @return the number of classes
+	 */
+	public static int size() {
+		synchronized ( classes ) {
+			return classes.size();
+		}
+	}
+
+	/**
+	 * Discards the cached classes. Contexts which declared them keep using them.
+	 */
+	public static void clear() {
+		synchronized ( classes ) {
+			classes.clear();
+		}
+	}
+
+	// Internals only below this point
+
+	private static Class<?> get( String key, Class<?> superClass, Class<?>[] interfaces ) {
+		CachedClass entry;
+		synchronized ( classes ) {
+			entry = classes.get( key );
+		}
+		return entry != null && entry.superClass == superClass && Arrays.equals( entry.interfaces, interfaces ) ? entry.generated : null;
+	}
+
+	private static void put( String key, Class<?> generated, Class<?> superClass, Class<?>[] interfaces ) {
+		synchronized ( classes ) {
+			classes.put( key, new CachedClass( generated, superClass, interfaces ) );
+		}
+	}
+
+	/**
+	 * Returns the digest of a declaration
+	 * @param fqClassName The fully qualified name of the declared class
+	 * @param declaration The declaring node, a class declaration or the allocation of an anonymous class
+	 * @return the key of the declaration
+	 */
+	private static String key( String fqClassName, SimpleNode declaration ) {
+		StringBuilder source = new StringBuilder( fqClassName ).append( '\n' );
+		for ( Token t = declaration.firstToken; t != null; t = t.next ) {
+			source.append( t.image ).append( ' ' );
+			if ( t == declaration.lastToken )
+				break;
+		}
+		try {
+			byte[] hash = MessageDigest.getInstance( "SHA-1" ).digest( source.toString().getBytes( "UTF-8" ) );
+			StringBuilder b = new StringBuilder( hash.length * 2 );
+			for ( byte h : hash )
+				b.append( Character.forDigit( (h >> 4) & 0xF, 16 ) ).append( Character.forDigit( h & 0xF, 16 ) );
+			return b.toString();
+		} catch ( NoSuchAlgorithmException e ) {
+			throw new IllegalStateException( e );
+		} catch ( UnsupportedEncodingException e ) {
+			throw new IllegalStateException( e );
+		}
+	}
+
+	/**
+	 * <p>Title: CachedClass</p>
+	 * <p>Description: A cached class and the types it was generated against</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.ScriptedClassCache.CachedClass</code></p>
+	 */
+	private static final class CachedClass {
+		final Class<?> generated;
+		final Class<?> superClass;
+		final Class<?>[] interfaces;
+
+		CachedClass( Class<?> generated, Class<?> superClass, Class<?>[] interfaces ) {
+			this.generated = generated;
+			this.superClass = superClass;
+			this.interfaces = interfaces;
+		}
+	}
+
+	/**
+	 * <p>Title: Generator</p>
+	 * <p>Description: Generates the classes of sharing interpreters through the cache, the same way as
+	 * {@link ClassGeneratorImpl#generateClassImpl(String, Modifiers, Class[], Class, BSHBlock, boolean, CallStack, Interpreter)}
+	 * minus the bytecode generation on a hit, and the classes of other interpreters as BeanShell does</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.ScriptedClassCache.Generator</code></p>
+	 */
+	private static final class Generator extends ClassGeneratorImpl {
+		@SuppressWarnings("rawtypes")
+		@Override
+		public Class generateClass( String name, Modifiers modifiers, Class[] interfaces, Class superClass, BSHBlock block,
+			boolean isInterface, CallStack callstack, Interpreter interpreter ) throws EvalError {
+			BshClassManager bcm = interpreter.getClassManager();
+			SimpleNode declaration = (SimpleNode)block.jjtGetParent();
+			if ( !(bcm instanceof Sharing) || declaration == null || declaration.firstToken == null )
+				return super.generateClass( name, modifiers, interfaces, superClass, block, isInterface, callstack, interpreter );
+			NameSpace enclosingNameSpace = callstack.top();
+			String packageName = enclosingNameSpace.getPackage();
+			String className = enclosingNameSpace.isClass ? ( enclosingNameSpace.getName() + "$" + name ) : name;
+			String fqClassName = packageName == null ? className : packageName + "." + className;
+			String key = key( fqClassName, declaration );
+			Class<?> genClass = get( key, superClass, interfaces );
+			if ( genClass == null ) {
+				genClass = super.generateClass( name, modifiers, interfaces, superClass, block, isInterface, callstack, interpreter );
+				put( key, genClass, superClass, interfaces );
+				return genClass;
+			}
+
+			try {
+				Capabilities.setAccessibility( true );
+			} catch ( Capabilities.Unavailable e ) {
+				throw new EvalError( "Defining classes currently requires reflective Accessibility.", block, callstack );
+			}
+			bcm.definingClass( fqClassName );
+			NameSpace classStaticNameSpace = new NameSpace( enclosingNameSpace, className );
+			classStaticNameSpace.isClass = true;
+			callstack.push( classStaticNameSpace );
+			// inner classes are looked up in the cache in turn
+			block.evalBlock( callstack, interpreter, true, ClassNodeFilter.CLASSCLASSES );
+			// the generator declares the constructors in the static namespace, only its bytecode is not needed
+			new ClassGeneratorUtil( modifiers, className, packageName, superClass, interfaces,
+				getDeclaredVariables( block, callstack, interpreter, packageName ),
+				getDeclaredMethods( block, callstack, interpreter, packageName ), classStaticNameSpace, isInterface );
+			// the class is known to this manager without being defined by it
+			bcm.cacheClassInfo( fqClassName, genClass );
+			enclosingNameSpace.importClass( fqClassName.replace( '$', '.' ) );
+			try {
+				classStaticNameSpace.setLocalVariable( ClassGeneratorUtil.BSHINIT, block, false );
+			} catch ( UtilEvalError e ) {
+				throw new InterpreterError( "unable to init static: " + e );
+			}
+			classStaticNameSpace.setClassStatic( genClass );
+			block.evalBlock( callstack, interpreter, true, ClassNodeFilter.CLASSSTATIC );
+			callstack.pop();
+			if ( !genClass.isInterface() ) {
+				try {
+					LHS lhs = Reflect.getLHSStaticField( genClass, ClassGeneratorUtil.BSHSTATIC + className );
+					lhs.assign( classStaticNameSpace.getThis( interpreter ), false );
+				} catch ( Exception e ) {
+					throw new InterpreterError( "Error in class gen setup: " + e );
+				}
+			}
+			bcm.doneDefiningClass( fqClassName );
+			return genClass;
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package bsh;
+
+/**
+ * <p>Title: TranslatedScript</p>
+ * <p>Description: The interface implemented by the classes compiled from the Java source of a {@link JavaTranslation}.
+ * A translated script holds no state, so one instance can be executed by several threads at once.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>bsh.TranslatedScript</code></p>
+ */
+public interface TranslatedScript {
+	/** The value left in an output slot when the script did not reach the declaration of the variable */
+	public static final Object UNDECLARED = new Object();
+
+	/**
+	 * Executes the script
+	 * @param in The values of the variables the script reads from its namespace, in the order of
+	 * {@link JavaTranslation#getInputNames()}
+	 * @param out Receives the values of the variables the script declares at its top level, in the order of
+	 * {@link JavaTranslation#getOutputNames()}. Slots of variables the script did not declare are left untouched.
+	 * @return the value of the script
+	 * @throws Throwable thrown if the script fails
+	 */
+	public Object execute( Object[] in, Object[] out ) throws Throwable;
+
+	/**
+	 * <p>Title: Typed</p>
+	 * <p>Description: A translated script whose value always has the same primitive type, which it can return unboxed.
+	 * The entry points of the other kind of primitive throw a {@link ClassCastException}: a numeric script has no boolean value
+	 * and a boolean script no numeric one.</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.TranslatedScript.Typed</code></p>
+	 */
+	public interface Typed extends TranslatedScript {
+		/**
+		 * Executes a script with a numeric value
+		 * @param in The values of the variables the script reads, as for {@link #execute(Object[], Object[])}
+		 * @param out Receives the values of the variables the script declares, as for {@link #execute(Object[], Object[])}
+		 * @return the value of the script, converted as by a Java cast
+		 * @throws Throwable thrown if the script fails
+		 */
+		public long executeLong( Object[] in, Object[] out ) throws Throwable;
+
+		/**
+		 * Executes a script with a numeric value
+		 * @param in The values of the variables the script reads, as for {@link #execute(Object[], Object[])}
+		 * @param out Receives the values of the variables the script declares, as for {@link #execute(Object[], Object[])}
+		 * @return the value of the script, converted as by a Java cast
+		 * @throws Throwable thrown if the script fails
+		 */
+		public double executeDouble( Object[] in, Object[] out ) throws Throwable;
+
+		/**
+		 * Executes a script with a boolean value
+		 * @param in The values of the variables the script reads, as for {@link #execute(Object[], Object[])}
+		 * @param out Receives the values of the variables the script declares, as for {@link #execute(Object[], Object[])}
+		 * @return the value of the script
+		 * @throws Throwable thrown if the script fails
+		 */
+		public boolean executeBoolean( Object[] in, Object[] out ) throws Throwable;
+	}
+}
@@ -1,14 +1,24 @@
 package bsh.engine;
 
 import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.script.*;
 import bsh.*;
 import static javax.script.ScriptContext.*;
 
 /**
  * <p>Title: BshScriptEngine</p>
- * <p>Description: A script engine implementation for <a href="http://www.beanshell.org/">BeanShell</a>. This engine supports open-ended pluggable scriptcontexts</p> 
+ * <p>Description: A script engine implementation for <a href="http://www.beanshell.org/">BeanShell</a>. This engine supports open-ended pluggable scriptcontexts.
+ * Each evaluating thread uses its own interpreter, so one engine can be shared by concurrent threads,
+ * each evaluating against its own script context.</p> 
  * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
  * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
  * <p><code>bsh.engine.BshScriptEngine</code></p>
@@ -17,11 +27,69 @@ public class BshScriptEngine extends AbstractScriptEngine implements Compilable,
 
 	/** The BeanShell global namespace for the interpreter is stored in the engine scope map under this key. */
 	static final String engineNameSpaceKey = "org_beanshell_engine_namespace";
+	/** The prefix of the engine's system properties */
+	public static final String SYSPROP_PREFIX = "bsh.engine.";
+	/** The maximum number of parsed scripts cached by compile, set by the <b><code>bsh.engine.compileCacheSize</code></b> system property */
+	public static final int COMPILE_CACHE_SIZE = Integer.getInteger( SYSPROP_PREFIX + "compileCacheSize", 128 );
+	/** The default number of executions after which a script is compiled to bytecode, set by the <b><code>bsh.engine.tierThreshold</code></b> system property. Zero disables compilation. */
+	public static final int TIER_THRESHOLD = Integer.getInteger( SYSPROP_PREFIX + "tierThreshold", 0 );
+	/** Indicates if new engines optimize compiled scripts by {@link ScriptOptimizer}, set by the <b><code>bsh.engine.optimize</code></b> system property. Off by default. */
+	public static final boolean OPTIMIZE = Boolean.parseBoolean( System.getProperty( SYSPROP_PREFIX + "optimize", "false" ) );
+	/** The number of statements between the progress reports of streamed scripts, set by the <b><code>bsh.engine.streamingProgressInterval</code></b> system property */
+	public static final int STREAMING_PROGRESS_INTERVAL = Integer.getInteger( SYSPROP_PREFIX + "streamingProgressInterval", 10000 );
+	/** The directory of the parsed scripts kept across restarts, set by the <b><code>bsh.engine.scriptCacheDir</code></b> system property. Unset disables the cache. */
+	public static final String SCRIPT_CACHE_DIR = System.getProperty( SYSPROP_PREFIX + "scriptCacheDir" );
+	/** The maximum number of scripted classes shared by the engines, set by the <b><code>bsh.engine.scriptedClassCacheSize</code></b> system property. Zero disables sharing. */
+	public static final int SCRIPTED_CLASS_CACHE_SIZE = Integer.getInteger( SYSPROP_PREFIX + "scriptedClassCacheSize", 64 );
+	/** Indicates if new engines profile their scripts, set by the <b><code>bsh.engine.profile</code></b> system property */
+	public static final boolean PROFILE = Boolean.parseBoolean( System.getProperty( SYSPROP_PREFIX + "profile", "false" ) );
+	/** The longest source evaluated as a {@link FastExpression}, set by the <b><code>bsh.engine.fastExpressionLength</code></b> system property. Zero disables the fast path. */
+	public static final int FAST_EXPRESSION_LENGTH = Integer.getInteger( SYSPROP_PREFIX + "fastExpressionLength", 128 );
+	/** Indicates if new engines buffer the global assignments of an evaluation until it ends, set by the <b><code>bsh.engine.writeBehind</code></b> system property */
+	public static final boolean WRITE_BEHIND = Boolean.parseBoolean( System.getProperty( SYSPROP_PREFIX + "writeBehind", "false" ) );
+	/** Indicates if profiled scripts record their allocations, set by the <b><code>bsh.engine.profileAllocations</code></b> system property */
+	public static final boolean PROFILE_ALLOCATIONS = Boolean.parseBoolean( System.getProperty( SYSPROP_PREFIX + "profileAllocations", "true" ) );
 
 	/** The bean shell engine factory */
 	private BshScriptEngineFactory factory;
-	/** The bean shell interpreter */
-	private bsh.Interpreter interpreter;
+	/** The holders of the bean shell interpreters, one per evaluating thread, since evaluation rebinds the namespace and streams */
+	private final ThreadLocal<AtomicReference<Interpreter>> interpreters = new ThreadLocal<AtomicReference<Interpreter>>() {
+		@Override
+		protected AtomicReference<Interpreter> initialValue() {
+			AtomicReference<Interpreter> holder = new AtomicReference<Interpreter>();
+			interpreterHolders.add( holder );
+			return holder;
+		}
+	};
+	/** The interpreter holders of the threads which have evaluated with this engine, emptied by {@link #releaseInterpreters()} */
+	private final Set<AtomicReference<Interpreter>> interpreterHolders = Collections.synchronizedSet(
+		Collections.newSetFromMap( new WeakHashMap<AtomicReference<Interpreter>, Boolean>() ) );
+	/** The parsed scripts returned by compile, keyed by a digest of the source */
+	@SuppressWarnings("serial")
+	private final Map<String, TieredScript> compiledScripts = Collections.synchronizedMap(
+		new LinkedHashMap<String, TieredScript>( 16, 0.75f, true ) {
+			@Override
+			protected boolean removeEldestEntry( Map.Entry<String, TieredScript> eldest ) {
+				return size() > COMPILE_CACHE_SIZE;
+			}
+		});
+	/** The fast expressions evaluated from strings keyed by source */
+	@SuppressWarnings("serial")
+	private final Map<String, FastExpression> fastExpressions = Collections.synchronizedMap(
+		new LinkedHashMap<String, FastExpression>( 16, 0.75f, true ) {
+			@Override
+			protected boolean removeEldestEntry( Map.Entry<String, FastExpression> eldest ) {
+				return size() > COMPILE_CACHE_SIZE;
+			}
+		});
+	/** The number of executions after which a script is compiled to bytecode, zero to only interpret */
+	private volatile int tierThreshold = TIER_THRESHOLD;
+	/** True if parsed scripts are instrumented by {@link ScriptProfiler} */
+	private volatile boolean profiling = PROFILE;
+	/** True if parsed scripts are optimized by {@link ScriptOptimizer} */
+	private volatile boolean optimizing = OPTIMIZE;
+	/** True if the global assignments of an evaluation are written to the context when it ends */
+	private volatile boolean writeBehind = WRITE_BEHIND;
 
 	/**
 	 * Creates a new BshScriptEngine
@@ -36,21 +104,96 @@ public class BshScriptEngine extends AbstractScriptEngine implements Compilable,
 	 */
 	public BshScriptEngine( BshScriptEngineFactory factory ) {
 		this.factory = factory;
+		// versioned engine bindings let the namespace view cache its lookups
+		getContext().setBindings( createBindings(), ENGINE_SCOPE );
 		getInterpreter(); // go ahead and prime the interpreter now
+		SharedClassManager.warmUpOnce();
+		ScriptedClassCache.install( SCRIPTED_CLASS_CACHE_SIZE );
+	}
+
+	/**
+	 * Resolves class names into the class cache shared by all BeanShell engines, so that scripts using them
+	 * in new contexts skip the search through the imported packages. The import manifest named by the
+	 * <b><code>bsh.engine.importManifest</code></b> system property is warmed up the same way when the first engine is created.
+	 * @param classNames The class names, unqualified names being resolved against BeanShell's default imports
+	 * @return the number of names which are classes
+	 */
+	public static int warmUpClasses( String... classNames ) {
+		return SharedClassManager.warmUp( classNames );
+	}
+
+	/**
+	 * Discards the class cache shared by all BeanShell engines, for instance after classes have been redeployed
+	 */
+	public static void clearClassCache() {
+		SharedClassManager.clear();
+	}
+
+	/**
+	 * Returns the number of command scripts and sourced files parsed and cached for all BeanShell engines.
+	 * The cache is enabled by the <b><code>bsh.engine.sourceCache</code></b> system property, true by default.
+	 * @return the number of cached scripts
+	 */
+	public static int getSourcedScriptCount() {
+		return SourcedScriptCache.size();
+	}
+
+	/**
+	 * Discards the command scripts and sourced files cached for all BeanShell engines.
+	 * Cached scripts are parsed again anyway when their file changes.
+	 */
+	public static void clearSourcedScripts() {
+		SourcedScriptCache.clear();
+	}
+
+	/**
+	 * Returns the number of scripted classes shared by all BeanShell engines. A class declared by a script is generated once
+	 * and reused by the engines which evaluate the same declaration, see {@link ScriptedClassCache}.
+	 * The cache size is set by the <b><code>bsh.engine.scriptedClassCacheSize</code></b> system property, zero disabling it.
+	 * @return the number of cached classes
+	 */
+	public static int getScriptedClassCount() {
+		return ScriptedClassCache.size();
 	}
 
 	/**
-	 * Returns this engine's beanshell interpreter
-	 * @return this engine's beanshell interpreter
+	 * Discards the scripted classes shared by all BeanShell engines, which can then be unloaded once the contexts
+	 * using them are gone
+	 */
+	public static void clearScriptedClasses() {
+		ScriptedClassCache.clear();
+	}
+
+	/**
+	 * Returns this engine's beanshell interpreter for the calling thread.
+	 * Each thread gets its own interpreter so concurrent evals never see each other's namespace or streams.
+	 * @return the calling thread's beanshell interpreter
 	 */
 	protected Interpreter getInterpreter() {
+		AtomicReference<Interpreter> holder = interpreters.get();
+		Interpreter interpreter = holder.get();
 		if ( interpreter == null ) {
-			this.interpreter = new bsh.Interpreter();
+			interpreter = new bsh.Interpreter();
 			interpreter.setNameSpace(null); // should always be set by context
+			holder.set( interpreter );
 		}
 		return interpreter;
 	}
 
+	/**
+	 * Releases the interpreters this engine keeps for the threads which have evaluated with it, along with the
+	 * namespace and streams each last evaluated with, so that pooled threads do not keep a discarded engine's
+	 * interpreters alive. A thread evaluating with this engine afterwards gets a new interpreter.
+	 * Must not be called while evaluations are running.
+	 */
+	public void releaseInterpreters() {
+		synchronized ( interpreterHolders ) {
+			for ( AtomicReference<Interpreter> holder : interpreterHolders )
+				holder.set( null );
+		}
+		interpreters.remove();
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * @see javax.script.ScriptEngine#eval(java.lang.String, javax.script.ScriptContext)
@@ -74,6 +217,9 @@ public class BshScriptEngine extends AbstractScriptEngine implements Compilable,
 	 * We respect the String/Reader difference here in BeanShell 
 	 * because BeanShell will do a few extra things in the string case... 
 	 * e.g. tack on a trailing ";" semicolon if necessary.
+	 * Short strings holding a single expression which only reads variables are evaluated as a cached
+	 * {@link FastExpression}, without the interpreter's stream and namespace setup. Other short strings are
+	 * evaluated from the nodes parsed to check them.</p>
 	 * @param source The container for the source which can be one of:<ul>
 	 * 	<li>A {@link CharSequence}</li>
 	 * 	<li>A {@link Reader}</li>
@@ -85,16 +231,21 @@ public class BshScriptEngine extends AbstractScriptEngine implements Compilable,
 	 */
 	private Object evalSource( Object source, ScriptContext scriptContext ) throws ScriptException {
 		if(source==null) throw new IllegalArgumentException("Passed source was null", new Throwable());
-		bsh.NameSpace contextNameSpace = getEngineNameSpace( scriptContext );
-		Interpreter bsh = getInterpreter();
-		bsh.setNameSpace( contextNameSpace );
-
-		// This is a big hack, convert writer to PrintStream
-		bsh.setOut( new PrintStream(
-			new WriterOutputStream( scriptContext.getWriter() ) ) );
-		bsh.setErr( new PrintStream(
-			new WriterOutputStream( scriptContext.getErrorWriter() ) ) );
-
+		if ( FAST_EXPRESSION_LENGTH > 0 && !profiling && source instanceof CharSequence ) {
+			Object parsed = fastExpression( source.toString() );
+			if ( parsed instanceof FastExpression )
+				return evalExpression( (FastExpression)parsed, scriptContext );
+			if ( parsed != null ) {
+				// not parsed a second time, nor kept unless scripts are compiled
+				ParsedScript nodes = (ParsedScript)parsed;
+				return evalParsed( tierThreshold > 0 ? parse( source.toString(), nodes ) : new TieredScript( nodes ), scriptContext );
+			}
+		}
+		if ( (tierThreshold > 0 || profiling) && source instanceof CharSequence ) {
+			// scripts are counted, compiled and profiled by source
+			return evalParsed( parse( source.toString() ), scriptContext );
+		}
+		Interpreter bsh = prepareInterpreter( scriptContext );
 		try {
 			if (source instanceof Reader ) {
 				return bsh.eval( (Reader) source );
@@ -105,27 +256,226 @@ public class BshScriptEngine extends AbstractScriptEngine implements Compilable,
 			} else {
 				throw new IllegalArgumentException("Unrecognized type passed as source [" + source.getClass().getName() + "]", new Throwable());
 			}
-		} catch ( ParseException e ) {
-			// explicit parsing error
-			throw new ScriptException(
-				e.toString(), e.getErrorSourceFile(), e.getErrorLineNumber() );
-		} catch ( TargetError e ) {
-			// The script threw an application level exception
-			// set it as the cause ?
-			ScriptException se = new ScriptException(
-				e.toString(), e.getErrorSourceFile(), e.getErrorLineNumber() );
-			se.initCause( e.getTarget() );
-			throw se;
 		} catch ( EvalError e ) {
-			// The script couldn't be evaluated properly
-			throw new ScriptException(
-				e.toString(), e.getErrorSourceFile(), e.getErrorLineNumber() );
+			throw toScriptException( e );
 		} catch ( InterpreterError e ) {
 			// The interpreter had a fatal problem
 			throw new ScriptException( e.toString() );
+		} finally {
+			finish( bsh, scriptContext );
+		}
+	}
+
+	/**
+	 * Returns the cached fast expression of a short source, parsing the source on a miss. Only fast expressions are
+	 * cached, and they are not optimized.
+	 * @param source The source
+	 * @return the {@link FastExpression}, the {@link ParsedScript} of a source which is not a fast expression,
+	 * or null if the source is too long, holds several statements or is in the compile cache
+	 * @throws ScriptException thrown if the source cannot be parsed
+	 */
+	private Object fastExpression( String source ) throws ScriptException {
+		if ( !FastExpression.isCandidate( source, FAST_EXPRESSION_LENGTH ) )
+			return null;
+		FastExpression cached = fastExpressions.get( source );
+		if ( cached != null )
+			return cached;
+		if ( tierThreshold > 0 && compiledScripts.containsKey( digest( source.endsWith( ";" ) ? source : source + ";" ) ) )
+			return null;
+		ParsedScript nodes;
+		try {
+			nodes = ParsedScript.parse( new StringReader( source.trim().endsWith( ";" ) ? source : source + ";" ),
+				"inline evaluation of: ``" + describe( source ) + "''" );
+		} catch ( ParseException e ) {
+			throw toScriptException( e );
+		}
+		FastExpression expression = FastExpression.of( nodes );
+		if ( expression == null )
+			return nodes;
+		fastExpressions.put( source, expression );
+		return expression;
+	}
+
+	/**
+	 * Evaluates a fast expression against the passed context's namespace. The expression neither writes output nor
+	 * assigns variables, so the interpreter is only bound to the namespace.
+	 * @param expression The expression
+	 * @param scriptContext The script context
+	 * @return the value of the expression
+	 * @throws ScriptException thrown if the expression fails
+	 */
+	private Object evalExpression( FastExpression expression, ScriptContext scriptContext ) throws ScriptException {
+		NameSpace nameSpace = getEngineNameSpace( scriptContext );
+		Interpreter bsh = getInterpreter();
+		// the interpreter's class manager is the namespace's
+		bsh.setNameSpace( nameSpace );
+		try {
+			return expression.eval( bsh, nameSpace );
+		} catch ( EvalError e ) {
+			throw toScriptException( e );
+		} catch ( InterpreterError e ) {
+			throw new ScriptException( e.toString() );
+		}
+	}
+
+	/**
+	 * Evaluates a script against the engine's context one top level statement at a time, as it is parsed
+	 * @param reader The script source
+	 * @param listener The listener receiving progress reports, or null
+	 * @return the return value of the execution
+	 * @throws ScriptException thrown if a statement cannot be parsed or fails
+	 * @see #evalStreaming(Reader, ScriptContext, StreamingProgress.Listener)
+	 */
+	public Object evalStreaming( Reader reader, StreamingProgress.Listener listener ) throws ScriptException {
+		return evalStreaming( reader, getContext(), listener );
+	}
+
+	/**
+	 * <p>Evaluates a script one top level statement at a time, as it is parsed from a buffered reader. Each statement
+	 * is discarded once evaluated, so memory use is bounded by the largest statement rather than by the size of the
+	 * script, which suits very large generated scripts such as data loads.</p>
+	 * <p>The listener, if any, is called on the evaluating thread every {@link #STREAMING_PROGRESS_INTERVAL} statements
+	 * and when the script completes. Statements evaluated before a failure are not undone.</p>
+	 * @param reader The script source
+	 * @param scriptContext The script context
+	 * @param listener The listener receiving progress reports, or null
+	 * @return the return value of the execution
+	 * @throws ScriptException thrown if a statement cannot be parsed or fails
+	 */
+	public Object evalStreaming( Reader reader, ScriptContext scriptContext, final StreamingProgress.Listener listener ) throws ScriptException {
+		if ( reader == null ) throw new IllegalArgumentException( "Passed reader was null", new Throwable() );
+		Interpreter bsh = prepareInterpreter( scriptContext );
+		final CountingReader in = new CountingReader( reader );
+		final long start = System.nanoTime();
+		final long[] evaluated = new long[1];
+		ScriptStream.Listener statementListener = new ScriptStream.Listener() {
+			public void evaluated( long statements ) {
+				evaluated[0] = statements;
+				if ( listener != null && STREAMING_PROGRESS_INTERVAL > 0 && statements % STREAMING_PROGRESS_INTERVAL == 0 )
+					listener.progress( new StreamingProgress( statements, in.count, System.nanoTime() - start, false ) );
+			}
+		};
+		try {
+			Object result = ScriptStream.eval( new BufferedReader( in ), "streamed script", bsh, bsh.getNameSpace(), statementListener );
+			if ( listener != null )
+				listener.progress( new StreamingProgress( evaluated[0], in.count, System.nanoTime() - start, true ) );
+			return result;
+		} catch ( EvalError e ) {
+			throw toScriptException( e );
+		} catch ( InterpreterError e ) {
+			throw new ScriptException( e.toString() );
+		} finally {
+			finish( bsh, scriptContext );
+		}
+	}
+
+	/**
+	 * Evaluates a parsed script against the passed context's namespace, or runs its compiled bytecode
+	 * @param script The parsed script
+	 * @param scriptContext The script context
+	 * @return the return value of the execution
+	 * @throws ScriptException
+	 */
+	Object evalParsed( TieredScript script, ScriptContext scriptContext ) throws ScriptException {
+		Interpreter bsh = prepareInterpreter( scriptContext );
+		try {
+			return script.eval( bsh, bsh.getNameSpace(), tierThreshold );
+		} catch ( EvalError e ) {
+			throw toScriptException( e );
+		} catch ( InterpreterError e ) {
+			throw new ScriptException( e.toString() );
+		} finally {
+			finish( bsh, scriptContext );
 		}
 	}
 
+	/**
+	 * Binds the interpreter to the passed context's namespace and writers
+	 * @param scriptContext The script context
+	 * @return the interpreter
+	 */
+	private Interpreter prepareInterpreter( ScriptContext scriptContext ) {
+		return prepareInterpreter( getEngineNameSpace( scriptContext ), scriptContext );
+	}
+
+	/**
+	 * Binds the interpreter to a namespace and the passed context's writers
+	 * @param contextNameSpace The namespace, of the context or one of its functions
+	 * @param scriptContext The script context
+	 * @return the interpreter
+	 */
+	Interpreter prepareInterpreter( NameSpace contextNameSpace, ScriptContext scriptContext ) {
+		Interpreter bsh = getInterpreter();
+		bsh.setNameSpace( contextNameSpace );
+
+		// the streams are kept on the interpreter and reused while the context's writers are unchanged
+		bsh.setOut( streamFor( bsh.getOut(), scriptContext.getWriter() ) );
+		bsh.setErr( streamFor( bsh.getErr(), scriptContext.getErrorWriter() ) );
+		if ( writeBehind && contextNameSpace instanceof EngineNameSpace )
+			((EngineNameSpace)contextNameSpace).getEngineView().beginWriteBehind();
+		return bsh;
+	}
+
+	/**
+	 * Ends an evaluation prepared by {@link #prepareInterpreter(ScriptContext)}, draining the interpreter's output and
+	 * writing the assignments it buffered to the context
+	 * @param bsh The interpreter
+	 * @param scriptContext The script context
+	 */
+	private static void finish( Interpreter bsh, ScriptContext scriptContext ) {
+		finish( bsh, scriptContext.getAttribute( engineNameSpaceKey, ENGINE_SCOPE ) );
+	}
+
+	/**
+	 * Ends an evaluation prepared by {@link #prepareInterpreter(NameSpace, ScriptContext)}
+	 * @param bsh The interpreter
+	 * @param ns The namespace the interpreter was bound to
+	 */
+	static void finish( Interpreter bsh, Object ns ) {
+		flushStreams( bsh );
+		if ( ns instanceof EngineNameSpace )
+			((EngineNameSpace)ns).getEngineView().endWriteBehind();
+	}
+
+	/**
+	 * Returns a print stream over the passed writer
+	 * @param current The interpreter's current stream, reused if it already writes to the writer
+	 * @param writer The context writer
+	 * @return the print stream
+	 */
+	private static PrintStream streamFor( PrintStream current, Writer writer ) {
+		if ( current instanceof WriterPrintStream && ((WriterPrintStream)current).getWriter() == writer )
+			return current;
+		return new WriterPrintStream( writer );
+	}
+
+	/**
+	 * Drains the interpreter's buffered output to the context writers
+	 * @param bsh The interpreter
+	 */
+	private static void flushStreams( Interpreter bsh ) {
+		bsh.getOut().flush();
+		bsh.getErr().flush();
+	}
+
+	/**
+	 * Converts a BeanShell evaluation error to a script exception
+	 * @param e The evaluation error
+	 * @return the script exception
+	 */
+	private static ScriptException toScriptException( EvalError e ) {
+		if ( e instanceof TargetError ) {
+			// The script threw an application level exception
+			ScriptException se = new ScriptException(
+				e.toString(), e.getErrorSourceFile(), e.getErrorLineNumber() );
+			se.initCause( ((TargetError)e).getTarget() );
+			return se;
+		}
+		// explicit parsing error, or the script couldn't be evaluated properly
+		return new ScriptException(
+			e.toString(), e.getErrorSourceFile(), e.getErrorLineNumber() );
+	}
+
 
 
 	/*
@@ -139,30 +489,61 @@ public class BshScriptEngine extends AbstractScriptEngine implements Compilable,
 	 * @param scriptContext The script context
 	 * @return the embedded namespace
 	 */
-	@SuppressWarnings("rawtypes")
 	private static NameSpace getEngineNameSpace( ScriptContext scriptContext ) {
 		NameSpace ns = (NameSpace)scriptContext.getAttribute(
 			engineNameSpaceKey, ENGINE_SCOPE );
 
 		if ( ns == null ) {
-			// Create a global namespace for the interpreter
-			Map engineView = new ScriptContextEngineView( scriptContext );
-			ns = new ExternalNameSpace(
-				null/*parent*/, "javax_script_context", engineView );
+			// threads evaluating against the same context must share one namespace
+			synchronized ( scriptContext ) {
+				ns = (NameSpace)scriptContext.getAttribute(
+					engineNameSpaceKey, ENGINE_SCOPE );
+				if ( ns == null ) {
+					// Create a global namespace for the interpreter
+					ns = new EngineNameSpace(
+						"javax_script_context", new ScriptContextEngineView( scriptContext ) );
 
-			scriptContext.setAttribute( engineNameSpaceKey, ns, ENGINE_SCOPE );
+					scriptContext.setAttribute( engineNameSpaceKey, ns, ENGINE_SCOPE );
+				}
+			}
 		}
 
 		return ns;
 	}
 
 	/**
+	 * Returns new {@link VersionedBindings}, whose lookups the engine can cache
 	 * {@inheritDoc}
 	 * @see javax.script.ScriptEngine#createBindings()
 	 */
 	@Override
 	public Bindings createBindings() {
-		return new SimpleBindings();
+		return new VersionedBindings();
+	}
+
+	/**
+	 * Freezes the namespace of a warmed up script context into a snapshot which forks cheap isolated contexts.
+	 * The variables in the context's engine scope are copied, while its methods, imports and commands are shared
+	 * with the forks. The context itself carries on as a fork of the snapshot, so later evaluations against it
+	 * still see everything it declared but no longer affect the snapshot.
+	 * @param scriptContext The warmed up script context
+	 * @return the snapshot
+	 */
+	public NameSpaceSnapshot snapshot( ScriptContext scriptContext ) {
+		synchronized ( scriptContext ) {
+			NameSpace current = getEngineNameSpace( scriptContext );
+			if ( !(current instanceof EngineNameSpace) )
+				throw new IllegalArgumentException( "The namespace of the context was not created by this engine" );
+			EngineNameSpace ns = (EngineNameSpace)current;
+			Bindings engineBindings = scriptContext.getBindings( ENGINE_SCOPE );
+			Map<String, Object> variables = new HashMap<String, Object>( engineBindings );
+			variables.remove( engineNameSpaceKey );
+			ns.getEngineView().freeze();
+			NameSpaceSnapshot snapshot = new NameSpaceSnapshot( ns, Collections.unmodifiableMap( variables ), scriptContext );
+			scriptContext.setAttribute( engineNameSpaceKey,
+				new ForkedNameSpace( new ScriptContextEngineView( scriptContext ), ns ), ENGINE_SCOPE );
+			return snapshot;
+		}
 	}
 
     /**
@@ -178,7 +559,10 @@ public class BshScriptEngine extends AbstractScriptEngine implements Compilable,
 
 	/**
 	 * Compiles the script (source represented as a <code>String</code>) for later
-	 * execution.
+	 * execution. While optimization is enabled (see {@link #setOptimizing(boolean)}), the parsed
+	 * script is optimized by {@link ScriptOptimizer} first. While a script cache directory is set
+	 * (see {@link #setScriptCacheDirectory(File)}) a script parsed by an earlier process is loaded from the
+	 * directory instead of being parsed.
 	 *
 	 * @param script The source of the script, represented as a
 	 * <code>String</code>.
@@ -194,7 +578,48 @@ public class BshScriptEngine extends AbstractScriptEngine implements Compilable,
 	public CompiledScript compile( String script ) throws
 		ScriptException
 	{
-		return compile( new StringReader( script ) );
+		return new BshCompiledScript( parse( script ) );
+	}
+
+	/**
+	 * Returns the parsed script from the compile cache, parsing the source on a miss
+	 * @param script The script source
+	 * @return the parsed script
+	 * @throws ScriptException thrown if the source cannot be parsed
+	 */
+	private TieredScript parse( String script ) throws ScriptException {
+		return parse( script, null );
+	}
+
+	/**
+	 * Returns the parsed script from the compile cache, caching already parsed nodes or parsing the source on a miss
+	 * @param script The script source
+	 * @param parsedNodes The nodes of the source, not evaluated yet, or null to load or parse them
+	 * @return the parsed script
+	 * @throws ScriptException thrown if the source cannot be parsed
+	 */
+	private TieredScript parse( String script, ParsedScript parsedNodes ) throws ScriptException {
+		// same as eval, tack on a trailing semicolon if necessary
+		String source = script.endsWith( ";" ) ? script : script + ";";
+		String key = digest( source );
+		TieredScript parsed = compiledScripts.get( key );
+		if ( parsed == null ) {
+			try {
+				ParsedScript nodes = parsedNodes != null ? parsedNodes : PersistentScriptCache.load( key );
+				if ( nodes == null ) {
+					nodes = ParsedScript.parse( new StringReader( source ),
+						"compiled script: ``" + describe( source ) + "''" );
+					PersistentScriptCache.store( key, nodes );
+				}
+				if ( optimizing )
+					ScriptOptimizer.optimize( nodes, getInterpreter() );
+				parsed = new TieredScript( nodes, profiling ? ScriptProfiler.instrument( nodes, PROFILE_ALLOCATIONS ) : null );
+			} catch ( ParseException e ) {
+				throw toScriptException( e );
+			}
+			compiledScripts.put( key, parsed );
+		}
+		return parsed;
 	}
 
 	/**
@@ -215,8 +640,338 @@ public class BshScriptEngine extends AbstractScriptEngine implements Compilable,
 	public CompiledScript compile( Reader script ) throws
 		ScriptException
 	{
-		// todo
-		throw new Error("unimplemented");
+		StringBuilder source = new StringBuilder();
+		char[] buffer = new char[4096];
+		try {
+			int read;
+			while ( (read = script.read( buffer )) != -1 )
+				source.append( buffer, 0, read );
+		} catch ( IOException e ) {
+			throw new ScriptException( e );
+		}
+		return compile( source.toString() );
+	}
+
+	/**
+	 * Returns the number of parsed scripts held in the compile cache
+	 * @return the number of cached parsed scripts
+	 */
+	public int getCompiledScriptCacheSize() {
+		return compiledScripts.size();
+	}
+
+	/**
+	 * Returns the directory of the parsed scripts kept across restarts, shared by every engine
+	 * @return the directory, or null if the cache is disabled
+	 */
+	public static File getScriptCacheDirectory() {
+		return PersistentScriptCache.getDirectory();
+	}
+
+	/**
+	 * Sets the directory of the parsed scripts kept across restarts, shared by every engine, creating it if it does not exist.
+	 * Scripts parsed by {@link #compile(String)}, or evaluated from strings while scripts are compiled or profiled, are
+	 * written to the directory, with a checksum and the BeanShell version, and are loaded from it instead of being
+	 * parsed by later engines and processes. Engines keep the scripts they already hold in memory.
+	 * @param directory The directory, or null to disable the cache
+	 */
+	public static void setScriptCacheDirectory( File directory ) {
+		PersistentScriptCache.setDirectory( directory );
+	}
+
+	/**
+	 * Returns the number of parsed scripts loaded from the script cache directory by this process
+	 * @return the number of loaded scripts
+	 */
+	public static long getScriptCacheLoadCount() {
+		return PersistentScriptCache.getLoads();
+	}
+
+	/**
+	 * Returns the number of executions after which a script is compiled to bytecode
+	 * @return the tier threshold, zero if scripts are only interpreted
+	 */
+	public int getTierThreshold() {
+		return tierThreshold;
+	}
+
+	/**
+	 * <p>Sets the number of executions after which a script is compiled to bytecode. Zero disables compilation.</p>
+	 * <p>Scripts evaluated from strings or compiled by this engine count their executions. A script which reaches the
+	 * threshold is translated to Java and compiled in memory if it only uses typed, Java compatible constructs,
+	 * and is interpreted as before otherwise. See {@link JavaTranslation} for the translatable subset.
+	 * While compilation is enabled, scripts evaluated from strings are cached by source like compiled scripts.</p>
+	 * @param tierThreshold The number of executions, zero to only interpret
+	 */
+	public void setTierThreshold( int tierThreshold ) {
+		if ( tierThreshold < 0 ) throw new IllegalArgumentException( "Negative tier threshold: " + tierThreshold );
+		this.tierThreshold = tierThreshold;
+	}
+
+	/**
+	 * Indicates if scripts are profiled
+	 * @return true if scripts are profiled
+	 */
+	public boolean isProfiling() {
+		return profiling;
+	}
+
+	/**
+	 * <p>Enables or disables the profiling of scripts. The compile cache is cleared, so that scripts are parsed again
+	 * with or without instrumentation.</p>
+	 * <p>While profiling is enabled, scripts evaluated from strings are cached by source like compiled scripts, and
+	 * each parsed script records the time, executions and allocations of its source lines in a {@link ScriptProfiler},
+	 * returned by {@link #getProfile(String)} or {@link BshCompiledScript#getProfile()}. Profiled scripts are not compiled
+	 * to bytecode.</p>
+	 * @param profiling true to profile scripts
+	 */
+	public void setProfiling( boolean profiling ) {
+		this.profiling = profiling;
+		compiledScripts.clear();
+	}
+
+	/**
+	 * Indicates if parsed scripts are optimized
+	 * @return true if scripts are optimized
+	 */
+	public boolean isOptimizing() {
+		return optimizing;
+	}
+
+	/**
+	 * <p>Enables or disables the optimization of parsed scripts by {@link ScriptOptimizer}. The compile cache is cleared,
+	 * so that scripts are parsed again with or without optimization.</p>
+	 * <p>An optimized script keeps the classes, methods and final field values it resolved for as long as it is cached,
+	 * checking on each execution that they still apply in the namespace it runs in. Enable it for scripts whose classes
+	 * are not redeployed while the engine lives.</p>
+	 * @param optimizing true to optimize scripts
+	 */
+	public void setOptimizing( boolean optimizing ) {
+		this.optimizing = optimizing;
+		compiledScripts.clear();
+	}
+
+	/**
+	 * Indicates if the global assignments of an evaluation are buffered until it ends
+	 * @return true if assignments are written behind
+	 */
+	public boolean isWriteBehind() {
+		return writeBehind;
+	}
+
+	/**
+	 * <p>Enables or disables the buffering of global assignments. While enabled, the variables an evaluation assigns
+	 * in the engine scope are kept in a table of the evaluating thread and written to the context once per name when
+	 * the evaluation completes or fails, which saves the bindings updates of scripts assigning globals in loops.</p>
+	 * <p>The evaluation itself, and the functions it calls, see the buffered values. Other threads evaluating against
+	 * the same context, and code reading its bindings directly, see them once the evaluation has ended.</p>
+	 * @param writeBehind true to buffer assignments
+	 */
+	public void setWriteBehind( boolean writeBehind ) {
+		this.writeBehind = writeBehind;
+	}
+
+	/**
+	 * Returns the profile of a script in the compile cache
+	 * @param script The script source
+	 * @return the profiler of the script, or null if the script is not cached or not profiled
+	 */
+	public ScriptProfiler getProfile( String script ) {
+		TieredScript parsed = compiledScripts.get( digest( script.endsWith( ";" ) ? script : script + ";" ) );
+		return parsed == null ? null : parsed.getProfiler();
+	}
+
+	/**
+	 * Returns the number of strings evaluated as fast expressions which are cached
+	 * @return the number of fast expressions
+	 */
+	public int getFastExpressionCount() {
+		return fastExpressions.size();
+	}
+
+	/**
+	 * Returns the number of scripts in the compile cache which run as bytecode
+	 * @return the number of compiled scripts
+	 */
+	public int getTieredScriptCount() {
+		int count = 0;
+		synchronized ( compiledScripts ) {
+			for ( TieredScript script : compiledScripts.values() )
+				if ( script.isCompiled() ) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * <p>Title: CountingReader</p>
+	 * <p>Description: Counts the characters read through it, for the progress reports of streamed scripts</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.engine.BshScriptEngine.CountingReader</code></p>
+	 */
+	private static final class CountingReader extends FilterReader {
+		/** The number of characters read, only updated by the evaluating thread */
+		long count = 0;
+
+		CountingReader( Reader in ) {
+			super( in );
+		}
+
+		@Override
+		public int read() throws IOException {
+			int c = super.read();
+			if ( c >= 0 ) count++;
+			return c;
+		}
+
+		@Override
+		public int read( char[] cbuf, int off, int len ) throws IOException {
+			int n = super.read( cbuf, off, len );
+			if ( n > 0 ) count += n;
+			return n;
+		}
+
+		@Override
+		public long skip( long n ) throws IOException {
+			long skipped = super.skip( n );
+			count += skipped;
+			return skipped;
+		}
+	}
+
+	/**
+	 * <p>Title: BshCompiledScript</p>
+	 * <p>Description: A compiled BeanShell script. The source is parsed once and the node tree is evaluated
+	 * directly against the namespace of whichever context the script is run with, until the script is
+	 * compiled to bytecode (see {@link BshScriptEngine#setTierThreshold(int)}).</p>
+	 * <p>The primitive entry points return the value of the script without boxing it once the script runs as bytecode,
+	 * provided every path of the script returns the same primitive type. Interpreted scripts box their values as they
+	 * compute them, which these entry points then convert.</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.engine.BshScriptEngine.BshCompiledScript</code></p>
+	 */
+	public class BshCompiledScript extends CompiledScript {
+		/** The parsed script */
+		private final TieredScript parsed;
+
+		/**
+		 * Creates a new BshCompiledScript
+		 * @param parsed The parsed script
+		 */
+		BshCompiledScript( TieredScript parsed ) {
+			this.parsed = parsed;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see javax.script.CompiledScript#eval(javax.script.ScriptContext)
+		 */
+		@Override
+		public Object eval( ScriptContext context ) throws ScriptException {
+			return evalParsed( parsed, context );
+		}
+
+		/**
+		 * Returns the profile of the script
+		 * @return the profiler, or null if the script was compiled while profiling was disabled
+		 */
+		public ScriptProfiler getProfile() {
+			return parsed.getProfiler();
+		}
+
+		/**
+		 * Evaluates a script with a numeric value against the engine's context
+		 * @return the value of the script, converted as by a Java cast
+		 * @throws ScriptException thrown if the script fails or its value is not a number
+		 */
+		public long evalLong() throws ScriptException {
+			return evalLong( getContext() );
+		}
+
+		/**
+		 * Evaluates a script with a numeric value
+		 * @param context The context to evaluate in
+		 * @return the value of the script, converted as by a Java cast
+		 * @throws ScriptException thrown if the script fails or its value is not a number
+		 */
+		public long evalLong( ScriptContext context ) throws ScriptException {
+			Interpreter bsh = prepareInterpreter( context );
+			try {
+				return parsed.evalLong( bsh, bsh.getNameSpace(), tierThreshold );
+			} catch ( EvalError e ) {
+				throw toScriptException( e );
+			} catch ( InterpreterError e ) {
+				throw new ScriptException( e.toString() );
+			} finally {
+				finish( bsh, context );
+			}
+		}
+
+		/**
+		 * Evaluates a script with a numeric value against the engine's context
+		 * @return the value of the script, converted as by a Java cast
+		 * @throws ScriptException thrown if the script fails or its value is not a number
+		 */
+		public double evalDouble() throws ScriptException {
+			return evalDouble( getContext() );
+		}
+
+		/**
+		 * Evaluates a script with a numeric value
+		 * @param context The context to evaluate in
+		 * @return the value of the script, converted as by a Java cast
+		 * @throws ScriptException thrown if the script fails or its value is not a number
+		 */
+		public double evalDouble( ScriptContext context ) throws ScriptException {
+			Interpreter bsh = prepareInterpreter( context );
+			try {
+				return parsed.evalDouble( bsh, bsh.getNameSpace(), tierThreshold );
+			} catch ( EvalError e ) {
+				throw toScriptException( e );
+			} catch ( InterpreterError e ) {
+				throw new ScriptException( e.toString() );
+			} finally {
+				finish( bsh, context );
+			}
+		}
+
+		/**
+		 * Evaluates a script with a boolean value against the engine's context
+		 * @return the value of the script
+		 * @throws ScriptException thrown if the script fails or its value is not a boolean
+		 */
+		public boolean evalBoolean() throws ScriptException {
+			return evalBoolean( getContext() );
+		}
+
+		/**
+		 * Evaluates a script with a boolean value
+		 * @param context The context to evaluate in
+		 * @return the value of the script
+		 * @throws ScriptException thrown if the script fails or its value is not a boolean
+		 */
+		public boolean evalBoolean( ScriptContext context ) throws ScriptException {
+			Interpreter bsh = prepareInterpreter( context );
+			try {
+				return parsed.evalBoolean( bsh, bsh.getNameSpace(), tierThreshold );
+			} catch ( EvalError e ) {
+				throw toScriptException( e );
+			} catch ( InterpreterError e ) {
+				throw new ScriptException( e.toString() );
+			} finally {
+				finish( bsh, context );
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see javax.script.CompiledScript#getEngine()
+		 */
+		@Override
+		public ScriptEngine getEngine() {
+			return BshScriptEngine.this;
+		}
 	}
 
 	/**
@@ -246,8 +1001,20 @@ public class BshScriptEngine extends AbstractScriptEngine implements Compilable,
 			throw new ScriptException( "Illegal objec type: " +thiz.getClass() );
 
 		bsh.This bshObject = (bsh.This)thiz;
+		NameSpace ns = bshObject.getNameSpace();
+		// a function of a context's global namespace runs on this thread's interpreter, bound to the context's writers
+		ScriptContext scriptContext = ns instanceof EngineNameSpace ? ((EngineNameSpace)ns).getEngineView().getContext() : null;
+		Interpreter bsh = scriptContext != null ? prepareInterpreter( ns, scriptContext ) : getInterpreter();
 
 		try {
+			if ( scriptContext != null ) {
+				// resolved through the method cache
+				Object[] wrapped = wrapNulls( args );
+				BshMethod method = ((EngineNameSpace)ns).findMethod( name, wrapped );
+				if ( method != null )
+					return method.invoke( wrapped, bsh, null/*callstack*/, null/*callerInfo*/ );
+				return bshObject.invokeMethod( name, args, bsh, null/*callstack*/, null/*callerInfo*/, false/*declaredOnly*/ );
+			}
 			return bshObject.invokeMethod( name, args );
 		} catch ( ParseException e ) {
 			// explicit parsing error
@@ -267,6 +1034,12 @@ public class BshScriptEngine extends AbstractScriptEngine implements Compilable,
 		} catch ( InterpreterError e ) {
 			// The interpreter had a fatal problem
 			throw new ScriptException( e.toString() );
+		} finally {
+			// output of methods declared on this thread is buffered in this thread's interpreter
+			if ( scriptContext != null )
+				finish( bsh, ns );
+			else
+				flushStreams( bsh );
 		}
 	}
 
@@ -288,6 +1061,7 @@ public class BshScriptEngine extends AbstractScriptEngine implements Compilable,
 	public Object invokeFunction( String name, Object... args )
 		throws ScriptException, NoSuchMethodException
 	{
+		// invokeMethod binds this thread's interpreter to the context's writers for the call
 		return invokeMethod( getGlobal(), name, args );
 	}
 
@@ -310,6 +1084,9 @@ public class BshScriptEngine extends AbstractScriptEngine implements Compilable,
 	@Override
 	public <T> T getInterface( Class<T> clasz )
 	{
+		NameSpace ns = getEngineNameSpace( getContext() );
+		if ( ns instanceof EngineNameSpace && ScriptedInterface.isSupported( clasz ) )
+			return clasz.cast( ((EngineNameSpace)ns).getInterface( clasz, this ) );
 		try {
 			return (T) getGlobal().getInterface( clasz );
 		} catch ( UtilEvalError utilEvalError ) {
@@ -344,8 +1121,14 @@ public class BshScriptEngine extends AbstractScriptEngine implements Compilable,
 			throw new IllegalArgumentException(
 				"invalid object type: "+thiz.getClass() );
 
+		bsh.This bshThis = (bsh.This)thiz;
+		if ( ScriptedInterface.isSupported( clasz ) ) {
+			NameSpace ns = bshThis.getNameSpace();
+			return clasz.cast( ns instanceof EngineNameSpace
+				? ((EngineNameSpace)ns).getInterface( clasz, this )
+				: ScriptedInterface.create( clasz, ns, this ) );
+		}
 		try {
-			bsh.This bshThis = (bsh.This)thiz;
 			return (T) bshThis.getInterface( clasz );
 		} catch ( UtilEvalError utilEvalError ) {
 			utilEvalError.printStackTrace( System.err );
@@ -353,41 +1136,43 @@ public class BshScriptEngine extends AbstractScriptEngine implements Compilable,
 		}
 	}
 
-	private bsh.This getGlobal()
-	{
-		// requires 2.0b5 to make getThis() public
-		return getEngineNameSpace( getContext() ).getThis( getInterpreter() );
+	/**
+	 * Wraps null arguments as BeanShell nulls, as {@link bsh.This#invokeMethod(String, Object[])} does
+	 * @param args The arguments
+	 * @return the wrapped arguments
+	 */
+	private static Object[] wrapNulls( Object[] args ) {
+		if ( args == null )
+			return new Object[0];
+		Object[] wrapped = new Object[args.length];
+		for ( int i = 0; i < args.length; i++ )
+			wrapped[i] = args[i] == null ? Primitive.NULL : args[i];
+		return wrapped;
 	}
 
-	/*
-		This is a total hack.  We need to introduce a writer to the
-		Interpreter.
-	*/
-	class WriterOutputStream extends OutputStream
-	{
-		Writer writer;
-		WriterOutputStream( Writer writer )
-		{
-			this.writer = writer;
-		}
-
-		@Override
-		public void write( int b ) throws IOException
-		{
-			writer.write(b);
-		}
+	private static String describe( String s ) {
+		s = s.replace( '\n', ' ' ).replace( '\r', ' ' );
+		return s.length() > 80 ? s.substring( 0, 80 ) + " . . . " : s;
+	}
 
-		@Override
-		public void flush() throws IOException
-		{
-			writer.flush();
+	private static String digest( String source ) {
+		try {
+			byte[] hash = MessageDigest.getInstance( "SHA-1" ).digest( source.getBytes( "UTF-8" ) );
+			StringBuilder b = new StringBuilder( hash.length * 2 );
+			for ( byte h : hash )
+				b.append( Character.forDigit( (h >> 4) & 0xF, 16 ) ).append( Character.forDigit( h & 0xF, 16 ) );
+			return b.toString();
+		} catch ( NoSuchAlgorithmException e ) {
+			throw new IllegalStateException( e );
+		} catch ( UnsupportedEncodingException e ) {
+			throw new IllegalStateException( e );
 		}
+	}
 
-		@Override
-		public void close() throws IOException
-		{
-			writer.close();
-		}
+	private bsh.This getGlobal()
+	{
+		// requires 2.0b5 to make getThis() public
+		return getEngineNameSpace( getContext() ).getThis( getInterpreter() );
 	}
 
 }
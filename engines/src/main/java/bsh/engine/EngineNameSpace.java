@@ -0,0 +1,311 @@
+package bsh.engine;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bsh.BshClassManager;
+import bsh.BshMethod;
+import bsh.EvalError;
+import bsh.ExternalNameSpace;
+import bsh.Interpreter;
+import bsh.NameSpace;
+import bsh.ParsedScript;
+import bsh.Primitive;
+import bsh.UtilEvalError;
+
+/**
+ * <p>Title: EngineNameSpace</p>
+ * <p>Description: The global BeanShell namespace of a script context, backed by a {@link ScriptContextEngineView}.
+ * Adds a cache of resolved methods keyed by name and argument classes, so that scripted functions called repeatedly
+ * from Java through {@link BshScriptEngine#invokeFunction(String, Object...)} skip BeanShell's signature matching.
+ * The cache is discarded whenever the namespace declares a method, imports an object or class, or is cleared.</p>
+ * <p>A namespace frozen by {@link BshScriptEngine#snapshot(javax.script.ScriptContext)} is the read only parent of the
+ * {@link ForkedNameSpace}s of its snapshot's contexts.</p>
+ * <p>Also holds the generated implementations of interfaces returned by {@link BshScriptEngine#getInterface(Class)}.</p>
+ * <p>Classes are resolved by a {@link SharedClassManager}, so new contexts start with the classes already resolved by others.
+ * Command scripts and <code>source()</code>d files are parsed once per process by the {@link SourcedScriptCache}.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>bsh.engine.EngineNameSpace</code></p>
+ */
+class EngineNameSpace extends ExternalNameSpace {
+	private static final long serialVersionUID = -3817352915093452712L;
+
+	/** The resolved methods, replaced rather than cleared so that a resolution racing a redefinition is discarded */
+	private volatile Map<MethodKey, BshMethod> methods = new ConcurrentHashMap<MethodKey, BshMethod>();
+	/** The number of times the methods of this namespace have changed */
+	private final AtomicLong methodVersion = new AtomicLong();
+	/** The generated interface implementations bound to this namespace, keyed by interface */
+	private final ConcurrentHashMap<Class<?>, ScriptedInterface> interfaces = new ConcurrentHashMap<Class<?>, ScriptedInterface>();
+	/** The class manager, created on first use since the superclass constructor already resolves it */
+	private transient volatile BshClassManager classManager;
+	/** The imported command paths, which the superclass keeps private. Set from the superclass constructor, so it has no initializer. */
+	private volatile List<String> commandPaths;
+
+	/** The command path of BeanShell's own commands */
+	private static final String DEFAULT_COMMANDS = "/bsh/commands";
+
+	/**
+	 * Creates a new EngineNameSpace
+	 * @param name The namespace name
+	 * @param engineView The view of the script context the namespace is bound to
+	 */
+	EngineNameSpace( String name, ScriptContextEngineView engineView ) {
+		this( null/*parent*/, name, engineView );
+	}
+
+	/**
+	 * Creates a new EngineNameSpace inheriting the methods and imports of a parent namespace
+	 * @param parent The parent namespace
+	 * @param name The namespace name
+	 * @param engineView The view of the script context the namespace is bound to
+	 */
+	EngineNameSpace( NameSpace parent, String name, ScriptContextEngineView engineView ) {
+		super( parent, name, engineView );
+	}
+
+	/**
+	 * Returns the view of the script context this namespace is bound to
+	 * @return the engine view
+	 */
+	ScriptContextEngineView getEngineView() {
+		return (ScriptContextEngineView)getMap();
+	}
+
+	/**
+	 * Indicates if this namespace has been frozen as the parent of {@link NameSpaceSnapshot} forks
+	 * @return true if this namespace is frozen
+	 */
+	boolean isFrozen() {
+		return getEngineView().isFrozen();
+	}
+
+	/**
+	 * Finds the scripted method matching the passed arguments
+	 * @param name The method name
+	 * @param args The arguments, with nulls already wrapped as {@link Primitive#NULL}
+	 * @return the method or null if this namespace declares no matching method
+	 */
+	BshMethod findMethod( String name, Object[] args ) {
+		Class<?>[] types = new Class<?>[args == null ? 0 : args.length];
+		for ( int i = 0; i < types.length; i++ ) {
+			Object arg = args[i];
+			types[i] = arg instanceof Primitive ? ((Primitive)arg).getType() : arg == null ? null : arg.getClass();
+		}
+		Map<MethodKey, BshMethod> cache = methods;
+		MethodKey key = new MethodKey( name, types );
+		BshMethod method = cache.get( key );
+		if ( method == null ) {
+			try {
+				method = getMethod( name, types, false/*declaredOnly*/ );
+			} catch ( UtilEvalError e ) {
+				return null;
+			}
+			if ( method != null )
+				cache.put( key, method );
+		}
+		return method;
+	}
+
+	/**
+	 * Returns the number of times the methods of this namespace have changed, so that callers holding
+	 * methods resolved from it can tell when to resolve them again
+	 * @return the method version
+	 */
+	long getMethodVersion() {
+		return methodVersion.get();
+	}
+
+	/**
+	 * Returns the generated implementation of an interface bound to this namespace, creating it on first request
+	 * @param iface The interface
+	 * @param engine The engine whose interpreters run the methods
+	 * @return the implementation
+	 */
+	ScriptedInterface getInterface( Class<?> iface, BshScriptEngine engine ) {
+		ScriptedInterface impl = interfaces.get( iface );
+		if ( impl == null ) {
+			impl = ScriptedInterface.create( iface, this, engine );
+			ScriptedInterface existing = interfaces.putIfAbsent( iface, impl );
+			if ( existing != null )
+				impl = existing;
+		}
+		return impl;
+	}
+
+	/**
+	 * Returns the class manager of the parent namespace, or else this namespace's {@link SharedClassManager}
+	 * {@inheritDoc}
+	 * @see bsh.NameSpace#getClassManager()
+	 */
+	@Override
+	public BshClassManager getClassManager() {
+		NameSpace parent = getParent();
+		if ( parent != null )
+			return parent.getClassManager();
+		BshClassManager manager = classManager;
+		if ( manager == null ) {
+			synchronized ( this ) {
+				manager = classManager;
+				if ( manager == null ) {
+					manager = new SharedClassManager();
+					// clears the class cache of this namespace when the manager's class path changes
+					manager.addListener( this );
+					classManager = manager;
+				}
+			}
+		}
+		return manager;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see bsh.NameSpace#importCommands(java.lang.String)
+	 */
+	@Override
+	public void importCommands( String name ) {
+		super.importCommands( name );
+		// normalized as the superclass does it
+		String path = name.replace( '.', '/' );
+		if ( !path.startsWith( "/" ) )
+			path = "/" + path;
+		if ( path.length() > 1 && path.endsWith( "/" ) )
+			path = path.substring( 0, path.length() - 1 );
+		List<String> paths = commandPaths;
+		if ( paths == null )
+			commandPaths = paths = new CopyOnWriteArrayList<String>();
+		paths.remove( path );
+		paths.add( path );
+	}
+
+	/**
+	 * Resolves commands as the superclass does, with command scripts parsed by the {@link SourcedScriptCache}.
+	 * <code>source( String )</code> from BeanShell's own commands resolves to the {@link SourceCommand}.
+	 * {@inheritDoc}
+	 * @see bsh.NameSpace#getCommand(java.lang.String, java.lang.Class[], bsh.Interpreter)
+	 */
+	@SuppressWarnings("rawtypes")
+	@Override
+	public Object getCommand( String name, Class[] argTypes, Interpreter interpreter ) throws UtilEvalError {
+		List<String> paths = commandPaths;
+		if ( !SourcedScriptCache.ENABLED || paths == null )
+			return super.getCommand( name, argTypes, interpreter );
+		BshClassManager bcm = interpreter.getClassManager();
+		for ( int i = paths.size() - 1; i >= 0; i-- ) {
+			String path = paths.get( i );
+			if ( DEFAULT_COMMANDS.equals( path ) && "source".equals( name ) && argTypes.length == 1 && argTypes[0] == String.class )
+				return SourceCommand.class;
+			String scriptPath = path.equals( "/" ) ? path + name + ".bsh" : path + "/" + name + ".bsh";
+			try {
+				ParsedScript script = SourcedScriptCache.command( bcm, scriptPath );
+				if ( script != null ) {
+					// loads the command into this namespace, as the superclass does
+					script.eval( interpreter, this );
+					return getMethod( name, argTypes );
+				}
+			} catch ( IOException e ) {
+				throw new UtilEvalError( "Error loading script: " + e.getMessage() );
+			} catch ( EvalError e ) {
+				throw new UtilEvalError( "Error loading script: " + e.getMessage() );
+			}
+			String className = path.equals( "/" ) ? name : path.substring( 1 ).replace( '/', '.' ) + "." + name;
+			Class<?> clas = bcm.classForName( className );
+			if ( clas != null )
+				return clas;
+		}
+		NameSpace parent = getParent();
+		return parent == null ? null : parent.getCommand( name, argTypes, interpreter );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see bsh.NameSpace#setMethod(java.lang.String, bsh.BshMethod)
+	 */
+	@Override
+	public void setMethod( String name, BshMethod method ) throws UtilEvalError {
+		super.setMethod( name, method );
+		methodsChanged();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see bsh.NameSpace#importObject(java.lang.Object)
+	 */
+	@Override
+	public void importObject( Object obj ) {
+		super.importObject( obj );
+		methodsChanged();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see bsh.NameSpace#importStatic(java.lang.Class)
+	 */
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void importStatic( Class clas ) {
+		super.importStatic( clas );
+		methodsChanged();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see bsh.ExternalNameSpace#clear()
+	 */
+	@Override
+	public void clear() {
+		// the default imports are imported again by the superclass
+		commandPaths = null;
+		super.clear();
+		methodsChanged();
+	}
+
+	// Internals only below this point
+
+	private void methodsChanged() {
+		methods = new ConcurrentHashMap<MethodKey, BshMethod>();
+		methodVersion.incrementAndGet();
+	}
+
+	/**
+	 * <p>Title: MethodKey</p>
+	 * <p>Description: The key of a resolved method, its name and argument classes</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.engine.EngineNameSpace.MethodKey</code></p>
+	 */
+	private static final class MethodKey implements Serializable {
+		private static final long serialVersionUID = 2316470328212478351L;
+		/** The method name */
+		private final String name;
+		/** The argument classes, null for a null argument */
+		private final Class<?>[] types;
+		/** The hash code */
+		private final int hash;
+
+		MethodKey( String name, Class<?>[] types ) {
+			this.name = name;
+			this.types = types;
+			this.hash = name.hashCode() * 31 + Arrays.hashCode( types );
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals( Object obj ) {
+			if ( this == obj ) return true;
+			if ( !(obj instanceof MethodKey) ) return false;
+			MethodKey other = (MethodKey)obj;
+			return hash == other.hash && name.equals( other.name ) && Arrays.equals( types, other.types );
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package bsh.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import bsh.BshMethod;
+import bsh.MethodBinding;
+import bsh.NameSpace;
+import bsh.UtilEvalError;
+
+/**
+ * <p>Title: ForkedNameSpace</p>
+ * <p>Description: The global namespace of a context forked from a {@link NameSpaceSnapshot}. The frozen namespace of the
+ * snapshot is the parent of this namespace, so its imports and commands are shared, while declarations and variables
+ * written by scripts land in this namespace and its context only.</p>
+ * <p>A scripted method runs against the namespace it was declared in, so the methods of a name inherited from frozen
+ * namespaces are copied into this namespace the first time the name is resolved. The copies share the parsed method
+ * bodies. A method this namespace declares replaces an inherited method of the same signature, and leaves the other
+ * inherited overloads of its name visible.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>bsh.engine.ForkedNameSpace</code></p>
+ */
+class ForkedNameSpace extends EngineNameSpace {
+	private static final long serialVersionUID = 5093361268350476624L;
+
+	/** The method names whose inherited methods have been copied into this namespace */
+	private final Set<String> inherited = Collections.synchronizedSet( new HashSet<String>() );
+	/** The copies of inherited methods */
+	private final Set<BshMethod> copies = Collections.synchronizedSet( new HashSet<BshMethod>() );
+	/** The methods declared by this namespace keyed by the copy of the inherited method they replace */
+	private final Map<BshMethod, BshMethod> replaced = new ConcurrentHashMap<BshMethod, BshMethod>();
+
+	/**
+	 * Creates a new ForkedNameSpace
+	 * @param engineView The view of the forked script context
+	 * @param snapshot The frozen namespace of the snapshot
+	 */
+	ForkedNameSpace( ScriptContextEngineView engineView, EngineNameSpace snapshot ) {
+		super( snapshot, "javax_script_context", engineView );
+	}
+
+	/**
+	 * Resolves the method as usual, after copying the methods of the name inherited from frozen namespaces
+	 * {@inheritDoc}
+	 * @see bsh.NameSpace#getMethod(java.lang.String, java.lang.Class[], boolean)
+	 */
+	@SuppressWarnings("rawtypes")
+	@Override
+	public BshMethod getMethod( String name, Class[] sig, boolean declaredOnly ) throws UtilEvalError {
+		if ( !declaredOnly && !inherited.contains( name ) )
+			inherit( name );
+		BshMethod method = super.getMethod( name, sig, declaredOnly );
+		if ( method != null && !replaced.isEmpty() ) {
+			BshMethod replacement = replaced.get( method );
+			if ( replacement != null )
+				method = replacement;
+		}
+		return method;
+	}
+
+	/**
+	 * Declares the method, replacing any copy of an inherited method with the same signature
+	 * {@inheritDoc}
+	 * @see bsh.engine.EngineNameSpace#setMethod(java.lang.String, bsh.BshMethod)
+	 */
+	@Override
+	public void setMethod( String name, BshMethod method ) throws UtilEvalError {
+		super.setMethod( name, method );
+		if ( copies.isEmpty() || copies.contains( method ) )
+			return;
+		for ( BshMethod m : getMethods() ) {
+			if ( copies.contains( m ) && m.getName().equals( name )
+				&& Arrays.equals( m.getParameterTypes(), method.getParameterTypes() ) )
+				replaced.put( m, method );
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see bsh.engine.EngineNameSpace#clear()
+	 */
+	@Override
+	public void clear() {
+		super.clear();
+		inherited.clear();
+		copies.clear();
+		replaced.clear();
+	}
+
+	// Internals only below this point
+
+	/**
+	 * Copies the methods of a name declared in the frozen ancestors of this namespace into this namespace,
+	 * nearest ancestor first, skipping any signature already declared
+	 * @param name The method name
+	 */
+	private synchronized void inherit( String name ) throws UtilEvalError {
+		if ( inherited.contains( name ) )
+			return;
+		List<BshMethod> declared = new ArrayList<BshMethod>();
+		for ( BshMethod m : getMethods() )
+			if ( m.getName().equals( name ) ) declared.add( m );
+		for ( NameSpace ns = getParent();
+			ns instanceof EngineNameSpace && ((EngineNameSpace)ns).isFrozen(); ns = ns.getParent() ) {
+			copying:
+			for ( BshMethod m : ns.getMethods() ) {
+				if ( !m.getName().equals( name ) ) continue;
+				for ( BshMethod d : declared )
+					if ( Arrays.equals( d.getParameterTypes(), m.getParameterTypes() ) ) continue copying;
+				BshMethod copy = MethodBinding.rebind( m, this );
+				copies.add( copy );
+				setMethod( name, copy );
+				declared.add( copy );
+			}
+		}
+		inherited.add( name );
+	}
+}
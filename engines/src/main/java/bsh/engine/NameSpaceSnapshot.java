@@ -0,0 +1,79 @@
+package bsh.engine;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Map;
+
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import javax.script.SimpleScriptContext;
+
+import static javax.script.ScriptContext.*;
+
+/**
+ * <p>Title: NameSpaceSnapshot</p>
+ * <p>Description: A frozen copy of a warmed up script context, returned by
+ * {@link BshScriptEngine#snapshot(ScriptContext)}, which {@link #fork() forks} cheap isolated contexts.
+ * A fork starts with every variable, method, import and loaded command of the snapshot, without evaluating anything.</p>
+ * <p>Forks share the snapshot copy-on-write. Their engine scope bindings are {@link VersionedBindings} layered over the
+ * snapshot's variables, so a fork only allocates the bindings it writes. Their namespace inherits the snapshot's
+ * imports and commands, and copies a scripted method (but not its body) the first time the fork calls it.
+ * The global scope bindings of the snapshotted context are shared, not copied.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>bsh.engine.NameSpaceSnapshot</code></p>
+ */
+public class NameSpaceSnapshot {
+	/** The frozen namespace, the parent of each fork's namespace */
+	private final EngineNameSpace nameSpace;
+	/** The read only engine scope variables */
+	private final Map<String, Object> bindings;
+	/** The global scope bindings of the snapshotted context, or null */
+	private final Bindings globalBindings;
+	/** The reader of the snapshotted context */
+	private final Reader reader;
+	/** The writer of the snapshotted context */
+	private final Writer writer;
+	/** The error writer of the snapshotted context */
+	private final Writer errorWriter;
+
+	/**
+	 * Creates a new NameSpaceSnapshot
+	 * @param nameSpace The frozen namespace
+	 * @param bindings The read only engine scope variables
+	 * @param context The snapshotted context
+	 */
+	NameSpaceSnapshot( EngineNameSpace nameSpace, Map<String, Object> bindings, ScriptContext context ) {
+		this.nameSpace = nameSpace;
+		this.bindings = bindings;
+		this.globalBindings = context.getBindings( GLOBAL_SCOPE );
+		this.reader = context.getReader();
+		this.writer = context.getWriter();
+		this.errorWriter = context.getErrorWriter();
+	}
+
+	/**
+	 * Creates a new script context starting from this snapshot. Writes to the returned context are not seen by the
+	 * snapshot or any other fork.
+	 * @return the forked context
+	 */
+	public ScriptContext fork() {
+		SimpleScriptContext context = new SimpleScriptContext();
+		context.setBindings( VersionedBindings.overlay( bindings ), ENGINE_SCOPE );
+		context.setBindings( globalBindings, GLOBAL_SCOPE );
+		context.setReader( reader );
+		context.setWriter( writer );
+		context.setErrorWriter( errorWriter );
+		context.setAttribute( BshScriptEngine.engineNameSpaceKey,
+			new ForkedNameSpace( new ScriptContextEngineView( context ), nameSpace ), ENGINE_SCOPE );
+		return context;
+	}
+
+	/**
+	 * Returns the engine scope variables of this snapshot
+	 * @return a read only map of the variables
+	 */
+	public Map<String, Object> getBindings() {
+		return bindings;
+	}
+}
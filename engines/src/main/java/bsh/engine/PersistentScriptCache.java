@@ -0,0 +1,179 @@
+package bsh.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import bsh.Interpreter;
+import bsh.ParsedScript;
+
+/**
+ * <p>Title: PersistentScriptCache</p>
+ * <p>Description: Keeps the parsed scripts of the engines in a directory, so that a restarted process loads the scripts
+ * it has already parsed instead of parsing them again. Each script is a file named after the digest of its source and
+ * the BeanShell version, holding a header with the format, BeanShell version and source digest, followed by the length
+ * and CRC-32 checksum of the written node tree. A file which does not match its header or checksum, which is truncated
+ * or which was written by another BeanShell version is ignored and replaced by the next parse.</p>
+ * <p>The directory is set by the <b><code>bsh.engine.scriptCacheDir</code></b> system property or
+ * {@link BshScriptEngine#setScriptCacheDirectory(File)}, and the cache is disabled while it is not set. Files are written
+ * to a temporary name and renamed, so that concurrent processes sharing the directory never read a partial file.
+ * Failures to read or write the directory are ignored, the scripts are then parsed as usual.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>bsh.engine.PersistentScriptCache</code></p>
+ */
+class PersistentScriptCache {
+	/** The first bytes of a cache file, "BSHP" */
+	private static final int MAGIC = 0x42534850;
+	/** The version of the file layout */
+	private static final int FORMAT = 1;
+	/** The suffix of the cache files */
+	private static final String SUFFIX = ".bshp";
+	/** The longest node tree read back */
+	private static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+	/** The cache directory, or null if the cache is disabled */
+	private static volatile File directory = initialDirectory();
+	/** The number of scripts loaded from the directory */
+	private static final AtomicLong loads = new AtomicLong();
+	/** A counter distinguishing the temporary files of the threads of this process */
+	private static final AtomicLong temporary = new AtomicLong();
+
+	private PersistentScriptCache() {}
+
+	/**
+	 * Returns the cache directory
+	 * @return the directory, or null if the cache is disabled
+	 */
+	static File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Sets the cache directory, creating it if it does not exist
+	 * @param dir The directory, or null to disable the cache
+	 */
+	static void setDirectory( File dir ) {
+		if ( dir != null )
+			dir.mkdirs();
+		directory = dir;
+	}
+
+	/**
+	 * Loads a parsed script
+	 * @param digest The digest of the script source
+	 * @return the parsed script, or null if the cache is disabled or has no valid file for the script
+	 */
+	static ParsedScript load( String digest ) {
+		File dir = directory;
+		if ( dir == null )
+			return null;
+		File file = file( dir, digest );
+		if ( !file.isFile() )
+			return null;
+		try {
+			DataInputStream in = new DataInputStream( new FileInputStream( file ) );
+			try {
+				if ( in.readInt() != MAGIC || in.readInt() != FORMAT || !Interpreter.VERSION.equals( in.readUTF() )
+					|| !digest.equals( in.readUTF() ) )
+					return null;
+				int length = in.readInt();
+				long checksum = in.readLong();
+				if ( length < 0 || length > MAX_LENGTH )
+					return null;
+				byte[] bytes = new byte[length];
+				in.readFully( bytes );
+				CRC32 crc = new CRC32();
+				crc.update( bytes );
+				if ( crc.getValue() != checksum )
+					return null;
+				ParsedScript script = ParsedScript.read( new ByteArrayInputStream( bytes ) );
+				loads.incrementAndGet();
+				return script;
+			} finally {
+				in.close();
+			}
+		} catch ( IOException e ) {
+			return null;
+		} catch ( RuntimeException e ) {
+			// a well formed file written by an incompatible build
+			return null;
+		}
+	}
+
+	/**
+	 * Stores a parsed script, which must not have been evaluated or optimized
+	 * @param digest The digest of the script source
+	 * @param script The parsed script
+	 */
+	static void store( String digest, ParsedScript script ) {
+		File dir = directory;
+		if ( dir == null )
+			return;
+		File tmp = null;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			script.write( bytes );
+			CRC32 crc = new CRC32();
+			crc.update( bytes.toByteArray() );
+			tmp = new File( dir, digest + "." + temporary.incrementAndGet() + "." + System.nanoTime() + ".tmp" );
+			DataOutputStream out = new DataOutputStream( new FileOutputStream( tmp ) );
+			try {
+				out.writeInt( MAGIC );
+				out.writeInt( FORMAT );
+				out.writeUTF( Interpreter.VERSION );
+				out.writeUTF( digest );
+				out.writeInt( bytes.size() );
+				out.writeLong( crc.getValue() );
+				bytes.writeTo( out );
+			} finally {
+				out.close();
+			}
+			File file = file( dir, digest );
+			if ( !tmp.renameTo( file ) ) {
+				// some platforms do not rename over an existing file
+				file.delete();
+				if ( !tmp.renameTo( file ) )
+					return;
+			}
+			tmp = null;
+		} catch ( IOException e ) {
+			// the script stays cached in memory
+		} catch ( RuntimeException e ) {
+			// a node which cannot be written
+		} finally {
+			if ( tmp != null )
+				tmp.delete();
+		}
+	}
+
+	/**
+	 * Returns the number of scripts loaded from the directory
+	 * @return the number of loaded scripts
+	 */
+	static long getLoads() {
+		return loads.get();
+	}
+
+	// Internals only below this point
+
+	private static File file( File dir, String digest ) {
+		return new File( dir, digest + "-" + Interpreter.VERSION + SUFFIX );
+	}
+
+	private static File initialDirectory() {
+		String dir = BshScriptEngine.SCRIPT_CACHE_DIR;
+		if ( dir == null || dir.trim().length() == 0 )
+			return null;
+		File file = new File( dir.trim() );
+		file.mkdirs();
+		return file;
+	}
+}
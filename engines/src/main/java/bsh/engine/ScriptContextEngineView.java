@@ -1,7 +1,10 @@
 package bsh.engine;
 
+import javax.script.Bindings;
 import javax.script.ScriptContext;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 import static javax.script.ScriptContext.*;
 
 /**
@@ -16,13 +19,35 @@ import static javax.script.ScriptContext.*;
  * store values in the ENGINE_SCOPE bindings.  Other operations such as
  * size() and contains() are implemented appropriately, but perhaps not as
  * efficiently as possible.</p>
+ * <p>Name lookups are cached in a flattened map, so a repeated get() is a single hash probe instead of a search of every
+ * scope. The cache only holds names resolved from {@link VersionedBindings} (or not found in any scope, if every scope
+ * is versioned), and it is discarded whenever one of those bindings changes version or a scope's bindings are replaced.
+ * Names resolved from any other kind of bindings are looked up in the context every time.
+ * Puts and removes made through this view update the cache in place.</p>
+ * <p>While write-behind is enabled on the engine (see {@link BshScriptEngine#setWriteBehind(boolean)}), the puts made
+ * by an evaluation are buffered in a table of the evaluating thread, which the view's gets consult first, and are
+ * written to the engine scope once per name when the evaluation ends. Other threads, and code reading the context
+ * directly, see the assignments of an evaluation once it has completed or failed.</p>
+ * <p>A view can be {@link #freeze() frozen} when the namespace bound to it becomes the parent of
+ * {@link NameSpaceSnapshot} forks. A frozen view is detached from its context: it is empty and refuses writes.</p>
  * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
  * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
  * <p><code>bsh.engine.ScriptContextEngineView</code></p>
  */
 public class ScriptContextEngineView implements Map<String,Object> {
+	/** The cache entry for a name bound to null or not bound in any scope */
+	private static final Object MISSING = new Object();
+
 	/** The delegate script context */
 	private final ScriptContext context;
+	/** The flattened lookup cache, discarded when the scope bindings change */
+	private volatile Flattened flattened = null;
+	/** Indicates if this view has been detached from its context */
+	private volatile boolean frozen = false;
+	/** The buffered puts of the evaluations of each thread */
+	private final ThreadLocal<WriteBehind> writeBehinds = new ThreadLocal<WriteBehind>();
+	/** Set once an evaluation has buffered its puts, until then gets skip the buffers */
+	private volatile boolean buffered = false;
 
 	/**
 	 * Creates a new ScriptContextEngineView
@@ -32,6 +57,59 @@ public class ScriptContextEngineView implements Map<String,Object> {
 		this.context = context;
 	}
 
+	/**
+	 * Returns the context this view is bound to, whose writers receive the output of its namespace's methods
+	 * @return the script context
+	 */
+	ScriptContext getContext() {
+		return context;
+	}
+
+	/**
+	 * Detaches this view from its context. Afterwards the view is empty, removes are ignored and
+	 * all other writes throw {@link UnsupportedOperationException}.
+	 */
+	void freeze() {
+		frozen = true;
+		flattened = null;
+	}
+
+	/**
+	 * Indicates if this view has been detached from its context
+	 * @return true if this view is frozen
+	 */
+	boolean isFrozen() {
+		return frozen;
+	}
+
+	/**
+	 * Starts buffering the puts of the calling thread, until the matching {@link #endWriteBehind()}
+	 */
+	void beginWriteBehind() {
+		WriteBehind w = writeBehinds.get();
+		if ( w == null ) {
+			w = new WriteBehind();
+			writeBehinds.set( w );
+			buffered = true;
+		}
+		w.depth++;
+	}
+
+	/**
+	 * Ends a {@link #beginWriteBehind()}, writing the buffered puts of the calling thread to the engine scope
+	 * when the outermost one ends. Does nothing if the calling thread is not buffering.
+	 */
+	void endWriteBehind() {
+		WriteBehind w = writeBehinds.get();
+		if ( w == null || --w.depth > 0 )
+			return;
+		writeBehinds.remove();
+		if ( frozen )
+			return;
+		for ( Map.Entry<String,Object> entry : w.pending.entrySet() )
+			write( entry.getKey(), entry.getValue() );
+	}
+
 	/**
 	 * <p>Returns the number of unique object bindings in all scopes. (duplicate, shadowed, bindings count as a single binging).</p> 
 	 * {@inheritDoc}
@@ -59,7 +137,7 @@ public class ScriptContextEngineView implements Map<String,Object> {
 	 */
 	@Override
 	public boolean containsKey( Object key ) {
-		return context.getAttribute( (String)key ) != null;
+		return get( key ) != null;
 	}
 
 	/**
@@ -83,7 +161,7 @@ public class ScriptContextEngineView implements Map<String,Object> {
 	@Override
 	public boolean containsValue( Object value )
 	{
-		Set values = totalValueSet();
+		Collection<Object> values = totalValueSet();
 		return values.contains( value );
 	}
 
@@ -106,7 +184,22 @@ public class ScriptContextEngineView implements Map<String,Object> {
 	@Override
 	public Object get( Object key )
 	{
-		return context.getAttribute( (String)key );
+		String name = (String)key;
+		if ( frozen )
+			return null;
+		if ( buffered ) {
+			WriteBehind w = writeBehinds.get();
+			if ( w != null ) {
+				Object pending = w.pending.get( name );
+				if ( pending != null || w.pending.containsKey( name ) )
+					return pending;
+			}
+		}
+		Flattened f = current();
+		Object value = f.values.get( name );
+		if ( value != null )
+			return value == MISSING ? null : value;
+		return f.resolve( name );
 	}
 
 	/**
@@ -132,10 +225,15 @@ public class ScriptContextEngineView implements Map<String,Object> {
 	@Override
 	public Object put( String key, Object value )
 	{
-		Object oldValue =
-			context.getAttribute( key, ENGINE_SCOPE );
-		context.setAttribute( key, value, ENGINE_SCOPE );
-		return oldValue;
+		checkWritable();
+		WriteBehind w = buffered ? writeBehinds.get() : null;
+		if ( w != null ) {
+			if ( w.pending.containsKey( key ) )
+				return w.pending.put( key, value );
+			w.pending.put( key, value );
+			return context.getAttribute( key, ENGINE_SCOPE );
+		}
+		return write( key, value );
 	}
 
 
@@ -157,6 +255,10 @@ public class ScriptContextEngineView implements Map<String,Object> {
 	@Override
 	public void putAll( Map<? extends String, ? extends Object> t )
 	{
+		checkWritable();
+		WriteBehind w = buffered ? writeBehinds.get() : null;
+		if ( w != null )
+			w.pending.keySet().removeAll( t.keySet() );
 		context.getBindings( ENGINE_SCOPE ).putAll( t );
 	}
 
@@ -189,9 +291,22 @@ public class ScriptContextEngineView implements Map<String,Object> {
 	{
 		// This shouldn't be necessary... we don't map Objects, Strings.
 		String key = (String)okey;
+		if ( frozen )
+			return null;
+		WriteBehind w = buffered ? writeBehinds.get() : null;
+		if ( w != null && w.pending.containsKey( key ) ) {
+			Object pending = w.pending.remove( key );
+			context.removeAttribute( key, ENGINE_SCOPE );
+			flattened = null;
+			return pending;
+		}
+		Flattened f = current();
 		Object oldValue =
 			context.getAttribute( key, ENGINE_SCOPE );
 		context.removeAttribute( key, ENGINE_SCOPE );
+		// a lower scope may now resolve the name, so it is looked up again on the next get
+		f.written( key, null );
+		f.values.remove( key );
 		return oldValue;
 	}
 
@@ -203,6 +318,10 @@ public class ScriptContextEngineView implements Map<String,Object> {
 	@Override
 	public void clear()
 	{
+		checkWritable();
+		WriteBehind w = buffered ? writeBehinds.get() : null;
+		if ( w != null )
+			w.pending.clear();
 		context.getBindings( ENGINE_SCOPE ).clear();
 	}
 
@@ -213,7 +332,7 @@ public class ScriptContextEngineView implements Map<String,Object> {
 	 * @return a set view of the keys contained in this map.
 	 */
 	@Override
-	public Set keySet()
+	public Set<String> keySet()
 	{
 		return totalKeySet();
 	}
@@ -226,7 +345,7 @@ public class ScriptContextEngineView implements Map<String,Object> {
 	 * @return a collection view of the values contained in this map.
 	 */
 	@Override
-	public Collection values()
+	public Collection<Object> values()
 	{
 		return totalValueSet();
 	}
@@ -252,22 +371,178 @@ public class ScriptContextEngineView implements Map<String,Object> {
 		throw new Error("unimplemented");
 	}
 
-	private Set totalKeySet()
+	/**
+	 * Sets a name in the engine scope and updates the lookup cache
+	 * @param key The name
+	 * @param value The value
+	 * @return the previous value in the engine scope
+	 */
+	private Object write( String key, Object value ) {
+		Flattened f = current();
+		Object oldValue =
+			context.getAttribute( key, ENGINE_SCOPE );
+		context.setAttribute( key, value, ENGINE_SCOPE );
+		// the engine scope is searched first, so it now resolves the name
+		f.written( key, value );
+		return oldValue;
+	}
+
+	/**
+	 * <p>Title: WriteBehind</p>
+	 * <p>Description: The puts buffered by the evaluations of a thread</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.engine.ScriptContextEngineView.WriteBehind</code></p>
+	 */
+	private static final class WriteBehind {
+		/** The buffered values keyed by name, in the order of their first put */
+		final Map<String,Object> pending = new LinkedHashMap<String,Object>();
+		/** The number of nested evaluations */
+		int depth = 0;
+	}
+
+	/**
+	 * Returns the lookup cache, replacing it if the scope bindings have changed since it was built
+	 * @return the current lookup cache
+	 */
+	private Flattened current() {
+		Flattened f = flattened;
+		if ( f == null || !f.isCurrent() ) {
+			f = new Flattened();
+			flattened = f;
+		}
+		return f;
+	}
+
+	/**
+	 * <p>Title: Flattened</p>
+	 * <p>Description: The name lookups cached against one state of the context's scope bindings</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.engine.ScriptContextEngineView.Flattened</code></p>
+	 */
+	private final class Flattened {
+		/** The scopes in search order */
+		final int[] scopes;
+		/** The bindings of each scope */
+		final Bindings[] bindings;
+		/** The version of each scope's bindings, or -1 for bindings which are not versioned */
+		final AtomicLongArray versions;
+		/** The index of the engine scope, or -1 */
+		final int engineIndex;
+		/** The resolved values keyed by name */
+		final Map<String,Object> values = new ConcurrentHashMap<String,Object>();
+
+		Flattened() {
+			List<Integer> scopeList = context.getScopes();
+			scopes = new int[scopeList.size()];
+			bindings = new Bindings[scopes.length];
+			versions = new AtomicLongArray( scopes.length );
+			int engine = -1;
+			for ( int i = 0; i < scopes.length; i++ ) {
+				scopes[i] = scopeList.get( i );
+				bindings[i] = context.getBindings( scopes[i] );
+				versions.set( i, versionOf( bindings[i] ) );
+				if ( scopes[i] == ENGINE_SCOPE ) engine = i;
+			}
+			engineIndex = engine;
+		}
+
+		/**
+		 * Determines if the scope bindings are unchanged since this cache was built
+		 * @return true if the cached values are current
+		 */
+		boolean isCurrent() {
+			for ( int i = 0; i < scopes.length; i++ ) {
+				Bindings b = context.getBindings( scopes[i] );
+				if ( b != bindings[i] || versionOf( b ) != versions.get( i ) ) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Looks up a name the same way as <code>ScriptContext.getAttribute(String)</code>, caching the result if it
+		 * depends only on versioned bindings
+		 * @param name The name to look up
+		 * @return the resolved value or null
+		 */
+		Object resolve( String name ) {
+			boolean cacheable = true;
+			for ( int i = 0; i < scopes.length; i++ ) {
+				Bindings b = bindings[i];
+				if ( b == null ) continue;
+				if ( !(b instanceof VersionedBindings) ) cacheable = false;
+				if ( b.containsKey( name ) ) {
+					Object value = b.get( name );
+					if ( cacheable ) values.put( name, value == null ? MISSING : value );
+					return value;
+				}
+			}
+			if ( cacheable ) values.put( name, MISSING );
+			return null;
+		}
+
+		/**
+		 * Updates the cache after this view has written a name to the engine scope.
+		 * If the write was the only change to the engine scope bindings, the cache stays current.
+		 * @param name The name written
+		 * @param value The value written
+		 */
+		void written( String name, Object value ) {
+			if ( engineIndex < 0 || engineIndex > 0 ) {
+				// the engine scope is not searched first
+				flattened = null;
+				return;
+			}
+			long expected = versions.get( engineIndex );
+			if ( expected < 0 ) {
+				// nothing is cached from unversioned engine bindings
+				return;
+			}
+			long actual = versionOf( bindings[engineIndex] );
+			if ( actual != expected + 1
+				|| !versions.compareAndSet( engineIndex, expected, actual ) ) {
+				flattened = null;
+				return;
+			}
+			values.put( name, value == null ? MISSING : value );
+		}
+	}
+
+	private void checkWritable() {
+		if ( frozen ) throw new UnsupportedOperationException( "The view is frozen" );
+	}
+
+	private static long versionOf( Bindings bindings ) {
+		return bindings instanceof VersionedBindings ? ((VersionedBindings)bindings).getVersion() : -1;
+	}
+
+	private Set<String> totalKeySet()
 	{
-		Set keys = new HashSet();
+		Set<String> keys = new HashSet<String>();
+		if ( frozen )
+			return Collections.unmodifiableSet(keys);
 		List<Integer> scopes = context.getScopes();
 		for ( int i : scopes ) {
 			keys.addAll( context.getBindings( i ).keySet() );
 		}
+		WriteBehind w = buffered ? writeBehinds.get() : null;
+		if ( w != null )
+			keys.addAll( w.pending.keySet() );
 		return Collections.unmodifiableSet(keys);
 	}
-	private Set totalValueSet()
+	private Collection<Object> totalValueSet()
 	{
-		Set values = new HashSet();
+		Set<Object> values = new HashSet<Object>();
+		if ( frozen )
+			return Collections.unmodifiableSet(values);
 		List<Integer> scopes = context.getScopes();
 		for ( int i : scopes ) {
 			values.addAll( context.getBindings( i ).values() );
 		}
+		WriteBehind w = buffered ? writeBehinds.get() : null;
+		if ( w != null )
+			values.addAll( w.pending.values() );
 		return Collections.unmodifiableSet(values);
 	}
 
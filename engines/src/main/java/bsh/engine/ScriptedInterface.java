@@ -0,0 +1,470 @@
+package bsh.engine;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.ArrayType;
+import org.apache.bcel.generic.ClassGen;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.InstructionConstants;
+import org.apache.bcel.generic.InstructionFactory;
+import org.apache.bcel.generic.InstructionList;
+import org.apache.bcel.generic.MethodGen;
+import org.apache.bcel.generic.PUSH;
+import org.apache.bcel.generic.ReferenceType;
+import org.apache.bcel.generic.Type;
+
+import bsh.BshMethod;
+import bsh.EvalError;
+import bsh.Interpreter;
+import bsh.NameSpace;
+import bsh.Primitive;
+import bsh.TargetError;
+import bsh.UtilEvalError;
+
+/**
+ * <p>Title: ScriptedInterface</p>
+ * <p>Description: The base class of the interface implementations returned by {@link BshScriptEngine#getInterface(Class)}
+ * and {@link BshScriptEngine#getInterface(Object, Class)}. A concrete subclass is generated once per interface, and each
+ * of its methods calls straight into {@link #invoke(int, Object[])} with primitive arguments wrapped as BeanShell
+ * primitives, instead of going through a <code>java.lang.reflect.Proxy</code> and its invocation handler.</p>
+ * <p>The scripted method behind each interface method is resolved from the declared parameter types when the
+ * implementation is created, and again whenever an engine namespace declares new methods. Methods which cannot be
+ * resolved up front, such as overloaded ones, are resolved by BeanShell on every call as the proxy would.
+ * Exceptions are delivered the way the proxy delivers them.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>bsh.engine.ScriptedInterface</code></p>
+ */
+public abstract class ScriptedInterface {
+	/** The generated class name sequence */
+	private static final AtomicInteger classSerial = new AtomicInteger();
+	/** The generated implementation classes keyed by interface */
+	private static final Map<Class<?>, Reference<Class<?>>> implementations =
+		Collections.synchronizedMap( new WeakHashMap<Class<?>, Reference<Class<?>>>() );
+
+	/** The namespace the scripted methods are declared in */
+	private NameSpace namespace;
+	/** The engine whose interpreters run the methods */
+	private BshScriptEngine engine;
+	/** The implemented interface */
+	private Class<?> iface;
+	/** The implemented methods, indexed as in the generated class */
+	private Method[] methods;
+	/** The resolved scripted methods, null where resolved on every call */
+	private volatile BshMethod[] resolved;
+	/** The namespace method version the methods were resolved against */
+	private volatile long resolvedVersion = -1;
+
+	/**
+	 * Creates a new ScriptedInterface. Called by the generated subclass constructor.
+	 */
+	protected ScriptedInterface() {
+	}
+
+	/**
+	 * Creates an implementation of an interface bound to a namespace
+	 * @param iface The interface
+	 * @param namespace The namespace the scripted methods are declared in
+	 * @param engine The engine whose interpreters run the methods
+	 * @return the implementation
+	 */
+	static ScriptedInterface create( Class<?> iface, NameSpace namespace, BshScriptEngine engine ) {
+		Class<?> clazz = implementationOf( iface );
+		ScriptedInterface impl;
+		try {
+			impl = (ScriptedInterface)clazz.getDeclaredConstructor().newInstance();
+		} catch ( Exception e ) {
+			throw new IllegalStateException( "Failed to instantiate implementation of " + iface.getName(), e );
+		}
+		impl.namespace = namespace;
+		impl.engine = engine;
+		impl.iface = iface;
+		impl.methods = implementedMethods( iface );
+		impl.resolve();
+		return impl;
+	}
+
+	/**
+	 * Determines if an implementation can be generated for the passed interface
+	 * @param iface The interface
+	 * @return true if the passed class is a public interface
+	 */
+	static boolean isSupported( Class<?> iface ) {
+		return iface.isInterface() && Modifier.isPublic( iface.getModifiers() );
+	}
+
+	/**
+	 * Returns the namespace the scripted methods are declared in
+	 * @return the namespace
+	 */
+	public NameSpace getNameSpace() {
+		return namespace;
+	}
+
+	/**
+	 * Invokes the scripted method behind an interface method. Called by the generated methods.
+	 * @param index The index of the interface method
+	 * @param args The arguments, with primitives already wrapped as BeanShell primitives
+	 * @return the unwrapped return value
+	 * @throws Throwable the exception thrown by the scripted method, or an {@link UndeclaredThrowableException}
+	 * if it is a checked exception the interface method does not declare
+	 */
+	protected final Object invoke( int index, Object[] args ) throws Throwable {
+		for ( int i = 0; i < args.length; i++ ) {
+			if ( args[i] == null )
+				args[i] = Primitive.NULL;
+		}
+		if ( !(namespace instanceof EngineNameSpace) ) {
+			// a scripted object runs on the interpreter which declared it, as the proxy does
+			try {
+				return Primitive.unwrap( namespace.getThis( engine.getInterpreter() ).invokeMethod( methods[index].getName(), args ) );
+			} catch ( TargetError te ) {
+				throw deliverable( te.getTarget(), methods[index] );
+			} catch ( EvalError ee ) {
+				throw deliverable( ee, methods[index] );
+			}
+		}
+		Interpreter interpreter = bind();
+		try {
+			BshMethod method = current()[index];
+			Object ret = method != null
+				? method.invoke( args, interpreter, null/*callstack*/, null/*callerInfo*/ )
+				: namespace.getThis( interpreter ).invokeMethod( methods[index].getName(), args, interpreter,
+					null/*callstack*/, null/*callerInfo*/, false/*declaredOnly*/ );
+			return Primitive.unwrap( ret );
+		} catch ( TargetError te ) {
+			throw deliverable( te.getTarget(), methods[index] );
+		} catch ( EvalError ee ) {
+			throw deliverable( ee, methods[index] );
+		} finally {
+			BshScriptEngine.finish( interpreter, namespace );
+		}
+	}
+
+	/**
+	 * Converts a scripted method's return value for an <code>int</code> interface method
+	 * @param value The return value
+	 * @return the int value
+	 */
+	protected static int toInt( Object value ) {
+		return value instanceof Character ? ((Character)value).charValue() : ((Number)value).intValue();
+	}
+
+	/**
+	 * Converts a scripted method's return value for a <code>long</code> interface method
+	 * @param value The return value
+	 * @return the long value
+	 */
+	protected static long toLong( Object value ) {
+		return value instanceof Character ? ((Character)value).charValue() : ((Number)value).longValue();
+	}
+
+	/**
+	 * Converts a scripted method's return value for a <code>double</code> interface method
+	 * @param value The return value
+	 * @return the double value
+	 */
+	protected static double toDouble( Object value ) {
+		return value instanceof Character ? ((Character)value).charValue() : ((Number)value).doubleValue();
+	}
+
+	/**
+	 * Converts a scripted method's return value for a <code>float</code> interface method
+	 * @param value The return value
+	 * @return the float value
+	 */
+	protected static float toFloat( Object value ) {
+		return value instanceof Character ? ((Character)value).charValue() : ((Number)value).floatValue();
+	}
+
+	/**
+	 * Converts a scripted method's return value for a <code>short</code> interface method
+	 * @param value The return value
+	 * @return the short value
+	 */
+	protected static short toShort( Object value ) {
+		return (short)toInt( value );
+	}
+
+	/**
+	 * Converts a scripted method's return value for a <code>byte</code> interface method
+	 * @param value The return value
+	 * @return the byte value
+	 */
+	protected static byte toByte( Object value ) {
+		return (byte)toInt( value );
+	}
+
+	/**
+	 * Converts a scripted method's return value for a <code>char</code> interface method
+	 * @param value The return value
+	 * @return the char value
+	 */
+	protected static char toChar( Object value ) {
+		return value instanceof Character ? ((Character)value).charValue() : (char)((Number)value).intValue();
+	}
+
+	/**
+	 * Converts a scripted method's return value for a <code>boolean</code> interface method
+	 * @param value The return value
+	 * @return the boolean value
+	 */
+	protected static boolean toBoolean( Object value ) {
+		return ((Boolean)value).booleanValue();
+	}
+
+	/**
+	 * Calls the scripted <code>equals(Object)</code> if the namespace declares one, otherwise tests identity
+	 * {@inheritDoc}
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals( Object obj ) {
+		Object ret = invokeObjectMethod( "equals", new Class<?>[] { Object.class }, new Object[] { obj } );
+		return ret == null ? this == obj : toBoolean( ret );
+	}
+
+	/**
+	 * Calls the scripted <code>hashCode()</code> if the namespace declares one, otherwise returns the identity hash code
+	 * {@inheritDoc}
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		Object ret = invokeObjectMethod( "hashCode", new Class<?>[0], new Object[0] );
+		return ret == null ? System.identityHashCode( this ) : toInt( ret );
+	}
+
+	/**
+	 * Calls the scripted <code>toString()</code> if the namespace declares one, otherwise describes the implementation
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		Object ret = invokeObjectMethod( "toString", new Class<?>[0], new Object[0] );
+		return ret == null ? "ScriptedInterface [" + namespace + " implements " + iface.getName() + "]" : String.valueOf( ret );
+	}
+
+	// Internals only below this point
+
+	/**
+	 * Binds the calling thread's interpreter to the engine namespace and the writers of its context
+	 * @return the interpreter
+	 */
+	private Interpreter bind() {
+		return engine.prepareInterpreter( namespace, ((EngineNameSpace)namespace).getEngineView().getContext() );
+	}
+
+	private BshMethod[] current() {
+		if ( namespace instanceof EngineNameSpace && ((EngineNameSpace)namespace).getMethodVersion() != resolvedVersion )
+			resolve();
+		return resolved;
+	}
+
+	private void resolve() {
+		long version = namespace instanceof EngineNameSpace ? ((EngineNameSpace)namespace).getMethodVersion() : 0;
+		BshMethod[] declared = namespace.getMethods();
+		BshMethod[] r = new BshMethod[methods.length];
+		for ( int i = 0; i < methods.length; i++ ) {
+			Class<?>[] types = methods[i].getParameterTypes();
+			// overloads are matched against the runtime argument types on each call
+			int candidates = 0;
+			for ( BshMethod m : declared ) {
+				if ( m.getName().equals( methods[i].getName() ) && m.getParameterTypes().length == types.length )
+					candidates++;
+			}
+			if ( candidates != 1 )
+				continue;
+			try {
+				r[i] = namespace.getMethod( methods[i].getName(), types, true/*declaredOnly*/ );
+			} catch ( UtilEvalError e ) {
+				// resolved on each call
+			}
+		}
+		resolved = r;
+		resolvedVersion = version;
+	}
+
+	private Object invokeObjectMethod( String name, Class<?>[] types, Object[] args ) {
+		Interpreter interpreter = null;
+		try {
+			BshMethod method = namespace.getMethod( name, types, true/*declaredOnly*/ );
+			if ( method == null )
+				return null;
+			for ( int i = 0; i < args.length; i++ ) {
+				if ( args[i] == null )
+					args[i] = Primitive.NULL;
+			}
+			if ( !(namespace instanceof EngineNameSpace) )
+				return Primitive.unwrap( namespace.getThis( engine.getInterpreter() ).invokeMethod( name, args ) );
+			interpreter = bind();
+			return Primitive.unwrap( method.invoke( args, interpreter, null, null ) );
+		} catch ( TargetError te ) {
+			Throwable t = te.getTarget();
+			if ( t instanceof RuntimeException ) throw (RuntimeException)t;
+			if ( t instanceof Error ) throw (Error)t;
+			throw new UndeclaredThrowableException( t );
+		} catch ( UtilEvalError e ) {
+			return null;
+		} catch ( EvalError e ) {
+			throw new UndeclaredThrowableException( e );
+		} finally {
+			if ( interpreter != null )
+				BshScriptEngine.finish( interpreter, namespace );
+		}
+	}
+
+	private static Throwable deliverable( Throwable t, Method method ) {
+		if ( t instanceof RuntimeException || t instanceof Error )
+			return t;
+		for ( Class<?> declared : method.getExceptionTypes() ) {
+			if ( declared.isInstance( t ) )
+				return t;
+		}
+		return new UndeclaredThrowableException( t );
+	}
+
+	/**
+	 * Returns the interface methods a generated class implements: every abstract method, once per signature,
+	 * except those already implemented by this class as Object methods
+	 * @param iface The interface
+	 * @return the implemented methods in generated index order
+	 */
+	private static Method[] implementedMethods( Class<?> iface ) {
+		List<Method> implemented = new ArrayList<Method>();
+		Set<String> signatures = new HashSet<String>();
+		signatures.add( "equals(Ljava/lang/Object;)" );
+		signatures.add( "hashCode()" );
+		signatures.add( "toString()" );
+		for ( Method m : iface.getMethods() ) {
+			if ( !Modifier.isAbstract( m.getModifiers() ) )
+				continue;
+			String signature = Type.getMethodSignature( Type.VOID, types( m.getParameterTypes() ) );
+			if ( signatures.add( m.getName() + signature.substring( 0, signature.indexOf( ')' ) + 1 ) ) )
+				implemented.add( m );
+		}
+		return implemented.toArray( new Method[implemented.size()] );
+	}
+
+	private static Class<?> implementationOf( Class<?> iface ) {
+		synchronized ( implementations ) {
+			Reference<Class<?>> ref = implementations.get( iface );
+			Class<?> clazz = ref == null ? null : ref.get();
+			if ( clazz == null ) {
+				String className = "bsh_engine_ScriptedInterface$" + classSerial.incrementAndGet();
+				byte[] bytes = generate( className, iface, implementedMethods( iface ) );
+				clazz = new GeneratedLoader( iface.getClassLoader() ).define( className, bytes );
+				implementations.put( iface, new WeakReference<Class<?>>( clazz ) );
+			}
+			return clazz;
+		}
+	}
+
+	private static byte[] generate( String className, Class<?> iface, Method[] methods ) {
+		String base = ScriptedInterface.class.getName();
+		ClassGen cg = new ClassGen( className, base, "<generated>",
+			Constants.ACC_PUBLIC | Constants.ACC_FINAL | Constants.ACC_SUPER,
+			new String[] { iface.getName() } );
+		cg.addEmptyConstructor( Constants.ACC_PUBLIC );
+		ConstantPoolGen cp = cg.getConstantPool();
+		InstructionFactory factory = new InstructionFactory( cg, cp );
+		for ( int index = 0; index < methods.length; index++ ) {
+			Method method = methods[index];
+			Class<?>[] params = method.getParameterTypes();
+			Type[] argTypes = types( params );
+			Type returnType = Type.getType( method.getReturnType() );
+			InstructionList il = new InstructionList();
+			il.append( InstructionConstants.ALOAD_0 );
+			il.append( new PUSH( cp, index ) );
+			il.append( new PUSH( cp, params.length ) );
+			il.append( factory.createNewArray( Type.OBJECT, (short)1 ) );
+			int slot = 1;
+			for ( int i = 0; i < params.length; i++ ) {
+				il.append( InstructionConstants.DUP );
+				il.append( new PUSH( cp, i ) );
+				if ( params[i].isPrimitive() ) {
+					il.append( factory.createNew( "bsh.Primitive" ) );
+					il.append( InstructionConstants.DUP );
+					il.append( InstructionFactory.createLoad( argTypes[i], slot ) );
+					il.append( factory.createInvoke( "bsh.Primitive", "<init>", Type.VOID,
+						new Type[] { argTypes[i] }, Constants.INVOKESPECIAL ) );
+				} else {
+					il.append( InstructionFactory.createLoad( argTypes[i], slot ) );
+				}
+				il.append( InstructionConstants.AASTORE );
+				slot += argTypes[i].getSize();
+			}
+			il.append( factory.createInvoke( base, "invoke", Type.OBJECT,
+				new Type[] { Type.INT, new ArrayType( Type.OBJECT, 1 ) }, Constants.INVOKEVIRTUAL ) );
+			Class<?> ret = method.getReturnType();
+			if ( ret == void.class ) {
+				il.append( InstructionConstants.POP );
+			} else if ( ret.isPrimitive() ) {
+				String converter = "to" + Character.toUpperCase( ret.getName().charAt( 0 ) ) + ret.getName().substring( 1 );
+				il.append( factory.createInvoke( base, converter, returnType,
+					new Type[] { Type.OBJECT }, Constants.INVOKESTATIC ) );
+			} else if ( ret != Object.class ) {
+				il.append( factory.createCheckCast( (ReferenceType)returnType ) );
+			}
+			il.append( InstructionFactory.createReturn( returnType ) );
+			String[] argNames = new String[params.length];
+			for ( int i = 0; i < argNames.length; i++ )
+				argNames[i] = "arg" + i;
+			MethodGen mg = new MethodGen( Constants.ACC_PUBLIC | Constants.ACC_FINAL, returnType, argTypes, argNames,
+				method.getName(), className, il, cp );
+			for ( Class<?> exception : method.getExceptionTypes() )
+				mg.addException( exception.getName() );
+			mg.setMaxStack();
+			mg.setMaxLocals();
+			cg.addMethod( mg.getMethod() );
+			il.dispose();
+		}
+		return cg.getJavaClass().getBytes();
+	}
+
+	private static Type[] types( Class<?>[] classes ) {
+		Type[] types = new Type[classes.length];
+		for ( int i = 0; i < classes.length; i++ )
+			types[i] = Type.getType( classes[i] );
+		return types;
+	}
+
+	/**
+	 * <p>Title: GeneratedLoader</p>
+	 * <p>Description: Defines a generated implementation class. Delegates to the interface's class loader,
+	 * except for the base class and the BeanShell primitive wrapper, which come from the loader of this class.</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.engine.ScriptedInterface.GeneratedLoader</code></p>
+	 */
+	private static final class GeneratedLoader extends ClassLoader {
+		GeneratedLoader( ClassLoader parent ) {
+			super( parent != null ? parent : ScriptedInterface.class.getClassLoader() );
+		}
+
+		Class<?> define( String className, byte[] bytes ) {
+			return defineClass( className, bytes, 0, bytes.length );
+		}
+
+		@Override
+		protected Class<?> loadClass( String name, boolean resolve ) throws ClassNotFoundException {
+			if ( name.equals( ScriptedInterface.class.getName() ) || name.equals( Primitive.class.getName() ) )
+				return ScriptedInterface.class.getClassLoader().loadClass( name );
+			return super.loadClass( name, resolve );
+		}
+	}
+}
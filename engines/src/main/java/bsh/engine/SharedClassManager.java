@@ -0,0 +1,189 @@
+package bsh.engine;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import bsh.NameSpace;
+import bsh.ScriptedClassCache;
+import bsh.UtilEvalError;
+import bsh.classpath.ClassManagerImpl;
+
+/**
+ * <p>Title: SharedClassManager</p>
+ * <p>Description: The BeanShell class manager of the namespaces created by {@link BshScriptEngine}. BeanShell resolves an
+ * unqualified class name by trying it in every imported package, and each namespace otherwise gets a new class manager
+ * whose caches start empty. This manager resolves names through a process wide cache shared by every engine,
+ * which also remembers the names that are not classes, so a new script context resolves the classes its
+ * scripts use with map lookups.</p>
+ * <p>The shared cache is kept per thread context class loader, since BeanShell consults it. A manager whose class path
+ * has been changed, or which has defined scripted classes, resolves names through its own caches as before,
+ * so scripted classes never leak into other contexts. Scripted classes reused from the {@link ScriptedClassCache} are only
+ * known to the managers of the contexts which declared them.</p>
+ * <p>The cache is warmed up once per process from the import manifest named by the
+ * <b><code>bsh.engine.importManifest</code></b> system property, a file or class path resource listing one class name per line.
+ * Unqualified names are resolved against BeanShell's default imports.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>bsh.engine.SharedClassManager</code></p>
+ */
+class SharedClassManager extends ClassManagerImpl implements ScriptedClassCache.Sharing {
+	/** The import manifest warmed up on first use, set by the <b><code>bsh.engine.importManifest</code></b> system property */
+	static final String IMPORT_MANIFEST = System.getProperty( BshScriptEngine.SYSPROP_PREFIX + "importManifest" );
+
+	/** Marks a name which is not a class */
+	private static final Object NOT_A_CLASS = new Object();
+	/** The resolved names keyed by the thread context class loader */
+	private static final Map<ClassLoader, Map<String, Object>> caches =
+		Collections.synchronizedMap( new WeakHashMap<ClassLoader, Map<String, Object>>() );
+	/** The resolved names of threads without a context class loader */
+	private static final Map<String, Object> noLoaderCache = new ConcurrentHashMap<String, Object>();
+	/** Set once the import manifest has been warmed up */
+	private static final AtomicBoolean warmedUp = new AtomicBoolean( false );
+
+	/**
+	 * {@inheritDoc}
+	 * @see bsh.classpath.ClassManagerImpl#classForName(java.lang.String)
+	 */
+	@SuppressWarnings("rawtypes")
+	@Override
+	public Class classForName( String name ) {
+		// scripted classes reused from the cache are only known to this manager
+		Class<?> known = (Class<?>)absoluteClassCache.get( name );
+		if ( known != null )
+			return known;
+		if ( getBaseLoader() != null || externalClassLoader != null || isClassBeingDefined( name ) )
+			return super.classForName( name );
+		Map<String, Object> cache = cache();
+		Object cached = cache.get( name );
+		if ( cached == NOT_A_CLASS )
+			return null;
+		if ( cached != null ) {
+			Class<?> clazz = (Class<?>)((WeakReference<?>)cached).get();
+			if ( clazz != null )
+				return clazz;
+		}
+		Class<?> clazz = super.classForName( name );
+		// a class defined while resolving the name belongs to this manager only
+		if ( getBaseLoader() == null )
+			cache.put( name, clazz == null ? NOT_A_CLASS : new WeakReference<Class<?>>( clazz ) );
+		return clazz;
+	}
+
+	/**
+	 * Source classes are not loaded. The stock manager evaluates them in a separate interpreter whose own class manager
+	 * defines them, so they were never found by this manager anyway.
+	 * {@inheritDoc}
+	 * @see bsh.BshClassManager#loadSourceClass(java.lang.String)
+	 */
+	@SuppressWarnings("rawtypes")
+	@Override
+	protected Class loadSourceClass( String name ) {
+		return null;
+	}
+
+	/**
+	 * Resolves class names into the shared cache
+	 * @param classNames The class names, unqualified names being resolved against BeanShell's default imports
+	 * @return the number of names which are classes
+	 */
+	static int warmUp( String... classNames ) {
+		// a detached namespace loads the default imports
+		NameSpace nameSpace = new NameSpace( new SharedClassManager(), "import warm up" );
+		int resolved = 0;
+		for ( String name : classNames ) {
+			try {
+				if ( nameSpace.getClass( name ) != null ) resolved++;
+			} catch ( UtilEvalError e ) {
+				// an ambiguous name, left to the scripts to report
+			}
+		}
+		return resolved;
+	}
+
+	/**
+	 * Warms up the cache from the import manifest in the background, the first time this is called
+	 */
+	static void warmUpOnce() {
+		if ( IMPORT_MANIFEST == null || !warmedUp.compareAndSet( false, true ) )
+			return;
+		Thread thread = new Thread( "BshImportWarmUp" ) {
+			@Override
+			public void run() {
+				try {
+					List<String> names = readManifest( IMPORT_MANIFEST );
+					warmUp( names.toArray( new String[names.size()] ) );
+				} catch ( IOException e ) {
+					// the cache fills up as scripts run
+				}
+			}
+		};
+		thread.setDaemon( true );
+		thread.start();
+	}
+
+	/**
+	 * Discards the shared cache
+	 */
+	static void clear() {
+		caches.clear();
+		noLoaderCache.clear();
+	}
+
+	// Internals only below this point
+
+	/**
+	 * Returns the shared cache of the calling thread's context class loader
+	 * @return the cache
+	 */
+	private static Map<String, Object> cache() {
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		if ( loader == null )
+			return noLoaderCache;
+		synchronized ( caches ) {
+			Map<String, Object> cache = caches.get( loader );
+			if ( cache == null ) {
+				cache = new ConcurrentHashMap<String, Object>();
+				caches.put( loader, cache );
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Reads the class names of an import manifest
+	 * @param manifest A file name or class path resource
+	 * @return the class names
+	 * @throws IOException thrown if the manifest cannot be read
+	 */
+	private static List<String> readManifest( String manifest ) throws IOException {
+		File file = new File( manifest );
+		InputStream is = file.isFile() ? new FileInputStream( file ) : SharedClassManager.class.getClassLoader().getResourceAsStream( manifest );
+		if ( is == null )
+			throw new IOException( "Import manifest not found: " + manifest );
+		List<String> names = new ArrayList<String>();
+		try {
+			BufferedReader reader = new BufferedReader( new InputStreamReader( is, "UTF-8" ) );
+			String line;
+			while ( (line = reader.readLine()) != null ) {
+				line = line.trim();
+				if ( line.length() > 0 && !line.startsWith( "#" ) )
+					names.add( line );
+			}
+		} finally {
+			is.close();
+		}
+		return names;
+	}
+}
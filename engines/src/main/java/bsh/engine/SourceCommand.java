@@ -0,0 +1,41 @@
+package bsh.engine;
+
+import java.io.IOException;
+
+import bsh.CallStack;
+import bsh.EvalError;
+import bsh.Interpreter;
+
+/**
+ * <p>Title: SourceCommand</p>
+ * <p>Description: The compiled BeanShell command standing in for the <code>source( String filename )</code> command of the
+ * default command path in the namespaces of {@link BshScriptEngine}. It evaluates the file in the caller's namespace
+ * as the scripted command does, but from the parsed script held by the {@link SourcedScriptCache}.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>bsh.engine.SourceCommand</code></p>
+ */
+public final class SourceCommand {
+	private SourceCommand() {}
+
+	/**
+	 * Returns the command's usage
+	 * @return the usage
+	 */
+	public static String usage() {
+		return "usage: source( filename | URL )";
+	}
+
+	/**
+	 * Evaluates a file in the caller's namespace
+	 * @param env The interpreter resolving relative file names against <code>bsh.cwd</code>
+	 * @param callstack The call stack, whose top is the caller's namespace
+	 * @param filename The file name
+	 * @return the value of the file's script
+	 * @throws IOException thrown if the file cannot be read
+	 * @throws EvalError thrown if the script cannot be parsed or fails
+	 */
+	public static Object invoke( Interpreter env, CallStack callstack, String filename ) throws IOException, EvalError {
+		return SourcedScriptCache.file( env.pathToFile( filename ), filename ).eval( env, callstack.top() );
+	}
+}
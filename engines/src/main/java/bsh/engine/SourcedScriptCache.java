@@ -0,0 +1,151 @@
+package bsh.engine;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import bsh.BshClassManager;
+import bsh.ParseException;
+import bsh.ParsedScript;
+
+/**
+ * <p>Title: SourcedScriptCache</p>
+ * <p>Description: The parsed scripts of the BeanShell commands and <code>source()</code>d files loaded at run time, shared by
+ * every engine. BeanShell reads and parses a command script in each namespace that calls the command, and a sourced file
+ * on every call. With this cache each script is parsed once per process, and only evaluated in the calling namespace.</p>
+ * <p>Before a cached script is returned the file it was read from, or the jar holding it, is checked and the script is
+ * parsed again if the file's modification time or length has changed. Scripts read from other kinds of URL are never
+ * parsed again. The cache is enabled by the <b><code>bsh.engine.sourceCache</code></b> system property, true by default.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>bsh.engine.SourcedScriptCache</code></p>
+ */
+class SourcedScriptCache {
+	/** Indicates if commands and sourced files are cached, set by the <b><code>bsh.engine.sourceCache</code></b> system property */
+	static final boolean ENABLED = Boolean.parseBoolean( System.getProperty( BshScriptEngine.SYSPROP_PREFIX + "sourceCache", "true" ) );
+
+	/** The parsed scripts keyed by URL or canonical file path */
+	private static final Map<String, Entry> scripts = new ConcurrentHashMap<String, Entry>();
+
+	private SourcedScriptCache() {}
+
+	/**
+	 * Returns the parsed script of a command resource
+	 * @param classManager The class manager locating the resource
+	 * @param resourcePath The absolute resource path of the command script
+	 * @return the parsed script or null if there is no such resource
+	 * @throws IOException thrown if the resource cannot be read
+	 * @throws ParseException thrown if the script cannot be parsed
+	 */
+	static ParsedScript command( BshClassManager classManager, String resourcePath ) throws IOException, ParseException {
+		URL url = classManager.getResource( resourcePath );
+		if ( url == null )
+			return null;
+		return get( url.toExternalForm(), url, backingFile( url ), resourcePath );
+	}
+
+	/**
+	 * Returns the parsed script of a sourced file
+	 * @param file The canonical file
+	 * @param sourceFileInfo The file name as given to <code>source()</code>, used in error messages
+	 * @return the parsed script
+	 * @throws IOException thrown if the file cannot be read
+	 * @throws ParseException thrown if the script cannot be parsed
+	 */
+	static ParsedScript file( File file, String sourceFileInfo ) throws IOException, ParseException {
+		return get( file.getPath(), null, file, sourceFileInfo );
+	}
+
+	/**
+	 * Returns the number of cached scripts
+	 * @return the number of scripts
+	 */
+	static int size() {
+		return scripts.size();
+	}
+
+	/**
+	 * Discards the cached scripts
+	 */
+	static void clear() {
+		scripts.clear();
+	}
+
+	// Internals only below this point
+
+	/**
+	 * Returns a cached script, parsing it if it is not cached or its file has changed
+	 * @param key The cache key
+	 * @param url The URL to read the script from, or null to read the file
+	 * @param file The file whose changes invalidate the script, or null
+	 * @param sourceFileInfo The source description used in error messages
+	 * @return the parsed script
+	 * @throws IOException thrown if the script cannot be read
+	 * @throws ParseException thrown if the script cannot be parsed
+	 */
+	private static ParsedScript get( String key, URL url, File file, String sourceFileInfo ) throws IOException, ParseException {
+		// the file is checked before it is read, so a change while it is read is seen by the next call
+		long modified = file == null ? 0 : file.lastModified();
+		long length = file == null ? 0 : file.length();
+		Entry entry = scripts.get( key );
+		if ( entry != null && entry.modified == modified && entry.length == length )
+			return entry.script;
+		InputStream in = url != null ? url.openStream() : new FileInputStream( file );
+		ParsedScript script;
+		try {
+			script = ParsedScript.parse( new BufferedReader( new InputStreamReader( in ) ), sourceFileInfo );
+		} finally {
+			in.close();
+		}
+		scripts.put( key, new Entry( script, modified, length ) );
+		return script;
+	}
+
+	/**
+	 * Returns the file a resource is read from
+	 * @param url The resource URL
+	 * @return the file, the jar file of a jar entry, or null if the resource is not read from a local file
+	 */
+	private static File backingFile( URL url ) {
+		try {
+			if ( "jar".equals( url.getProtocol() ) ) {
+				String path = url.getPath();
+				int separator = path.indexOf( "!/" );
+				if ( separator == -1 )
+					return null;
+				url = new URL( path.substring( 0, separator ) );
+			}
+			return "file".equals( url.getProtocol() ) ? new File( url.toURI() ) : null;
+		} catch ( Exception e ) {
+			return null;
+		}
+	}
+
+	/**
+	 * <p>Title: Entry</p>
+	 * <p>Description: A cached script and the state of its file when it was read</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.engine.SourcedScriptCache.Entry</code></p>
+	 */
+	private static final class Entry {
+		/** The parsed script */
+		final ParsedScript script;
+		/** The modification time of the file */
+		final long modified;
+		/** The length of the file */
+		final long length;
+
+		Entry( ParsedScript script, long modified, long length ) {
+			this.script = script;
+			this.modified = modified;
+			this.length = length;
+		}
+	}
+}
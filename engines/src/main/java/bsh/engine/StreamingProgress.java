@@ -0,0 +1,107 @@
+package bsh.engine;
+
+/**
+ * <p>Title: StreamingProgress</p>
+ * <p>Description: The progress of a script evaluated statement by statement by
+ * {@link BshScriptEngine#evalStreaming(java.io.Reader, javax.script.ScriptContext, StreamingProgress.Listener)}</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>bsh.engine.StreamingProgress</code></p>
+ */
+public final class StreamingProgress {
+	/** The number of statements evaluated */
+	private final long statements;
+	/** The number of characters read */
+	private final long characters;
+	/** The elapsed time in nanoseconds */
+	private final long elapsedNanos;
+	/** True if this is the final report */
+	private final boolean complete;
+
+	/**
+	 * <p>Title: Listener</p>
+	 * <p>Description: Receives the progress reports of a streamed script, on the evaluating thread</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.engine.StreamingProgress.Listener</code></p>
+	 */
+	public interface Listener {
+		/**
+		 * Called every {@link BshScriptEngine#STREAMING_PROGRESS_INTERVAL} statements, and once more when the script completes
+		 * @param progress The progress so far
+		 */
+		public void progress( StreamingProgress progress );
+	}
+
+	/**
+	 * Creates a new StreamingProgress
+	 * @param statements The number of statements evaluated
+	 * @param characters The number of characters read
+	 * @param elapsedNanos The elapsed time in nanoseconds
+	 * @param complete True if this is the final report
+	 */
+	StreamingProgress( long statements, long characters, long elapsedNanos, boolean complete ) {
+		this.statements = statements;
+		this.characters = characters;
+		this.elapsedNanos = elapsedNanos;
+		this.complete = complete;
+	}
+
+	/**
+	 * Returns the number of top level statements evaluated
+	 * @return the number of statements
+	 */
+	public long getStatements() {
+		return statements;
+	}
+
+	/**
+	 * Returns the number of characters read from the source, which the parser reads ahead of the statements evaluated
+	 * @return the number of characters
+	 */
+	public long getCharacters() {
+		return characters;
+	}
+
+	/**
+	 * Returns the time elapsed since the evaluation started
+	 * @return the elapsed time in nanoseconds
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * Indicates if the script has completed
+	 * @return true for the final report
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * Returns the number of statements evaluated per second
+	 * @return the statement throughput
+	 */
+	public double getStatementsPerSecond() {
+		return elapsedNanos == 0 ? 0 : statements * 1000000000D / elapsedNanos;
+	}
+
+	/**
+	 * Returns the number of characters read per second
+	 * @return the character throughput
+	 */
+	public double getCharactersPerSecond() {
+		return elapsedNanos == 0 ? 0 : characters * 1000000000D / elapsedNanos;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "StreamingProgress [statements=" + statements + ", characters=" + characters
+			+ ", elapsedMs=" + elapsedNanos / 1000000 + ", complete=" + complete + "]";
+	}
+}
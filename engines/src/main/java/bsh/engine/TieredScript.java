@@ -0,0 +1,246 @@
+package bsh.engine;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.tools.ToolProvider;
+
+import bsh.EvalError;
+import bsh.Interpreter;
+import bsh.JavaTranslation;
+import bsh.NameSpace;
+import bsh.ParsedScript;
+import bsh.ScriptProfiler;
+import bsh.TranslatedScript;
+
+import com.sun.script.java.JavaCompiler;
+import com.sun.script.java.MemoryClassLoader;
+
+/**
+ * <p>Title: TieredScript</p>
+ * <p>Description: A parsed script which counts its executions and, once it has run a threshold number of times, is
+ * translated to Java by {@link JavaTranslation}, compiled in memory and run as bytecode from then on.
+ * Scripts outside of the translatable subset, or which fail to compile, stay interpreted, and so does any execution
+ * in which the variables the script reads have other types than when it was translated.</p>
+ * <p>The translation is made and compiled by the thread whose execution reaches the threshold, while other threads
+ * carry on interpreting the script.</p>
+ * <p>The primitive entry points return the value of a compiled script unboxed when every path of the script returns the
+ * same primitive type, and otherwise convert the value the script returns.</p>
+ * <p>Profiled scripts are always interpreted, so that their profile describes the script as written.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>bsh.engine.TieredScript</code></p>
+ */
+class TieredScript {
+	/** The serial number of the generated classes */
+	private static final AtomicInteger serial = new AtomicInteger();
+
+	/** The parsed script */
+	private final ParsedScript parsed;
+	/** The profiler of the instrumented script, or null */
+	private final ScriptProfiler profiler;
+	/** The number of executions */
+	private final AtomicInteger executions = new AtomicInteger();
+	/** The translation, set before {@link #compiled} */
+	private volatile JavaTranslation translation = null;
+	/** The compiled translation, or null while the script is interpreted */
+	private volatile TranslatedScript compiled = null;
+
+	/**
+	 * Creates a new TieredScript
+	 * @param parsed The parsed script
+	 */
+	TieredScript( ParsedScript parsed ) {
+		this( parsed, null );
+	}
+
+	/**
+	 * Creates a new TieredScript
+	 * @param parsed The parsed script
+	 * @param profiler The profiler the script was instrumented by, or null
+	 */
+	TieredScript( ParsedScript parsed, ScriptProfiler profiler ) {
+		this.parsed = parsed;
+		this.profiler = profiler;
+	}
+
+	/**
+	 * Evaluates the script
+	 * @param interpreter The interpreter supplying the output streams and class manager
+	 * @param nameSpace The namespace to evaluate in
+	 * @param threshold The number of executions after which the script is compiled, or zero to only interpret it
+	 * @return the value of the script
+	 * @throws EvalError thrown if the script fails
+	 */
+	Object eval( Interpreter interpreter, NameSpace nameSpace, int threshold ) throws EvalError {
+		return eval( executable( nameSpace, threshold ), interpreter, nameSpace );
+	}
+
+	/**
+	 * Evaluates a script with a numeric value
+	 * @param interpreter The interpreter supplying the output streams and class manager
+	 * @param nameSpace The namespace to evaluate in
+	 * @param threshold The number of executions after which the script is compiled, or zero to only interpret it
+	 * @return the value of the script, converted as by a Java cast
+	 * @throws EvalError thrown if the script fails or its value is not a number
+	 */
+	long evalLong( Interpreter interpreter, NameSpace nameSpace, int threshold ) throws EvalError {
+		TranslatedScript script = executable( nameSpace, threshold );
+		if ( script instanceof TranslatedScript.Typed && translation.getResultType() != Boolean.TYPE ) {
+			Object[] in = translation.read( nameSpace );
+			if ( in != null )
+				return translation.runLong( (TranslatedScript.Typed)script, in, nameSpace );
+		}
+		return number( eval( script, interpreter, nameSpace ) ).longValue();
+	}
+
+	/**
+	 * Evaluates a script with a numeric value
+	 * @param interpreter The interpreter supplying the output streams and class manager
+	 * @param nameSpace The namespace to evaluate in
+	 * @param threshold The number of executions after which the script is compiled, or zero to only interpret it
+	 * @return the value of the script, converted as by a Java cast
+	 * @throws EvalError thrown if the script fails or its value is not a number
+	 */
+	double evalDouble( Interpreter interpreter, NameSpace nameSpace, int threshold ) throws EvalError {
+		TranslatedScript script = executable( nameSpace, threshold );
+		if ( script instanceof TranslatedScript.Typed && translation.getResultType() != Boolean.TYPE ) {
+			Object[] in = translation.read( nameSpace );
+			if ( in != null )
+				return translation.runDouble( (TranslatedScript.Typed)script, in, nameSpace );
+		}
+		return number( eval( script, interpreter, nameSpace ) ).doubleValue();
+	}
+
+	/**
+	 * Evaluates a script with a boolean value
+	 * @param interpreter The interpreter supplying the output streams and class manager
+	 * @param nameSpace The namespace to evaluate in
+	 * @param threshold The number of executions after which the script is compiled, or zero to only interpret it
+	 * @return the value of the script
+	 * @throws EvalError thrown if the script fails or its value is not a boolean
+	 */
+	boolean evalBoolean( Interpreter interpreter, NameSpace nameSpace, int threshold ) throws EvalError {
+		TranslatedScript script = executable( nameSpace, threshold );
+		if ( script instanceof TranslatedScript.Typed && translation.getResultType() == Boolean.TYPE ) {
+			Object[] in = translation.read( nameSpace );
+			if ( in != null )
+				return translation.runBoolean( (TranslatedScript.Typed)script, in, nameSpace );
+		}
+		Object value = eval( script, interpreter, nameSpace );
+		if ( !(value instanceof Boolean) )
+			throw new EvalError( "The value of " + parsed.getSourceFileInfo() + " is not a boolean: " + value, null, null );
+		return ((Boolean)value).booleanValue();
+	}
+
+	/**
+	 * Indicates if the script runs as bytecode
+	 * @return true if the script has been compiled
+	 */
+	boolean isCompiled() {
+		return compiled != null;
+	}
+
+	/**
+	 * Returns the parsed script
+	 * @return the parsed script
+	 */
+	ParsedScript getParsedScript() {
+		return parsed;
+	}
+
+	/**
+	 * Returns the profiler of the script
+	 * @return the profiler, or null if the script is not profiled
+	 */
+	ScriptProfiler getProfiler() {
+		return profiler;
+	}
+
+	// Internals only below this point
+
+	/**
+	 * Counts an execution, compiling the script when it reaches the threshold
+	 * @param nameSpace The namespace the script is about to run in
+	 * @param threshold The number of executions after which the script is compiled, or zero to only interpret it
+	 * @return the compiled script or null if the script is interpreted
+	 */
+	private TranslatedScript executable( NameSpace nameSpace, int threshold ) {
+		TranslatedScript script = compiled;
+		if ( script == null && threshold > 0 && profiler == null && executions.incrementAndGet() == threshold )
+			script = compile( nameSpace );
+		return script;
+	}
+
+	private Object eval( TranslatedScript script, Interpreter interpreter, NameSpace nameSpace ) throws EvalError {
+		if ( script != null ) {
+			Object result = translation.run( script, nameSpace );
+			if ( result != JavaTranslation.INAPPLICABLE )
+				return result;
+		}
+		return parsed.eval( interpreter, nameSpace );
+	}
+
+	private Number number( Object value ) throws EvalError {
+		if ( value instanceof Number )
+			return (Number)value;
+		if ( value instanceof Character )
+			return Integer.valueOf( ((Character)value).charValue() );
+		throw new EvalError( "The value of " + parsed.getSourceFileInfo() + " is not a number: " + value, null, null );
+	}
+
+	/**
+	 * Translates and compiles the script
+	 * @param nameSpace The namespace the script is about to run in
+	 * @return the compiled script or null if the script stays interpreted
+	 */
+	private TranslatedScript compile( NameSpace nameSpace ) {
+		JavaCompiler compiler = Compiler.INSTANCE;
+		if ( compiler == null )
+			return null;
+		JavaTranslation javaTranslation = JavaTranslation.translate( parsed, nameSpace, "BshTieredScript" + serial.incrementAndGet() );
+		if ( javaTranslation == null )
+			return null;
+		StringWriter errors = new StringWriter();
+		Map<String, byte[]> classBytes = compiler.compile( javaTranslation.getClassName() + ".java", javaTranslation.getSource(),
+			errors, null, Compiler.CLASS_PATH );
+		if ( classBytes == null )
+			// the diagnostics are dropped, the script is still correct when interpreted
+			return null;
+		try {
+			MemoryClassLoader loader = new MemoryClassLoader( classBytes, null, TranslatedScript.class.getClassLoader() );
+			TranslatedScript script = (TranslatedScript)loader.load( javaTranslation.getClassName() ).getDeclaredConstructor().newInstance();
+			translation = javaTranslation;
+			compiled = script;
+			return script;
+		} catch ( Exception e ) {
+			return null;
+		}
+	}
+
+	/**
+	 * <p>Title: Compiler</p>
+	 * <p>Description: Holds the compiler, created on first use, or null if the runtime has no system Java compiler</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.engine.TieredScript.Compiler</code></p>
+	 */
+	private static final class Compiler {
+		/** The compiler */
+		static final JavaCompiler INSTANCE = ToolProvider.getSystemJavaCompiler() == null ? null : new JavaCompiler();
+		/** The class path of the compilations, which must reach {@link TranslatedScript} */
+		static final String CLASS_PATH = classPath();
+
+		private static String classPath() {
+			String classPath = System.getProperty( "java.class.path" );
+			try {
+				String location = new File( TranslatedScript.class.getProtectionDomain().getCodeSource().getLocation().toURI() ).getPath();
+				return classPath == null || classPath.length() == 0 ? location : location + File.pathSeparator + classPath;
+			} catch ( Exception e ) {
+				return classPath;
+			}
+		}
+	}
+}
@@ -0,0 +1,375 @@
+package bsh.engine;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.script.Bindings;
+
+/**
+ * <p>Title: VersionedBindings</p>
+ * <p>Description: A {@link Bindings} implementation which counts its mutations, so that a {@link ScriptContextEngineView}
+ * can tell whether the name lookups it has cached from these bindings are still current.
+ * Returned by {@link BshScriptEngine#createBindings()} and used for the engine scope of the engine's default context.</p>
+ * <p>The key, value and entry views are live, as those of <code>SimpleBindings</code>, and their removals and
+ * <code>setValue</code> advance the version like the methods of the bindings.
+ * Like <code>SimpleBindings</code>, this class is not synchronized.</p>
+ * <p>Bindings can be layered copy-on-write over a read only base map, as the bindings of a context forked from a
+ * {@link NameSpaceSnapshot} are. Reads fall through to the base, while puts and removes only touch the overlay.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>bsh.engine.VersionedBindings</code></p>
+ */
+public class VersionedBindings implements Bindings {
+	/** The bindings, or the overlay of the base bindings */
+	private final Map<String, Object> map;
+	/** The read only base bindings, or null */
+	private final Map<String, Object> base;
+	/** The names of base bindings removed from these bindings, or null */
+	private Set<String> removed = null;
+	/** The mutation count */
+	private volatile long version = 0;
+
+	/**
+	 * Creates a new empty VersionedBindings
+	 */
+	public VersionedBindings() {
+		this.map = new HashMap<String, Object>();
+		this.base = null;
+	}
+
+	/**
+	 * Creates a new VersionedBindings holding a copy of the passed bindings
+	 * @param bindings The initial bindings
+	 */
+	public VersionedBindings( Map<String, Object> bindings ) {
+		this();
+		putAll( bindings );
+	}
+
+	/**
+	 * Creates new VersionedBindings layered over read only base bindings, which are shared, not copied.
+	 * The base must not change while the returned bindings are in use.
+	 * @param base The base bindings
+	 * @return the copy-on-write bindings
+	 */
+	static VersionedBindings overlay( Map<String, Object> base ) {
+		return new VersionedBindings( base, new HashMap<String, Object>() );
+	}
+
+	private VersionedBindings( Map<String, Object> base, Map<String, Object> overlay ) {
+		this.map = overlay;
+		this.base = base;
+	}
+
+	/**
+	 * Returns the mutation count of these bindings, which changes whenever a binding is added, replaced or removed
+	 * @return the current version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see javax.script.Bindings#put(java.lang.String, java.lang.Object)
+	 */
+	@Override
+	public Object put( String name, Object value ) {
+		checkKey( name );
+		Object old = base == null ? map.put( name, value ) : overlayPut( name, value );
+		version++;
+		return old;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see javax.script.Bindings#putAll(java.util.Map)
+	 */
+	@Override
+	public void putAll( Map<? extends String, ? extends Object> toMerge ) {
+		if ( toMerge == null ) throw new NullPointerException( "toMerge map is null" );
+		for ( Map.Entry<? extends String, ? extends Object> entry : toMerge.entrySet() ) {
+			checkKey( entry.getKey() );
+		}
+		if ( base == null ) {
+			map.putAll( toMerge );
+		} else {
+			for ( Map.Entry<? extends String, ? extends Object> entry : toMerge.entrySet() )
+				overlayPut( entry.getKey(), entry.getValue() );
+		}
+		version++;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see javax.script.Bindings#remove(java.lang.Object)
+	 */
+	@Override
+	public Object remove( Object key ) {
+		checkKey( key );
+		Object old = get( key );
+		map.remove( key );
+		if ( base != null && base.containsKey( key ) ) {
+			if ( removed == null ) removed = new HashSet<String>();
+			removed.add( (String)key );
+		}
+		version++;
+		return old;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.util.Map#clear()
+	 */
+	@Override
+	public void clear() {
+		map.clear();
+		if ( base != null ) {
+			if ( removed == null ) removed = new HashSet<String>();
+			removed.addAll( base.keySet() );
+		}
+		version++;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see javax.script.Bindings#get(java.lang.Object)
+	 */
+	@Override
+	public Object get( Object key ) {
+		checkKey( key );
+		Object value = map.get( key );
+		if ( value != null || base == null || map.containsKey( key ) )
+			return value;
+		return inBase( key ) ? base.get( key ) : null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see javax.script.Bindings#containsKey(java.lang.Object)
+	 */
+	@Override
+	public boolean containsKey( Object key ) {
+		checkKey( key );
+		return map.containsKey( key ) || inBase( key );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.util.Map#containsValue(java.lang.Object)
+	 */
+	@Override
+	public boolean containsValue( Object value ) {
+		return effective().containsValue( value );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.util.Map#size()
+	 */
+	@Override
+	public int size() {
+		return effective().size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.util.Map#isEmpty()
+	 */
+	@Override
+	public boolean isEmpty() {
+		return effective().isEmpty();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.util.Map#keySet()
+	 */
+	@Override
+	public Set<String> keySet() {
+		return new AbstractSet<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				final Iterator<Map.Entry<String, Object>> entries = new EntryIterator();
+				return new Iterator<String>() {
+					public boolean hasNext() { return entries.hasNext(); }
+					public String next() { return entries.next().getKey(); }
+					public void remove() { entries.remove(); }
+				};
+			}
+
+			@Override
+			public int size() {
+				return VersionedBindings.this.size();
+			}
+
+			@Override
+			public boolean contains( Object o ) {
+				return isKey( o ) && containsKey( o );
+			}
+
+			@Override
+			public boolean remove( Object o ) {
+				if ( !contains( o ) )
+					return false;
+				VersionedBindings.this.remove( o );
+				return true;
+			}
+
+			@Override
+			public void clear() {
+				VersionedBindings.this.clear();
+			}
+		};
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.util.Map#values()
+	 */
+	@Override
+	public Collection<Object> values() {
+		return new AbstractCollection<Object>() {
+			@Override
+			public Iterator<Object> iterator() {
+				final Iterator<Map.Entry<String, Object>> entries = new EntryIterator();
+				return new Iterator<Object>() {
+					public boolean hasNext() { return entries.hasNext(); }
+					public Object next() { return entries.next().getValue(); }
+					public void remove() { entries.remove(); }
+				};
+			}
+
+			@Override
+			public int size() {
+				return VersionedBindings.this.size();
+			}
+
+			@Override
+			public void clear() {
+				VersionedBindings.this.clear();
+			}
+		};
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.util.Map#entrySet()
+	 */
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return VersionedBindings.this.size();
+			}
+
+			@Override
+			public void clear() {
+				VersionedBindings.this.clear();
+			}
+		};
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "VersionedBindings [version=" + version + ", " + effective() + "]";
+	}
+
+	// Internals only below this point
+
+	private boolean inBase( Object key ) {
+		return base != null && base.containsKey( key ) && (removed == null || !removed.contains( key ));
+	}
+
+	private Object overlayPut( String name, Object value ) {
+		Object old = get( name );
+		map.put( name, value );
+		if ( removed != null )
+			removed.remove( name );
+		return old;
+	}
+
+	/**
+	 * Returns the bindings as one map, merging the overlay with the base
+	 * @return the effective bindings
+	 */
+	private Map<String, Object> effective() {
+		if ( base == null )
+			return map;
+		Map<String, Object> merged = new HashMap<String, Object>( base );
+		if ( removed != null )
+			merged.keySet().removeAll( removed );
+		merged.putAll( map );
+		return merged;
+	}
+
+	private static boolean isKey( Object o ) {
+		return o instanceof String && ((String)o).length() > 0;
+	}
+
+	private static void checkKey( Object key ) {
+		if ( key == null ) throw new NullPointerException( "key can not be null" );
+		if ( !(key instanceof String) ) throw new ClassCastException( "key should be a String" );
+		if ( ((String)key).length() == 0 ) throw new IllegalArgumentException( "key can not be empty" );
+	}
+
+	/**
+	 * <p>Title: EntryIterator</p>
+	 * <p>Description: Iterates the bindings, directly or over a copy of the merged overlay and base, removing and
+	 * replacing through the bindings so that the version advances</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.engine.VersionedBindings.EntryIterator</code></p>
+	 */
+	private final class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+		private final Iterator<Map.Entry<String, Object>> entries = base == null ? map.entrySet().iterator()
+			: new ArrayList<Map.Entry<String, Object>>( effective().entrySet() ).iterator();
+		private Map.Entry<String, Object> last = null;
+
+		public boolean hasNext() {
+			return entries.hasNext();
+		}
+
+		@SuppressWarnings("serial")
+		public Map.Entry<String, Object> next() {
+			last = entries.next();
+			return new AbstractMap.SimpleEntry<String, Object>( last ) {
+				@Override
+				public Object setValue( Object value ) {
+					put( getKey(), value );
+					return super.setValue( value );
+				}
+			};
+		}
+
+		public void remove() {
+			if ( last == null )
+				throw new IllegalStateException();
+			if ( base == null ) {
+				entries.remove();
+				version++;
+			} else {
+				VersionedBindings.this.remove( last.getKey() );
+			}
+			last = null;
+		}
+	}
+}
@@ -0,0 +1,384 @@
+package bsh.engine;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * <p>Title: WriterPrintStream</p>
+ * <p>Description: A buffered {@link PrintStream} over a script context {@link Writer}, used as the BeanShell interpreter's
+ * out and err streams. Printed text goes straight into a character buffer without being encoded to bytes, and raw bytes
+ * written to the stream are decoded with the stream's charset, keeping multi-byte sequences split across writes intact.
+ * The buffer is drained to the writer when full and on {@link #flush()}, which the engine calls at the end of every eval.</p>
+ * <p>The engine keeps one stream per writer per interpreter and reuses it for as long as the context's writer is unchanged.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>bsh.engine.WriterPrintStream</code></p>
+ */
+public class WriterPrintStream extends PrintStream {
+	/** The default buffer size in chars */
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+	/** The line separator */
+	private static final String LINE_SEPARATOR = System.getProperty( "line.separator" );
+
+	/** The target writer */
+	private final Writer writer;
+	/** The character buffer */
+	private final char[] buffer;
+	/** The number of buffered chars */
+	private int count = 0;
+	/** Decodes bytes written to the stream */
+	private final CharsetDecoder decoder;
+	/** The trailing bytes of an incomplete multi-byte sequence */
+	private ByteBuffer pending = null;
+
+	/**
+	 * Creates a new WriterPrintStream using the default charset to decode bytes
+	 * @param writer The target writer
+	 */
+	public WriterPrintStream( Writer writer ) {
+		this( writer, Charset.defaultCharset(), DEFAULT_BUFFER_SIZE );
+	}
+
+	/**
+	 * Creates a new WriterPrintStream
+	 * @param writer The target writer
+	 * @param charset The charset used to decode bytes written to the stream
+	 * @param bufferSize The buffer size in chars
+	 */
+	public WriterPrintStream( Writer writer, Charset charset, int bufferSize ) {
+		// every char path is overridden, so the superclass never encodes anything itself
+		super( new ByteSink(), false );
+		if ( charset == null ) throw new IllegalArgumentException( "Passed charset was null", new Throwable() );
+		if ( writer == null ) throw new IllegalArgumentException( "Passed writer was null", new Throwable() );
+		if ( bufferSize < 1 ) throw new IllegalArgumentException( "Invalid buffer size " + bufferSize, new Throwable() );
+		this.writer = writer;
+		this.buffer = new char[bufferSize];
+		this.decoder = charset.newDecoder()
+			.onMalformedInput( CodingErrorAction.REPLACE )
+			.onUnmappableCharacter( CodingErrorAction.REPLACE );
+		((ByteSink)out).owner = this;
+	}
+
+	/**
+	 * Returns the target writer
+	 * @return the target writer
+	 */
+	public Writer getWriter() {
+		return writer;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#flush()
+	 */
+	@Override
+	public synchronized void flush() {
+		try {
+			drain();
+			writer.flush();
+		} catch ( IOException e ) {
+			setError();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#close()
+	 */
+	@Override
+	public synchronized void close() {
+		try {
+			drain();
+			writer.close();
+		} catch ( IOException e ) {
+			setError();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#print(java.lang.String)
+	 */
+	@Override
+	public synchronized void print( String s ) {
+		append( s == null ? "null" : s );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#print(char)
+	 */
+	@Override
+	public synchronized void print( char c ) {
+		if ( count == buffer.length ) drainQuietly();
+		buffer[count++] = c;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#print(char[])
+	 */
+	@Override
+	public synchronized void print( char[] s ) {
+		append( s, 0, s.length );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#print(boolean)
+	 */
+	@Override
+	public void print( boolean b ) {
+		print( String.valueOf( b ) );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#print(int)
+	 */
+	@Override
+	public void print( int i ) {
+		print( String.valueOf( i ) );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#print(long)
+	 */
+	@Override
+	public void print( long l ) {
+		print( String.valueOf( l ) );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#print(float)
+	 */
+	@Override
+	public void print( float f ) {
+		print( String.valueOf( f ) );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#print(double)
+	 */
+	@Override
+	public void print( double d ) {
+		print( String.valueOf( d ) );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#print(java.lang.Object)
+	 */
+	@Override
+	public void print( Object obj ) {
+		print( String.valueOf( obj ) );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#println()
+	 */
+	@Override
+	public synchronized void println() {
+		append( LINE_SEPARATOR );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#println(java.lang.String)
+	 */
+	@Override
+	public synchronized void println( String s ) {
+		print( s );
+		append( LINE_SEPARATOR );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#println(char)
+	 */
+	@Override
+	public synchronized void println( char c ) {
+		print( c );
+		append( LINE_SEPARATOR );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#println(char[])
+	 */
+	@Override
+	public synchronized void println( char[] s ) {
+		print( s );
+		append( LINE_SEPARATOR );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#println(boolean)
+	 */
+	@Override
+	public void println( boolean b ) {
+		println( String.valueOf( b ) );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#println(int)
+	 */
+	@Override
+	public void println( int i ) {
+		println( String.valueOf( i ) );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#println(long)
+	 */
+	@Override
+	public void println( long l ) {
+		println( String.valueOf( l ) );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#println(float)
+	 */
+	@Override
+	public void println( float f ) {
+		println( String.valueOf( f ) );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#println(double)
+	 */
+	@Override
+	public void println( double d ) {
+		println( String.valueOf( d ) );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#println(java.lang.Object)
+	 */
+	@Override
+	public void println( Object obj ) {
+		println( String.valueOf( obj ) );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#write(int)
+	 */
+	@Override
+	public synchronized void write( int b ) {
+		decode( new byte[] { (byte)b }, 0, 1 );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#write(byte[], int, int)
+	 */
+	@Override
+	public synchronized void write( byte[] buf, int off, int len ) {
+		decode( buf, off, len );
+	}
+
+	// Internals only below this point
+
+	private void append( String s ) {
+		int len = s.length();
+		int off = 0;
+		while ( off < len ) {
+			if ( count == buffer.length ) drainQuietly();
+			int n = Math.min( len - off, buffer.length - count );
+			s.getChars( off, off + n, buffer, count );
+			count += n;
+			off += n;
+		}
+	}
+
+	private void append( char[] s, int off, int len ) {
+		int end = off + len;
+		while ( off < end ) {
+			if ( count == buffer.length ) drainQuietly();
+			int n = Math.min( end - off, buffer.length - count );
+			System.arraycopy( s, off, buffer, count, n );
+			count += n;
+			off += n;
+		}
+	}
+
+	private void decode( byte[] buf, int off, int len ) {
+		ByteBuffer in;
+		if ( pending == null ) {
+			in = ByteBuffer.wrap( buf, off, len );
+		} else {
+			in = ByteBuffer.allocate( pending.remaining() + len );
+			in.put( pending ).put( buf, off, len ).flip();
+			pending = null;
+		}
+		while ( true ) {
+			if ( count == buffer.length ) drainQuietly();
+			CharBuffer chars = CharBuffer.wrap( buffer, count, buffer.length - count );
+			CoderResult result = decoder.decode( in, chars, false );
+			count = chars.position();
+			if ( !result.isOverflow() ) break;
+		}
+		if ( in.hasRemaining() ) {
+			// an incomplete multi-byte sequence, completed by the next write
+			pending = ByteBuffer.allocate( in.remaining() );
+			pending.put( in ).flip();
+		}
+	}
+
+	private void drain() throws IOException {
+		if ( count > 0 ) {
+			writer.write( buffer, 0, count );
+			count = 0;
+		}
+	}
+
+	private void drainQuietly() {
+		try {
+			drain();
+		} catch ( IOException e ) {
+			count = 0;
+			setError();
+		}
+	}
+
+	/**
+	 * <p>Title: ByteSink</p>
+	 * <p>Description: The underlying stream of the print stream, which routes any bytes that reach it into the decoder</p>
+	 * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+	 * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+	 * <p><code>bsh.engine.WriterPrintStream.ByteSink</code></p>
+	 */
+	private static class ByteSink extends OutputStream {
+		/** The owning print stream */
+		WriterPrintStream owner;
+
+		@Override
+		public void write( int b ) {
+			owner.write( b );
+		}
+
+		@Override
+		public void write( byte[] b, int off, int len ) {
+			owner.write( b, off, len );
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package com.sun.script.java;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.script.ScriptException;
+
+/**
+ * <p>Title: CompilationFailureCache</p>
+ * <p>Description: Remembers failed compilations so that repeatedly evaluating a broken script
+ * re-reports the original diagnostics, and rethrows the original exception, without running javac again.
+ * Failures are keyed by a digest of the source, the file name, the compiler options and the in-memory classes.
+ * A failure also records a fingerprint of the source path and class path entries (path, last modified time and length,
+ * and for a directory the number, total length and latest modification of the entries directly in it), taken when it
+ * is stored and checked when it is found again, so fixing a jar or a top-level file on either path invalidates it.
+ * Changes deeper in a directory are picked up when the failure expires. Failures expire after a TTL, set in ms by the
+ * <b><code>com.sun.script.java.failureCacheTtl</code></b> system property (default 60000, 0 disables the cache).</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>com.sun.script.java.CompilationFailureCache</code></p>
+ */
+public class CompilationFailureCache {
+    /** The default time to live of a failure in ms */
+    public static final long DEFAULT_TTL = 60000;
+    /** The maximum number of failures retained */
+    private static final int MAX_SIZE = 256;
+
+    /** The time to live of a failure in ms */
+    private final long ttl;
+    /** The hit count */
+    private final AtomicLong hits = new AtomicLong();
+    /** The failures keyed by compilation key */
+    private final Map<String, Failure> failures = Collections.synchronizedMap(
+        new LinkedHashMap<String, Failure>(16, 0.75f, true) {
+            private static final long serialVersionUID = 6386346468407342208L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Failure> eldest) {
+                return size() > MAX_SIZE;
+            }
+        });
+
+    /**
+     * <p>Title: Failure</p>
+     * <p>Description: A remembered failure, the diagnostics of the compiler and the exception reporting them</p>
+     * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+     * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+     * <p><code>com.sun.script.java.CompilationFailureCache.Failure</code></p>
+     */
+    public static final class Failure {
+        /** The diagnostics reported by the compiler */
+        public final String diagnostics;
+        /** The exception thrown by the failed compilation */
+        public final ScriptException exception;
+        /** The fingerprint of the source path and class path when the compilation failed */
+        final String paths;
+        /** The expiry time in ms */
+        final long expires;
+
+        Failure(String diagnostics, ScriptException exception, String paths, long expires) {
+            this.diagnostics = diagnostics;
+            this.exception = exception;
+            this.paths = paths;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Creates a new CompilationFailureCache with the TTL from the system properties
+     */
+    public CompilationFailureCache() {
+        this(Long.getLong("com.sun.script.java.failureCacheTtl", DEFAULT_TTL));
+    }
+
+    /**
+     * Creates a new CompilationFailureCache
+     * @param ttl The time to live of a failure in ms, 0 disables the cache
+     */
+    public CompilationFailureCache(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Returns a remembered failure
+     * @param key The compilation key
+     * @param sourcePath The source path, may be null
+     * @param classPath The class path, may be null
+     * @return the failure or null if the compilation has not failed within the TTL or either path has changed since
+     */
+    public Failure get(String key, String sourcePath, String classPath) {
+        if (ttl <= 0) {
+            return null;
+        }
+        Failure failure = failures.get(key);
+        if (failure == null) {
+            return null;
+        }
+        if (failure.expires < System.currentTimeMillis()) {
+            failures.remove(key);
+            return null;
+        }
+        if (!failure.paths.equals(fingerprint(sourcePath, classPath))) {
+            failures.remove(key);
+            return null;
+        }
+        hits.incrementAndGet();
+        return failure;
+    }
+
+    /**
+     * Remembers a failure
+     * @param key The compilation key
+     * @param sourcePath The source path, may be null
+     * @param classPath The class path, may be null
+     * @param diagnostics The diagnostics reported by the compiler
+     * @param exception The exception thrown by the failed compilation
+     */
+    public void put(String key, String sourcePath, String classPath, String diagnostics, ScriptException exception) {
+        if (ttl > 0) {
+            failures.put(key, new Failure(diagnostics, exception, fingerprint(sourcePath, classPath),
+                                          System.currentTimeMillis() + ttl));
+        }
+    }
+
+    /**
+     * Forgets the failures of the passed source, under any options or paths
+     * @param source The source that failed to compile
+     */
+    public void invalidate(String source) {
+        String prefix = digest(source) + '|';
+        synchronized (failures) {
+            for (Iterator<String> keys = failures.keySet().iterator(); keys.hasNext();) {
+                if (keys.next().startsWith(prefix)) {
+                    keys.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets all failures
+     */
+    public void invalidateAll() {
+        failures.clear();
+    }
+
+    /**
+     * Returns the number of remembered failures, including expired ones not yet purged
+     * @return the number of remembered failures
+     */
+    public int size() {
+        return failures.size();
+    }
+
+    /**
+     * Returns the number of compilations answered from this cache
+     * @return the hit count
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Computes the key of a compilation, without touching the file system
+     * @param fileName The file name
+     * @param source The source
+     * @param options The compiler options, including the paths
+     * @param classPathBytes The in-memory classes available to the compilation, may be null
+     * @return the compilation key
+     */
+    public String key(String fileName, String source, List<String> options, Map<String, byte[]> classPathBytes) {
+        StringBuilder key = new StringBuilder(digest(source)).append('|').append(fileName).append('|');
+        key.append(options);
+        if (classPathBytes != null) {
+            key.append('|');
+            for (Map.Entry<String, byte[]> entry : new TreeMap<String, byte[]>(classPathBytes).entrySet()) {
+                key.append(entry.getKey()).append(':').append(entry.getValue().length).append(',');
+            }
+        }
+        return key.toString();
+    }
+
+    // Internals only below this point
+
+    private static String fingerprint(String sourcePath, String classPath) {
+        StringBuilder paths = new StringBuilder();
+        fingerprint(sourcePath, paths);
+        paths.append('|');
+        fingerprint(classPath, paths);
+        return paths.toString();
+    }
+
+    private static void fingerprint(String path, StringBuilder paths) {
+        if (path == null) {
+            return;
+        }
+        StringTokenizer st = new StringTokenizer(path, File.pathSeparator);
+        while (st.hasMoreTokens()) {
+            File file = new File(st.nextToken());
+            paths.append(file.getPath()).append(':').append(file.lastModified())
+                 .append(':').append(file.length());
+            File[] entries = file.listFiles();
+            if (entries != null) {
+                // rewriting a file in a directory does not touch the directory itself
+                long count = 0, length = 0, modified = 0;
+                for (File entry : entries) {
+                    count++;
+                    length += entry.length();
+                    modified = Math.max(modified, entry.lastModified());
+                }
+                paths.append(':').append(count).append(':').append(length).append(':').append(modified);
+            }
+            paths.append(';');
+        }
+    }
+
+    private static String digest(String source) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(source.getBytes("UTF-8"));
+            StringBuilder b = new StringBuilder(hash.length * 2);
+            for (byte h : hash) {
+                b.append(Character.forDigit((h >> 4) & 0xF, 16)).append(Character.forDigit(h & 0xF, 16));
+            }
+            return b.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        } catch (UnsupportedEncodingException uee) {
+            throw new IllegalStateException(uee);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.sun.script.java;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * <p>Title: DoubleKernel</p>
+ * <p>Description: A numeric expression over named double variables compiled into a loop over primitive arrays,
+ * as created by {@link JavaScriptEngine#compileKernel(String, String...)}. Element <code>i</code> of the output is the
+ * value of the expression with each variable bound to element <code>i</code> of its input array.
+ * The generated loop has no boxing, bindings or calls per element, so the JIT can unroll and vectorize it.</p>
+ * <p>Kernels are stateless and can be applied by any number of threads at once.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>com.sun.script.java.DoubleKernel</code></p>
+ */
+public abstract class DoubleKernel {
+    /** The variable names, in input array order */
+    private final String[] variables;
+    /** The expression source */
+    private final String expression;
+
+    /**
+     * Creates a new DoubleKernel
+     * @param expression The expression source
+     * @param variables The variable names, in input array order
+     */
+    protected DoubleKernel(String expression, String[] variables) {
+        this.expression = expression;
+        this.variables = variables.clone();
+    }
+
+    /**
+     * Computes the kernel over a range of elements. Implemented by the generated class.
+     * @param in The input arrays, one per variable
+     * @param out The output array
+     * @param from The first element index, inclusive
+     * @param to The last element index, exclusive
+     */
+    protected abstract void applyRange(double[][] in, double[] out, int from, int to);
+
+    /**
+     * Computes the kernel over whole arrays
+     * @param in The input arrays, one per variable, all the same length
+     * @return a new output array
+     */
+    public double[] apply(double[]... in) {
+        double[] out = new double[in.length == 0 ? 0 : in[0].length];
+        apply(in, out);
+        return out;
+    }
+
+    /**
+     * Computes the kernel over whole arrays into an existing output array
+     * @param in The input arrays, one per variable, each at least as long as the output
+     * @param out The output array
+     */
+    public void apply(double[][] in, double[] out) {
+        checkArrays(in, out);
+        applyRange(in, out, 0, out.length);
+    }
+
+    /**
+     * Computes the kernel over whole arrays, splitting the work into chunks run on the passed executor.
+     * A <code>ForkJoinPool</code> is a good choice on Java 7 and later.
+     * Arrays no longer than a chunk are computed on the calling thread.
+     * @param in The input arrays, one per variable, each at least as long as the output
+     * @param out The output array
+     * @param executor The executor to run the chunks on
+     * @param chunkSize The number of elements per chunk
+     */
+    public void apply(final double[][] in, final double[] out, ExecutorService executor, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        }
+        checkArrays(in, out);
+        if (out.length <= chunkSize) {
+            applyRange(in, out, 0, out.length);
+            return;
+        }
+        List<Future<?>> chunks = new ArrayList<Future<?>>(out.length / chunkSize + 1);
+        for (int from = 0; from < out.length; from += chunkSize) {
+            final int start = from;
+            final int end = (int)Math.min((long)from + chunkSize, out.length);
+            chunks.add(executor.submit(new Callable<Void>() {
+                public Void call() {
+                    applyRange(in, out, start, end);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<?> chunk : chunks) {
+                chunk.get();
+            }
+        } catch (InterruptedException ie) {
+            for (Future<?> chunk : chunks) {
+                chunk.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while applying kernel", ie);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Returns the variable names, in input array order
+     * @return the variable names
+     */
+    public String[] getVariables() {
+        return variables.clone();
+    }
+
+    /**
+     * Returns the expression source
+     * @return the expression source
+     */
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder("DoubleKernel [(");
+        for (int i = 0; i < variables.length; i++) {
+            if (i > 0) b.append(", ");
+            b.append(variables[i]);
+        }
+        return b.append(") -> ").append(expression).append("]").toString();
+    }
+
+    // Internals only below this point
+
+    private void checkArrays(double[][] in, double[] out) {
+        if (in.length != variables.length) {
+            throw new IllegalArgumentException("Expected " + variables.length + " input arrays but got " + in.length);
+        }
+        for (int i = 0; i < in.length; i++) {
+            if (in[i].length < out.length) {
+                throw new IllegalArgumentException("Input array for [" + variables[i] + "] is shorter than the output");
+            }
+        }
+    }
+}
@@ -0,0 +1,749 @@
+package com.sun.script.java;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.script.ScriptContext;
+import javax.script.ScriptException;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.ArrayType;
+import org.apache.bcel.generic.BranchInstruction;
+import org.apache.bcel.generic.ClassGen;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.InstructionConstants;
+import org.apache.bcel.generic.InstructionFactory;
+import org.apache.bcel.generic.InstructionHandle;
+import org.apache.bcel.generic.InstructionList;
+import org.apache.bcel.generic.MethodGen;
+import org.apache.bcel.generic.ObjectType;
+import org.apache.bcel.generic.PUSH;
+import org.apache.bcel.generic.Type;
+
+import com.sun.script.java.ExpressionParser.Binary;
+import com.sun.script.java.ExpressionParser.Call;
+import com.sun.script.java.ExpressionParser.Conditional;
+import com.sun.script.java.ExpressionParser.Literal;
+import com.sun.script.java.ExpressionParser.Name;
+import com.sun.script.java.ExpressionParser.Node;
+import com.sun.script.java.ExpressionParser.Unary;
+
+/**
+ * <p>Title: ExpressionCompiler</p>
+ * <p>Description: Compiles single Java expressions to {@link JavaExpression} instances.
+ * Expressions in the {@link ExpressionParser} subset whose bindings are int, long, double, boolean or String values
+ * are translated directly to byte code with BCEL, which avoids the cost of a javac run.
+ * Any other expression is wrapped in a generated class and compiled by the {@link JavaCompiler}.
+ * Generated expressions of primitive type are {@link PrimitiveExpression}s, which also return their value unboxed.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>com.sun.script.java.ExpressionCompiler</code></p>
+ */
+public class ExpressionCompiler {
+    /** The class name prefix of generated expression classes */
+    private static final String CLASS_PREFIX = "com_sun_script_java_Expression$";
+    /** The class name prefix of generated kernel classes */
+    private static final String KERNEL_PREFIX = "com_sun_script_java_Kernel$";
+    /**
+     * The class name of expressions and kernels compiled by javac. Each is defined by its own class loader, and a
+     * name which does not change between compilations lets the compiler recognise a source which failed before.
+     */
+    private static final String JAVAC_CLASS = "Javac";
+    /** The serial number of generated expression classes */
+    private static final AtomicInteger classCount = new AtomicInteger();
+
+    /** The javac compiler for expressions outside the byte code subset */
+    private final JavaCompiler compiler;
+
+    /**
+     * Creates a new ExpressionCompiler
+     * @param compiler The javac compiler for expressions outside the byte code subset
+     */
+    public ExpressionCompiler(JavaCompiler compiler) {
+        this.compiler = compiler;
+    }
+
+    /**
+     * Returns the static type a binding value is compiled against
+     * @param value The binding value
+     * @return the primitive type for boxed int, long, double and boolean values, the value class for anything else
+     * and Object for null
+     */
+    public static Class<?> bindingType(Object value) {
+        if (value == null) return Object.class;
+        if (value instanceof Integer) return int.class;
+        if (value instanceof Long) return long.class;
+        if (value instanceof Double) return double.class;
+        if (value instanceof Boolean) return boolean.class;
+        return value.getClass();
+    }
+
+    /**
+     * Compiles the passed expression, with byte code generation if the expression is in the supported subset
+     * and with javac if it is not.
+     * @param source The expression source
+     * @param names The names of the bindings the expression references
+     * @param types The binding types, as returned by {@link #bindingType(Object)}
+     * @param ctx The script context supplying the class path and parent class loader
+     * @return the compiled expression
+     * @throws ScriptException thrown if the expression does not compile
+     */
+    public JavaExpression compile(String source, String[] names, Class<?>[] types, ScriptContext ctx) throws ScriptException {
+        return compile(source, names, types, ctx, null);
+    }
+
+    /**
+     * Compiles the passed expression against a library, with byte code generation if the expression is in the supported subset
+     * and with javac if it is not.
+     * @param source The expression source
+     * @param names The names of the bindings the expression references
+     * @param types The binding types, as returned by {@link #bindingType(Object)}
+     * @param ctx The script context supplying the class path and parent class loader
+     * @param library The library the expression may call into, may be null
+     * @return the compiled expression
+     * @throws ScriptException thrown if the expression does not compile
+     */
+    public JavaExpression compile(String source, String[] names, Class<?>[] types, ScriptContext ctx, JavaLibrary library) throws ScriptException {
+        JavaExpression expr = null;
+        try {
+            expr = compileBytecode(source, names, types, library != null ? library.getClassLoader() : getParentLoader(ctx));
+        } catch (LinkageError bcelUnavailable) {
+            // BCEL is an optional dependency, javac handles everything
+        }
+        if (expr == null) {
+            expr = compileJavac(source, names, types, ctx, library);
+        }
+        return expr;
+    }
+
+    /**
+     * Compiles the passed expression directly to byte code
+     * @param source The expression source
+     * @param names The names of the bindings the expression references
+     * @param types The binding types, as returned by {@link #bindingType(Object)}
+     * @param parent The class loader static method call targets are resolved through
+     * @return the compiled expression or null if the expression is outside the supported subset
+     * @throws ScriptException thrown if the generated class cannot be loaded
+     */
+    public JavaExpression compileBytecode(String source, String[] names, Class<?>[] types, ClassLoader parent) throws ScriptException {
+        Node root = ExpressionParser.parse(source);
+        if (root == null) {
+            return null;
+        }
+        String className = CLASS_PREFIX + classCount.incrementAndGet();
+        byte[] bytes;
+        try {
+            bytes = new Generator(className, names, types, parent).generate(root);
+        } catch (Unsupported unsupported) {
+            return null;
+        }
+        return newInstance(className, Collections.singletonMap(className, bytes), null, parent);
+    }
+
+    /**
+     * Compiles the passed expression with javac, as the return value of a generated class
+     * @param source The expression source
+     * @param names The names of the bindings the expression references
+     * @param types The binding types, as returned by {@link #bindingType(Object)}
+     * @param ctx The script context supplying the class path and parent class loader
+     * @return the compiled expression
+     * @throws ScriptException thrown if the expression does not compile
+     */
+    public JavaExpression compileJavac(String source, String[] names, Class<?>[] types, ScriptContext ctx) throws ScriptException {
+        return compileJavac(source, names, types, ctx, null);
+    }
+
+    /**
+     * Compiles the passed expression against a library with javac, as the return value of a generated class
+     * @param source The expression source
+     * @param names The names of the bindings the expression references
+     * @param types The binding types, as returned by {@link #bindingType(Object)}
+     * @param ctx The script context supplying the class path and parent class loader
+     * @param library The library the expression may call into, may be null
+     * @return the compiled expression
+     * @throws ScriptException thrown if the expression does not compile
+     */
+    public JavaExpression compileJavac(String source, String[] names, Class<?>[] types, ScriptContext ctx, JavaLibrary library) throws ScriptException {
+        Map<String, byte[]> libraryBytes = library == null ? null : library.getClassBytes();
+        String className = CLASS_PREFIX + JAVAC_CLASS;
+        StringBuilder locals = new StringBuilder();
+        for (int i = 0; i < names.length; i++) {
+            locals.append("        final ").append(declaration(types[i], "$args[" + i + "]", names[i])).append('\n');
+        }
+        String classPath = JavaScriptEngine.getClassPath(ctx);
+        String sourcePath = JavaScriptEngine.getSourcePath(ctx);
+        // the expression may be a void method call, so retry as a statement if it does not compile
+        Map<String, byte[]> classBytes = compiler.compile(className + MemoryJavaFileManager.EXT,
+                javacSource(className, locals, "return (" + source + ");"), new StringWriter(), sourcePath, classPath, libraryBytes);
+        if (classBytes == null) {
+            Writer err = ctx.getErrorWriter();
+            classBytes = compiler.compileOrThrow(Collections.singletonMap(className + MemoryJavaFileManager.EXT,
+                    javacSource(className, locals, source + ";\n        return null;")), err, sourcePath, classPath, libraryBytes);
+        }
+        return newInstance(className, classBytes, classPath,
+                library != null ? library.getClassLoader() : getParentLoader(ctx));
+    }
+
+    /**
+     * Compiles a numeric expression into a loop over double arrays
+     * @param expression The expression source, which can use the variables as doubles
+     * @param variables The variable names, in input array order
+     * @param ctx The script context supplying the class path, parent class loader and error writer
+     * @param library The library the expression may call into, may be null
+     * @return the compiled kernel
+     * @throws ScriptException thrown if the expression does not compile
+     */
+    public DoubleKernel compileKernel(String expression, String[] variables, ScriptContext ctx, JavaLibrary library) throws ScriptException {
+        for (String variable : variables) {
+            if (variable == null || variable.length() == 0 || variable.charAt(0) == '$'
+                    || !Character.isJavaIdentifierStart(variable.charAt(0))) {
+                throw new IllegalArgumentException("Invalid kernel variable name [" + variable + "]");
+            }
+            for (int i = 1; i < variable.length(); i++) {
+                if (!Character.isJavaIdentifierPart(variable.charAt(i))) {
+                    throw new IllegalArgumentException("Invalid kernel variable name [" + variable + "]");
+                }
+            }
+        }
+        String className = KERNEL_PREFIX + JAVAC_CLASS;
+        StringBuilder src = new StringBuilder();
+        src.append("public final class ").append(className).append(" extends ").append(DoubleKernel.class.getName()).append(" {\n");
+        src.append("    public ").append(className).append("(String expression, String[] variables) {\n");
+        src.append("        super(expression, variables);\n    }\n");
+        src.append("    protected void applyRange(double[][] $in, double[] $out, int $from, int $to) {\n");
+        for (int i = 0; i < variables.length; i++) {
+            src.append("        final double[] $").append(variables[i]).append(" = $in[").append(i).append("];\n");
+        }
+        src.append("        for (int $i = $from; $i < $to; $i++) {\n");
+        for (String variable : variables) {
+            src.append("            final double ").append(variable).append(" = $").append(variable).append("[$i];\n");
+        }
+        src.append("            $out[$i] = (double)(").append(expression).append(");\n");
+        src.append("        }\n    }\n}\n");
+
+        String classPath = JavaScriptEngine.getClassPath(ctx);
+        Map<String, byte[]> classBytes = compiler.compileOrThrow(Collections.singletonMap(className + MemoryJavaFileManager.EXT,
+                src.toString()), ctx.getErrorWriter(), JavaScriptEngine.getSourcePath(ctx), classPath,
+                library == null ? null : library.getClassBytes());
+        MemoryClassLoader loader = new MemoryClassLoader(classBytes, classPath,
+                library != null ? library.getClassLoader() : getParentLoader(ctx));
+        try {
+            return (DoubleKernel)loader.load(className).getConstructor(String.class, String[].class)
+                    .newInstance(expression, variables);
+        } catch (Exception exp) {
+            throw new ScriptException(exp);
+        }
+    }
+
+    // Internals only below this point
+
+    private static ClassLoader getParentLoader(ScriptContext ctx) {
+        ClassLoader parent = JavaScriptEngine.getParentLoader(ctx);
+        return parent != null ? parent : ExpressionCompiler.class.getClassLoader();
+    }
+
+    private static JavaExpression newInstance(String className, Map<String, byte[]> classBytes, String classPath,
+                                              ClassLoader parent) throws ScriptException {
+        MemoryClassLoader loader = new MemoryClassLoader(new HashMap<String, byte[]>(classBytes), classPath, parent);
+        try {
+            return (JavaExpression)loader.load(className).getDeclaredConstructor().newInstance();
+        } catch (Exception exp) {
+            throw new ScriptException(exp);
+        }
+    }
+
+    private static String javacSource(String className, CharSequence locals, String body) {
+        return "public final class " + className + " implements " + JavaExpression.class.getName() + " {\n" +
+               "    public Object eval(Object[] $args) throws Exception {\n" + locals +
+               "        " + body + "\n    }\n}\n";
+    }
+
+    /**
+     * Generates a local variable declaration which unboxes a binding value
+     * @param type The binding type
+     * @param value The expression for the boxed value
+     * @param name The binding name
+     * @return the declaration
+     */
+    private static String declaration(Class<?> type, String value, String name) {
+        if (type.isPrimitive()) {
+            String box = type == int.class ? "Integer" : Character.toUpperCase(type.getName().charAt(0)) + type.getName().substring(1);
+            return type.getName() + " " + name + " = ((" + box + ")" + value + ")." + type.getName() + "Value();";
+        }
+        Class<?> declared = type;
+        while (declared != Object.class && (!Modifier.isPublic(declared.getModifiers()) || declared.getCanonicalName() == null)) {
+            declared = declared.isArray() ? Object.class : declared.getSuperclass();
+        }
+        String typeName = declared.getCanonicalName();
+        return typeName + " " + name + " = (" + typeName + ")" + value + ";";
+    }
+
+    /**
+     * <p>Title: Unsupported</p>
+     * <p>Description: Thrown when an expression cannot be generated as byte code</p>
+     * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+     * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+     * <p><code>com.sun.script.java.ExpressionCompiler.Unsupported</code></p>
+     */
+    private static class Unsupported extends Exception {
+        private static final long serialVersionUID = 4407523934356815211L;
+
+        Unsupported(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * <p>Title: Generator</p>
+     * <p>Description: Type checks an expression tree and generates the byte code of a {@link JavaExpression} for it.
+     * All BCEL references are confined to this class so that a missing BCEL surfaces as a catchable LinkageError.</p>
+     * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+     * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+     * <p><code>com.sun.script.java.ExpressionCompiler.Generator</code></p>
+     */
+    private static final class Generator {
+        /** The generated class name */
+        private final String className;
+        /** The binding indexes keyed by name */
+        private final Map<String, Integer> bindings = new HashMap<String, Integer>();
+        /** The binding types */
+        private final Class<?>[] bindingTypes;
+        /** The local variable slot each binding is unboxed into */
+        private final int[] slots;
+        /** The class loader static call targets are resolved through */
+        private final ClassLoader loader;
+        /** The computed type of each node */
+        private final Map<Node, Class<?>> types = new IdentityHashMap<Node, Class<?>>();
+        /** The resolved target of each static call */
+        private final Map<Node, Method> methods = new IdentityHashMap<Node, Method>();
+
+        private ClassGen cg;
+        private ConstantPoolGen cp;
+        private InstructionFactory factory;
+        private InstructionList il;
+
+        Generator(String className, String[] names, Class<?>[] bindingTypes, ClassLoader loader) {
+            this.className = className;
+            this.bindingTypes = bindingTypes;
+            this.loader = loader;
+            slots = new int[names.length];
+            int slot = 2;
+            for (int i = 0; i < names.length; i++) {
+                bindings.put(names[i], i);
+                slots[i] = slot;
+                slot += (bindingTypes[i] == long.class || bindingTypes[i] == double.class) ? 2 : 1;
+            }
+        }
+
+        /**
+         * Generates the expression class
+         * @param root The expression root
+         * @return the class byte code
+         * @throws Unsupported thrown if the expression cannot be generated
+         */
+        byte[] generate(Node root) throws Unsupported {
+            Class<?> resultType = typeOf(root);
+            boolean primitive = resultType != String.class;
+            cg = new ClassGen(className, "java.lang.Object", "<generated>",
+                    Constants.ACC_PUBLIC | Constants.ACC_FINAL | Constants.ACC_SUPER,
+                    new String[] { (primitive ? PrimitiveExpression.class : JavaExpression.class).getName() });
+            cg.addEmptyConstructor(Constants.ACC_PUBLIC);
+            cp = cg.getConstantPool();
+            factory = new InstructionFactory(cg, cp);
+            addMethod("eval", Object.class, root);
+            if (primitive) {
+                addMethod("evalLong", long.class, root);
+                addMethod("evalDouble", double.class, root);
+                addMethod("evalBoolean", boolean.class, root);
+            }
+            return cg.getJavaClass().getBytes();
+        }
+
+        /**
+         * Generates a method evaluating the expression
+         * @param name The method name
+         * @param returnType The method return type, Object for the boxed value
+         * @param root The expression root
+         * @throws Unsupported thrown if the expression cannot be generated
+         */
+        private void addMethod(String name, Class<?> returnType, Node root) throws Unsupported {
+            Class<?> resultType = typeOf(root);
+            il = new InstructionList();
+            if (returnType != Object.class && (returnType == boolean.class) != (resultType == boolean.class)) {
+                il.append(factory.createNew("java.lang.ClassCastException"));
+                il.append(InstructionConstants.DUP);
+                il.append(new PUSH(cp, resultType.getName() + " expression"));
+                il.append(factory.createInvoke("java.lang.ClassCastException", "<init>", Type.VOID,
+                        new Type[] { Type.STRING }, Constants.INVOKESPECIAL));
+                il.append(InstructionConstants.ATHROW);
+            } else {
+                for (int i = 0; i < slots.length; i++) {
+                    unboxBinding(i);
+                }
+                emit(root);
+                if (returnType == Object.class) {
+                    box(resultType);
+                    il.append(InstructionConstants.ARETURN);
+                } else {
+                    if (resultType != returnType) {
+                        il.append(factory.createCast(toType(resultType), toType(returnType)));
+                    }
+                    il.append(InstructionFactory.createReturn(toType(returnType)));
+                }
+            }
+            MethodGen mg = new MethodGen(Constants.ACC_PUBLIC, returnType == Object.class ? Type.OBJECT : toType(returnType),
+                    new Type[] { new ArrayType(Type.OBJECT, 1) }, new String[] { "args" },
+                    name, className, il, cp);
+            mg.setMaxStack();
+            mg.setMaxLocals();
+            cg.addMethod(mg.getMethod());
+            il.dispose();
+        }
+
+        // ==================== type checking ====================
+
+        private static boolean isNumeric(Class<?> t) {
+            return t == int.class || t == long.class || t == double.class;
+        }
+
+        private static boolean isSupported(Class<?> t) {
+            return isNumeric(t) || t == boolean.class || t == String.class;
+        }
+
+        private static Class<?> promote(Class<?> a, Class<?> b) {
+            if (a == double.class || b == double.class) return double.class;
+            if (a == long.class || b == long.class) return long.class;
+            return int.class;
+        }
+
+        private static boolean isConvertible(Class<?> from, Class<?> to) {
+            return from == to || (from == int.class && (to == long.class || to == double.class))
+                    || (from == long.class && to == double.class);
+        }
+
+        private Class<?> typeOf(Node node) throws Unsupported {
+            Class<?> type = types.get(node);
+            if (type == null) {
+                type = computeType(node);
+                types.put(node, type);
+            }
+            return type;
+        }
+
+        private Class<?> computeType(Node node) throws Unsupported {
+            if (node instanceof Literal) {
+                return bindingType(((Literal)node).value);
+            }
+            if (node instanceof Name) {
+                Integer index = bindings.get(((Name)node).name);
+                if (index == null || !isSupported(bindingTypes[index])) {
+                    throw new Unsupported("binding " + ((Name)node).name);
+                }
+                return bindingTypes[index];
+            }
+            if (node instanceof Unary) {
+                Unary unary = (Unary)node;
+                Class<?> t = typeOf(unary.operand);
+                if ("!".equals(unary.op) ? t == boolean.class
+                        : "~".equals(unary.op) ? (t == int.class || t == long.class) : isNumeric(t)) {
+                    return t;
+                }
+                throw new Unsupported("operator " + unary.op);
+            }
+            if (node instanceof Binary) {
+                Binary binary = (Binary)node;
+                String op = binary.op;
+                Class<?> l = typeOf(binary.left);
+                Class<?> r = typeOf(binary.right);
+                if ("+".equals(op) && (l == String.class || r == String.class)) {
+                    return String.class;
+                }
+                if ("&&".equals(op) || "||".equals(op)) {
+                    if (l == boolean.class && r == boolean.class) return boolean.class;
+                } else if ("&".equals(op) || "|".equals(op) || "^".equals(op)) {
+                    if (l == boolean.class && r == boolean.class) return boolean.class;
+                    if ((l == int.class || l == long.class) && (r == int.class || r == long.class)) return promote(l, r);
+                } else if ("==".equals(op) || "!=".equals(op)) {
+                    if ((isNumeric(l) && isNumeric(r)) || l == r) return boolean.class;
+                } else if ("<".equals(op) || "<=".equals(op) || ">".equals(op) || ">=".equals(op)) {
+                    if (isNumeric(l) && isNumeric(r)) return boolean.class;
+                } else if (isNumeric(l) && isNumeric(r)) {
+                    return promote(l, r);
+                }
+                throw new Unsupported("operator " + op);
+            }
+            if (node instanceof Conditional) {
+                Conditional cond = (Conditional)node;
+                Class<?> a = typeOf(cond.then);
+                Class<?> b = typeOf(cond.otherwise);
+                if (typeOf(cond.test) == boolean.class) {
+                    if (a == b) return a;
+                    if (isNumeric(a) && isNumeric(b)) return promote(a, b);
+                }
+                throw new Unsupported("conditional");
+            }
+            Call call = (Call)node;
+            Method method = resolve(call);
+            methods.put(node, method);
+            return method.getReturnType();
+        }
+
+        private Class<?> loadClass(String name) {
+            try {
+                return Class.forName(name, false, loader);
+            } catch (ClassNotFoundException cnfe) {
+                return null;
+            } catch (LinkageError le) {
+                return null;
+            }
+        }
+
+        private Method resolve(Call call) throws Unsupported {
+            Class<?> owner = loadClass(call.className);
+            if (owner == null && call.className.indexOf('.') == -1) {
+                owner = loadClass("java.lang." + call.className);
+            }
+            if (owner == null || !Modifier.isPublic(owner.getModifiers())) {
+                throw new Unsupported("class " + call.className);
+            }
+            Class<?>[] argTypes = new Class<?>[call.args.size()];
+            for (int i = 0; i < argTypes.length; i++) {
+                argTypes[i] = typeOf(call.args.get(i));
+            }
+            Method best = null;
+            for (Method m : owner.getMethods()) {
+                if (!m.getName().equals(call.methodName) || !Modifier.isStatic(m.getModifiers())
+                        || m.isVarArgs() || !isSupported(m.getReturnType())
+                        || !Modifier.isPublic(m.getDeclaringClass().getModifiers())) {
+                    continue;
+                }
+                Class<?>[] params = m.getParameterTypes();
+                if (params.length != argTypes.length) continue;
+                boolean applicable = true;
+                for (int i = 0; i < params.length && applicable; i++) {
+                    applicable = isConvertible(argTypes[i], params[i]);
+                }
+                if (applicable && (best == null || isMoreSpecific(m, best))) {
+                    best = m;
+                }
+            }
+            if (best == null) {
+                throw new Unsupported("method " + call.className + "." + call.methodName);
+            }
+            return best;
+        }
+
+        private static boolean isMoreSpecific(Method a, Method b) {
+            Class<?>[] pa = a.getParameterTypes();
+            Class<?>[] pb = b.getParameterTypes();
+            for (int i = 0; i < pa.length; i++) {
+                if (!isConvertible(pa[i], pb[i])) return false;
+            }
+            return true;
+        }
+
+        // ==================== code generation ====================
+
+        private static Type toType(Class<?> t) {
+            if (t == int.class) return Type.INT;
+            if (t == long.class) return Type.LONG;
+            if (t == double.class) return Type.DOUBLE;
+            if (t == boolean.class) return Type.BOOLEAN;
+            return Type.STRING;
+        }
+
+        private static ObjectType boxType(Class<?> t) {
+            if (t == int.class) return new ObjectType("java.lang.Integer");
+            if (t == long.class) return new ObjectType("java.lang.Long");
+            if (t == double.class) return new ObjectType("java.lang.Double");
+            return new ObjectType("java.lang.Boolean");
+        }
+
+        private void unboxBinding(int index) {
+            Class<?> t = bindingTypes[index];
+            if (!isSupported(t)) {
+                return;
+            }
+            il.append(InstructionFactory.createLoad(Type.OBJECT, 1));
+            il.append(new PUSH(cp, index));
+            il.append(InstructionConstants.AALOAD);
+            if (t == String.class) {
+                il.append(factory.createCheckCast(Type.STRING));
+            } else {
+                ObjectType box = boxType(t);
+                il.append(factory.createCheckCast(box));
+                il.append(factory.createInvoke(box.getClassName(), t.getName() + "Value", toType(t),
+                        Type.NO_ARGS, Constants.INVOKEVIRTUAL));
+            }
+            il.append(InstructionFactory.createStore(toType(t), slots[index]));
+        }
+
+        private void box(Class<?> t) {
+            if (t == String.class) {
+                return;
+            }
+            ObjectType box = boxType(t);
+            il.append(factory.createInvoke(box.getClassName(), "valueOf", box, new Type[] { toType(t) },
+                    Constants.INVOKESTATIC));
+        }
+
+        private void emitAs(Node node, Class<?> target) throws Unsupported {
+            emit(node);
+            Class<?> from = typeOf(node);
+            if (from != target) {
+                il.append(factory.createCast(toType(from), toType(target)));
+            }
+        }
+
+        private void emit(Node node) throws Unsupported {
+            Class<?> type = typeOf(node);
+            if (node instanceof Literal) {
+                Object value = ((Literal)node).value;
+                if (value instanceof Boolean) {
+                    il.append(new PUSH(cp, ((Boolean)value).booleanValue()));
+                } else if (value instanceof String) {
+                    il.append(new PUSH(cp, (String)value));
+                } else {
+                    il.append(new PUSH(cp, (Number)value));
+                }
+            } else if (node instanceof Name) {
+                int index = bindings.get(((Name)node).name);
+                il.append(InstructionFactory.createLoad(toType(type), slots[index]));
+            } else if (node instanceof Unary) {
+                emitUnary((Unary)node, type);
+            } else if (node instanceof Binary) {
+                emitBinary((Binary)node, type);
+            } else if (node instanceof Conditional) {
+                Conditional cond = (Conditional)node;
+                emit(cond.test);
+                BranchInstruction toElse = InstructionFactory.createBranchInstruction(Constants.IFEQ, null);
+                il.append(toElse);
+                emitAs(cond.then, type);
+                BranchInstruction toEnd = InstructionFactory.createBranchInstruction(Constants.GOTO, null);
+                il.append(toEnd);
+                toElse.setTarget(il.append(InstructionConstants.NOP));
+                emitAs(cond.otherwise, type);
+                toEnd.setTarget(il.append(InstructionConstants.NOP));
+            } else {
+                Call call = (Call)node;
+                Method method = methods.get(node);
+                Class<?>[] params = method.getParameterTypes();
+                Type[] argTypes = new Type[params.length];
+                for (int i = 0; i < params.length; i++) {
+                    emitAs(call.args.get(i), params[i]);
+                    argTypes[i] = toType(params[i]);
+                }
+                il.append(factory.createInvoke(method.getDeclaringClass().getName(), method.getName(),
+                        toType(method.getReturnType()), argTypes, Constants.INVOKESTATIC));
+            }
+        }
+
+        private void emitUnary(Unary unary, Class<?> type) throws Unsupported {
+            emit(unary.operand);
+            if ("-".equals(unary.op)) {
+                il.append(type == int.class ? InstructionConstants.INEG
+                        : type == long.class ? InstructionConstants.LNEG : InstructionConstants.DNEG);
+            } else if ("!".equals(unary.op)) {
+                il.append(InstructionConstants.ICONST_1);
+                il.append(InstructionConstants.IXOR);
+            } else if ("~".equals(unary.op)) {
+                if (type == int.class) {
+                    il.append(InstructionConstants.ICONST_M1);
+                    il.append(InstructionConstants.IXOR);
+                } else {
+                    il.append(new PUSH(cp, -1L));
+                    il.append(InstructionConstants.LXOR);
+                }
+            }
+        }
+
+        private void emitBinary(Binary binary, Class<?> type) throws Unsupported {
+            String op = binary.op;
+            if (type == String.class) {
+                il.append(factory.createNew("java.lang.StringBuilder"));
+                il.append(InstructionConstants.DUP);
+                il.append(factory.createInvoke("java.lang.StringBuilder", "<init>", Type.VOID, Type.NO_ARGS,
+                        Constants.INVOKESPECIAL));
+                appendConcat(binary);
+                il.append(factory.createInvoke("java.lang.StringBuilder", "toString", Type.STRING, Type.NO_ARGS,
+                        Constants.INVOKEVIRTUAL));
+            } else if ("&&".equals(op) || "||".equals(op)) {
+                boolean and = "&&".equals(op);
+                short jump = and ? Constants.IFEQ : Constants.IFNE;
+                emit(binary.left);
+                BranchInstruction first = InstructionFactory.createBranchInstruction(jump, null);
+                il.append(first);
+                emit(binary.right);
+                BranchInstruction second = InstructionFactory.createBranchInstruction(jump, null);
+                il.append(second);
+                il.append(new PUSH(cp, and));
+                BranchInstruction toEnd = InstructionFactory.createBranchInstruction(Constants.GOTO, null);
+                il.append(toEnd);
+                InstructionHandle shortCircuit = il.append(new PUSH(cp, !and));
+                first.setTarget(shortCircuit);
+                second.setTarget(shortCircuit);
+                toEnd.setTarget(il.append(InstructionConstants.NOP));
+            } else if (type == boolean.class && !"&".equals(op) && !"|".equals(op) && !"^".equals(op)) {
+                emitComparison(binary);
+            } else {
+                Class<?> operandType = type == boolean.class ? int.class : type;
+                emitAs(binary.left, type);
+                emitAs(binary.right, type);
+                il.append(InstructionFactory.createBinaryOperation(op, toType(operandType)));
+            }
+        }
+
+        private void appendConcat(Node node) throws Unsupported {
+            if (node instanceof Binary && "+".equals(((Binary)node).op) && typeOf(node) == String.class) {
+                appendConcat(((Binary)node).left);
+                appendConcat(((Binary)node).right);
+                return;
+            }
+            emit(node);
+            il.append(factory.createInvoke("java.lang.StringBuilder", "append",
+                    new ObjectType("java.lang.StringBuilder"), new Type[] { toType(typeOf(node)) },
+                    Constants.INVOKEVIRTUAL));
+        }
+
+        private void emitComparison(Binary binary) throws Unsupported {
+            String op = binary.op;
+            Class<?> l = typeOf(binary.left);
+            Class<?> r = typeOf(binary.right);
+            Class<?> operandType = isNumeric(l) ? promote(l, r) : l;
+            emitAs(binary.left, operandType);
+            emitAs(binary.right, operandType);
+            short branch;
+            if (operandType == int.class || operandType == boolean.class) {
+                branch = "<".equals(op) ? Constants.IF_ICMPLT : "<=".equals(op) ? Constants.IF_ICMPLE
+                        : ">".equals(op) ? Constants.IF_ICMPGT : ">=".equals(op) ? Constants.IF_ICMPGE
+                        : "==".equals(op) ? Constants.IF_ICMPEQ : Constants.IF_ICMPNE;
+            } else if (operandType == String.class) {
+                branch = "==".equals(op) ? Constants.IF_ACMPEQ : Constants.IF_ACMPNE;
+            } else {
+                if (operandType == long.class) {
+                    il.append(InstructionConstants.LCMP);
+                } else {
+                    // NaN compares false, as javac does it
+                    il.append("<".equals(op) || "<=".equals(op) ? InstructionConstants.DCMPG : InstructionConstants.DCMPL);
+                }
+                branch = "<".equals(op) ? Constants.IFLT : "<=".equals(op) ? Constants.IFLE
+                        : ">".equals(op) ? Constants.IFGT : ">=".equals(op) ? Constants.IFGE
+                        : "==".equals(op) ? Constants.IFEQ : Constants.IFNE;
+            }
+            BranchInstruction toTrue = InstructionFactory.createBranchInstruction(branch, null);
+            il.append(toTrue);
+            il.append(InstructionConstants.ICONST_0);
+            BranchInstruction toEnd = InstructionFactory.createBranchInstruction(Constants.GOTO, null);
+            il.append(toEnd);
+            toTrue.setTarget(il.append(InstructionConstants.ICONST_1));
+            toEnd.setTarget(il.append(InstructionConstants.NOP));
+        }
+    }
+}
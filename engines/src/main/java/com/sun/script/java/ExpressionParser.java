@@ -0,0 +1,475 @@
+package com.sun.script.java;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>Title: ExpressionParser</p>
+ * <p>Description: A small recursive descent parser for a restricted subset of Java expressions:
+ * int, long, double, boolean and string literals, arithmetic, comparison, boolean and bitwise operators,
+ * the conditional operator, references to bindings by simple name and static method calls.
+ * Anything outside the subset is reported by {@link #parse(String)} returning null so that callers can fall back to javac.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>com.sun.script.java.ExpressionParser</code></p>
+ */
+public class ExpressionParser {
+    /** Java keywords, none of which can be a binding name */
+    private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList(
+            "abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class", "const",
+            "continue", "default", "do", "double", "else", "enum", "extends", "final", "finally", "float",
+            "for", "goto", "if", "implements", "import", "instanceof", "int", "interface", "long", "native",
+            "new", "package", "private", "protected", "public", "return", "short", "static", "strictfp",
+            "super", "switch", "synchronized", "this", "throw", "throws", "transient", "try", "void",
+            "volatile", "while", "true", "false", "null"));
+    /** Keywords which mark a source as a compilation unit rather than an expression */
+    private static final Set<String> DECLARATION_KEYWORDS = new HashSet<String>(Arrays.asList(
+            "class", "interface", "enum", "import", "package"));
+    /** The two character operators */
+    private static final Set<String> TWO_CHAR_OPERATORS = new HashSet<String>(Arrays.asList(
+            "&&", "||", "==", "!=", "<=", ">=", "<<", ">>", "++", "--", "+=", "-=", "*=", "/=", "->", "::"));
+
+    /**
+     * <p>Title: Node</p>
+     * <p>Description: Base class for expression tree nodes</p>
+     * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+     * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+     * <p><code>com.sun.script.java.ExpressionParser.Node</code></p>
+     */
+    public static abstract class Node {
+        // only the parser creates nodes
+        Node() {
+        }
+    }
+
+    /**
+     * <p>Title: Literal</p>
+     * <p>Description: A literal value, one of Integer, Long, Double, Boolean or String</p>
+     * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+     * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+     * <p><code>com.sun.script.java.ExpressionParser.Literal</code></p>
+     */
+    public static final class Literal extends Node {
+        /** The literal value */
+        public final Object value;
+
+        Literal(Object value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * <p>Title: Name</p>
+     * <p>Description: A reference to a binding by its simple name</p>
+     * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+     * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+     * <p><code>com.sun.script.java.ExpressionParser.Name</code></p>
+     */
+    public static final class Name extends Node {
+        /** The binding name */
+        public final String name;
+
+        Name(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * <p>Title: Unary</p>
+     * <p>Description: A prefix operator, one of <code>- + ! ~</code></p>
+     * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+     * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+     * <p><code>com.sun.script.java.ExpressionParser.Unary</code></p>
+     */
+    public static final class Unary extends Node {
+        /** The operator */
+        public final String op;
+        /** The operand */
+        public final Node operand;
+
+        Unary(String op, Node operand) {
+            this.op = op;
+            this.operand = operand;
+        }
+    }
+
+    /**
+     * <p>Title: Binary</p>
+     * <p>Description: An infix operator, one of <code>* / % + - &lt; &lt;= &gt; &gt;= == != &amp; ^ | &amp;&amp; ||</code></p>
+     * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+     * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+     * <p><code>com.sun.script.java.ExpressionParser.Binary</code></p>
+     */
+    public static final class Binary extends Node {
+        /** The operator */
+        public final String op;
+        /** The left operand */
+        public final Node left;
+        /** The right operand */
+        public final Node right;
+
+        Binary(String op, Node left, Node right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    /**
+     * <p>Title: Conditional</p>
+     * <p>Description: The conditional operator <code>test ? then : otherwise</code></p>
+     * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+     * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+     * <p><code>com.sun.script.java.ExpressionParser.Conditional</code></p>
+     */
+    public static final class Conditional extends Node {
+        /** The condition */
+        public final Node test;
+        /** The value if the condition is true */
+        public final Node then;
+        /** The value if the condition is false */
+        public final Node otherwise;
+
+        Conditional(Node test, Node then, Node otherwise) {
+            this.test = test;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+    }
+
+    /**
+     * <p>Title: Call</p>
+     * <p>Description: A static method call such as <code>Math.max(a, b)</code>.
+     * A class name without a package refers to a class in <code>java.lang</code>.</p>
+     * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+     * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+     * <p><code>com.sun.script.java.ExpressionParser.Call</code></p>
+     */
+    public static final class Call extends Node {
+        /** The class name as written */
+        public final String className;
+        /** The method name */
+        public final String methodName;
+        /** The arguments */
+        public final List<Node> args;
+
+        Call(String className, String methodName, List<Node> args) {
+            this.className = className;
+            this.methodName = methodName;
+            this.args = Collections.unmodifiableList(args);
+        }
+    }
+
+    /**
+     * Parses the passed source
+     * @param source The expression source
+     * @return the root node of the expression or null if the source is not in the supported subset
+     */
+    public static Node parse(String source) {
+        List<String> tokens = tokenize(source);
+        if (tokens == null || tokens.isEmpty()) {
+            return null;
+        }
+        ExpressionParser parser = new ExpressionParser(tokens);
+        try {
+            Node node = parser.conditional();
+            return parser.pos == tokens.size() ? node : null;
+        } catch (IndexOutOfBoundsException unexpectedEnd) {
+            return null;
+        } catch (NumberFormatException badLiteral) {
+            return null;
+        } catch (IllegalArgumentException unsupported) {
+            return null;
+        }
+    }
+
+    /**
+     * Determines if the passed source is a single expression rather than a compilation unit or statements.
+     * This is a lexical test only, the expression may still be outside the parsed subset.
+     * @param source The source to test
+     * @return true if the source looks like an expression
+     */
+    public static boolean isExpression(String source) {
+        List<String> tokens = tokenize(source);
+        if (tokens == null || tokens.isEmpty()) {
+            return false;
+        }
+        for (String token : tokens) {
+            if (";".equals(token) || "{".equals(token) || "}".equals(token)
+                    || DECLARATION_KEYWORDS.contains(token)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the simple names in the passed expression which could refer to bindings,
+     * that is identifiers which are not keywords, not member selections and not method names.
+     * @param source The expression source
+     * @return the candidate binding names in order of first appearance
+     */
+    public static Set<String> getReferencedNames(String source) {
+        Set<String> names = new LinkedHashSet<String>();
+        List<String> tokens = tokenize(source);
+        if (tokens == null) {
+            return names;
+        }
+        for (int i = 0; i < tokens.size(); i++) {
+            String token = tokens.get(i);
+            if (!isIdentifier(token) || KEYWORDS.contains(token)) continue;
+            if (i > 0 && ".".equals(tokens.get(i - 1))) continue;
+            if (i + 1 < tokens.size() && "(".equals(tokens.get(i + 1))) continue;
+            names.add(token);
+        }
+        return names;
+    }
+
+    // Internals only below this point
+
+    /** The tokens being parsed */
+    private final List<String> tokens;
+    /** The index of the next token */
+    private int pos = 0;
+
+    private ExpressionParser(List<String> tokens) {
+        this.tokens = tokens;
+    }
+
+    private String peek() {
+        return pos < tokens.size() ? tokens.get(pos) : null;
+    }
+
+    private boolean accept(String token) {
+        if (token.equals(peek())) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String token) {
+        if (!accept(token)) {
+            throw new IllegalArgumentException("expected " + token);
+        }
+    }
+
+    private Node conditional() {
+        Node test = binary(0);
+        if (accept("?")) {
+            Node then = conditional();
+            expect(":");
+            Node otherwise = conditional();
+            return new Conditional(test, then, otherwise);
+        }
+        return test;
+    }
+
+    /** The binary operators by increasing precedence */
+    private static final String[][] PRECEDENCE = {
+        {"||"}, {"&&"}, {"|"}, {"^"}, {"&"}, {"==", "!="}, {"<", "<=", ">", ">="}, {"+", "-"}, {"*", "/", "%"}
+    };
+
+    private Node binary(int level) {
+        if (level == PRECEDENCE.length) {
+            return unary();
+        }
+        Node left = binary(level + 1);
+        while (true) {
+            String op = null;
+            for (String candidate : PRECEDENCE[level]) {
+                if (candidate.equals(peek())) {
+                    op = candidate;
+                    break;
+                }
+            }
+            if (op == null) {
+                return left;
+            }
+            pos++;
+            left = new Binary(op, left, binary(level + 1));
+        }
+    }
+
+    private Node unary() {
+        String token = peek();
+        if ("-".equals(token) || "+".equals(token) || "!".equals(token) || "~".equals(token)) {
+            pos++;
+            return new Unary(token, unary());
+        }
+        return primary();
+    }
+
+    private Node primary() {
+        String token = tokens.get(pos++);
+        if ("(".equals(token)) {
+            Node node = conditional();
+            expect(")");
+            return node;
+        }
+        if ("true".equals(token) || "false".equals(token)) {
+            return new Literal(Boolean.valueOf(token));
+        }
+        char c = token.charAt(0);
+        if (c == '"') {
+            return new Literal(unescape(token));
+        }
+        if (Character.isDigit(c) || (c == '.' && token.length() > 1)) {
+            return new Literal(parseNumber(token));
+        }
+        if (!isIdentifier(token) || KEYWORDS.contains(token)) {
+            throw new IllegalArgumentException("unsupported token " + token);
+        }
+        StringBuilder qualified = new StringBuilder(token);
+        String last = token;
+        int parts = 1;
+        while (".".equals(peek())) {
+            pos++;
+            last = tokens.get(pos++);
+            if (!isIdentifier(last) || KEYWORDS.contains(last)) {
+                throw new IllegalArgumentException("unsupported member " + last);
+            }
+            qualified.append('.').append(last);
+            parts++;
+        }
+        if (accept("(")) {
+            if (parts == 1) {
+                throw new IllegalArgumentException("unqualified method call");
+            }
+            List<Node> args = new ArrayList<Node>();
+            if (!accept(")")) {
+                do {
+                    args.add(conditional());
+                } while (accept(","));
+                expect(")");
+            }
+            String className = qualified.substring(0, qualified.length() - last.length() - 1);
+            return new Call(className, last, args);
+        }
+        if (parts > 1) {
+            throw new IllegalArgumentException("field access");
+        }
+        return new Name(token);
+    }
+
+    private static Object parseNumber(String token) {
+        String lower = token.toLowerCase();
+        boolean hex = lower.startsWith("0x");
+        if (!hex && (lower.indexOf('.') != -1 || lower.indexOf('e') != -1 || lower.endsWith("d"))) {
+            if (lower.endsWith("f")) {
+                throw new IllegalArgumentException("float literal");
+            }
+            return Double.valueOf(lower.endsWith("d") ? lower.substring(0, lower.length() - 1) : lower);
+        }
+        if (lower.endsWith("l")) {
+            String digits = lower.substring(0, lower.length() - 1);
+            return hex ? Long.valueOf(Long.parseLong(digits.substring(2), 16)) : Long.valueOf(digits);
+        }
+        if (!hex && lower.endsWith("f")) {
+            throw new IllegalArgumentException("float literal");
+        }
+        if (!hex && lower.length() > 1 && lower.charAt(0) == '0') {
+            throw new IllegalArgumentException("octal literal");
+        }
+        // out of range values are rejected, javac reports them better
+        if (hex) {
+            long value = Long.parseLong(lower.substring(2), 16);
+            if (value > 0xFFFFFFFFL) {
+                throw new NumberFormatException("int literal out of range: " + token);
+            }
+            return Integer.valueOf((int)value);
+        }
+        return Integer.valueOf(lower);
+    }
+
+    private static String unescape(String token) {
+        StringBuilder b = new StringBuilder(token.length());
+        for (int i = 1; i < token.length() - 1; i++) {
+            char c = token.charAt(i);
+            if (c != '\\') {
+                b.append(c);
+                continue;
+            }
+            char e = token.charAt(++i);
+            switch (e) {
+            case 'n': b.append('\n'); break;
+            case 't': b.append('\t'); break;
+            case 'r': b.append('\r'); break;
+            case 'b': b.append('\b'); break;
+            case 'f': b.append('\f'); break;
+            case '"': b.append('"'); break;
+            case '\'': b.append('\''); break;
+            case '\\': b.append('\\'); break;
+            default: throw new IllegalArgumentException("unsupported escape \\" + e);
+            }
+        }
+        return b.toString();
+    }
+
+    private static boolean isIdentifier(String token) {
+        return Character.isJavaIdentifierStart(token.charAt(0));
+    }
+
+    /**
+     * Splits the source into tokens, skipping whitespace and comments
+     * @param source The source
+     * @return the tokens or null if the source contains an unterminated literal or comment
+     */
+    private static List<String> tokenize(String source) {
+        List<String> tokens = new ArrayList<String>();
+        int len = source.length();
+        int i = 0;
+        while (i < len) {
+            char c = source.charAt(i);
+            int start = i;
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            if (c == '/' && i + 1 < len && source.charAt(i + 1) == '/') {
+                while (i < len && source.charAt(i) != '\n') i++;
+                continue;
+            }
+            if (c == '/' && i + 1 < len && source.charAt(i + 1) == '*') {
+                int end = source.indexOf("*/", i + 2);
+                if (end == -1) return null;
+                i = end + 2;
+                continue;
+            }
+            if (Character.isJavaIdentifierStart(c)) {
+                while (i < len && Character.isJavaIdentifierPart(source.charAt(i))) i++;
+            } else if (Character.isDigit(c) || (c == '.' && i + 1 < len && Character.isDigit(source.charAt(i + 1)))) {
+                while (i < len) {
+                    char d = source.charAt(i);
+                    if (Character.isLetterOrDigit(d) || d == '.' || d == '_') {
+                        i++;
+                    } else if ((d == '+' || d == '-') && (source.charAt(i - 1) == 'e' || source.charAt(i - 1) == 'E')
+                            && !source.substring(start, i).toLowerCase().startsWith("0x")) {
+                        i++;
+                    } else {
+                        break;
+                    }
+                }
+            } else if (c == '"' || c == '\'') {
+                i++;
+                while (i < len && source.charAt(i) != c) {
+                    if (source.charAt(i) == '\\') i++;
+                    i++;
+                }
+                if (i >= len) return null;
+                i++;
+            } else if (i + 1 < len && TWO_CHAR_OPERATORS.contains(source.substring(i, i + 2))) {
+                i += 2;
+            } else {
+                i++;
+            }
+            tokens.add(source.substring(start, i));
+        }
+        return tokens;
+    }
+}
@@ -32,9 +32,12 @@ package com.sun.script.java;
 import java.io.IOException;
 import java.io.Writer;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import javax.script.ScriptException;
 import javax.tools.*;
 
 /**
@@ -49,6 +52,8 @@ public class JavaCompiler {
     private final javax.tools.JavaCompiler tool;
     /** The in-memory file manager */
     private final StandardJavaFileManager stdManager;
+    /** Remembered compilation failures */
+    private final CompilationFailureCache failures = new CompilationFailureCache();
 
     /**
      * Creates a new JavaCompiler
@@ -102,17 +107,54 @@ public class JavaCompiler {
      * @return a map of class byte codes keyed by the class name
      */
     public Map<String, byte[]> compile(String fileName, String source, Writer err, String sourcePath, String classPath) {
-        // to collect errors, warnings etc.
-        DiagnosticCollector<JavaFileObject> diagnostics = 
-            new DiagnosticCollector<JavaFileObject>();
+        return compile(fileName, source, err, sourcePath, classPath, null);
+    }
 
-        // create a new memory JavaFileManager
-        MemoryJavaFileManager manager = new MemoryJavaFileManager(stdManager);
+    /**
+     * Compiles the passed source
+     * @param fileName The file name to compile
+     * @param source The source to compile
+     * @param err An error writer to write diagnostic messages
+     * @param sourcePath The virtual location of additional .java source files
+     * @param classPath location of additional .class files
+     * @param classPathBytes previously compiled class byte codes keyed by class name which the source may reference. May be null.
+     * @return a map of class byte codes keyed by the class name
+     */
+    public Map<String, byte[]> compile(String fileName, String source, Writer err, String sourcePath, String classPath, Map<String, byte[]> classPathBytes) {
+        return compile(Collections.singletonMap(fileName, source), err, sourcePath, classPath, classPathBytes);
+    }
 
-        // prepare the compilation unit
-        List<JavaFileObject> compUnits = new ArrayList<JavaFileObject>(1);
-        compUnits.add(MemoryJavaFileManager.makeStringSource(fileName, source));
+    /**
+     * Compiles the passed sources together
+     * @param sources The sources to compile keyed by file name
+     * @param err An error writer to write diagnostic messages
+     * @param sourcePath The virtual location of additional .java source files
+     * @param classPath location of additional .class files
+     * @param classPathBytes previously compiled class byte codes keyed by class name which the sources may reference. May be null.
+     * @return a map of class byte codes keyed by the class name
+     */
+    public Map<String, byte[]> compile(Map<String, String> sources, Writer err, String sourcePath, String classPath, Map<String, byte[]> classPathBytes) {
+        try {
+            return compileOrThrow(sources, err, sourcePath, classPath, classPathBytes);
+        } catch (ScriptException failed) {
+            return null;
+        }
+    }
 
+    /**
+     * Compiles the passed sources together, throwing the exception of a failed compilation. While the failure is
+     * remembered by the {@link #getFailureCache() failure cache}, compiling the same sources again rethrows the same
+     * exception.
+     * @param sources The sources to compile keyed by file name
+     * @param err An error writer to write diagnostic messages
+     * @param sourcePath The virtual location of additional .java source files
+     * @param classPath location of additional .class files
+     * @param classPathBytes previously compiled class byte codes keyed by class name which the sources may reference. May be null.
+     * @return a map of class byte codes keyed by the class name
+     * @throws ScriptException thrown if the sources do not compile, its message holds the diagnostics
+     */
+    public Map<String, byte[]> compileOrThrow(Map<String, String> sources, Writer err, String sourcePath, String classPath,
+                                              Map<String, byte[]> classPathBytes) throws ScriptException {
         // javac options
         List<String> options = new ArrayList<String>();
         options.add("-Xlint:all");
@@ -127,6 +169,39 @@ public class JavaCompiler {
             options.add("-classpath");
             options.add(classPath);
         }
+
+        // fail fast if this exact compilation has already failed
+        StringBuilder fileNames = new StringBuilder();
+        StringBuilder allSources = new StringBuilder();
+        for (Map.Entry<String, String> entry : sources.entrySet()) {
+            if (fileNames.length() > 0) {
+                fileNames.append(',');
+                allSources.append('\u0000');
+            }
+            fileNames.append(entry.getKey());
+            allSources.append(entry.getValue());
+        }
+        String failureKey = failures.key(fileNames.toString(), allSources.toString(), options, classPathBytes);
+        CompilationFailureCache.Failure failed = failures.get(failureKey, sourcePath, classPath);
+        if (failed != null) {
+            PrintWriter perr = new PrintWriter(err);
+            perr.print(failed.diagnostics);
+            perr.flush();
+            throw failed.exception;
+        }
+
+        // to collect errors, warnings etc.
+        DiagnosticCollector<JavaFileObject> diagnostics = 
+            new DiagnosticCollector<JavaFileObject>();
+
+        // create a new memory JavaFileManager
+        MemoryJavaFileManager manager = new MemoryJavaFileManager(stdManager, classPathBytes);
+
+        // prepare the compilation units
+        List<JavaFileObject> compUnits = new ArrayList<JavaFileObject>(sources.size());
+        for (Map.Entry<String, String> entry : sources.entrySet()) {
+            compUnits.add(MemoryJavaFileManager.makeStringSource(entry.getKey(), entry.getValue()));
+        }
        
         // create a compilation task
         javax.tools.JavaCompiler.CompilationTask task =
@@ -134,12 +209,18 @@ public class JavaCompiler {
                          options, null, compUnits);
 
         if (task.call() == false) {
-            PrintWriter perr = new PrintWriter(err);
+            StringWriter messages = new StringWriter();
+            PrintWriter pmessages = new PrintWriter(messages);
             for (Diagnostic<?> diagnostic : diagnostics.getDiagnostics()) {                
-                perr.println(diagnostic.getMessage(null));
+                pmessages.println(diagnostic.getMessage(null));
             }
+            pmessages.flush();
+            ScriptException exception = new ScriptException("compilation failed: " + messages.toString().trim());
+            failures.put(failureKey, sourcePath, classPath, messages.toString(), exception);
+            PrintWriter perr = new PrintWriter(err);
+            perr.print(messages.toString());
             perr.flush();
-            return null;
+            throw exception;
         }
 
         Map<String, byte[]> classBytes = manager.getClassBytes();
@@ -150,4 +231,12 @@ public class JavaCompiler {
 
         return classBytes; 
     }
+
+    /**
+     * Returns the cache of failed compilations
+     * @return the cache of failed compilations
+     */
+    public CompilationFailureCache getFailureCache() {
+        return failures;
+    }
 }
@@ -0,0 +1,19 @@
+package com.sun.script.java;
+
+/**
+ * <p>Title: JavaExpression</p>
+ * <p>Description: A compiled Java expression. The values of the bindings the expression references
+ * are passed positionally, in the order they were declared when the expression was compiled.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>com.sun.script.java.JavaExpression</code></p>
+ */
+public interface JavaExpression {
+    /**
+     * Evaluates the expression
+     * @param args The binding values
+     * @return the boxed value of the expression
+     * @throws Exception thrown by any method the expression calls
+     */
+    public Object eval(Object[] args) throws Exception;
+}
@@ -0,0 +1,95 @@
+package com.sun.script.java;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Title: JavaLibrary</p>
+ * <p>Description: A set of shared classes compiled once and defined in one class loader which the loaders of
+ * all scripts compiled against the library delegate to. The library classes are also served to javac from memory,
+ * so scripts can reference them without carrying their own copies.</p>
+ * <p>Libraries are immutable. To change the library, compile a new one and install it with
+ * {@link JavaScriptEngine#setLibrary(JavaLibrary)}. Scripts compiled earlier keep running against the version they
+ * were compiled with, and the old version's classes can be unloaded once those scripts are released.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>com.sun.script.java.JavaLibrary</code></p>
+ */
+public class JavaLibrary {
+    /** The version sequence */
+    private static final AtomicLong versions = new AtomicLong();
+
+    /** The library version */
+    private final long version;
+    /** The library class byte codes keyed by class name */
+    private final Map<String, byte[]> classBytes;
+    /** The class loader the library classes are defined in */
+    private final MemoryClassLoader loader;
+
+    /**
+     * Creates a new JavaLibrary
+     * @param classBytes The compiled library class byte codes keyed by class name
+     * @param classPath The class path the library was compiled against
+     * @param parent The parent class loader of the library loader
+     */
+    JavaLibrary(Map<String, byte[]> classBytes, String classPath, ClassLoader parent) {
+        this.version = versions.incrementAndGet();
+        this.classBytes = Collections.unmodifiableMap(new HashMap<String, byte[]>(classBytes));
+        // the loader discards bytes once a class is defined, so it gets its own copy
+        this.loader = new MemoryClassLoader(new HashMap<String, byte[]>(classBytes), classPath, parent);
+    }
+
+    /**
+     * Returns the library version, which increases with every library compiled in this JVM
+     * @return the library version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the names of the library classes
+     * @return a read only set of class names
+     */
+    public Set<String> getClassNames() {
+        return classBytes.keySet();
+    }
+
+    /**
+     * Returns the class loader the library classes are defined in
+     * @return the library class loader
+     */
+    public ClassLoader getClassLoader() {
+        return loader;
+    }
+
+    /**
+     * Loads a library class
+     * @param className The class name
+     * @return the class
+     * @throws ClassNotFoundException thrown if the class is not found
+     */
+    public Class<?> loadClass(String className) throws ClassNotFoundException {
+        return loader.load(className);
+    }
+
+    /**
+     * Returns the library class byte codes for javac
+     * @return a read only map of class byte codes keyed by class name
+     */
+    Map<String, byte[]> getClassBytes() {
+        return classBytes;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "JavaLibrary [version=" + version + ", classes=" + classBytes.size() + "]";
+    }
+}
@@ -36,7 +36,10 @@ import javax.script.*;
 
 /**
  * <p>Title: JavaScriptEngine</p>
- * <p>Description: A script engine for Java programming language.</p> 
+ * <p>Description: A script engine for Java programming language. A script is either a compilation unit, whose main
+ * class is run and returned by eval, or a single expression such as <code>a * b + 1</code>, which is evaluated against the
+ * bindings of the script context and whose value eval returns. A script with a <code>;</code>, a brace or a type
+ * declaration keyword is always compiled as a compilation unit.</p> 
  * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
  * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
  * <p><code>com.sun.script.java.JavaScriptEngine</code></p>
@@ -50,8 +53,24 @@ public class JavaScriptEngine extends AbstractScriptEngine implements Compilable
      */
     public JavaScriptEngine() {
         compiler = new JavaCompiler();
+        expressionCompiler = new ExpressionCompiler(compiler);
     }
 
+    /** The compiler for expression sources */
+    private final ExpressionCompiler expressionCompiler;
+    /** Compiled expressions keyed by source, binding names and types, parent class loader and library */
+    private final Map<ExpressionKey, JavaExpression> expressions = Collections.synchronizedMap(
+        new LinkedHashMap<ExpressionKey, JavaExpression>(16, 0.75f, true) {
+            private static final long serialVersionUID = -2218400420585546542L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ExpressionKey, JavaExpression> eldest) {
+                return size() > EXPRESSION_CACHE_SIZE;
+            }
+        });
+
+
+    /** The library scripts are compiled against, may be null */
+    private volatile JavaLibrary library;
 
     /** The factory that created this engine, may be null */
     private ScriptEngineFactory factory;          
@@ -64,15 +83,15 @@ public class JavaScriptEngine extends AbstractScriptEngine implements Compilable
      * <p><code>com.sun.script.java.JavaScriptEngine.JavaCompiledScript</code></p>
      */
     private class JavaCompiledScript extends CompiledScript {
-        /** The underlying class of the script */
-        private final Class<?> clazz;
+        /** The resolved entry point of the script class */
+        private final EntryPoint entryPoint;
 
         /**
          * Creates a new JavaCompiledScript
          * @param clazz The underlying class of the script
          */
         JavaCompiledScript (Class<?> clazz) {
-            this.clazz = clazz;
+            this.entryPoint = clazz == null ? null : new EntryPoint(clazz);
         }
 
         /**
@@ -90,16 +109,304 @@ public class JavaScriptEngine extends AbstractScriptEngine implements Compilable
          */
         @Override
 		public Object eval(ScriptContext ctx) throws ScriptException {
-            return evalClass(clazz, ctx);
+            return evalClass(entryPoint, ctx);
+        }
+    }
+
+    /**
+     * <p>Title: JavaCompiledExpression</p>
+     * <p>Description: A compiled expression, which is compiled on first use for the types of the bindings it references.
+     * The primitive entry points return the value of the expression without boxing it when the expression is compiled
+     * to a {@link PrimitiveExpression}, and otherwise convert its value.</p>
+     * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+     * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+     * <p><code>com.sun.script.java.JavaScriptEngine.JavaCompiledExpression</code></p>
+     */
+    public class JavaCompiledExpression extends CompiledScript {
+        /** The expression source */
+        private final String source;
+        /** The names the expression references */
+        private final List<String> referenced;
+
+        /**
+         * Creates a new JavaCompiledExpression
+         * @param source The expression source
+         */
+        JavaCompiledExpression(String source) {
+            this.source = source;
+            this.referenced = new ArrayList<String>(ExpressionParser.getReferencedNames(source));
+        }
+
+        /**
+         * {@inheritDoc}
+         * @see javax.script.CompiledScript#getEngine()
+         */
+        @Override
+        public ScriptEngine getEngine() {
+            return JavaScriptEngine.this;
+        }
+
+        /**
+         * {@inheritDoc}
+         * @see javax.script.CompiledScript#eval(javax.script.ScriptContext)
+         */
+        @Override
+        public Object eval(ScriptContext ctx) throws ScriptException {
+            List<Object> values = new ArrayList<Object>(referenced.size());
+            JavaExpression expr = expression(source, referenced, values, ctx);
+            try {
+                return expr.eval(values.toArray());
+            } catch (ScriptException se) {
+                throw se;
+            } catch (Exception exp) {
+                throw new ScriptException(exp);
+            }
+        }
+
+        /**
+         * Evaluates a numeric expression against the engine's context
+         * @return the value of the expression, converted as by a Java cast
+         * @throws ScriptException thrown if the expression does not compile, throws an exception or is not numeric
+         */
+        public long evalLong() throws ScriptException {
+            return evalLong(context);
+        }
+
+        /**
+         * Evaluates a numeric expression
+         * @param ctx The script context supplying the bindings
+         * @return the value of the expression, converted as by a Java cast
+         * @throws ScriptException thrown if the expression does not compile, throws an exception or is not numeric
+         */
+        public long evalLong(ScriptContext ctx) throws ScriptException {
+            List<Object> values = new ArrayList<Object>(referenced.size());
+            JavaExpression expr = expression(source, referenced, values, ctx);
+            try {
+                if (expr instanceof PrimitiveExpression) {
+                    return ((PrimitiveExpression)expr).evalLong(values.toArray());
+                }
+                return toNumber(expr.eval(values.toArray())).longValue();
+            } catch (ScriptException se) {
+                throw se;
+            } catch (Exception exp) {
+                throw new ScriptException(exp);
+            }
+        }
+
+        /**
+         * Evaluates a numeric expression against the engine's context
+         * @return the value of the expression, converted as by a Java cast
+         * @throws ScriptException thrown if the expression does not compile, throws an exception or is not numeric
+         */
+        public double evalDouble() throws ScriptException {
+            return evalDouble(context);
+        }
+
+        /**
+         * Evaluates a numeric expression
+         * @param ctx The script context supplying the bindings
+         * @return the value of the expression, converted as by a Java cast
+         * @throws ScriptException thrown if the expression does not compile, throws an exception or is not numeric
+         */
+        public double evalDouble(ScriptContext ctx) throws ScriptException {
+            List<Object> values = new ArrayList<Object>(referenced.size());
+            JavaExpression expr = expression(source, referenced, values, ctx);
+            try {
+                if (expr instanceof PrimitiveExpression) {
+                    return ((PrimitiveExpression)expr).evalDouble(values.toArray());
+                }
+                return toNumber(expr.eval(values.toArray())).doubleValue();
+            } catch (ScriptException se) {
+                throw se;
+            } catch (Exception exp) {
+                throw new ScriptException(exp);
+            }
+        }
+
+        /**
+         * Evaluates a boolean expression against the engine's context
+         * @return the value of the expression
+         * @throws ScriptException thrown if the expression does not compile, throws an exception or is not boolean
+         */
+        public boolean evalBoolean() throws ScriptException {
+            return evalBoolean(context);
+        }
+
+        /**
+         * Evaluates a boolean expression
+         * @param ctx The script context supplying the bindings
+         * @return the value of the expression
+         * @throws ScriptException thrown if the expression does not compile, throws an exception or is not boolean
+         */
+        public boolean evalBoolean(ScriptContext ctx) throws ScriptException {
+            List<Object> values = new ArrayList<Object>(referenced.size());
+            JavaExpression expr = expression(source, referenced, values, ctx);
+            try {
+                if (expr instanceof PrimitiveExpression) {
+                    return ((PrimitiveExpression)expr).evalBoolean(values.toArray());
+                }
+                Object value = expr.eval(values.toArray());
+                if (!(value instanceof Boolean)) {
+                    throw new ScriptException("Expression value is not a boolean: " + value);
+                }
+                return ((Boolean)value).booleanValue();
+            } catch (ScriptException se) {
+                throw se;
+            } catch (Exception exp) {
+                throw new ScriptException(exp);
+            }
+        }
+
+        private Number toNumber(Object value) throws ScriptException {
+            if (value instanceof Number) {
+                return (Number)value;
+            }
+            if (value instanceof Character) {
+                return Integer.valueOf(((Character)value).charValue());
+            }
+            throw new ScriptException("Expression value is not a number: " + value);
+        }
+    }
+
+    /**
+     * <p>Title: EntryPoint</p>
+     * <p>Description: The resolved entry point of a script class. The supported forms, in order of preference, are:<ul>
+     * 	<li><b><code>public static void main(ScriptContext, String[])</code></b>: the context is passed to each invocation.</li>
+     * 	<li><b><code>public void main(String[])</code></b>: a new instance is created with the no-arg constructor for each invocation
+     * 	and is passed the context through its <code>setScriptContext(ScriptContext)</code> instance method, if it has one.</li>
+     * 	<li><b><code>public static void main(String[])</code></b>: the context is passed through a static
+     * 	<code>setScriptContext(ScriptContext)</code>, if the class has one. Since the context is then shared,
+     * 	invocations of such classes are serialized on the class.</li>
+     * </ul>
+     * The first two forms can run the same compiled class concurrently without any locking.</p>
+     * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+     * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+     * <p><code>com.sun.script.java.JavaScriptEngine.EntryPoint</code></p>
+     */
+    private static final class EntryPoint {
+        /** The script class */
+        private final Class<?> clazz;
+        /** The main method or null if the class has none */
+        private final Method mainMethod;
+        /** The setScriptContext method or null if the class has none */
+        private final Method setCtxMethod;
+        /** The no-arg constructor for per-invocation instances, null for static entry points */
+        private final Constructor<?> constructor;
+        /** true if the main method takes the script context as its first parameter */
+        private final boolean contextArg;
+
+        /**
+         * Resolves the entry point of the passed class
+         * @param clazz The script class
+         */
+        EntryPoint(Class<?> clazz) {
+            this.clazz = clazz;
+            boolean relax = !Modifier.isPublic(clazz.getModifiers());
+            Method main = findMainMethod(clazz, MAIN_CONTEXT_PARAMS, true);
+            Method setCtx = null;
+            Constructor<?> ctor = null;
+            contextArg = main != null;
+            if (main == null) {
+                main = findMainMethod(clazz, MAIN_PARAMS, false);
+                ctor = main == null ? null : findConstructor(clazz);
+                if (ctor != null) {
+                    setCtx = findSetScriptContextMethod(clazz, false);
+                } else {
+                    main = findMainMethod(clazz, MAIN_PARAMS, true);
+                    setCtx = findSetScriptContextMethod(clazz, true);
+                }
+            }
+            if (relax) {
+                // try to relax access
+                if (main != null) main.setAccessible(true);
+                if (setCtx != null) setCtx.setAccessible(true);
+            }
+            if (ctor != null) ctor.setAccessible(true);
+            this.mainMethod = main;
+            this.setCtxMethod = setCtx;
+            this.constructor = ctor;
+        }
+
+        /**
+         * Runs the script class against the passed context
+         * @param ctx The script context
+         * @throws Exception thrown on any error invoking the script
+         */
+        void invoke(ScriptContext ctx) throws Exception {
+            // get "command line" args for the main method
+            String[] args = getArguments(ctx);
+            if (contextArg) {
+                mainMethod.invoke(null, new Object[] { ctx, args });
+            } else if (constructor != null) {
+                Object instance = constructor.newInstance();
+                if (setCtxMethod != null) {
+                    setCtxMethod.invoke(instance, new Object[] { ctx });
+                }
+                mainMethod.invoke(instance, new Object[] { args });
+            } else if (setCtxMethod != null) {
+                // the context is held statically by the class, so invocations cannot overlap
+                synchronized (clazz) {
+                    setCtxMethod.invoke(null, new Object[] { ctx });
+                    if (mainMethod != null) {
+                        mainMethod.invoke(null, new Object[] { args });
+                    }
+                }
+            } else if (mainMethod != null) {
+                mainMethod.invoke(null, new Object[] { args });
+            }
         }
     }
 
     /**
+     * <p>Title: ExpressionKey</p>
+     * <p>Description: The key of a compiled expression. The parent class loader is compared by identity, since the
+     * compiled expression resolves its classes through it.</p>
+     * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+     * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+     * <p><code>com.sun.script.java.JavaScriptEngine.ExpressionKey</code></p>
+     */
+    private static final class ExpressionKey {
+        /** The expression source followed by the names and types of its bindings */
+        private final String signature;
+        /** The parent class loader, may be null */
+        private final ClassLoader parent;
+        /** The library version, 0 for none */
+        private final long libraryVersion;
+
+        ExpressionKey(String signature, ClassLoader parent, long libraryVersion) {
+            this.signature = signature;
+            this.parent = parent;
+            this.libraryVersion = libraryVersion;
+        }
+
+        @Override
+        public int hashCode() {
+            return (signature.hashCode() * 31 + System.identityHashCode(parent)) * 31 + (int)libraryVersion;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ExpressionKey)) {
+                return false;
+            }
+            ExpressionKey other = (ExpressionKey)obj;
+            return parent == other.parent && libraryVersion == other.libraryVersion && signature.equals(other.signature);
+        }
+    }
+
+    /**
+     * Compiles a script, which is either a class or, when the source is a single expression,
+     * a {@link JavaCompiledExpression} compiled on first use. A class which does not compile fails here, while an
+     * expression depends on the types of the bindings it is evaluated against, so its compilation errors are thrown by
+     * {@link CompiledScript#eval(ScriptContext)}.
      * {@inheritDoc}
      * @see javax.script.Compilable#compile(java.lang.String)
      */
     @Override
 	public CompiledScript compile(String script) throws ScriptException {
+        if (ExpressionParser.isExpression(script)) {
+            return new JavaCompiledExpression(script);
+        }
         Class<?> clazz = parse(script, context); 
         return new JavaCompiledScript(clazz);
     }
@@ -114,13 +421,22 @@ public class JavaScriptEngine extends AbstractScriptEngine implements Compilable
     }
 
     /**
+     * Evaluates a script in the session bound under {@link #SESSION}, if any. Otherwise a single expression
+     * returns its value, and a class is run and returned.
      * {@inheritDoc}
      * @see javax.script.ScriptEngine#eval(java.lang.String, javax.script.ScriptContext)
      */
     @Override
 	public Object eval(String str, ScriptContext ctx) throws ScriptException {	
+        JavaSession session = getSession(ctx);
+        if (session != null) {
+            return session.eval(str, ctx);
+        }
+        if (ExpressionParser.isExpression(str)) {
+            return evalExpression(str, ctx);
+        }
         Class<?> clazz = parse(str, ctx);
-        return evalClass(clazz, ctx);
+        return evalClass(clazz == null ? null : new EntryPoint(clazz), ctx);
     }
 
     /**
@@ -155,6 +471,90 @@ public class JavaScriptEngine extends AbstractScriptEngine implements Compilable
         return new SimpleBindings();
     }
 
+    /**
+     * Compiles a library of shared classes against the engine's default context.
+     * The library is not used until it is installed with {@link #setLibrary(JavaLibrary)}
+     * or bound in a script context under {@link #LIBRARY}.
+     * @param sources The library sources keyed by file name
+     * @return the compiled library
+     * @throws ScriptException thrown if the library does not compile
+     */
+    public JavaLibrary compileLibrary(Map<String, String> sources) throws ScriptException {
+        return compileLibrary(sources, context);
+    }
+
+    /**
+     * Compiles a library of shared classes
+     * @param sources The library sources keyed by file name
+     * @param ctx The script context supplying the class path, parent class loader and error writer.
+     * The library loader's parent defaults to the engine's class loader.
+     * @return the compiled library
+     * @throws ScriptException thrown if the library does not compile
+     */
+    public JavaLibrary compileLibrary(Map<String, String> sources, ScriptContext ctx) throws ScriptException {
+        String classPath = getClassPath(ctx);
+        Map<String, byte[]> classBytes = compiler.compileOrThrow(sources, ctx.getErrorWriter(),
+                            getSourcePath(ctx), classPath, null);
+        // scripts loaded under the library must still see the engine's own classes
+        ClassLoader parent = getParentLoader(ctx);
+        return new JavaLibrary(classBytes, classPath,
+                parent != null ? parent : JavaLibrary.class.getClassLoader());
+    }
+
+    /**
+     * Compiles a numeric expression over named double variables into a kernel which computes the expression
+     * element by element over primitive arrays, for example <code>compileKernel("a * b + Math.sqrt(c)", "a", "b", "c")</code>.
+     * The kernel is compiled against the engine's default context and installed library.
+     * @param expression The expression source
+     * @param variables The variable names, in the order of the kernel's input arrays
+     * @return the compiled kernel
+     * @throws ScriptException thrown if the expression does not compile
+     */
+    public DoubleKernel compileKernel(String expression, String... variables) throws ScriptException {
+        return expressionCompiler.compileKernel(expression, variables, context, getLibrary(context));
+    }
+
+    /**
+     * Installs the library that scripts are compiled against and loaded under, unless their
+     * context binds another under {@link #LIBRARY}. Scripts already compiled keep the library they were compiled with.
+     * @param library The library, null for none
+     */
+    public void setLibrary(JavaLibrary library) {
+        this.library = library;
+    }
+
+    /**
+     * Returns the installed library
+     * @return the installed library or null if there is none
+     */
+    public JavaLibrary getLibrary() {
+        return library;
+    }
+
+    /**
+     * Forgets the remembered compilation failures of the passed source so that the next eval recompiles it
+     * @param source The source that failed to compile
+     */
+    public void invalidateFailedCompilation(String source) {
+        compiler.getFailureCache().invalidate(source);
+    }
+
+    /**
+     * Forgets all remembered compilation failures, e.g. after fixing the class path
+     */
+    public void invalidateFailedCompilations() {
+        compiler.getFailureCache().invalidateAll();
+    }
+
+    /**
+     * Creates a new stateful session which compiles each eval'ed snippet incrementally.
+     * Evals are routed to the session when it is bound in the script context under {@link #SESSION}.
+     * @return a new session
+     */
+    public JavaSession createSession() {
+        return new JavaSession(this, compiler);
+    }
+
     /**
      * Sets the engine factory
      * @param factory the engine factory
@@ -177,23 +577,24 @@ public class JavaScriptEngine extends AbstractScriptEngine implements Compilable
         String sourcePath = getSourcePath(ctx);
         String classPath = getClassPath(ctx);
 
-        Map<String, byte[]> classBytes = compiler.compile(fileName, str,
-                            ctx.getErrorWriter(), sourcePath, classPath);
+        JavaLibrary lib = getLibrary(ctx);
 
-        if (classBytes == null) {
-            throw new ScriptException("compilation failed");
-        }
+        // a failed compilation throws, the same exception while the failure is cached
+        Map<String, byte[]> classBytes = compiler.compileOrThrow(Collections.singletonMap(fileName, str),
+                            ctx.getErrorWriter(), sourcePath, classPath,
+                            lib == null ? null : lib.getClassBytes());
 
-        // create a ClassLoader to load classes from MemoryJavaFileManager
+        // create a ClassLoader to load classes from MemoryJavaFileManager,
+        // scripts see the engine's own classes such as javax.script.ScriptContext
+        ClassLoader parent = lib == null ? getParentLoader(ctx) : lib.getClassLoader();
         MemoryClassLoader loader = new MemoryClassLoader(classBytes, classPath,
-                                            getParentLoader(ctx));
+                                            parent != null ? parent : JavaScriptEngine.class.getClassLoader());
 
         String mainClassName = getMainClassName(ctx);
         if (mainClassName != null) {
             try {
                 Class<?> clazz = loader.load(mainClassName);
-                Method mainMethod = findMainMethod(clazz);
-                if (mainMethod == null) {
+                if (!hasMainMethod(clazz)) {
                     throw new ScriptException("no main method in " + mainClassName);
                 }
                 return clazz;
@@ -234,8 +635,7 @@ public class JavaScriptEngine extends AbstractScriptEngine implements Compilable
         for (Class<?> clazz : classes) {
             int modifiers = clazz.getModifiers();
             if (Modifier.isPublic(modifiers)) {
-                Method mainMethod = findMainMethod(clazz);
-                if (mainMethod != null) {
+                if (hasMainMethod(clazz)) {
                     return clazz;
                 }                
             }
@@ -244,8 +644,7 @@ public class JavaScriptEngine extends AbstractScriptEngine implements Compilable
         // okay, try to find package private class that
         // has public static main method
         for (Class<?> clazz : classes) {
-            Method mainMethod = findMainMethod(clazz);
-            if (mainMethod != null) {
+            if (hasMainMethod(clazz)) {
                 return clazz;
             }
         }
@@ -254,13 +653,23 @@ public class JavaScriptEngine extends AbstractScriptEngine implements Compilable
         return null;
     }
 
-    // find public static void main(String[]) method, if any
-    private static Method findMainMethod(Class<?> clazz) {
+    private static final Class<?>[] MAIN_PARAMS = new Class<?>[] { String[].class };
+    private static final Class<?>[] MAIN_CONTEXT_PARAMS = new Class<?>[] { ScriptContext.class, String[].class };
+
+    // true if the class has any of the supported main methods
+    private static boolean hasMainMethod(Class<?> clazz) {
+        return findMainMethod(clazz, MAIN_CONTEXT_PARAMS, true) != null
+            || findMainMethod(clazz, MAIN_PARAMS, true) != null
+            || (findMainMethod(clazz, MAIN_PARAMS, false) != null && findConstructor(clazz) != null);
+    }
+
+    // find public [static] void main method with the passed parameters, if any
+    private static Method findMainMethod(Class<?> clazz, Class<?>[] params, boolean isStatic) {
         try {
-            Method mainMethod = clazz.getMethod("main", new Class[] { String[].class });
+            Method mainMethod = clazz.getMethod("main", params);
             int modifiers = mainMethod.getModifiers();
             if (Modifier.isPublic(modifiers) && 
-                Modifier.isStatic(modifiers)) {
+                Modifier.isStatic(modifiers) == isStatic) {
                 return mainMethod;
             }
         } catch (NoSuchMethodException nsme) {
@@ -268,14 +677,14 @@ public class JavaScriptEngine extends AbstractScriptEngine implements Compilable
         return null;
     }
 
-    // find public static void setScriptContext(ScriptContext) method, if any
-    private static Method findSetScriptContextMethod(Class<?> clazz) {
+    // find public [static] void setScriptContext(ScriptContext) method, if any
+    private static Method findSetScriptContextMethod(Class<?> clazz, boolean isStatic) {
         try {
             Method setCtxMethod = clazz.getMethod("setScriptContext", 
-                          new Class[] { ScriptContext.class });
+                          new Class<?>[] { ScriptContext.class });
             int modifiers = setCtxMethod.getModifiers();
             if (Modifier.isPublic(modifiers) && 
-                Modifier.isStatic(modifiers)) {
+                Modifier.isStatic(modifiers) == isStatic) {
                 return setCtxMethod;
             }
         } catch (NoSuchMethodException nsme) {
@@ -283,6 +692,18 @@ public class JavaScriptEngine extends AbstractScriptEngine implements Compilable
         return null;
     }
 
+    // find the no-arg constructor of a concrete class, if any
+    private static Constructor<?> findConstructor(Class<?> clazz) {
+        if (Modifier.isAbstract(clazz.getModifiers()) || clazz.isInterface()) {
+            return null;
+        }
+        try {
+            return clazz.getDeclaredConstructor();
+        } catch (NoSuchMethodException nsme) {
+        }
+        return null;
+    }
+
     private static String getFileName(ScriptContext ctx) {
         int scope = ctx.getAttributesScope(ScriptEngine.FILENAME);
         if (scope != -1) {
@@ -296,6 +717,9 @@ public class JavaScriptEngine extends AbstractScriptEngine implements Compilable
     // the prefix used for such System properties
     private static final String SYSPROP_PREFIX = "com.sun.script.java.";
 
+    // the maximum number of compiled expressions retained, "com.sun.script.java.expressionCacheSize"
+    private static final int EXPRESSION_CACHE_SIZE = Integer.getInteger(SYSPROP_PREFIX + "expressionCacheSize", 256);
+
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
     private static final String ARGUMENTS = "arguments";
     private static String[] getArguments(ScriptContext ctx) {
@@ -311,7 +735,7 @@ public class JavaScriptEngine extends AbstractScriptEngine implements Compilable
     }
 
     private static final String SOURCEPATH = "sourcepath";
-    private static String getSourcePath(ScriptContext ctx) {
+    static String getSourcePath(ScriptContext ctx) {
         int scope = ctx.getAttributesScope(SOURCEPATH);
         if (scope != -1) {
             return ctx.getAttribute(SOURCEPATH).toString();
@@ -321,7 +745,7 @@ public class JavaScriptEngine extends AbstractScriptEngine implements Compilable
     }
 
     private static final String CLASSPATH = "classpath";
-    private static String getClassPath(ScriptContext ctx) {
+    static String getClassPath(ScriptContext ctx) {
         int scope = ctx.getAttributesScope(CLASSPATH);
         if (scope != -1) {
             return ctx.getAttribute(CLASSPATH).toString();
@@ -345,7 +769,7 @@ public class JavaScriptEngine extends AbstractScriptEngine implements Compilable
     }
 
     private static final String PARENTLOADER = "parentLoader";
-    private static ClassLoader getParentLoader(ScriptContext ctx) {
+    static ClassLoader getParentLoader(ScriptContext ctx) {
         int scope = ctx.getAttributesScope(PARENTLOADER);
         if (scope != -1) {
             Object loader = ctx.getAttribute(PARENTLOADER);
@@ -356,44 +780,100 @@ public class JavaScriptEngine extends AbstractScriptEngine implements Compilable
         return null;       
     }
 
-    private static Object evalClass(Class<?> clazz, ScriptContext ctx) 
-                            throws ScriptException {
+    /**
+     * Evaluates a single expression, compiling it on first use for the current binding types
+     * @param str The expression source
+     * @param ctx The script context supplying the bindings
+     * @return the value of the expression
+     * @throws ScriptException thrown if the expression does not compile or throws an exception
+     */
+    private Object evalExpression(String str, ScriptContext ctx) throws ScriptException {
+        List<Object> values = new ArrayList<Object>();
+        JavaExpression expr = expression(str, ExpressionParser.getReferencedNames(str), values, ctx);
+        try {
+            return expr.eval(values.toArray());
+        } catch (ScriptException se) {
+            throw se;
+        } catch (Exception exp) {
+            throw new ScriptException(exp);
+        }
+    }
+
+    /**
+     * Returns an expression compiled for the current binding types, compiling it on first use
+     * @param str The expression source
+     * @param referenced The names the expression references
+     * @param values Receives the values of the referenced names which are bound, in the order the expression takes them
+     * @param ctx The script context supplying the bindings
+     * @return the compiled expression
+     * @throws ScriptException thrown if the expression does not compile
+     */
+    private JavaExpression expression(String str, Collection<String> referenced, List<Object> values, ScriptContext ctx)
+            throws ScriptException {
         // JSR-223 requirement
         ctx.setAttribute("context", ctx, ScriptContext.ENGINE_SCOPE);
-        if (clazz == null) {
-            return null;
-        }
-        try {            
-            boolean isPublicClazz = Modifier.isPublic(clazz.getModifiers());
-
-            // find the setScriptContext method
-            Method setCtxMethod = findSetScriptContextMethod(clazz);
-            // call setScriptContext and pass current ctx variable
-            if (setCtxMethod != null) {
-                if (! isPublicClazz) {
-                    // try to relax access
-                    setCtxMethod.setAccessible(true);
-                }
-                setCtxMethod.invoke(null, new Object[] { ctx });
+        List<String> names = new ArrayList<String>();
+        for (String name : referenced) {
+            int scope = ctx.getAttributesScope(name);
+            if (scope != -1) {
+                names.add(name);
+                values.add(ctx.getAttribute(name, scope));
             }
+        }
+        Class<?>[] types = new Class<?>[names.size()];
+        StringBuilder key = new StringBuilder(str).append('\u0000');
+        for (int i = 0; i < types.length; i++) {
+            types[i] = ExpressionCompiler.bindingType(values.get(i));
+            key.append(names.get(i)).append(':').append(types[i].getName()).append(',');
+        }
+        JavaLibrary lib = getLibrary(ctx);
+        ExpressionKey expressionKey = new ExpressionKey(key.toString(), getParentLoader(ctx), lib == null ? 0 : lib.getVersion());
+        JavaExpression expr = expressions.get(expressionKey);
+        if (expr == null) {
+            expr = expressionCompiler.compile(str, names.toArray(new String[names.size()]), types, ctx, lib);
+            expressions.put(expressionKey, expr);
+        }
+        return expr;
+    }
 
-            // find the main method
-            Method mainMethod = findMainMethod(clazz);
-            if (mainMethod != null) {
-                if (! isPublicClazz) {
-                    // try to relax access
-                    mainMethod.setAccessible(true);
-                }        
-
-                // get "command line" args for the main method
-                String[] args = getArguments(ctx);
+    /** The context attribute name of a {@link JavaLibrary} which overrides the installed library */
+    public static final String LIBRARY = "library";
+    // the library bound in the context, or the installed library
+    JavaLibrary getLibrary(ScriptContext ctx) {
+        int scope = ctx.getAttributesScope(LIBRARY);
+        if (scope != -1) {
+            Object lib = ctx.getAttribute(LIBRARY, scope);
+            if (lib instanceof JavaLibrary) {
+                return (JavaLibrary) lib;
+            }
+        }
+        return library;
+    }
 
-                // call main method
-                mainMethod.invoke(null, new Object[] { args });
+    /** The context attribute name of the {@link JavaSession} that evals should be routed to */
+    public static final String SESSION = "session";
+    private static JavaSession getSession(ScriptContext ctx) {
+        int scope = ctx.getAttributesScope(SESSION);
+        if (scope != -1) {
+            Object session = ctx.getAttribute(SESSION, scope);
+            if (session instanceof JavaSession) {
+                return (JavaSession) session;
             }
+        }
+        return null;
+    }
 
+    private static Object evalClass(EntryPoint entryPoint, ScriptContext ctx) 
+                            throws ScriptException {
+        // JSR-223 requirement
+        ctx.setAttribute("context", ctx, ScriptContext.ENGINE_SCOPE);
+        if (entryPoint == null) {
+            return null;
+        }
+        try {            
+            entryPoint.invoke(ctx);
             // return main class as eval's result
-            return clazz;
+            return entryPoint.clazz;
         } catch (Exception exp) {
             throw new ScriptException(exp);
         }
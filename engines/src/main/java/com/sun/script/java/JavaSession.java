@@ -0,0 +1,684 @@
+package com.sun.script.java;
+
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import javax.script.ScriptException;
+
+/**
+ * <p>Title: JavaSession</p>
+ * <p>Description: A stateful, <b><code>jshell</code></b> style evaluation session for the Java script engine.
+ * Each submitted snippet is compiled on its own into a small class which statically imports the names declared
+ * by earlier snippets, so the compile cost of each step depends on the new snippet and the names declared so far, and not
+ * on the session history. The classes of snippets which declared members are served to javac from memory, and all snippet
+ * classes are defined in one session class loader.</p>
+ * <p>A snippet is classified as one of:<ul>
+ * 	<li><b>Imports</b>: one or more <code>import</code> statements which are added to all subsequent snippets</li>
+ * 	<li><b>Declarations</b>: a variable, method or type declaration which becomes a static member of the snippet class.
+ * 	Declared variables keep their state for the life of the session.</li>
+ * 	<li><b>Expressions</b>: a snippet with no trailing <code>;</code> or <code>}</code>, the value of which is returned from the eval</li>
+ * 	<li><b>Statements</b>: anything else, executed once. Locals declared in statements do not outlive the snippet.</li>
+ * </ul></p>
+ * <p>Snippets can read the script context of the eval they run in as <b><code>context</code></b>. Methods declared by
+ * snippets read it through a static field of their class which delegates to the context of the session's current, or
+ * latest, eval.
+ * A session is bound to an engine eval by setting it in the script context under {@link JavaScriptEngine#SESSION}.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>com.sun.script.java.JavaSession</code></p>
+ */
+public class JavaSession {
+    /** The package that snippet classes are compiled into */
+    public static final String SNIPPET_PACKAGE = "com_sun_script_java_session";
+    /** The simple name prefix of snippet classes */
+    public static final String SNIPPET_PREFIX = "Snippet$";
+
+    /** The name of the generated method that runs a snippet */
+    private static final String RUN_METHOD = "$run";
+    /** The name of the generated static field holding the script context */
+    private static final String CONTEXT_FIELD = "context";
+    /** The script context of the snippet being initialized or run on the current thread */
+    private static final ThreadLocal<ScriptContext> currentContext = new ThreadLocal<ScriptContext>();
+    /** The session of the snippet being initialized or run on the current thread */
+    private static final ThreadLocal<JavaSession> currentSession = new ThreadLocal<JavaSession>();
+
+    /** Member modifiers which are replaced with <code>public static</code> on declarations */
+    private static final Set<String> ACCESS_MODIFIERS = new HashSet<String>(Arrays.asList(
+            "public", "protected", "private", "static"));
+    /** All member modifiers */
+    private static final Set<String> MODIFIERS = new HashSet<String>(Arrays.asList(
+            "public", "protected", "private", "static", "final", "abstract", "synchronized",
+            "transient", "volatile", "strictfp", "native"));
+    /** Keywords which can start a type declaration */
+    private static final Set<String> TYPE_KEYWORDS = new HashSet<String>(Arrays.asList(
+            "class", "interface", "enum"));
+    /** Keywords which can never start a type reference */
+    private static final Set<String> NOT_TYPES = new HashSet<String>(Arrays.asList(
+            "return", "throw", "new", "if", "else", "for", "while", "do", "switch", "case", "default",
+            "try", "catch", "finally", "break", "continue", "assert", "this", "super", "null", "true",
+            "false", "instanceof", "import", "package", "goto", "const"));
+    /** Tokens allowed between the angle brackets of a type's arguments */
+    private static final Set<String> TYPE_ARGUMENT_TOKENS = new HashSet<String>(Arrays.asList(
+            ".", ",", "?", "[", "]", "<", ">", "&", "extends", "super"));
+
+    /** The snippet kinds */
+    private static enum Kind { IMPORTS, DECLARATION, EXPRESSION, STATEMENTS }
+
+    /** The engine that created this session */
+    private final JavaScriptEngine engine;
+    /** The compiler used to compile snippets */
+    private final JavaCompiler compiler;
+    /** The byte codes visible to snippets, those of the session library and of the snippets which declared members */
+    private final Map<String, byte[]> sessionClassBytes = new HashMap<String, byte[]>();
+    /** The context the static context field of snippet classes delegates to */
+    private final ScriptContext sessionContext = new SessionContext();
+    /** The script context of the current or latest eval */
+    private volatile ScriptContext context = null;
+    /** The import statements in effect, without the <code>import</code> keyword or trailing semicolon */
+    private final List<String> imports = new ArrayList<String>();
+    /** The snippet class which declared each name, latest declaration wins */
+    private final Map<String, String> declarations = new LinkedHashMap<String, String>();
+    /** The session class loader, created with the first snippet */
+    private MemoryClassLoader loader = null;
+    /** The library the session was started with, may be null */
+    private JavaLibrary library = null;
+    /** The number of snippets compiled */
+    private int snippetCount = 0;
+
+    /**
+     * Creates a new JavaSession
+     * @param engine The engine that created this session
+     * @param compiler The compiler used to compile snippets
+     */
+    JavaSession(JavaScriptEngine engine, JavaCompiler compiler) {
+        this.engine = engine;
+        this.compiler = compiler;
+    }
+
+    /**
+     * Returns the script context of the snippet being initialized or run on the current thread.
+     * Referenced by generated snippet classes.
+     * @return the current script context
+     */
+    public static ScriptContext currentContext() {
+        return currentContext.get();
+    }
+
+    /**
+     * Returns a script context which delegates to the context of the current, or latest, eval of the session whose
+     * snippet is being initialized on the current thread. Referenced by generated snippet classes.
+     * @return the session script context or null if no snippet is being initialized or run
+     */
+    public static ScriptContext sessionContext() {
+        JavaSession session = currentSession.get();
+        return session == null ? null : session.sessionContext;
+    }
+
+    /**
+     * Compiles and runs the passed snippet
+     * @param snippet The snippet source
+     * @param ctx The script context to run the snippet against
+     * @return the value of an expression snippet, or null for any other kind
+     * @throws ScriptException thrown if the snippet fails to compile or throws an exception
+     */
+    public synchronized Object eval(String snippet, ScriptContext ctx) throws ScriptException {
+        String code = snippet.trim();
+        if (code.length() == 0) {
+            return null;
+        }
+        context = ctx;
+        List<Token> tokens = tokenize(code);
+        Kind kind = classify(code, tokens);
+        String className = SNIPPET_PREFIX + (++snippetCount);
+        Class<?> clazz;
+        switch (kind) {
+        case IMPORTS:
+            List<String> added = parseImports(tokens, code);
+            List<String> newImports = new ArrayList<String>(imports);
+            newImports.addAll(added);
+            // compile an empty snippet to validate the imports before keeping them
+            if (compileSnippet(className, newImports, "", "return null;", ctx, ctx.getErrorWriter()) == null) {
+                throw new ScriptException("compilation failed");
+            }
+            forget(className);
+            imports.clear();
+            imports.addAll(newImports);
+            return null;
+        case DECLARATION:
+            if (!code.endsWith(";") && !code.endsWith("}")) {
+                // a field declaration needs its semicolon once it is a class member
+                code = code + ";";
+            }
+            clazz = compileSnippet(className, imports, toStaticDeclaration(code, tokens),
+                                   "return null;", ctx, ctx.getErrorWriter());
+            break;
+        case EXPRESSION:
+            // the expression may be a void method call, so retry as a statement if it does not compile
+            clazz = compileSnippet(className, imports, "", "Object $value = (" + code + ");\nreturn $value;",
+                                   ctx, new StringWriter());
+            if (clazz == null) {
+                clazz = compileSnippet(className, imports, "", statementsBody(code + ";"), ctx, ctx.getErrorWriter());
+            }
+            break;
+        default:
+            clazz = compileSnippet(className, imports, "", statementsBody(code), ctx, ctx.getErrorWriter());
+        }
+        if (clazz == null) {
+            throw new ScriptException("compilation failed");
+        }
+        boolean declared = false;
+        try {
+            Object result = run(clazz, ctx);
+            declared = recordDeclarations(clazz);
+            return result;
+        } finally {
+            if (!declared) {
+                // later snippets only reference the classes which declared members
+                forget(className);
+            }
+        }
+    }
+
+    /**
+     * Returns the names declared in this session so far
+     * @return a read only set of declared names
+     */
+    public synchronized Set<String> getDeclaredNames() {
+        return Collections.unmodifiableSet(new HashSet<String>(declarations.keySet()));
+    }
+
+    /**
+     * Returns the import statements in effect in this session
+     * @return a read only list of imports, without the <code>import</code> keyword
+     */
+    public synchronized List<String> getImports() {
+        return Collections.unmodifiableList(new ArrayList<String>(imports));
+    }
+
+    /**
+     * Returns the number of snippets compiled in this session
+     * @return the number of snippets compiled
+     */
+    public synchronized int getSnippetCount() {
+        return snippetCount;
+    }
+
+    /**
+     * Discards all the session state so that the next snippet starts a fresh session
+     */
+    public synchronized void reset() {
+        // the library bytes are copied in again with the first snippet
+        sessionClassBytes.clear();
+        imports.clear();
+        declarations.clear();
+        loader = null;
+        library = null;
+        snippetCount = 0;
+    }
+
+    // Internals only below this point
+
+    /**
+     * Generates, compiles and loads a snippet class
+     * @param className The simple class name of the snippet
+     * @param snippetImports The import statements to include
+     * @param members The static member declarations of the snippet
+     * @param runBody The body of the run method
+     * @param ctx The script context
+     * @param err The writer compilation errors are written to
+     * @return the loaded snippet class or null if compilation failed
+     * @throws ScriptException thrown if the compiled class cannot be loaded
+     */
+    private Class<?> compileSnippet(String className, List<String> snippetImports, String members,
+                                    String runBody, ScriptContext ctx, Writer err) throws ScriptException {
+        StringBuilder src = new StringBuilder();
+        src.append("package ").append(SNIPPET_PACKAGE).append(";\n");
+        for (String imp : snippetImports) {
+            src.append("import ").append(imp).append(";\n");
+        }
+        for (Map.Entry<String, String> decl : declarations.entrySet()) {
+            src.append("import static ").append(SNIPPET_PACKAGE).append('.').append(decl.getValue())
+               .append('.').append(decl.getKey()).append(";\n");
+        }
+        src.append("public class ").append(className).append(" {\n");
+        src.append("public static final javax.script.ScriptContext ").append(CONTEXT_FIELD)
+           .append(" = com.sun.script.java.JavaSession.sessionContext();\n");
+        src.append(members).append('\n');
+        src.append("public static Object ").append(RUN_METHOD).append("() throws Throwable {\n");
+        src.append("final javax.script.ScriptContext ").append(CONTEXT_FIELD)
+           .append(" = com.sun.script.java.JavaSession.currentContext();\n");
+        src.append(runBody).append("\n}\n}\n");
+
+        if (loader == null) {
+            // the session keeps the library it started with
+            library = engine.getLibrary(ctx);
+            sessionClassBytes.clear();
+            if (library != null) {
+                sessionClassBytes.putAll(library.getClassBytes());
+            }
+        }
+        Map<String, byte[]> classBytes = compiler.compile(className + MemoryJavaFileManager.EXT, src.toString(),
+                err, JavaScriptEngine.getSourcePath(ctx), JavaScriptEngine.getClassPath(ctx), sessionClassBytes);
+        if (classBytes == null) {
+            return null;
+        }
+        sessionClassBytes.putAll(classBytes);
+        if (loader == null) {
+            ClassLoader parent = library != null ? library.getClassLoader() : JavaScriptEngine.getParentLoader(ctx);
+            loader = new MemoryClassLoader(new HashMap<String, byte[]>(), JavaScriptEngine.getClassPath(ctx),
+                    parent != null ? parent : JavaSession.class.getClassLoader());
+        }
+        // the loader discards bytes once a class is defined, so it gets its own copy
+        loader.addClassBytes(new HashMap<String, byte[]>(classBytes));
+        try {
+            return loader.load(SNIPPET_PACKAGE + "." + className);
+        } catch (ClassNotFoundException cnfe) {
+            throw new ScriptException(cnfe);
+        }
+    }
+
+    /**
+     * Runs a snippet class, initializing it first
+     * @param clazz The snippet class
+     * @param ctx The script context
+     * @return the return value of the snippet's run method
+     * @throws ScriptException thrown if the snippet throws an exception
+     */
+    private Object run(Class<?> clazz, ScriptContext ctx) throws ScriptException {
+        // JSR-223 requirement
+        ctx.setAttribute("context", ctx, ScriptContext.ENGINE_SCOPE);
+        ScriptContext previous = currentContext.get();
+        JavaSession previousSession = currentSession.get();
+        currentContext.set(ctx);
+        currentSession.set(this);
+        try {
+            Method runMethod = clazz.getMethod(RUN_METHOD);
+            return runMethod.invoke(null);
+        } catch (InvocationTargetException ite) {
+            throw toScriptException(ite.getCause());
+        } catch (ExceptionInInitializerError eie) {
+            throw toScriptException(eie.getCause());
+        } catch (Exception exp) {
+            throw new ScriptException(exp);
+        } finally {
+            currentContext.set(previous);
+            currentSession.set(previousSession);
+        }
+    }
+
+    /**
+     * Drops the byte codes of a snippet class and its nested classes from those visible to later snippets.
+     * The session class loader keeps the classes it has defined.
+     * @param className The simple class name of the snippet
+     */
+    private void forget(String className) {
+        String name = SNIPPET_PACKAGE + "." + className;
+        for (Iterator<String> names = sessionClassBytes.keySet().iterator(); names.hasNext();) {
+            String n = names.next();
+            if (n.equals(name) || n.startsWith(name + "$")) {
+                names.remove();
+            }
+        }
+    }
+
+    private static ScriptException toScriptException(Throwable t) {
+        if (t instanceof ScriptException) {
+            return (ScriptException)t;
+        }
+        if (t instanceof Exception) {
+            return new ScriptException((Exception)t);
+        }
+        ScriptException se = new ScriptException(String.valueOf(t));
+        se.initCause(t);
+        return se;
+    }
+
+    /**
+     * Records the static members declared by a successfully run snippet class so that
+     * subsequent snippets import them
+     * @param clazz The snippet class
+     * @return true if the snippet declared any member
+     */
+    private boolean recordDeclarations(Class<?> clazz) {
+        String className = clazz.getSimpleName();
+        int declared = 0;
+        for (Field field : clazz.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()) && !field.isSynthetic()
+                    && !CONTEXT_FIELD.equals(field.getName())) {
+                declare(field.getName(), className);
+                declared++;
+            }
+        }
+        for (Method method : clazz.getDeclaredMethods()) {
+            if (Modifier.isStatic(method.getModifiers()) && !method.isSynthetic()
+                    && !RUN_METHOD.equals(method.getName())) {
+                declare(method.getName(), className);
+                declared++;
+            }
+        }
+        for (Class<?> member : clazz.getDeclaredClasses()) {
+            declare(member.getSimpleName(), className);
+            declared++;
+        }
+        return declared > 0;
+    }
+
+    private void declare(String name, String className) {
+        // re-insert so that the import order follows declaration order
+        declarations.remove(name);
+        declarations.put(name, className);
+    }
+
+    private static String statementsBody(String code) {
+        // the if(true) keeps the trailing return reachable when the snippet returns or throws
+        return "if (true) {\n" + code + "\n}\nreturn null;";
+    }
+
+    /**
+     * Rewrites a declaration as a public static member, replacing any access or static modifiers
+     * @param code The declaration source
+     * @param tokens The tokens of the declaration
+     * @return the rewritten declaration
+     */
+    private static String toStaticDeclaration(String code, List<Token> tokens) {
+        StringBuilder b = new StringBuilder();
+        int i = skipAnnotations(tokens, 0);
+        int last = i < tokens.size() ? tokens.get(i).start : code.length();
+        b.append(code, 0, last);
+        while (i < tokens.size() && MODIFIERS.contains(tokens.get(i).text)) {
+            Token t = tokens.get(i);
+            if (!ACCESS_MODIFIERS.contains(t.text)) {
+                b.append(t.text).append(' ');
+            }
+            i++;
+        }
+        b.append("public static ");
+        b.append(code.substring(i < tokens.size() ? tokens.get(i).start : code.length()));
+        return b.toString();
+    }
+
+    /**
+     * Extracts the imported names from an imports snippet
+     * @param tokens The snippet tokens
+     * @param code The snippet source
+     * @return the imported names, including any <code>static</code> keyword
+     * @throws ScriptException thrown if the snippet contains anything other than import statements
+     */
+    private static List<String> parseImports(List<Token> tokens, String code) throws ScriptException {
+        List<String> result = new ArrayList<String>();
+        int i = 0;
+        while (i < tokens.size()) {
+            if (!"import".equals(tokens.get(i).text) || i + 1 >= tokens.size()) {
+                throw new ScriptException("import snippets may only contain import statements");
+            }
+            int start = tokens.get(i + 1).start;
+            int j = i + 1;
+            while (j < tokens.size() && !";".equals(tokens.get(j).text)) j++;
+            int end = j < tokens.size() ? tokens.get(j).start : code.length();
+            result.add(code.substring(start, end).trim());
+            i = j + 1;
+        }
+        return result;
+    }
+
+    /**
+     * Classifies a snippet
+     * @param code The snippet source
+     * @param tokens The snippet tokens
+     * @return the snippet kind
+     */
+    private static Kind classify(String code, List<Token> tokens) {
+        if (tokens.isEmpty()) {
+            return Kind.STATEMENTS;
+        }
+        if ("import".equals(tokens.get(0).text)) {
+            return Kind.IMPORTS;
+        }
+        int i = skipAnnotations(tokens, 0);
+        while (i < tokens.size() && MODIFIERS.contains(tokens.get(i).text)) i++;
+        if (i < tokens.size()) {
+            String first = tokens.get(i).text;
+            if (TYPE_KEYWORDS.contains(first) || ("@".equals(first) && i + 1 < tokens.size()
+                    && "interface".equals(tokens.get(i + 1).text))) {
+                return Kind.DECLARATION;
+            }
+            // generic methods start with their type parameters
+            if ("<".equals(first)) {
+                i = skipTypeArguments(tokens, i);
+            }
+            int afterType = skipType(tokens, i);
+            if (afterType != -1 && afterType < tokens.size() && tokens.get(afterType).isIdentifier()) {
+                if (afterType + 1 == tokens.size()) {
+                    return Kind.DECLARATION;
+                }
+                String next = tokens.get(afterType + 1).text;
+                if ("(".equals(next) || "=".equals(next) || ";".equals(next)
+                        || ",".equals(next) || "[".equals(next)) {
+                    return Kind.DECLARATION;
+                }
+            }
+        }
+        if (code.endsWith(";") || code.endsWith("}")) {
+            return Kind.STATEMENTS;
+        }
+        return Kind.EXPRESSION;
+    }
+
+    private static int skipAnnotations(List<Token> tokens, int i) {
+        while (i + 1 < tokens.size() && "@".equals(tokens.get(i).text)
+                && !"interface".equals(tokens.get(i + 1).text)) {
+            i += 2;
+            while (i + 1 < tokens.size() && ".".equals(tokens.get(i).text)) i += 2;
+            if (i < tokens.size() && "(".equals(tokens.get(i).text)) {
+                int depth = 0;
+                for (; i < tokens.size(); i++) {
+                    String t = tokens.get(i).text;
+                    if ("(".equals(t)) depth++;
+                    else if (")".equals(t) && --depth == 0) { i++; break; }
+                }
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Skips over a type reference
+     * @param tokens The snippet tokens
+     * @param i The index of the first token of the type
+     * @return the index of the token after the type or -1 if there is no type at the index
+     */
+    private static int skipType(List<Token> tokens, int i) {
+        if (i >= tokens.size()) return -1;
+        Token t = tokens.get(i);
+        if (!t.isIdentifier() || NOT_TYPES.contains(t.text) || MODIFIERS.contains(t.text)) {
+            return -1;
+        }
+        i++;
+        while (i + 1 < tokens.size() && ".".equals(tokens.get(i).text) && tokens.get(i + 1).isIdentifier()) {
+            i += 2;
+        }
+        if (i < tokens.size() && "<".equals(tokens.get(i).text)) {
+            i = skipTypeArguments(tokens, i);
+            if (i == -1) return -1;
+        }
+        while (i + 1 < tokens.size() && "[".equals(tokens.get(i).text) && "]".equals(tokens.get(i + 1).text)) {
+            i += 2;
+        }
+        return i;
+    }
+
+    private static int skipTypeArguments(List<Token> tokens, int i) {
+        int depth = 0;
+        for (; i < tokens.size(); i++) {
+            Token t = tokens.get(i);
+            if (!t.isIdentifier() && !TYPE_ARGUMENT_TOKENS.contains(t.text)) {
+                return -1;
+            }
+            if ("<".equals(t.text)) depth++;
+            else if (">".equals(t.text) && --depth == 0) return i + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * <p>Title: SessionContext</p>
+     * <p>Description: The script context seen by methods declared by snippets, which delegates to the context of the
+     * session's current, or latest, eval.</p>
+     * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+     * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+     * <p><code>com.sun.script.java.JavaSession.SessionContext</code></p>
+     */
+    private class SessionContext implements ScriptContext {
+        @Override
+        public void setBindings(Bindings bindings, int scope) {
+            context.setBindings(bindings, scope);
+        }
+
+        @Override
+        public Bindings getBindings(int scope) {
+            return context.getBindings(scope);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value, int scope) {
+            context.setAttribute(name, value, scope);
+        }
+
+        @Override
+        public Object getAttribute(String name, int scope) {
+            return context.getAttribute(name, scope);
+        }
+
+        @Override
+        public Object removeAttribute(String name, int scope) {
+            return context.removeAttribute(name, scope);
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return context.getAttribute(name);
+        }
+
+        @Override
+        public int getAttributesScope(String name) {
+            return context.getAttributesScope(name);
+        }
+
+        @Override
+        public Writer getWriter() {
+            return context.getWriter();
+        }
+
+        @Override
+        public Writer getErrorWriter() {
+            return context.getErrorWriter();
+        }
+
+        @Override
+        public void setWriter(Writer writer) {
+            context.setWriter(writer);
+        }
+
+        @Override
+        public void setErrorWriter(Writer writer) {
+            context.setErrorWriter(writer);
+        }
+
+        @Override
+        public Reader getReader() {
+            return context.getReader();
+        }
+
+        @Override
+        public void setReader(Reader reader) {
+            context.setReader(reader);
+        }
+
+        @Override
+        public List<Integer> getScopes() {
+            return context.getScopes();
+        }
+    }
+
+    /**
+     * <p>Title: Token</p>
+     * <p>Description: A lexical token of a snippet, just enough to classify it.</p>
+     * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+     * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+     * <p><code>com.sun.script.java.JavaSession.Token</code></p>
+     */
+    private static class Token {
+        /** The token text */
+        final String text;
+        /** The offset of the token in the snippet */
+        final int start;
+
+        Token(String text, int start) {
+            this.text = text;
+            this.start = start;
+        }
+
+        boolean isIdentifier() {
+            return Character.isJavaIdentifierStart(text.charAt(0));
+        }
+    }
+
+    /**
+     * Splits a snippet into tokens, skipping comments and whitespace.
+     * String and character literals are returned as single tokens.
+     * @param code The snippet source
+     * @return the list of tokens
+     */
+    private static List<Token> tokenize(String code) {
+        List<Token> tokens = new ArrayList<Token>();
+        int len = code.length();
+        int i = 0;
+        while (i < len) {
+            char c = code.charAt(i);
+            int start = i;
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '/' && i + 1 < len && code.charAt(i + 1) == '/') {
+                while (i < len && code.charAt(i) != '\n') i++;
+            } else if (c == '/' && i + 1 < len && code.charAt(i + 1) == '*') {
+                int end = code.indexOf("*/", i + 2);
+                i = end == -1 ? len : end + 2;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                while (i < len && Character.isJavaIdentifierPart(code.charAt(i))) i++;
+                tokens.add(new Token(code.substring(start, i), start));
+            } else if (c == '"' || c == '\'') {
+                i++;
+                while (i < len && code.charAt(i) != c) {
+                    if (code.charAt(i) == '\\') i++;
+                    i++;
+                }
+                i = Math.min(i + 1, len);
+                tokens.add(new Token(code.substring(start, i), start));
+            } else if ((c == '&' || c == '|') && i + 1 < len && code.charAt(i + 1) == c) {
+                i += 2;
+                tokens.add(new Token(code.substring(start, i), start));
+            } else {
+                i++;
+                tokens.add(new Token(String.valueOf(c), start));
+            }
+        }
+        return tokens;
+    }
+}
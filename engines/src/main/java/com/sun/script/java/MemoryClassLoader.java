@@ -79,6 +79,15 @@ public final class MemoryClassLoader extends URLClassLoader {
         return loadClass(className);
     }
 
+    /**
+     * Adds more class byte codes to this class loader so that classes compiled after 
+     * the loader was created can be loaded through it.
+     * @param moreClassBytes The map of class byte codes keyed by class name
+     */
+    public synchronized void addClassBytes(Map<String, byte[]> moreClassBytes) {
+        classBytes.putAll(moreClassBytes);
+    }
+
     /**
      * Loads all the classes in the classBytes map
      * @return An iterator over the loaded classes
@@ -97,7 +106,7 @@ public final class MemoryClassLoader extends URLClassLoader {
      * @see java.net.URLClassLoader#findClass(java.lang.String)
      */
     @Override
-	protected Class<?> findClass(String className) throws ClassNotFoundException {
+	protected synchronized Class<?> findClass(String className) throws ClassNotFoundException {
         byte[] buf = classBytes.get(className);
         if (buf != null) {
             // clear the bytes in map -- we don't need it anymore
@@ -29,17 +29,23 @@
 
 package com.sun.script.java;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.io.StringReader;
 import java.net.URI;
 import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.tools.FileObject;
 import javax.tools.ForwardingJavaFileManager;
@@ -47,6 +53,7 @@ import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject;
 import javax.tools.JavaFileObject.Kind;
 import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardLocation;
 
 /**
  * <p>Title: MemoryJavaFileManager</p>
@@ -62,14 +69,27 @@ public final class MemoryJavaFileManager extends ForwardingJavaFileManager<JavaF
 
     /** The compiled class bytes */
     private Map<String, byte[]> classBytes;
+    /** Previously compiled class bytes keyed by class name, visible to javac on the class path */
+    private final Map<String, byte[]> classPathBytes;
     
     /**
      * Creates a new MemoryJavaFileManager
      * @param fileManager The in memory file manager
      */
     public MemoryJavaFileManager(JavaFileManager fileManager) {
+        this(fileManager, null);
+    }
+
+    /**
+     * Creates a new MemoryJavaFileManager
+     * @param fileManager The in memory file manager
+     * @param classPathBytes Previously compiled class bytes keyed by class name which javac 
+     * should resolve references against as if they were on the class path. May be null.
+     */
+    public MemoryJavaFileManager(JavaFileManager fileManager, Map<String, byte[]> classPathBytes) {
         super(fileManager);
         classBytes = new HashMap<String, byte[]>();
+        this.classPathBytes = classPathBytes==null ? Collections.<String, byte[]>emptyMap() : classPathBytes;
     }
 
     /**
@@ -155,6 +175,70 @@ public final class MemoryJavaFileManager extends ForwardingJavaFileManager<JavaF
         }
     }
     
+    /**
+     * <p>Title: ClassInputBuffer</p>
+     * <p>Description: A file object that serves previously compiled Java bytecode to javac as a class path entry.</p> 
+     * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+     * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+     * <p><code>com.sun.script.java.MemoryJavaFileManager.ClassInputBuffer</code></p>
+     */
+    private static class ClassInputBuffer extends SimpleJavaFileObject {
+        private final String name;
+        private final byte[] bytes;
+
+        ClassInputBuffer(String name, byte[] bytes) {
+            super(URI.create("mfm:///" + name.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+            this.name = name;
+            this.bytes = bytes;
+        }
+
+        @Override
+		public InputStream openInputStream() {
+            return new ByteArrayInputStream(bytes);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>Class path listings are merged with the in-memory class path classes in the requested package.</p>
+     * @see javax.tools.ForwardingJavaFileManager#list(javax.tools.JavaFileManager.Location, java.lang.String, java.util.Set, boolean)
+     */
+    @Override
+	public Iterable<JavaFileObject> list(JavaFileManager.Location location, String packageName, 
+                                         Set<Kind> kinds, boolean recurse) throws IOException {
+        Iterable<JavaFileObject> listed = super.list(location, packageName, kinds, recurse);
+        if (location != StandardLocation.CLASS_PATH || !kinds.contains(Kind.CLASS) || classPathBytes.isEmpty()) {
+            return listed;
+        }
+        List<JavaFileObject> merged = new ArrayList<JavaFileObject>();
+        String prefix = packageName.length()==0 ? "" : packageName + ".";
+        for (Map.Entry<String, byte[]> entry : classPathBytes.entrySet()) {
+            String className = entry.getKey();
+            if (!className.startsWith(prefix)) continue;
+            if (!recurse && className.indexOf('.', prefix.length()) != -1) continue;
+            merged.add(new ClassInputBuffer(className, entry.getValue()));
+        }
+        if (merged.isEmpty()) {
+            return listed;
+        }
+        for (JavaFileObject file : listed) {
+            merged.add(file);
+        }
+        return merged;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @see javax.tools.ForwardingJavaFileManager#inferBinaryName(javax.tools.JavaFileManager.Location, javax.tools.JavaFileObject)
+     */
+    @Override
+	public String inferBinaryName(JavaFileManager.Location location, JavaFileObject file) {
+        if (file instanceof ClassInputBuffer) {
+            return ((ClassInputBuffer)file).name;
+        }
+		return super.inferBinaryName(location, file);
+    }
+
     /**
      * {@inheritDoc}
      * @see javax.tools.ForwardingJavaFileManager#getJavaFileForOutput(javax.tools.JavaFileManager.Location, java.lang.String, javax.tools.JavaFileObject.Kind, javax.tools.FileObject)
@@ -0,0 +1,36 @@
+package com.sun.script.java;
+
+/**
+ * <p>Title: PrimitiveExpression</p>
+ * <p>Description: A compiled Java expression of primitive type, which also returns its value unboxed.
+ * The entry points of the other kind of primitive throw a {@link ClassCastException}: a numeric expression has no
+ * boolean value and a boolean expression no numeric one.</p>
+ * <p>Project: <a href="https://github.com/nickman/javax-scripting">JSR-233 Java Scripting</a></p>
+ * <p>Packaged and maintained by Whitehead (nwhitehead AT heliosdev DOT org)</p>
+ * <p><code>com.sun.script.java.PrimitiveExpression</code></p>
+ */
+public interface PrimitiveExpression extends JavaExpression {
+    /**
+     * Evaluates a numeric expression
+     * @param args The binding values
+     * @return the value of the expression, converted as by a Java cast
+     * @throws Exception thrown by any method the expression calls
+     */
+    public long evalLong(Object[] args) throws Exception;
+
+    /**
+     * Evaluates a numeric expression
+     * @param args The binding values
+     * @return the value of the expression, converted as by a Java cast
+     * @throws Exception thrown by any method the expression calls
+     */
+    public double evalDouble(Object[] args) throws Exception;
+
+    /**
+     * Evaluates a boolean expression
+     * @param args The binding values
+     * @return the value of the expression
+     * @throws Exception thrown by any method the expression calls
+     */
+    public boolean evalBoolean(Object[] args) throws Exception;
+}
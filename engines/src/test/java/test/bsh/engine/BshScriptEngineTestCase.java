@@ -34,13 +34,61 @@ DAMAGE.
 */
 package test.bsh.engine;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+import javax.script.SimpleScriptContext;
+
 import junit.framework.Assert;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import test.scripting.BaseScriptingTestCase;
+import bsh.ParsedScript;
+import bsh.ScriptProfiler;
 import bsh.engine.BshScriptEngine;
+import bsh.engine.BshScriptEngineFactory;
+import bsh.engine.NameSpaceSnapshot;
+import bsh.engine.ScriptContextEngineView;
+import bsh.engine.StreamingProgress;
+import bsh.engine.VersionedBindings;
+import bsh.engine.WriterPrintStream;
 
 /**
  * <p>Title: BshScriptEngineTestCase</p>
@@ -80,8 +128,979 @@ public class BshScriptEngineTestCase extends BaseScriptingTestCase {
 		int value = (Integer)engine.get("foo");
 		Assert.assertEquals("Foo not retrieved", 42, value);		
 	}
-	
-	
+
+	/**
+	 * Compiles a script once and runs it against several contexts, checking the parse is cached
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void compiledScript() throws Exception {
+		BshScriptEngine bsh = (BshScriptEngine)engine;
+		String source = "sum = 0; for (int i = 1; i <= n; i++) { sum += i; } sum";
+		CompiledScript compiled = bsh.compile(source);
+		Assert.assertSame("Compiled script engine", engine, compiled.getEngine());
+		int cached = bsh.getCompiledScriptCacheSize();
+		bsh.compile(new StringReader(source));
+		Assert.assertEquals("Parse not cached", cached, bsh.getCompiledScriptCacheSize());
+		for (int n = 1; n <= 3; n++) {
+			Bindings bindings = engine.createBindings();
+			bindings.put("n", n * 10);
+			Assert.assertEquals("Compiled eval failed", n * 10 * (n * 10 + 1) / 2, compiled.eval(bindings));
+			Assert.assertEquals("Variable not written to context", n * 10 * (n * 10 + 1) / 2, bindings.get("sum"));
+		}
+		try {
+			bsh.compile("int x = ;");
+			Assert.fail("Expected a ScriptException");
+		} catch (ScriptException se) {
+			// expected
+		}
+	}
+
+	/**
+	 * Evaluates concurrently on one engine, each thread with its own context and writer
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void concurrentEvaluation() throws Exception {
+		final CompiledScript compiled = ((Compilable)engine).compile("output = input * 2; Thread.sleep(1); print(output);");
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for(int i = 0; i < 200; i++) {
+				final int input = i;
+				results.add(executor.submit(new Callable<String>() {
+					public String call() throws Exception {
+						ScriptContext ctx = new SimpleScriptContext();
+						StringWriter out = new StringWriter();
+						ctx.setWriter(out);
+						ctx.setAttribute("input", input, ScriptContext.ENGINE_SCOPE);
+						if(input % 2 == 0) {
+							compiled.eval(ctx);
+						} else {
+							engine.eval("output = input * 2; Thread.sleep(1); print(output);", ctx);
+						}
+						return ctx.getAttribute("output") + "|" + out.toString().trim();
+					}
+				}));
+			}
+			for(int i = 0; i < results.size(); i++) {
+				Assert.assertEquals((i * 2) + "|" + (i * 2), results.get(i).get());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Tests the buffered output bridge, including multi-byte characters split across byte writes
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void outputBridge() throws Exception {
+		StringWriter sw = new StringWriter();
+		WriterPrintStream ps = new WriterPrintStream(sw, Charset.forName("UTF-8"), 4);
+		byte[] utf8 = "h\u00e9llo \u20ac".getBytes("UTF-8");
+		for(byte b : utf8) {
+			ps.write(b);
+		}
+		ps.print(' ');
+		ps.println(42);
+		Assert.assertTrue("Buffer not drained in whole buffers", sw.toString().length() > 0 && sw.toString().length() % 4 == 0);
+		ps.flush();
+		Assert.assertEquals("h\u00e9llo \u20ac 42" + System.getProperty("line.separator"), sw.toString());
+
+		// output is complete at the end of each eval against the same context
+		ScriptContext ctx = new SimpleScriptContext();
+		StringWriter out = new StringWriter();
+		ctx.setWriter(out);
+		engine.eval("for (int i = 0; i < 1000; i++) { print(\"\u00e9\"); }", ctx);
+		Assert.assertEquals(1000 * (1 + System.getProperty("line.separator").length()), out.toString().length());
+		engine.eval("print(\"done\");", ctx);
+		Assert.assertTrue(out.toString().trim().endsWith("done"));
+	}
+
+	/**
+	 * Tests that the engine view's lookup cache follows changes to the scope bindings
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void cachedScopeLookup() throws Exception {
+		ScriptContext ctx = new SimpleScriptContext();
+		VersionedBindings engineScope = new VersionedBindings();
+		Bindings globalScope = new SimpleBindings();
+		ctx.setBindings(engineScope, ScriptContext.ENGINE_SCOPE);
+		ctx.setBindings(globalScope, ScriptContext.GLOBAL_SCOPE);
+		ScriptContextEngineView view = new ScriptContextEngineView(ctx);
+		globalScope.put("g", "global");
+		engineScope.put("e", "engine");
+		Assert.assertEquals("engine", view.get("e"));
+		Assert.assertEquals("global", view.get("g"));
+		Assert.assertNull(view.get("none"));
+		// writes through the view
+		view.put("e", "engine2");
+		Assert.assertEquals("engine2", view.get("e"));
+		view.put("g", "shadow");
+		Assert.assertEquals("shadow", view.get("g"));
+		view.remove("g");
+		Assert.assertEquals("global", view.get("g"));
+		// writes around the view
+		engineScope.put("none", "some");
+		Assert.assertEquals("some", view.get("none"));
+		globalScope.put("g", "global2");
+		Assert.assertEquals("global2", view.get("g"));
+		VersionedBindings replaced = new VersionedBindings();
+		replaced.put("e", "replaced");
+		ctx.setBindings(replaced, ScriptContext.ENGINE_SCOPE);
+		Assert.assertEquals("replaced", view.get("e"));
+		Assert.assertFalse(view.containsKey("none"));
+
+		// and through the engine
+		Bindings bindings = engine.createBindings();
+		Assert.assertTrue(bindings instanceof VersionedBindings);
+		bindings.put("x", 1);
+		Assert.assertEquals(2, engine.eval("x + 1", bindings));
+		bindings.put("x", 5);
+		Assert.assertEquals(6, engine.eval("x + 1", bindings));
+		Assert.assertEquals(4950, engine.eval("s = 0; for (int i = 0; i < 100; i++) { s += i; } s", bindings));
+		Assert.assertEquals(4950, bindings.get("s"));
+	}
+
+	/**
+	 * Tests that functions invoked from Java are re-resolved when the namespace declares a new method
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void cachedFunctionResolution() throws Exception {
+		ScriptEngine bsh = new BshScriptEngine();
+		Invocable invocable = (Invocable)bsh;
+		bsh.eval("handle(Object o) { return \"object\"; }");
+		for(int i = 0; i < 3; i++) {
+			Assert.assertEquals("object", invocable.invokeFunction("handle", "event"));
+			Assert.assertEquals("object", invocable.invokeFunction("handle", (Object)null));
+		}
+		bsh.eval("handle(String s) { return \"string:\" + s; }");
+		Assert.assertEquals("string:event", invocable.invokeFunction("handle", "event"));
+		Assert.assertEquals("object", invocable.invokeFunction("handle", 42));
+		try {
+			invocable.invokeFunction("handle", "a", "b");
+			Assert.fail("Expected no matching method");
+		} catch (ScriptException expected) {
+			// no two argument handle
+		}
+	}
+
+	/**
+	 * <p>Title: Handler</p>
+	 * <p>Description: An interface implemented by scripts in {@link BshScriptEngineTestCase#generatedInterfaces()}</p>
+	 */
+	public static interface Handler {
+		int add(int a, int b);
+		double scale(double v);
+		String greet(String name);
+		boolean even(long x);
+		void fail() throws java.io.IOException;
+	}
+
+	/**
+	 * Tests the generated interface implementations
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void generatedInterfaces() throws Exception {
+		ScriptEngine bsh = new BshScriptEngine();
+		Invocable invocable = (Invocable)bsh;
+		bsh.eval("add(int a, int b) { return a + b; }\n"
+			+ "scale(v) { return v * 2; }\n"
+			+ "greet(String name) { return \"hello \" + name; }\n"
+			+ "even(long x) { return x % 2 == 0; }\n"
+			+ "fail() { throw new java.io.IOException(\"scripted\"); }\n"
+			+ "count = 0; run() { count++; }");
+		Handler handler = invocable.getInterface(Handler.class);
+		Assert.assertFalse(java.lang.reflect.Proxy.isProxyClass(handler.getClass()));
+		Assert.assertSame(handler, invocable.getInterface(Handler.class));
+		Assert.assertEquals(5, handler.add(2, 3));
+		Assert.assertEquals(3.0, handler.scale(1.5), 0.0);
+		Assert.assertEquals("hello world", handler.greet("world"));
+		Assert.assertEquals("hello null", handler.greet(null));
+		Assert.assertTrue(handler.even(4L));
+		Assert.assertFalse(handler.even(5L));
+		try {
+			handler.fail();
+			Assert.fail("Expected an IOException");
+		} catch (java.io.IOException expected) {
+			Assert.assertEquals("scripted", expected.getMessage());
+		}
+		Assert.assertTrue(handler.equals(handler));
+		Assert.assertNotNull(handler.toString());
+		// redefinition is picked up
+		bsh.eval("greet(String name) { return \"bye \" + name; }");
+		Assert.assertEquals("bye world", handler.greet("world"));
+
+		Runnable runnable = invocable.getInterface(Runnable.class);
+		for(int i = 0; i < 3; i++) {
+			runnable.run();
+		}
+		Assert.assertEquals(3, bsh.get("count"));
+
+		// scripted object
+		Object counter = bsh.eval("counter() { n = 0; add(int a, int b) { n++; return a * b; } return this; } counter()");
+		Handler objHandler = invocable.getInterface(counter, Handler.class);
+		Assert.assertEquals(6, objHandler.add(2, 3));
+		Assert.assertEquals(12, objHandler.add(3, 4));
+		// methods the object does not declare are inherited from the global namespace
+		Assert.assertEquals(2.0, objHandler.scale(1), 0.0);
+	}
+	@Test
+	public void namespaceSnapshots() throws Exception {
+		ScriptContext warm = new SimpleScriptContext();
+		warm.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+		engine.eval("import java.util.concurrent.atomic.AtomicInteger; "
+			+ "counter = new AtomicInteger(); base = 10; "
+			+ "add(x) { return base + x; } add(String s) { return s + base; }", warm);
+		NameSpaceSnapshot snapshot = ((BshScriptEngine)engine).snapshot(warm);
+		Assert.assertEquals(10, snapshot.getBindings().get("base"));
+
+		ScriptContext a = snapshot.fork();
+		ScriptContext b = snapshot.fork();
+		// definitions are inherited
+		Assert.assertEquals(15, engine.eval("add(5)", a));
+		Assert.assertEquals("x10", engine.eval("add(\"x\")", a));
+		Assert.assertTrue(engine.eval("new AtomicInteger(3)", b) instanceof AtomicInteger);
+		// writes stay in the fork
+		engine.eval("add(x) { return -x; }", b);
+		engine.eval("base = 100; fresh = 1;", a);
+		Assert.assertEquals(105, engine.eval("add(5)", a));
+		Assert.assertEquals(-5, engine.eval("add(5)", b));
+		Assert.assertEquals("y10", engine.eval("add(\"y\")", b));
+		Assert.assertNull(b.getAttribute("fresh"));
+		engine.eval("add(String s) { return s; }", a);
+		Assert.assertEquals("y", engine.eval("add(\"y\")", a));
+		Assert.assertEquals(105, engine.eval("add(5)", a));
+		b.getBindings(ScriptContext.ENGINE_SCOPE).remove("base");
+		Assert.assertNull(b.getAttribute("base"));
+		Assert.assertEquals(10, engine.eval("base", snapshot.fork()));
+		// shared objects are shared
+		engine.eval("counter.incrementAndGet();", a);
+		Assert.assertEquals(1, ((AtomicInteger)b.getAttribute("counter")).get());
+
+		// the snapshotted context carries on as a fork
+		Assert.assertEquals(15, engine.eval("add(5)", warm));
+		engine.eval("base = 20; twice(x) { return add(x) * 2; }", warm);
+		Assert.assertEquals(50, engine.eval("twice(5)", warm));
+		Assert.assertEquals(15, engine.eval("add(5)", snapshot.fork()));
+		try {
+			engine.eval("twice(5)", snapshot.fork());
+			Assert.fail("Method declared after the snapshot was inherited");
+		} catch (ScriptException expected) {
+		}
+		// and can be snapshotted again
+		ScriptContext c = ((BshScriptEngine)engine).snapshot(warm).fork();
+		Assert.assertEquals(50, engine.eval("twice(5)", c));
+		Assert.assertEquals("z20", engine.eval("add(\"z\")", c));
+	}
+
+	/**
+	 * Tests that hot typed scripts are compiled to bytecode and dynamic ones stay interpreted
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void tieredExecution() throws Exception {
+		BshScriptEngine bsh = (BshScriptEngine)engine;
+		int tierThreshold = bsh.getTierThreshold();
+		bsh.setTierThreshold(2);
+		try {
+			int translated = bsh.getTieredScriptCount();
+			ScriptContext ctx = new SimpleScriptContext();
+			ctx.setBindings(new SimpleBindings(), ScriptContext.ENGINE_SCOPE);
+			ctx.setAttribute("n", 10, ScriptContext.ENGINE_SCOPE);
+			String typed = "int s = 0; for (int i = 0; i < n; i++) { s += i; } s * 2";
+			for(int i = 0; i < 4; i++) {
+				Assert.assertEquals(90, engine.eval(typed, ctx));
+			}
+			Assert.assertEquals(translated + 1, bsh.getTieredScriptCount());
+			// top level declarations land in the bindings as they do when interpreted
+			Assert.assertEquals(45, ctx.getAttribute("s", ScriptContext.ENGINE_SCOPE));
+			// an input of another type runs interpreted
+			ctx.setAttribute("n", 5L, ScriptContext.ENGINE_SCOPE);
+			Assert.assertEquals(20, engine.eval(typed, ctx));
+			// as does a compiled script
+			CompiledScript compiled = ((Compilable)engine).compile("long f = 1L; for (int i = 2; i <= n; i++) f *= i; f");
+			for(int i = 0; i < 4; i++) {
+				Assert.assertEquals(120L, compiled.eval(ctx));
+			}
+			Assert.assertEquals(translated + 2, bsh.getTieredScriptCount());
+			// loosely typed scripts are never compiled
+			String dynamic = "x = new ArrayList(); x.add(n); x.size()";
+			for(int i = 0; i < 4; i++) {
+				Assert.assertEquals(1, engine.eval(dynamic, ctx));
+			}
+			Assert.assertEquals(translated + 2, bsh.getTieredScriptCount());
+			// failures raise the same exceptions as interpreted scripts
+			ctx.setAttribute("d", 0, ScriptContext.ENGINE_SCOPE);
+			for(int i = 0; i < 4; i++) {
+				try {
+					engine.eval("int q = 10 / d; q", ctx);
+					Assert.fail("Expected ScriptException");
+				} catch (ScriptException expected) {}
+			}
+		} finally {
+			bsh.setTierThreshold(tierThreshold);
+		}
+	}
+
+	/**
+	 * Tests that the shared class cache resolves classes for new contexts without leaking scripted classes
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void sharedClassCache() throws Exception {
+		Assert.assertEquals(2, BshScriptEngine.warmUpClasses("ArrayList", "java.util.concurrent.ConcurrentHashMap", "NoSuchClass"));
+		ScriptContext first = new SimpleScriptContext();
+		first.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+		Assert.assertEquals(0, engine.eval("new ArrayList().size()", first));
+		// a name which was not a class can still be declared as a scripted class
+		try {
+			engine.eval("new Scripted()", first);
+			Assert.fail("Expected ScriptException");
+		} catch (ScriptException expected) {}
+		Assert.assertEquals(7, engine.eval("class Scripted { int x() { return 7; } } new Scripted().x()", first));
+		// which stays private to its context
+		ScriptContext second = new SimpleScriptContext();
+		second.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+		try {
+			engine.eval("new Scripted()", second);
+			Assert.fail("Expected ScriptException");
+		} catch (ScriptException expected) {}
+		Assert.assertEquals(1, engine.eval("m = new HashMap(); m.put(\"a\", 1); m.size()", second));
+		BshScriptEngine.clearClassCache();
+		Assert.assertEquals(0, engine.eval("new ArrayList().size()", second));
+	}
+
+	/**
+	 * Tests that a large script is evaluated statement by statement with progress reports
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void streamingEvaluation() throws Exception {
+		final int rows = BshScriptEngine.STREAMING_PROGRESS_INTERVAL * 2 + 5;
+		// a generated data load, read as it is produced
+		Reader script = new Reader() {
+			int row = 0;
+			String line = "total = 0L; ";
+			int pos = 0;
+			@Override
+			public int read(char[] cbuf, int off, int len) {
+				if (pos == line.length()) {
+					if (row == rows) return -1;
+					row++;
+					line = "total += " + row + "; ";
+					pos = 0;
+				}
+				int n = Math.min(len, line.length() - pos);
+				line.getChars(pos, pos + n, cbuf, off);
+				pos += n;
+				return n;
+			}
+			@Override
+			public void close() {}
+		};
+		final List<StreamingProgress> reports = new ArrayList<StreamingProgress>();
+		ScriptContext ctx = new SimpleScriptContext();
+		ctx.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+		Object result = ((BshScriptEngine)engine).evalStreaming(script, ctx, new StreamingProgress.Listener() {
+			public void progress(StreamingProgress progress) {
+				reports.add(progress);
+			}
+		});
+		long expected = (long)rows * (rows + 1) / 2;
+		Assert.assertEquals(expected, result);
+		Assert.assertEquals(expected, ctx.getAttribute("total", ScriptContext.ENGINE_SCOPE));
+		Assert.assertEquals(3, reports.size());
+		Assert.assertEquals(BshScriptEngine.STREAMING_PROGRESS_INTERVAL, reports.get(0).getStatements());
+		Assert.assertFalse(reports.get(1).isComplete());
+		StreamingProgress last = reports.get(2);
+		Assert.assertTrue(last.isComplete());
+		Assert.assertEquals(rows + 1, last.getStatements());
+		Assert.assertTrue(last.getCharacters() > rows * 10);
+		// a failing statement reports its line
+		try {
+			((BshScriptEngine)engine).evalStreaming(new StringReader("a = 1;\nb = 2;\nc = a / 0;\nd = 4;"), ctx, null);
+			Assert.fail("Expected ScriptException");
+		} catch (ScriptException expected2) {
+			Assert.assertEquals(3, expected2.getLineNumber());
+		}
+		Assert.assertEquals(2, ctx.getAttribute("b", ScriptContext.ENGINE_SCOPE));
+		Assert.assertNull(ctx.getAttribute("d", ScriptContext.ENGINE_SCOPE));
+	}
+
+	/**
+	 * Tests that optimized compiled scripts behave as interpreted ones
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void optimizedScripts() throws Exception {
+		BshScriptEngine bsh = (BshScriptEngine)engine;
+		boolean optimizing = bsh.isOptimizing();
+		bsh.setOptimizing(true);
+		try {
+			ScriptContext ctx = new SimpleScriptContext();
+			ctx.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+			// folded constants, static fields and static calls
+			CompiledScript compiled = ((Compilable)engine).compile(
+				"r = (1 + 2) * 3 - (long)4 + (true ? 10 : 20); m = Math.max(r, x); big = Integer.MAX_VALUE - 1; m + big");
+			for(int i = 0; i < 3; i++) {
+				ctx.setAttribute("x", 100 * i, ScriptContext.ENGINE_SCOPE);
+				Assert.assertEquals(Math.max(15L, 100 * i) + Integer.MAX_VALUE - 1, compiled.eval(ctx));
+			}
+			// the argument types change the method
+			compiled = ((Compilable)engine).compile("Math.abs(x)");
+			ctx.setAttribute("x", -2, ScriptContext.ENGINE_SCOPE);
+			Assert.assertEquals(2, compiled.eval(ctx));
+			ctx.setAttribute("x", -2.5d, ScriptContext.ENGINE_SCOPE);
+			Assert.assertEquals(2.5d, compiled.eval(ctx));
+			// a variable named as the class takes over
+			ctx.setAttribute("Math", new Object() { public int abs(Object o) { return 42; } }, ScriptContext.ENGINE_SCOPE);
+			Assert.assertEquals(42, compiled.eval(ctx));
+			// failures are the same
+			compiled = ((Compilable)engine).compile("y = 1 / 0");
+			try {
+				compiled.eval(ctx);
+				Assert.fail("Expected ScriptException");
+			} catch (ScriptException expected) {}
+			compiled = ((Compilable)engine).compile("Integer.parseInt(\"x\")");
+			try {
+				compiled.eval(ctx);
+				Assert.fail("Expected ScriptException");
+			} catch (ScriptException expected) {
+				Assert.assertTrue(expected.getCause() instanceof NumberFormatException);
+			}
+		} finally {
+			bsh.setOptimizing(optimizing);
+		}
+	}
+
+	/**
+	 * Tests the primitive entry points of compiled scripts, interpreted and compiled to bytecode
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void primitiveEntryPoints() throws Exception {
+		BshScriptEngine bsh = (BshScriptEngine)engine;
+		int tierThreshold = bsh.getTierThreshold();
+		bsh.setTierThreshold(2);
+		try {
+			ScriptContext ctx = new SimpleScriptContext();
+			ctx.setBindings(new SimpleBindings(), ScriptContext.ENGINE_SCOPE);
+			ctx.setAttribute("n", 4, ScriptContext.ENGINE_SCOPE);
+			BshScriptEngine.BshCompiledScript harmonic = (BshScriptEngine.BshCompiledScript)bsh.compile(
+				"double h = 0; for (int i = 1; i <= n; i++) h += 1.0 / i; h");
+			BshScriptEngine.BshCompiledScript test = (BshScriptEngine.BshCompiledScript)bsh.compile("n > 3");
+			for(int i = 0; i < 4; i++) {
+				Assert.assertEquals(25d / 12, harmonic.evalDouble(ctx), 0.0000001d);
+				Assert.assertEquals(2L, harmonic.evalLong(ctx));
+				Assert.assertTrue(test.evalBoolean(ctx));
+			}
+			Assert.assertEquals(25d / 12, (Double)ctx.getAttribute("h", ScriptContext.ENGINE_SCOPE), 0.0000001d);
+			try {
+				test.evalLong(ctx);
+				Assert.fail("Expected ScriptException");
+			} catch (ScriptException expected) {}
+			// interpreted values are converted
+			ctx.setAttribute("n", 4L, ScriptContext.ENGINE_SCOPE);
+			Assert.assertEquals(2L, harmonic.evalLong(ctx));
+			Assert.assertEquals('a' + 1L, ((BshScriptEngine.BshCompiledScript)bsh.compile("'a' + 1")).evalLong(ctx));
+			try {
+				((BshScriptEngine.BshCompiledScript)bsh.compile("\"x\"")).evalDouble(ctx);
+				Assert.fail("Expected ScriptException");
+			} catch (ScriptException expected) {}
+		} finally {
+			bsh.setTierThreshold(tierThreshold);
+		}
+	}
+
+	/**
+	 * Tests that commands and sourced files are parsed once for all engines and again when the file changes
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void sourcedScriptCache() throws Exception {
+		File file = File.createTempFile("sourced", ".bsh");
+		file.deleteOnExit();
+		writeFile(file, "int twice(int x) { return x * 2; }\nsourcedValue = 1;");
+		String path = file.getCanonicalPath().replace('\\', '/');
+		BshScriptEngine.clearSourcedScripts();
+		ScriptEngine other = new BshScriptEngineFactory().getScriptEngine();
+		for(ScriptEngine e : new ScriptEngine[] {engine, other, engine}) {
+			ScriptContext ctx = new SimpleScriptContext();
+			ctx.setBindings(new SimpleBindings(), ScriptContext.ENGINE_SCOPE);
+			ctx.setWriter(new StringWriter());
+			Assert.assertEquals(6, e.eval("source(\"" + path + "\"); twice(3)", ctx));
+			Assert.assertEquals(1, ctx.getAttribute("sourcedValue", ScriptContext.ENGINE_SCOPE));
+			e.eval("print(\"x\");", ctx);
+			Assert.assertEquals("x", ctx.getWriter().toString().trim());
+		}
+		// the sourced file and the print command
+		Assert.assertEquals(2, BshScriptEngine.getSourcedScriptCount());
+		writeFile(file, "int twice(int x) { return x + x + 1; }\nsourcedValue = 22;");
+		ScriptContext ctx = new SimpleScriptContext();
+		ctx.setBindings(new SimpleBindings(), ScriptContext.ENGINE_SCOPE);
+		Assert.assertEquals(7, engine.eval("source(\"" + path + "\"); twice(3)", ctx));
+		Assert.assertEquals(22, ctx.getAttribute("sourcedValue", ScriptContext.ENGINE_SCOPE));
+		Assert.assertEquals(2, BshScriptEngine.getSourcedScriptCount());
+		try {
+			engine.eval("source(\"" + path + ".missing\");", ctx);
+			Assert.fail("Expected ScriptException");
+		} catch (ScriptException expected) {}
+	}
+
+	/**
+	 * Tests the line profile of a script
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void scriptProfiler() throws Exception {
+		BshScriptEngine bsh = (BshScriptEngine)engine;
+		String script = "int total = 0;\n"
+			+ "int square(int x) {\n"
+			+ "  return x * x;\n"
+			+ "}\n"
+			+ "for (int i = 0; i < 10; i++) {\n"
+			+ "  total += square(i);\n"
+			+ "}\n"
+			+ "total;";
+		bsh.setProfiling(true);
+		try {
+			Assert.assertEquals(285, bsh.eval(script));
+			Assert.assertEquals(285, bsh.eval(script));
+			ScriptProfiler profiler = bsh.getProfile(script);
+			Assert.assertNotNull(profiler);
+			Map<String, Long> counts = new HashMap<String, Long>();
+			for(ScriptProfiler.Line line : profiler.getLines()) {
+				counts.put(line.getMethod() + ":" + line.getLine(), line.getCount());
+				Assert.assertTrue(line.getSelfNanos() <= line.getTotalNanos());
+			}
+			Assert.assertEquals(Long.valueOf(2), counts.get(ScriptProfiler.TOP_LEVEL + ":1"));
+			Assert.assertEquals(Long.valueOf(20), counts.get("square:3"));
+			Assert.assertEquals(Long.valueOf(2), counts.get(ScriptProfiler.TOP_LEVEL + ":5"));
+			Assert.assertEquals(Long.valueOf(20), counts.get(ScriptProfiler.TOP_LEVEL + ":6"));
+			Assert.assertEquals(Long.valueOf(2), counts.get(ScriptProfiler.TOP_LEVEL + ":8"));
+			Assert.assertTrue(profiler.collapsedStacks().contains(
+				ScriptProfiler.TOP_LEVEL + ":5;" + ScriptProfiler.TOP_LEVEL + ":6;square:3 "));
+			Assert.assertTrue(profiler.report().contains("square"));
+			profiler.reset();
+			Assert.assertEquals(0, profiler.getLines().get(0).getCount());
+			Assert.assertEquals("", profiler.collapsedStacks());
+		} finally {
+			bsh.setProfiling(false);
+		}
+		Assert.assertNull(bsh.getProfile(script));
+	}
+
+	/**
+	 * Tests the parsed scripts kept in the script cache directory
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void persistentScriptCache() throws Exception {
+		File dir = File.createTempFile("scripts", ".dir");
+		dir.delete();
+		String script = "int n = 0; for (int i = 0; i < 4; i++) { n += i; } null == null ? n : -1";
+		BshScriptEngine.setScriptCacheDirectory(dir);
+		try {
+			long loads = BshScriptEngine.getScriptCacheLoadCount();
+			Compilable first = (Compilable)new BshScriptEngineFactory().getScriptEngine();
+			Assert.assertEquals(6, first.compile(script).eval());
+			File[] files = dir.listFiles();
+			Assert.assertEquals(1, files.length);
+			Assert.assertEquals(loads, BshScriptEngine.getScriptCacheLoadCount());
+			// a new engine loads the script instead of parsing it
+			Compilable second = (Compilable)new BshScriptEngineFactory().getScriptEngine();
+			Assert.assertEquals(6, second.compile(script).eval());
+			Assert.assertEquals(loads + 1, BshScriptEngine.getScriptCacheLoadCount());
+			// a corrupt file is parsed again and replaced
+			byte[] bytes = new byte[(int)files[0].length()];
+			DataInputStream in = new DataInputStream(new FileInputStream(files[0]));
+			try {
+				in.readFully(bytes);
+			} finally {
+				in.close();
+			}
+			bytes[bytes.length - 10] ^= 0x55;
+			OutputStream out = new FileOutputStream(files[0]);
+			try {
+				out.write(bytes);
+			} finally {
+				out.close();
+			}
+			Compilable third = (Compilable)new BshScriptEngineFactory().getScriptEngine();
+			Assert.assertEquals(6, third.compile(script).eval());
+			Assert.assertEquals(loads + 1, BshScriptEngine.getScriptCacheLoadCount());
+			Compilable fourth = (Compilable)new BshScriptEngineFactory().getScriptEngine();
+			Assert.assertEquals(6, fourth.compile(script).eval());
+			Assert.assertEquals(loads + 2, BshScriptEngine.getScriptCacheLoadCount());
+		} finally {
+			BshScriptEngine.setScriptCacheDirectory(null);
+			for(File file : dir.listFiles())
+				file.delete();
+			dir.delete();
+		}
+	}
+
+	/**
+	 * Tests that engines evaluating the same class declaration share the generated class
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void scriptedClassCache() throws Exception {
+		String declaration = "class SharedCounter { int count; int add(int n) { count += n; return count; } }";
+		BshScriptEngine.clearScriptedClasses();
+		ScriptEngine other = new BshScriptEngineFactory().getScriptEngine();
+		List<Object> classes = new ArrayList<Object>();
+		for(ScriptEngine e : new ScriptEngine[] {engine, other, engine}) {
+			ScriptContext ctx = new SimpleScriptContext();
+			ctx.setBindings(e.createBindings(), ScriptContext.ENGINE_SCOPE);
+			Assert.assertEquals(5, e.eval(declaration + " c = new SharedCounter(); c.add(2); c.add(3)", ctx));
+			classes.add(e.eval("c.getClass()", ctx));
+		}
+		Assert.assertEquals(1, BshScriptEngine.getScriptedClassCount());
+		Assert.assertSame(classes.get(0), classes.get(1));
+		Assert.assertSame(classes.get(0), classes.get(2));
+		// the class stays private to the contexts which declared it
+		ScriptContext undeclared = new SimpleScriptContext();
+		undeclared.setBindings(other.createBindings(), ScriptContext.ENGINE_SCOPE);
+		try {
+			other.eval("new SharedCounter()", undeclared);
+			Assert.fail("Expected ScriptException");
+		} catch (ScriptException expected) {}
+		// another declaration of the same name is another class
+		Assert.assertEquals(4, other.eval("class SharedCounter { int add(int n) { return n * 2; } } new SharedCounter().add(2)", undeclared));
+		Assert.assertNotSame(classes.get(0), other.eval("SharedCounter.class", undeclared));
+		Assert.assertEquals(2, BshScriptEngine.getScriptedClassCount());
+		BshScriptEngine.clearScriptedClasses();
+		Assert.assertEquals(0, BshScriptEngine.getScriptedClassCount());
+	}
+
+	/**
+	 * Tests the call sites of the Java methods of objects held in variables
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void instanceCallSites() throws Exception {
+		BshScriptEngine bsh = (BshScriptEngine)engine;
+		boolean optimizing = bsh.isOptimizing();
+		bsh.setOptimizing(true);
+		try {
+			ScriptContext ctx = new SimpleScriptContext();
+			ctx.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+			// declaring a class lets BeanShell reach non-public members for the rest of the JVM, whatever ran before
+			engine.eval("class CallSiteAccessibility {}", ctx);
+			CompiledScript compiled = ((Compilable)engine).compile("sb.append(x); sb.append('-'); sb.length()");
+			StringBuilder sb = new StringBuilder();
+			ctx.setAttribute("sb", sb, ScriptContext.ENGINE_SCOPE);
+			// the argument types change the overload
+			Object[] values = {1, 2, "a", 2.5d, true, 'c'};
+			for(Object x : values) {
+				ctx.setAttribute("x", x, ScriptContext.ENGINE_SCOPE);
+				compiled.eval(ctx);
+			}
+			Assert.assertEquals("1-2-a-2.5-true-c-", sb.toString());
+			// the receiver class changes the method
+			StringBuffer buffer = new StringBuffer("z");
+			ctx.setAttribute("sb", buffer, ScriptContext.ENGINE_SCOPE);
+			Assert.assertEquals(3, compiled.eval(ctx));
+			Assert.assertEquals("zc-", buffer.toString());
+			// primitive receivers, scripted objects and missing methods are left to BeanShell
+			compiled = ((Compilable)engine).compile("o.size()");
+			ctx.setAttribute("o", new ArrayList<Object>(), ScriptContext.ENGINE_SCOPE);
+			Assert.assertEquals(0, compiled.eval(ctx));
+			engine.eval("size() { return 42; } o = this;", ctx);
+			Assert.assertEquals(42, compiled.eval(ctx));
+			ctx.setAttribute("o", null, ScriptContext.ENGINE_SCOPE);
+			try {
+				compiled.eval(ctx);
+				Assert.fail("Expected ScriptException");
+			} catch (ScriptException expected) {}
+			ctx.setAttribute("o", "no size", ScriptContext.ENGINE_SCOPE);
+			try {
+				compiled.eval(ctx);
+				Assert.fail("Expected ScriptException");
+			} catch (ScriptException expected) {}
+			// exceptions thrown by the method surface as before
+			compiled = ((Compilable)engine).compile("l.get(5)");
+			ctx.setAttribute("l", new ArrayList<Object>(), ScriptContext.ENGINE_SCOPE);
+			try {
+				compiled.eval(ctx);
+				Assert.fail("Expected ScriptException");
+			} catch (ScriptException expected) {
+				Assert.assertTrue(expected.getCause() instanceof IndexOutOfBoundsException);
+			}
+		} finally {
+			bsh.setOptimizing(optimizing);
+		}
+	}
+
+	@Test
+	public void writeBehindAssignments() throws Exception {
+		final Map<String, Integer> puts = new HashMap<String, Integer>();
+		ScriptContext ctx = new SimpleScriptContext();
+		ctx.setBindings(new SimpleBindings() {
+			@Override
+			public Object put(String name, Object value) {
+				Integer n = puts.get(name);
+				puts.put(name, n == null ? 1 : n + 1);
+				return super.put(name, value);
+			}
+		}, ScriptContext.ENGINE_SCOPE);
+		BshScriptEngine bsh = (BshScriptEngine)engine;
+		bsh.setWriteBehind(true);
+		try {
+			// the script sees its own assignments, the context gets the last one when it ends
+			Assert.assertEquals(4950, bsh.eval("total = 0; for (i = 0; i < 100; i++) total += i; total", ctx));
+			Assert.assertEquals(4950, ctx.getAttribute("total"));
+			Assert.assertEquals(Integer.valueOf(1), puts.get("total"));
+			// functions called by the script see the buffered values
+			bsh.eval("twice() { return total * 2; }", ctx);
+			Assert.assertEquals(-2, bsh.eval("total = -1; twice()", ctx));
+			// a compiled script writes behind as well
+			CompiledScript compiled = ((Compilable)bsh).compile("total = total + 1; total = total + 1; total");
+			Assert.assertEquals(1, compiled.eval(ctx));
+			Assert.assertEquals(1, ctx.getAttribute("total"));
+			// a failed evaluation still writes its assignments
+			try {
+				bsh.eval("total = 7; throw new Exception();", ctx);
+				Assert.fail("Expected ScriptException");
+			} catch (ScriptException expected) {}
+			Assert.assertEquals(7, ctx.getAttribute("total"));
+		} finally {
+			bsh.setWriteBehind(false);
+		}
+		// without write-behind every assignment reaches the context
+		puts.clear();
+		engine.eval("for (i = 0; i < 10; i++) total = i;", ctx);
+		Assert.assertEquals(9, ctx.getAttribute("total"));
+		Assert.assertEquals(Integer.valueOf(10), puts.get("total"));
+	}
+
+	@Test
+	public void fastExpressions() throws Exception {
+		BshScriptEngine bsh = (BshScriptEngine)engine;
+		ScriptContext ctx = new SimpleScriptContext();
+		ctx.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+		int count = bsh.getFastExpressionCount();
+		Assert.assertEquals(4, engine.eval("6 * 7 - 38", ctx));
+		ctx.setAttribute("a", 5, ScriptContext.ENGINE_SCOPE);
+		ctx.setAttribute("threshold", 3, ScriptContext.ENGINE_SCOPE);
+		ctx.setAttribute("b", "b", ScriptContext.ENGINE_SCOPE);
+		String test = "a > threshold && b != null";
+		Assert.assertEquals(true, engine.eval(test, ctx));
+		ctx.setAttribute("a", 1, ScriptContext.ENGINE_SCOPE);
+		Assert.assertEquals(false, engine.eval(test + ";", ctx));
+		Assert.assertEquals(count + 3, bsh.getFastExpressionCount());
+		// assignments, calls and statements are evaluated as usual
+		Assert.assertEquals(3, engine.eval("x = 3", ctx));
+		Assert.assertEquals(3, ctx.getAttribute("x"));
+		Assert.assertEquals(2, engine.eval("Math.max(1, 2)", ctx));
+		Assert.assertEquals(3, engine.eval("x++", ctx));
+		Assert.assertEquals(4, ctx.getAttribute("x"));
+		Assert.assertEquals(2, engine.eval("y = 1; y + 1", ctx));
+		Assert.assertEquals(count + 3, bsh.getFastExpressionCount());
+		// the other short statements are reused as parsed, and write to the context's writer
+		StringWriter out = new StringWriter();
+		ctx.setWriter(out);
+		for(int i = 0; i < 3; i++) {
+			engine.eval("print(x++)", ctx);
+		}
+		Assert.assertEquals(7, ctx.getAttribute("x"));
+		Assert.assertEquals(String.format("4%n5%n6%n"), out.toString());
+		Assert.assertEquals(count + 3, bsh.getFastExpressionCount());
+		// and are counted and compiled like other scripts once compilation is enabled
+		int tierThreshold = bsh.getTierThreshold();
+		bsh.setTierThreshold(2);
+		try {
+			int translated = bsh.getTieredScriptCount();
+			for(int i = 0; i < 4; i++) {
+				ctx.setAttribute("a", i, ScriptContext.ENGINE_SCOPE);
+				engine.eval("int t = a * 3", ctx);
+				Assert.assertEquals(i * 3, ctx.getAttribute("t"));
+			}
+			Assert.assertEquals(translated + 1, bsh.getTieredScriptCount());
+		} finally {
+			bsh.setTierThreshold(tierThreshold);
+		}
+		Assert.assertEquals(count + 3, bsh.getFastExpressionCount());
+		// failures surface as before
+		try {
+			engine.eval("undefinedName + 1", ctx);
+			Assert.fail("Expected ScriptException");
+		} catch (ScriptException expected) {}
+		try {
+			engine.eval("2 *", ctx);
+			Assert.fail("Expected ScriptException");
+		} catch (ScriptException expected) {}
+	}
+
+	@Test
+	public void invokeMethodFromAnotherThread() throws Exception {
+		ScriptContext ctx = new SimpleScriptContext();
+		ctx.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+		StringWriter out = new StringWriter();
+		ctx.setWriter(out);
+		final Object global = engine.eval("hello(n) { print(\"hello \" + n); return n * 2; } this", ctx);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			// the thread has never evaluated a script with this engine
+			Future<Object> result = executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					return ((Invocable)engine).invokeMethod(global, "hello", 21);
+				}
+			});
+			Assert.assertEquals(42, result.get());
+		} finally {
+			executor.shutdown();
+		}
+		Assert.assertTrue(out.toString(), out.toString().contains("hello 21"));
+	}
+
+	@Test
+	public void interfaceFromAnotherThread() throws Exception {
+		ScriptContext ctx = new SimpleScriptContext();
+		ctx.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+		StringWriter out = new StringWriter();
+		ctx.setWriter(out);
+		Object global = engine.eval("run() { print(\"running\"); } this", ctx);
+		Runnable runnable = ((Invocable)engine).getInterface(global, Runnable.class);
+		// the thread has never evaluated a script with this engine
+		Thread thread = new Thread(runnable);
+		final Throwable[] failure = new Throwable[1];
+		thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+			public void uncaughtException(Thread t, Throwable e) {
+				failure[0] = e;
+			}
+		});
+		thread.start();
+		thread.join();
+		Assert.assertNull(String.valueOf(failure[0]), failure[0]);
+		Assert.assertTrue(out.toString(), out.toString().contains("running"));
+	}
+
+	@Test
+	public void releaseInterpreters() throws Exception {
+		final BshScriptEngine bsh = (BshScriptEngine)new BshScriptEngineFactory().getScriptEngine();
+		final ScriptContext ctx = new SimpleScriptContext();
+		ctx.setBindings(bsh.createBindings(), ScriptContext.ENGINE_SCOPE);
+		Callable<Object> eval = new Callable<Object>() {
+			public Object call() throws Exception {
+				return bsh.eval("n = n + 1", ctx);
+			}
+		};
+		ctx.setAttribute("n", 0, ScriptContext.ENGINE_SCOPE);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Assert.assertEquals(1, executor.submit(eval).get());
+			Assert.assertEquals(2, eval.call());
+			// the pooled thread and this one get new interpreters
+			bsh.releaseInterpreters();
+			Assert.assertEquals(3, executor.submit(eval).get());
+			Assert.assertEquals(4, eval.call());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Tests the classes accepted when reading a cached script
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void persistentScriptClasses() throws Exception {
+		File dir = File.createTempFile("scripts", ".dir");
+		dir.delete();
+		String script = "public static int twice(int x) { return x * 2; } twice(3)";
+		BshScriptEngine.setScriptCacheDirectory(dir);
+		try {
+			long loads = BshScriptEngine.getScriptCacheLoadCount();
+			Assert.assertEquals(6, ((Compilable)new BshScriptEngineFactory().getScriptEngine()).compile(script).eval());
+			// the modifiers of a declaration are read back
+			Assert.assertEquals(6, ((Compilable)new BshScriptEngineFactory().getScriptEngine()).compile(script).eval());
+			Assert.assertEquals(loads + 1, BshScriptEngine.getScriptCacheLoadCount());
+		} finally {
+			BshScriptEngine.setScriptCacheDirectory(null);
+			for(File file : dir.listFiles())
+				file.delete();
+			dir.delete();
+		}
+		// proxies are refused
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeUTF("proxy");
+		out.writeObject(Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Runnable.class}, new NullHandler()));
+		out.close();
+		try {
+			ParsedScript.read(new ByteArrayInputStream(bytes.toByteArray()));
+			Assert.fail("Expected IOException");
+		} catch (IOException expected) {}
+	}
+
+	/**
+	 * A serializable invocation handler doing nothing
+	 */
+	private static class NullHandler implements InvocationHandler, Serializable {
+		private static final long serialVersionUID = 1L;
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			return null;
+		}
+	}
+
+	/**
+	 * Tests that the views of the engine's bindings are live and advance their version
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void bindingsViews() throws Exception {
+		VersionedBindings bindings = (VersionedBindings)engine.createBindings();
+		bindings.put("a", 1);
+		bindings.put("b", 2);
+		bindings.put("c", 3);
+		long version = bindings.getVersion();
+		Assert.assertTrue(bindings.keySet().remove("a"));
+		Assert.assertFalse(bindings.containsKey("a"));
+		Assert.assertTrue(bindings.getVersion() > version);
+		version = bindings.getVersion();
+		Iterator<Map.Entry<String, Object>> entries = bindings.entrySet().iterator();
+		Map.Entry<String, Object> entry = entries.next();
+		entry.setValue(10);
+		Assert.assertEquals(10, bindings.get(entry.getKey()));
+		Assert.assertTrue(bindings.getVersion() > version);
+		version = bindings.getVersion();
+		entries.remove();
+		Assert.assertFalse(bindings.containsKey(entry.getKey()));
+		Assert.assertTrue(bindings.getVersion() > version);
+		Assert.assertEquals(1, bindings.size());
+		bindings.values().clear();
+		Assert.assertTrue(bindings.isEmpty());
+		// the bindings of a fork are layered over the snapshot
+		ScriptContext warm = new SimpleScriptContext();
+		warm.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+		engine.eval("x = 1; y = 2;", warm);
+		ScriptContext fork = ((BshScriptEngine)engine).snapshot(warm).fork();
+		Bindings forked = fork.getBindings(ScriptContext.ENGINE_SCOPE);
+		Assert.assertTrue(forked.keySet().remove("x"));
+		Assert.assertFalse(forked.containsKey("x"));
+		Assert.assertNull(engine.eval("x", fork));
+		Assert.assertEquals(1, warm.getAttribute("x"));
+		forked.values().remove(2);
+		Assert.assertFalse(forked.containsKey("y"));
+	}
+
+	private static void writeFile(File file, String content) throws IOException {
+		Writer writer = new FileWriter(file);
+		try {
+			writer.write(content);
+		} finally {
+			writer.close();
+		}
+	}
 }
 /*
 
@@ -0,0 +1,90 @@
+package test.bsh.engine;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.SimpleScriptContext;
+
+import bsh.engine.BshScriptEngine;
+
+/**
+ * <p>Title: BshThroughputBenchmark</p>
+ * <p>Description: Measures the eval throughput of one shared BeanShell engine against the number of evaluating threads,
+ * each thread evaluating against its own context. Run as a main class with the test classpath.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.bsh.engine.BshThroughputBenchmark</code></p>
+ */
+
+public class BshThroughputBenchmark {
+	/** The benchmarked script */
+	private static final String SCRIPT = "sum = 0; for (int i = 0; i < n; i++) { sum += i; } sum";
+
+	/**
+	 * Runs the benchmark
+	 * @param args [0] the maximum number of threads, default 8, [1] the evals per thread per run, default 2000
+	 * @throws Exception thrown on any error
+	 */
+	public static void main(String[] args) throws Exception {
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int evals = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		BshScriptEngine engine = new BshScriptEngine();
+		CompiledScript compiled = engine.compile(SCRIPT);
+		// warm up
+		run(engine, null, maxThreads, evals);
+		run(engine, compiled, maxThreads, evals);
+		System.out.println("threads       eval/s   compiled/s");
+		for(int threads = 1; threads <= maxThreads; threads *= 2) {
+			double eval = run(engine, null, threads, evals);
+			double comp = run(engine, compiled, threads, evals);
+			System.out.println(String.format("%7d %12.0f %12.0f", threads, eval, comp));
+		}
+	}
+
+	/**
+	 * Runs the script on a number of threads
+	 * @param engine The shared engine
+	 * @param compiled The compiled script, or null to eval the source
+	 * @param threads The number of threads
+	 * @param evals The evals per thread
+	 * @return the throughput in evals per second
+	 * @throws Exception thrown on any error
+	 */
+	private static double run(final BshScriptEngine engine, final CompiledScript compiled, int threads, final int evals) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(threads);
+			for(int t = 0; t < threads; t++) {
+				tasks.add(new Callable<Void>() {
+					public Void call() throws Exception {
+						ScriptContext ctx = new SimpleScriptContext();
+						ctx.setWriter(new StringWriter());
+						ctx.setAttribute("n", 100, ScriptContext.ENGINE_SCOPE);
+						for(int i = 0; i < evals; i++) {
+							if(compiled != null) {
+								compiled.eval(ctx);
+							} else {
+								engine.eval(SCRIPT, ctx);
+							}
+						}
+						return null;
+					}
+				});
+			}
+			long start = System.nanoTime();
+			for(Future<Void> f : executor.invokeAll(tasks)) {
+				f.get();
+			}
+			return (double)threads * evals * 1000000000L / (System.nanoTime() - start);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package test.com.sun.script.java;
+
+import javax.script.ScriptContext;
+import javax.script.SimpleScriptContext;
+
+import com.sun.script.java.ExpressionCompiler;
+import com.sun.script.java.JavaCompiler;
+
+/**
+ * <p>Title: ExpressionCompileBenchmark</p>
+ * <p>Description: Compares the compile latency of the byte code expression fast path against javac.
+ * Run as a main class with the test classpath.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.sun.script.java.ExpressionCompileBenchmark</code></p>
+ */
+
+public class ExpressionCompileBenchmark {
+	/** The benchmarked expressions */
+	private static final String[] EXPRESSIONS = {
+		"a + b * 2", "a > b && b < 100", "Math.max(a, b) / 3.0", "\"a=\" + a + \", b=\" + b", "a % 7 == 0 ? a : -b"
+	};
+	/** The binding names */
+	private static final String[] NAMES = {"a", "b"};
+	/** The binding types */
+	private static final Class<?>[] TYPES = {int.class, long.class};
+
+	/**
+	 * Runs the benchmark
+	 * @param args [0] the number of compiles per expression and compiler, default 50
+	 * @throws Exception thrown on any error
+	 */
+	public static void main(String[] args) throws Exception {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		ExpressionCompiler compiler = new ExpressionCompiler(new JavaCompiler());
+		ScriptContext ctx = new SimpleScriptContext();
+		ClassLoader loader = ExpressionCompileBenchmark.class.getClassLoader();
+		// warm up both paths
+		for(String expression : EXPRESSIONS) {
+			compiler.compileBytecode(expression, NAMES, TYPES, loader);
+			compiler.compileJavac(expression, NAMES, TYPES, ctx);
+		}
+		System.out.println(String.format("%-32s %14s %14s", "Expression", "bytecode (us)", "javac (us)"));
+		for(String expression : EXPRESSIONS) {
+			long start = System.nanoTime();
+			for(int i = 0; i < rounds; i++) {
+				compiler.compileBytecode(expression, NAMES, TYPES, loader);
+			}
+			long fast = (System.nanoTime() - start) / rounds / 1000;
+			start = System.nanoTime();
+			for(int i = 0; i < rounds; i++) {
+				compiler.compileJavac(expression, NAMES, TYPES, ctx);
+			}
+			long javac = (System.nanoTime() - start) / rounds / 1000;
+			System.out.println(String.format("%-32s %14d %14d", expression, fast, javac));
+		}
+	}
+}
@@ -0,0 +1,514 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.sun.script.java;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptException;
+import javax.script.SimpleScriptContext;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import test.scripting.BaseScriptingTestCase;
+
+import com.sun.script.java.CompilationFailureCache;
+import com.sun.script.java.DoubleKernel;
+import com.sun.script.java.ExpressionCompiler;
+import com.sun.script.java.JavaCompiler;
+import com.sun.script.java.JavaExpression;
+import com.sun.script.java.JavaLibrary;
+import com.sun.script.java.JavaScriptEngine;
+import com.sun.script.java.JavaScriptEngineFactory;
+import com.sun.script.java.JavaSession;
+import com.sun.script.java.PrimitiveExpression;
+
+/**
+ * <p>Title: JavaScriptEngineTestCase</p>
+ * <p>Description: Test cases for the Java script engine</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.sun.script.java.JavaScriptEngineTestCase</code></p>
+ */
+
+public class JavaScriptEngineTestCase extends BaseScriptingTestCase {
+	
+	/**
+	 * Loads the Java ScriptEngine
+	 * @throws java.lang.Exception thrown on any error
+	 */
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		initEngine(JavaScriptEngine.class, "java");
+		// the BeanShell factory also registers the name "java"
+		if(!(engine instanceof JavaScriptEngine)) {
+			engine = new JavaScriptEngineFactory().getScriptEngine();
+		}
+	}
+	
+	/**
+	 * Tests that session snippets see the variables, methods and imports of earlier snippets
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void sessionSnippets() throws Exception {
+		JavaSession session = ((JavaScriptEngine)engine).createSession();
+		engine.getContext().setAttribute(JavaScriptEngine.SESSION, session, ScriptContext.ENGINE_SCOPE);
+		try {
+			Assert.assertNull(engine.eval("import java.util.*;"));
+			engine.eval("int counter = 10;");
+			engine.eval("private static int square(int x) { return x * x; }");
+			engine.eval("List<String> names = new ArrayList<String>();");
+			engine.eval("counter++;");
+			engine.eval("names.add(\"a\")");
+			Assert.assertEquals(121, engine.eval("square(counter)"));
+			Assert.assertEquals(1, engine.eval("names.size()"));
+			engine.eval("String counter = \"redefined\";");
+			Assert.assertEquals("redefined", engine.eval("counter"));
+			Assert.assertTrue(session.getDeclaredNames().contains("square"));
+			Assert.assertSame(engine.getContext(), engine.eval("context"));
+			log("Snippets compiled: " + session.getSnippetCount());
+			// a declaration without its semicolon
+			engine.eval("int total = 1");
+			Assert.assertEquals(2, engine.eval("total + 1"));
+			session.reset();
+			Assert.assertEquals(0, session.getSnippetCount());
+			Assert.assertTrue(session.getDeclaredNames().isEmpty());
+			Assert.assertEquals(3, engine.eval("1 + 2"));
+		} finally {
+			engine.getContext().removeAttribute(JavaScriptEngine.SESSION, ScriptContext.ENGINE_SCOPE);
+		}
+	}
+	
+	/**
+	 * Tests that a failed snippet does not affect the session state
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void sessionFailedSnippet() throws Exception {
+		JavaSession session = ((JavaScriptEngine)engine).createSession();
+		engine.getContext().setAttribute(JavaScriptEngine.SESSION, session, ScriptContext.ENGINE_SCOPE);
+		try {
+			engine.eval("int a = 3;");
+			try {
+				engine.eval("int b = undefinedName;");
+				Assert.fail("Expected compilation failure");
+			} catch (ScriptException expected) {
+			}
+			try {
+				engine.eval("throw new IllegalStateException(\"boom\");");
+				Assert.fail("Expected runtime failure");
+			} catch (ScriptException expected) {
+				Assert.assertTrue(expected.getCause() instanceof IllegalStateException);
+			}
+			Assert.assertEquals(3, engine.eval("a"));
+			Assert.assertFalse(session.getDeclaredNames().contains("b"));
+		} finally {
+			engine.getContext().removeAttribute(JavaScriptEngine.SESSION, ScriptContext.ENGINE_SCOPE);
+		}
+	}
+
+	/**
+	 * Tests that snippets and the methods they declare read the context of the eval they run in
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void sessionContextAtUse() throws Exception {
+		JavaSession session = ((JavaScriptEngine)engine).createSession();
+		ScriptContext first = new SimpleScriptContext();
+		ScriptContext second = new SimpleScriptContext();
+		first.setAttribute(JavaScriptEngine.SESSION, session, ScriptContext.ENGINE_SCOPE);
+		second.setAttribute(JavaScriptEngine.SESSION, session, ScriptContext.ENGINE_SCOPE);
+		first.setAttribute("name", "first", ScriptContext.ENGINE_SCOPE);
+		second.setAttribute("name", "second", ScriptContext.ENGINE_SCOPE);
+		engine.eval("static Object lookup(String key) { return context.getAttribute(key); }", first);
+		Assert.assertEquals("first", engine.eval("lookup(\"name\")", first));
+		Assert.assertEquals("second", engine.eval("lookup(\"name\")", second));
+		Assert.assertSame(second, engine.eval("context", second));
+		Assert.assertEquals("second", engine.eval("context.getAttribute(\"name\")", second));
+	}
+
+	/**
+	 * Tests expression evaluation against bindings
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void expressionEvaluation() throws Exception {
+		engine.put("a", 3);
+		engine.put("b", 2.5d);
+		engine.put("big", 5L);
+		engine.put("flag", false);
+		engine.put("name", "hello");
+		Assert.assertEquals(8.5d, engine.eval("a * b + 1"));
+		Assert.assertEquals(true, engine.eval("a > 2 && !flag"));
+		Assert.assertEquals("n=31", engine.eval("\"n=\" + a + 1"));
+		Assert.assertEquals(10, engine.eval("Math.max(a, 10)"));
+		Assert.assertEquals(15L, engine.eval("a * big"));
+		Assert.assertEquals(-4, engine.eval("flag ? a : ~a"));
+		// outside the byte code subset, compiled with javac
+		Assert.assertEquals(5, engine.eval("name.length()"));
+		engine.put("a", 4);
+		Assert.assertEquals(10.0d, engine.eval("a * b"));
+		try {
+			engine.eval("a / 0");
+			Assert.fail("Expected ArithmeticException");
+		} catch (ScriptException expected) {
+			Assert.assertTrue(expected.getCause() instanceof ArithmeticException);
+		}
+	}
+	
+	/**
+	 * Tests that a class script is still run and returned, and fails at compile time, while an expression returns its value
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void classAndExpressionScripts() throws Exception {
+		String script = "class Doubler {\n" +
+			"  public static void main(ScriptContext ctx, String[] args) {\n" +
+			"    ctx.setAttribute(\"doubled\", (Integer)ctx.getAttribute(\"x\") * 2, ScriptContext.ENGINE_SCOPE);\n" +
+			"  }\n" +
+			"}\n";
+		engine.put("x", 21);
+		Object result = engine.eval("import javax.script.ScriptContext;\n" + script);
+		Assert.assertTrue(result instanceof Class);
+		Assert.assertEquals("Doubler", ((Class<?>)result).getName());
+		Assert.assertEquals(42, engine.get("doubled"));
+		Assert.assertEquals(42, engine.eval("x * 2"));
+		try {
+			((Compilable)engine).compile("public class Broken { int x = \"no\"; }");
+			Assert.fail("Expected compilation failure");
+		} catch (ScriptException expected) {
+		}
+		CompiledScript broken = ((Compilable)engine).compile("x.undefined()");
+		try {
+			broken.eval();
+			Assert.fail("Expected compilation failure");
+		} catch (ScriptException expected) {
+		}
+	}
+	
+	/**
+	 * Tests that the byte code and javac compiled expressions agree
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void expressionCompilersAgree() throws Exception {
+		ExpressionCompiler compiler = new ExpressionCompiler(new JavaCompiler());
+		ScriptContext ctx = new SimpleScriptContext();
+		String[] names = {"i", "l", "d", "s", "z"};
+		Object[] values = {7, 11L, 0.5d, "x", true};
+		Class<?>[] types = new Class<?>[values.length];
+		for(int i = 0; i < values.length; i++) {
+			types[i] = ExpressionCompiler.bindingType(values[i]);
+		}
+		String[] expressions = {
+			"i % 4 - l / 2 * d", "-(i + l) * 3 >= l || z & i < 0", "s + i + l + d + z", "(i ^ 5) | 0x10",
+			"d != d || i == 7L", "Math.abs(-i) + Math.pow(d, 2)", "z ? s : \"y\"", "Long.toHexString(l)"
+		};
+		for(String expression : expressions) {
+			JavaExpression fast = compiler.compileBytecode(expression, names, types, getClass().getClassLoader());
+			Assert.assertNotNull("No byte code for [" + expression + "]", fast);
+			JavaExpression javac = compiler.compileJavac(expression, names, types, ctx);
+			Assert.assertEquals("Result of [" + expression + "]", javac.eval(values), fast.eval(values));
+		}
+		Assert.assertNull(compiler.compileBytecode("s.length()", names, types, getClass().getClassLoader()));
+		// hex int literals use all 32 bits, wider ones are left to javac
+		Assert.assertEquals(6, compiler.compileBytecode("0xFFFFFFFF + i", names, types, getClass().getClassLoader()).eval(values));
+		Assert.assertNull(compiler.compileBytecode("0x1FFFFFFFF + i", names, types, getClass().getClassLoader()));
+	}
+
+	/**
+	 * Runs the passed compiled script concurrently, each invocation with its own context
+	 * @param script The compiled script which doubles the <b><code>input</code></b> attribute into <b><code>output</code></b>
+	 * @throws Exception thrown on any error
+	 */
+	private static void runConcurrently(final CompiledScript script) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for(int i = 0; i < 200; i++) {
+				final int input = i;
+				results.add(executor.submit(new Callable<Integer>() {
+					public Integer call() throws Exception {
+						ScriptContext ctx = new SimpleScriptContext();
+						ctx.setAttribute("input", input, ScriptContext.ENGINE_SCOPE);
+						script.eval(ctx);
+						return (Integer)ctx.getAttribute("output");
+					}
+				}));
+			}
+			for(int i = 0; i < results.size(); i++) {
+				Assert.assertEquals(Integer.valueOf(i * 2), results.get(i).get());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Tests concurrent invocations of a script which takes its context as a main parameter
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void concurrentContextParameter() throws Exception {
+		runConcurrently(((Compilable)engine).compile(
+			"import javax.script.ScriptContext;\n" +
+			"class Doubler {\n" +
+			"  public static void main(ScriptContext ctx, String[] args) throws Exception {\n" +
+			"    int input = (Integer)ctx.getAttribute(\"input\");\n" +
+			"    Thread.sleep(1);\n" +
+			"    ctx.setAttribute(\"output\", input * 2, ScriptContext.ENGINE_SCOPE);\n" +
+			"  }\n" +
+			"}\n"));
+	}
+	
+	/**
+	 * Tests concurrent invocations of a script with an instance main method
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void concurrentInstances() throws Exception {
+		runConcurrently(((Compilable)engine).compile(
+			"import javax.script.ScriptContext;\n" +
+			"class Doubler {\n" +
+			"  private ScriptContext ctx;\n" +
+			"  public void setScriptContext(ScriptContext ctx) { this.ctx = ctx; }\n" +
+			"  public void main(String[] args) throws Exception {\n" +
+			"    int input = (Integer)ctx.getAttribute(\"input\");\n" +
+			"    Thread.sleep(1);\n" +
+			"    ctx.setAttribute(\"output\", input * 2, ScriptContext.ENGINE_SCOPE);\n" +
+			"  }\n" +
+			"}\n"));
+	}
+
+	/**
+	 * Tests that a failed compilation is remembered until invalidated
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void failedCompilationCache() throws Exception {
+		JavaCompiler compiler = new JavaCompiler();
+		CompilationFailureCache failures = compiler.getFailureCache();
+		String broken = "class Broken { void x() { int y = \"no\"; } }";
+		StringWriter first = new StringWriter();
+		Assert.assertNull(compiler.compile("Broken.java", broken, first));
+		Assert.assertTrue(first.toString().length() > 0);
+		Assert.assertEquals(1, failures.size());
+		StringWriter second = new StringWriter();
+		Assert.assertNull(compiler.compile("Broken.java", broken, second));
+		Assert.assertEquals(1, failures.getHits());
+		Assert.assertEquals(first.toString(), second.toString());
+		// the same source against another class path is a different compilation
+		Assert.assertNull(compiler.compile("Broken.java", broken, new StringWriter(), null, "."));
+		Assert.assertEquals(1, failures.getHits());
+		failures.invalidate(broken);
+		Assert.assertEquals(0, failures.size());
+		Assert.assertNull(compiler.compile("Broken.java", broken, new StringWriter()));
+		Assert.assertEquals(1, failures.getHits());
+		
+		// a change in a class path directory forgets the failure
+		File dir = File.createTempFile("classes", ".dir");
+		dir.delete();
+		dir.mkdirs();
+		File dep = new File(dir, "Dep.class");
+		FileWriter writer = new FileWriter(dep);
+		writer.write("old");
+		writer.close();
+		String key = failures.key("Broken.java", broken, new ArrayList<String>(), null);
+		failures.put(key, null, dir.getPath(), "", new ScriptException("broken"));
+		Assert.assertNotNull(failures.get(key, null, dir.getPath()));
+		writer = new FileWriter(dep);
+		writer.write("fixed");
+		writer.close();
+		Assert.assertNull(failures.get(key, null, dir.getPath()));
+		dep.delete();
+		dir.delete();
+
+		// an expression compiled by javac fails the same way each time it is evaluated
+		failures.invalidateAll();
+		long hits = failures.getHits();
+		ExpressionCompiler expressions = new ExpressionCompiler(compiler);
+		for(int i = 0; i < 2; i++) {
+			try {
+				expressions.compileJavac("undefined(1)", new String[0], new Class<?>[0], new SimpleScriptContext());
+				Assert.fail("Expected compilation failure");
+			} catch (ScriptException expected) {
+				Assert.assertTrue(expected.getMessage().contains("cannot find symbol"));
+			}
+		}
+		Assert.assertEquals(2, failures.size());
+		Assert.assertEquals(hits + 2, failures.getHits());
+
+		// and through the engine, which rethrows the same exception
+		StringWriter err = new StringWriter();
+		ScriptContext ctx = new SimpleScriptContext();
+		ctx.setErrorWriter(err);
+		ScriptException thrown = null;
+		for(int i = 0; i < 2; i++) {
+			try {
+				engine.eval(broken, ctx);
+				Assert.fail("Expected compilation failure");
+			} catch (ScriptException expected) {
+				Assert.assertTrue(expected.getMessage().contains("compilation failed"));
+				Assert.assertTrue(expected.getMessage().contains("incompatible types"));
+				if (thrown == null) thrown = expected;
+				else Assert.assertSame(thrown, expected);
+			}
+		}
+		((JavaScriptEngine)engine).invalidateFailedCompilations();
+	}
+
+	/**
+	 * Compiles a version of the test library
+	 * @param suffix The suffix the library's shout method appends
+	 * @return the compiled library
+	 * @throws ScriptException thrown on any compilation error
+	 */
+	private static JavaLibrary compileShoutLibrary(String suffix) throws ScriptException {
+		return ((JavaScriptEngine)engine).compileLibrary(Collections.singletonMap("Strings.java",
+			"package lib;\n" +
+			"public class Strings {\n" +
+			"  public static String shout(String s) { return s.toUpperCase() + \"" + suffix + "\"; }\n" +
+			"}\n"));
+	}
+	
+	/**
+	 * Tests that scripts share the classes of the installed library and pick up a swapped library
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void sharedLibrary() throws Exception {
+		JavaScriptEngine javaEngine = (JavaScriptEngine)engine;
+		String script = 
+			"import javax.script.ScriptContext;\n" +
+			"class Shouter {\n" +
+			"  public static void main(ScriptContext ctx, String[] args) {\n" +
+			"    ctx.setAttribute(\"shouted\", lib.Strings.shout(\"hi\"), ScriptContext.ENGINE_SCOPE);\n" +
+			"    ctx.setAttribute(\"libClass\", lib.Strings.class, ScriptContext.ENGINE_SCOPE);\n" +
+			"  }\n" +
+			"}\n";
+		JavaLibrary v1 = compileShoutLibrary("!");
+		javaEngine.setLibrary(v1);
+		try {
+			engine.eval(script);
+			Assert.assertEquals("HI!", engine.get("shouted"));
+			Class<?> libClass = (Class<?>)engine.get("libClass");
+			Assert.assertSame(v1.loadClass("lib.Strings"), libClass);
+			engine.eval(script.replace("Shouter", "Shouter2"));
+			Assert.assertSame(libClass, engine.get("libClass"));
+			engine.put("word", "hey");
+			Assert.assertEquals("HEY!", engine.eval("lib.Strings.shout(word)"));
+			
+			JavaLibrary v2 = compileShoutLibrary("!!");
+			Assert.assertTrue(v2.getVersion() > v1.getVersion());
+			javaEngine.setLibrary(v2);
+			engine.eval(script);
+			Assert.assertEquals("HI!!", engine.get("shouted"));
+			Assert.assertSame(v2.loadClass("lib.Strings"), engine.get("libClass"));
+			Assert.assertEquals("HEY!!", engine.eval("lib.Strings.shout(word)"));
+		} finally {
+			javaEngine.setLibrary(null);
+		}
+	}
+
+	/**
+	 * Tests kernels over primitive arrays, serially and split across an executor
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void arrayKernel() throws Exception {
+		DoubleKernel kernel = ((JavaScriptEngine)engine).compileKernel("a * b + Math.sqrt(c)", "a", "b", "c");
+		int size = 10000;
+		double[] a = new double[size], b = new double[size], c = new double[size];
+		for(int i = 0; i < size; i++) {
+			a[i] = i; b[i] = 0.5; c[i] = i * i;
+		}
+		double[] out = kernel.apply(a, b, c);
+		for(int i = 0; i < size; i++) {
+			Assert.assertEquals(i * 1.5, out[i], 0.000001);
+		}
+		double[] parallelOut = new double[size];
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			kernel.apply(new double[][] {a, b, c}, parallelOut, executor, 1000);
+		} finally {
+			executor.shutdownNow();
+		}
+		Assert.assertArrayEquals(out, parallelOut, 0d);
+		try {
+			kernel.apply(a, b);
+			Assert.fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException expected) {
+		}
+		try {
+			((JavaScriptEngine)engine).compileKernel("a * d", "a");
+			Assert.fail("Expected compilation failure");
+		} catch (ScriptException expected) {
+			Assert.assertTrue(expected.getMessage().contains("cannot find symbol"));
+		}
+	}
+
+
+	/**
+	 * Tests the primitive entry points of compiled expressions
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void primitiveExpressions() throws Exception {
+		engine.put("a", 3);
+		engine.put("b", 2.5d);
+		engine.put("name", "hello");
+		JavaScriptEngine.JavaCompiledExpression sum = (JavaScriptEngine.JavaCompiledExpression)((Compilable)engine).compile("a * b + 1");
+		Assert.assertEquals(8.5d, sum.evalDouble(), 0d);
+		Assert.assertEquals(8L, sum.evalLong());
+		Assert.assertEquals(8.5d, sum.eval());
+		JavaScriptEngine.JavaCompiledExpression test = (JavaScriptEngine.JavaCompiledExpression)((Compilable)engine).compile("a > 2");
+		Assert.assertTrue(test.evalBoolean());
+		try {
+			test.evalLong();
+			Assert.fail("Expected ScriptException");
+		} catch (ScriptException expected) {
+			Assert.assertTrue(expected.getCause() instanceof ClassCastException);
+		}
+		// outside the byte code subset, the boxed value is converted
+		Assert.assertEquals(5L, ((JavaScriptEngine.JavaCompiledExpression)((Compilable)engine).compile("name.length()")).evalLong());
+		JavaExpression generated = new ExpressionCompiler(new JavaCompiler()).compileBytecode("a * 2",
+				new String[] {"a"}, new Class<?>[] {int.class}, getClass().getClassLoader());
+		Assert.assertEquals(42.0d, ((PrimitiveExpression)generated).evalDouble(new Object[] {21}), 0d);
+	}
+}
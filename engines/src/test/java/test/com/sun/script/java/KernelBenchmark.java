@@ -0,0 +1,63 @@
+package test.com.sun.script.java;
+
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+
+import com.sun.script.java.DoubleKernel;
+import com.sun.script.java.JavaScriptEngine;
+import com.sun.script.java.JavaScriptEngineFactory;
+
+/**
+ * <p>Title: KernelBenchmark</p>
+ * <p>Description: Compares the per-row cost of evaluating an expression once per row against an array kernel.
+ * Run as a main class with the test classpath.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.sun.script.java.KernelBenchmark</code></p>
+ */
+
+public class KernelBenchmark {
+	/** The benchmarked expression */
+	private static final String EXPRESSION = "a * b + c / 2";
+
+	/**
+	 * Runs the benchmark
+	 * @param args [0] the number of rows, default 1000000
+	 * @throws Exception thrown on any error
+	 */
+	public static void main(String[] args) throws Exception {
+		int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		JavaScriptEngine engine = (JavaScriptEngine)new JavaScriptEngineFactory().getScriptEngine();
+		double[] a = new double[rows], b = new double[rows], c = new double[rows];
+		for(int i = 0; i < rows; i++) {
+			a[i] = i; b[i] = i % 7; c[i] = 1d / (i + 1);
+		}
+		// eval per row, on a tenth of the rows
+		int evalRows = Math.max(1, rows / 10);
+		evalRows(engine, a, b, c, evalRows);
+		long start = System.nanoTime();
+		evalRows(engine, a, b, c, evalRows);
+		double evalNanos = (System.nanoTime() - start) / (double)evalRows;
+
+		DoubleKernel kernel = engine.compileKernel(EXPRESSION, "a", "b", "c");
+		double[] out = new double[rows];
+		for(int i = 0; i < 10; i++) {
+			kernel.apply(new double[][] {a, b, c}, out);
+		}
+		start = System.nanoTime();
+		kernel.apply(new double[][] {a, b, c}, out);
+		double kernelNanos = (System.nanoTime() - start) / (double)rows;
+		System.out.println(String.format("eval per row:   %10.1f ns/row", evalNanos));
+		System.out.println(String.format("kernel:         %10.1f ns/row", kernelNanos));
+	}
+
+	private static void evalRows(ScriptEngine engine, double[] a, double[] b, double[] c, int rows) throws Exception {
+		ScriptContext ctx = engine.getContext();
+		for(int i = 0; i < rows; i++) {
+			ctx.setAttribute("a", a[i], ScriptContext.ENGINE_SCOPE);
+			ctx.setAttribute("b", b[i], ScriptContext.ENGINE_SCOPE);
+			ctx.setAttribute("c", c[i], ScriptContext.ENGINE_SCOPE);
+			engine.eval(EXPRESSION);
+		}
+	}
+}